@@ -17,7 +17,20 @@
 
 package com.odiago.flumebase.client;
 
+import java.io.IOException;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.avro.generic.GenericRecord;
+
+import com.odiago.flumebase.exec.FlowId;
+
 import com.odiago.flumebase.thrift.ClientConsole;
+import com.odiago.flumebase.thrift.TRecordBlock;
 
 /**
  * Implementation of the ClientConsole rpc server.
@@ -31,12 +44,85 @@ public class ClientConsoleImpl implements ClientConsole.Iface {
 
   public static final int DEFAULT_CONSOLE_SERVER_PORT = 9293;
 
+  /** Streams that receive the records of flows, by flow. */
+  private final Map<FlowId, RecordStream> mRecordStreams;
+
+  /** Decoders for the records of flows that have no stream, which are printed. */
+  private final Map<FlowId, RecordBlockDecoder> mPrintDecoders;
+
+  public ClientConsoleImpl() {
+    mRecordStreams = new ConcurrentHashMap<FlowId, RecordStream>();
+    mPrintDecoders = new HashMap<FlowId, RecordBlockDecoder>();
+  }
+
+  /**
+   * Deliver the records of the specified flow to a RecordStream, rather than
+   * printing them. Closes any stream previously receiving that flow's records.
+   */
+  public void addRecordStream(FlowId flowId, RecordStream stream) {
+    RecordStream prev = mRecordStreams.put(flowId, stream);
+    if (null != prev) {
+      prev.close();
+    }
+  }
+
+  /** Stop delivering the records of the specified flow to its RecordStream, and close it. */
+  public void removeRecordStream(FlowId flowId) {
+    RecordStream stream = mRecordStreams.remove(flowId);
+    if (null != stream) {
+      stream.close();
+    }
+  }
+
+  /** Close all RecordStreams. */
+  public void closeRecordStreams() {
+    for (FlowId flowId : mRecordStreams.keySet()) {
+      removeRecordStream(flowId);
+    }
+  }
+
   /** Print ordinary info / records from the server to the console. */
   @Override
   public void sendInfo(String info) {
     System.out.println(info);
   }
 
+  /** Print several lines of info / records from the server to the console. */
+  @Override
+  public void sendInfoBatch(List<String> info) {
+    for (String line : info) {
+      System.out.println(line);
+    }
+  }
+
+  /**
+   * Deliver a block of records to the RecordStream for its flow. If there is
+   * none, print the records to the console.
+   */
+  @Override
+  public synchronized void sendRecords(TRecordBlock block) {
+    FlowId flowId = FlowId.fromThrift(block.getFlowId());
+    RecordStream stream = mRecordStreams.get(flowId);
+    if (null != stream) {
+      stream.addBlock(block);
+      return;
+    }
+
+    RecordBlockDecoder decoder = mPrintDecoders.get(flowId);
+    if (null == decoder) {
+      decoder = new RecordBlockDecoder();
+      mPrintDecoders.put(flowId, decoder);
+    }
+
+    try {
+      for (GenericRecord record : decoder.decode(block)) {
+        System.out.println(record);
+      }
+    } catch (IOException ioe) {
+      System.err.println("Could not decode records from server: " + ioe);
+    }
+  }
+
   /** Print error information to the console. */
   @Override
   public void sendErr(String err) {
@@ -0,0 +1,73 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.client;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.avro.Schema;
+
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+
+import com.odiago.flumebase.exec.FlowId;
+
+import com.odiago.flumebase.thrift.TRecordBlock;
+
+/**
+ * Decodes the blocks of output records sent by the server for a single flow.
+ * The schema arrives with the first block, and is used for each later block
+ * until a new one is sent.
+ */
+public class RecordBlockDecoder {
+  private DecoderFactory mDecoderFactory;
+  private BinaryDecoder mDecoder;
+  private GenericDatumReader<GenericRecord> mReader;
+
+  public RecordBlockDecoder() {
+    mDecoderFactory = new DecoderFactory();
+  }
+
+  /**
+   * @return the records in the specified block.
+   */
+  public List<GenericRecord> decode(TRecordBlock block) throws IOException {
+    if (block.isSetSchema()) {
+      mReader = new GenericDatumReader<GenericRecord>(Schema.parse(block.getSchema()));
+    }
+
+    if (null == mReader) {
+      throw new IOException("Received records for flow "
+          + FlowId.fromThrift(block.getFlowId()) + " without a schema");
+    }
+
+    byte[] bytes = block.getRecords();
+    mDecoder = mDecoderFactory.createBinaryDecoder(bytes, mDecoder);
+    List<GenericRecord> records = new ArrayList<GenericRecord>(block.getCount());
+    for (int i = 0; i < block.getCount(); i++) {
+      records.add(mReader.read(null, mDecoder));
+    }
+
+    return records;
+  }
+}
@@ -0,0 +1,104 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.client;
+
+import java.io.IOException;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.avro.generic.GenericRecord;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.odiago.flumebase.thrift.TRecordBlock;
+
+/**
+ * Iterator over the output records of a flow watched by a client.
+ * Record blocks are decoded as they arrive from the server, and queued
+ * for the consumer. hasNext() blocks until a record arrives or the stream
+ * is closed.
+ */
+public class RecordStream implements Iterator<GenericRecord> {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      RecordStream.class.getName());
+
+  /** Marker placed in the queue when the stream is closed. */
+  private static final Object END_OF_STREAM = new Object();
+
+  /** Decoded records waiting for the consumer, followed by END_OF_STREAM. */
+  private final BlockingQueue<Object> mQueue;
+
+  private final RecordBlockDecoder mDecoder;
+
+  /** The next element to return, if already taken from the queue. */
+  private Object mNext;
+
+  public RecordStream() {
+    mQueue = new LinkedBlockingQueue<Object>();
+    mDecoder = new RecordBlockDecoder();
+  }
+
+  /** Decode a block of records received from the server and queue its records. */
+  void addBlock(TRecordBlock block) {
+    try {
+      mQueue.addAll(mDecoder.decode(block));
+    } catch (IOException ioe) {
+      LOG.error("Could not decode records from server: " + ioe);
+    }
+  }
+
+  /** Ends the stream, after any records already queued. */
+  void close() {
+    mQueue.add(END_OF_STREAM);
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (null == mNext) {
+      try {
+        mNext = mQueue.take();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+
+    return mNext != END_OF_STREAM;
+  }
+
+  @Override
+  public GenericRecord next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+
+    GenericRecord record = (GenericRecord) mNext;
+    mNext = null;
+    return record;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+}
@@ -20,10 +20,13 @@ package com.odiago.flumebase.client;
 import java.io.IOException;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
+import org.apache.avro.generic.GenericRecord;
+
 import org.apache.hadoop.conf.Configuration;
 
 import org.apache.thrift.TException;
@@ -91,6 +94,9 @@ public class ThriftClientEnvironment extends ExecEnvironment {
   /** The TServer hosting the ClientConsole callback service. */
   private TServer mConsoleServer;
 
+  /** The ClientConsole callback service implementation. */
+  private ClientConsoleImpl mConsoleImpl;
+
   public ThriftClientEnvironment(Configuration conf, String host, int port)  {
     mConf = conf;
     mHost = host;
@@ -114,6 +120,7 @@ public class ThriftClientEnvironment extends ExecEnvironment {
         // Start our own server hosting the ClientConsole service, so
         // the server can send us back results.
         ClientConsoleImpl consoleImpl = new ClientConsoleImpl();
+        mConsoleImpl = consoleImpl;
         consolePort = mConf.getInt(ClientConsoleImpl.CONSOLE_SERVER_PORT_KEY,
             ClientConsoleImpl.DEFAULT_CONSOLE_SERVER_PORT);
         LOG.debug("Starting ClientConsole service on port " + consolePort);
@@ -238,6 +245,38 @@ public class ThriftClientEnvironment extends ExecEnvironment {
     }
   }
 
+  @Override
+  public void watchFlowRecords(SessionId sessionId, FlowId flowId) throws IOException {
+    try {
+      mClient.watchFlowRecords(sessionId.toThrift(), flowId.toThrift());
+    } catch (TException te) {
+      throw new IOException(te);
+    }
+  }
+
+  /**
+   * Watch the output of the specified flow as Avro records, which the server
+   * sends in binary-encoded blocks.
+   * @return an iterator over the output records. hasNext() blocks until a
+   * record arrives, and returns false once this client stops watching the
+   * flow or disconnects.
+   */
+  public Iterator<GenericRecord> getFlowRecords(FlowId flowId) throws IOException {
+    if (null == mSessionId || null == mConsoleImpl) {
+      throw new IOException("Not connected to a console; cannot receive records.");
+    }
+
+    RecordStream stream = new RecordStream();
+    mConsoleImpl.addRecordStream(flowId, stream);
+    try {
+      watchFlowRecords(mSessionId, flowId);
+    } catch (IOException ioe) {
+      mConsoleImpl.removeRecordStream(flowId);
+      throw ioe;
+    }
+    return stream;
+  }
+
   @Override
   public void unwatchFlow(SessionId sessionId, FlowId flowId) throws IOException {
     try {
@@ -245,6 +284,10 @@ public class ThriftClientEnvironment extends ExecEnvironment {
     } catch (TException te) {
       throw new IOException(te);
     }
+
+    if (null != mConsoleImpl && sessionId.equals(mSessionId)) {
+      mConsoleImpl.removeRecordStream(flowId);
+    }
   }
 
   @Override
@@ -279,6 +322,10 @@ public class ThriftClientEnvironment extends ExecEnvironment {
       // Continue with disconnect process even in the face of an error.
     }
 
+    if (null != mConsoleImpl) {
+      mConsoleImpl.closeRecordStreams();
+    }
+
     mTransport.close();
     mClient = null;
   }
@@ -79,7 +79,26 @@ public class AvroEventWrapper extends EventWrapperImpl {
       decode();
     }
 
-    return mRecord.get(field.getAvroName());
+    return getRecordField(mRecord, field);
+  }
+
+  /**
+   * @return the value of 'field' within 'record', looked up by its position
+   * in the record's schema. The position is cached in the TypedField.
+   */
+  static Object getRecordField(GenericData.Record record, TypedField field) {
+    Schema schema = record.getSchema();
+    int pos = field.getIndex(schema);
+    if (pos < 0) {
+      Schema.Field schemaField = schema.getField(field.getAvroName());
+      if (null == schemaField) {
+        return null; // No such field.
+      }
+      pos = schemaField.pos();
+      field.setIndex(schema, pos);
+    }
+
+    return record.get(pos);
   }
 
   @Override
@@ -17,51 +17,100 @@
 
 package com.odiago.flumebase.exec;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
+import java.util.List;
+
 import org.apache.avro.Schema;
 
 import org.apache.avro.generic.GenericData;
-import org.apache.avro.generic.GenericDatumWriter;
-import org.apache.avro.generic.GenericRecord;
 
-import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.util.Utf8;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.cloudera.flume.core.Event;
-import com.cloudera.flume.core.EventImpl;
 
 /**
  * Abstract class that allows nodes to emit output records which
- * are serialized in avro format.
+ * conform to an avro schema. Records are passed downstream in memory as
+ * RecordEvents; they are only serialized if a consumer asks for the
+ * event body.
  */
 public abstract class AvroOutputElementImpl extends FlowElementImpl {
   private static final Logger LOG = LoggerFactory.getLogger(
       AvroOutputElementImpl.class.getName());
 
-  // Avro encoder components reused in our internal workflow.
-  private BinaryEncoder mEncoder;
-  private GenericDatumWriter<GenericRecord> mDatumWriter;
-  private ByteArrayOutputStream mOutputBytes;
   private Schema mOutputSchema;
 
+  /** For each field of the output schema, true if it may hold a null. */
+  private boolean[] mNullableFields;
+
+  /** For each field of the output schema, true if it holds a string. */
+  private boolean[] mStringFields;
+
   public AvroOutputElementImpl(FlowElementContext ctxt, Schema outputSchema) {
     super(ctxt);
-    mDatumWriter = new GenericDatumWriter<GenericRecord>(outputSchema);
-    mOutputBytes = new ByteArrayOutputStream();
-    mEncoder = new BinaryEncoder(mOutputBytes);
     mOutputSchema = outputSchema;
+
+    List<Schema.Field> fields = outputSchema.getFields();
+    mNullableFields = new boolean[fields.size()];
+    mStringFields = new boolean[fields.size()];
+    for (int i = 0; i < fields.size(); i++) {
+      Schema fieldSchema = fields.get(i).schema();
+      mNullableFields[i] = hasType(fieldSchema, Schema.Type.NULL);
+      mStringFields[i] = hasType(fieldSchema, Schema.Type.STRING);
+    }
+  }
+
+  /**
+   * @return true if the schema is of the specified type, or is a union
+   * that includes it.
+   */
+  private static boolean hasType(Schema schema, Schema.Type type) {
+    if (schema.getType().equals(type)) {
+      return true;
+    } else if (schema.getType().equals(Schema.Type.UNION)) {
+      for (Schema branch : schema.getTypes()) {
+        if (branch.getType().equals(type)) {
+          return true;
+        }
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Put the record's values in the form that an avro decoder would produce
+   * for it, so downstream elements see the same objects as if the record
+   * had been serialized: strings are represented as Utf8.
+   * @return false if the record has a null in a field declared non-null.
+   */
+  private boolean normalizeRecord(GenericData.Record record) {
+    for (int i = 0; i < mNullableFields.length; i++) {
+      Object val = record.get(i);
+      if (null == val) {
+        if (!mNullableFields[i]) {
+          return false;
+        }
+      } else if (mStringFields[i] && !(val instanceof Utf8)) {
+        record.put(i, new Utf8(val.toString()));
+      }
+    }
+
+    return true;
   }
 
   /**
    * Create a new output Event that encapsulates the specified record,
    * and emit it to the output context.
-   * @param record the avro record to emit to the output context.
+   * @param record the avro record to emit to the output context. The record
+   * is passed downstream as-is, and must not be modified after this call.
    * @param inEvent the input event to the current FlowElement; properties
-   * of this event are propagated forward into the output event.
+   * of this event, including the name of the stream it belongs to, are
+   * propagated forward into the output event.
    */
   protected void emitAvroRecord(GenericData.Record record, Event inEvent)
       throws IOException, InterruptedException {
@@ -75,21 +124,41 @@ public abstract class AvroOutputElementImpl extends FlowElementImpl {
 
   protected void emitAvroRecord(GenericData.Record record, Event inEvent, long timestamp,
       FlowElementContext context) throws IOException, InterruptedException {
-    // TODO: BAOS.toByteArray() creates a new byte array, as does the
-    // creation of the event. That's at least one more array copy than
-    // necessary.
-    mOutputBytes.reset();
-    try {
-      mDatumWriter.write(record, mEncoder);
-    } catch (NullPointerException npe) {
+    emitAvroRecord(record, timestamp, inEvent.getPriority(), inEvent.getNanos(),
+        inEvent.getHost(), inEvent.get(FlowElement.STREAM_NAME_ATTR), context);
+  }
+
+  /**
+   * Emit the specified record to the output context, with the given event
+   * attributes, for callers which no longer hold the input event.
+   */
+  protected void emitAvroRecord(GenericData.Record record, long timestamp,
+      Event.Priority priority, long nanos, String host, FlowElementContext context)
+      throws IOException, InterruptedException {
+    emitAvroRecord(record, timestamp, priority, nanos, host, null, context);
+  }
+
+  /**
+   * Emit the specified record to the output context, with the given event
+   * attributes.
+   * @param streamName the name of the stream the output event belongs to,
+   * as bytes of the STREAM_NAME_ATTR attribute; null if it has none.
+   */
+  protected void emitAvroRecord(GenericData.Record record, long timestamp,
+      Event.Priority priority, long nanos, String host, byte[] streamName,
+      FlowElementContext context) throws IOException, InterruptedException {
+    if (!normalizeRecord(record)) {
       // Schema error - the user tried to put a null in a field declared non-null.
       // We silently elide the entire record.
-      LOG.debug("Omitting record with NULL value in non-null field: " + npe.toString());
+      LOG.debug("Omitting record with NULL value in non-null field");
       return;
     }
-    Event out = new EventImpl(mOutputBytes.toByteArray(),
-        timestamp, inEvent.getPriority(), inEvent.getNanos(), inEvent.getHost()); 
-    AvroEventWrapper outWrapper = new AvroEventWrapper(mOutputSchema);
+
+    Event out = new RecordEvent(record, timestamp, priority, nanos, host);
+    if (null != streamName) {
+      out.set(FlowElement.STREAM_NAME_ATTR, streamName);
+    }
+    RecordEventWrapper outWrapper = new RecordEventWrapper();
     outWrapper.reset(out);
     emit(outWrapper, context);
   }
@@ -19,16 +19,15 @@ package com.odiago.flumebase.exec;
 
 import java.io.IOException;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
-import java.util.concurrent.PriorityBlockingQueue;
-
 import org.apache.avro.Schema;
 
 import org.apache.avro.generic.GenericData;
@@ -41,8 +40,13 @@ import org.slf4j.LoggerFactory;
 import com.cloudera.util.Pair;
 
 import com.odiago.flumebase.exec.local.TimerFlowElemContext;
+import com.odiago.flumebase.exec.local.TimerWheel;
 
+import com.odiago.flumebase.lang.AggregateState;
+import com.odiago.flumebase.lang.EvalException;
+import com.odiago.flumebase.lang.PrimitiveAggregate;
 import com.odiago.flumebase.lang.TimeSpan;
+import com.odiago.flumebase.lang.WindowAccumulator;
 
 import com.odiago.flumebase.parser.AliasedExpr;
 import com.odiago.flumebase.parser.Expr;
@@ -53,11 +57,6 @@ import com.odiago.flumebase.parser.WindowSpec;
 import com.odiago.flumebase.plan.AggregateNode;
 import com.odiago.flumebase.plan.PlanNode;
 
-import com.odiago.flumebase.util.IterableIterator;
-import com.odiago.flumebase.util.PairLeftRightComparator;
-
-import com.odiago.flumebase.util.concurrent.SelectableQueue;
-
 @SuppressWarnings("rawtypes")
 /**
  * Perform aggregation functions over time series data divided into
@@ -135,20 +134,47 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
 
   private final List<TypedField> mPropagateFields;
 
+  /** Builds the key identifying the group of each event. */
+  private final GroupKey.Factory mGroupKeyFactory;
+
+  /**
+   * For each aggregation function with primitive state, the PrimitiveAggregate
+   * bound to its argument type; null for other functions. The primitive
+   * aggregates of a group's bucket share one AggregateState, with this many
+   * slots of each kind.
+   */
+  private PrimitiveAggregate[] mPrimitiveAggregates;
+  private int mNumLongSlots;
+  private int mNumDoubleSlots;
+  private int mNumObjectSlots;
+  private boolean mHasPrimitiveAggregates;
+
+  /**
+   * Ring of bucket slots, one per mTimeModulus step of time. The slot for
+   * bucket timestamp t is mBucketRing[(t / mTimeModulus) % mBucketRing.length].
+   * The ring is long enough that two buckets which may both still contribute
+   * to an open window (or receive late events) never map to the same slot,
+   * so a slot can be reused as soon as a newer timestamp maps onto it.
+   */
+  private final BucketSlot[] mBucketRing;
+
+  /**
+   * Timestamp of the oldest bucket slot that has not been expired yet,
+   * or Long.MIN_VALUE if nothing has been expired yet.
+   */
+  private long mExpireCursor = Long.MIN_VALUE;
+
   /**
-   * Map that returns a set of Bucket objects. Each bucket object
-   * contains the state associated with a single aggregation function.
-   * The key is a pair consisting of the timestamp (as a Long) and a HashedEvent:
-   * an object that implements equals() and hashCode() based on a subset of the
-   * fields of an EventWrapper.
+   * Buckets with timestamps before this time may have been discarded. No
+   * window that remains to be closed includes them.
    */
-  private Map<Pair<Long, HashedEvent>, List<Bucket>> mBucketMap;
+  private long mExpiredBefore = Long.MIN_VALUE;
 
   /**
-   * The same set of buckets as mBucketMap, organized as time-ordered lists
-   * arranged by the group-by columns.
+   * The sliding window over each group that has buckets in the ring,
+   * keyed by the group-by fields.
    */
-  private Map<HashedEvent, List<Pair<Long, List<Bucket>>>> mBucketsByGroup;
+  private final Map<GroupKey, GroupWindow> mGroupWindows;
 
   /**
    * Timestamp associated with the newest buckets in the pipeline.
@@ -165,17 +191,40 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
   /** Timestamp of the most recent wakeup call enqueued. */
   private long mLastEnqueuedWakeup = 0;
 
+  /** Context through which we schedule wakeup calls for the timeout element. */
+  private TimerFlowElemContext mTimerContext;
+
+  /**
+   * Wakeup calls scheduled with the timer wheel that may not have fired
+   * yet, as (bucket time, timeout) pairs in order of bucket time.
+   */
+  private final ArrayDeque<Pair<Long, TimerWheel.Timeout>> mWakeups;
+
+  /** Holds the aggregate function arguments evaluated over the current event. */
+  private final Object[] mArgBuffer;
+
+  /**
+   * True once a watermark has arrived. From then on, windows are closed by
+   * watermarks rather than by slack time and wakeup calls.
+   */
+  private boolean mWatermarkDriven;
+
   /**
-   * SelectableQueue for the downstream timer element, which our eviction thread
-   * enqueues into.
+   * The name of our output stream, carried by our output events and
+   * watermarks so that a downstream join can tell them apart from those of
+   * its other inputs. Null if the plan does not name our output.
    */
-  private SelectableQueue<Object> mTimerQueue = null;
+  private final String mStreamName;
 
-  private EvictionThread mEvictionThread;
+  /** mStreamName as the bytes of the STREAM_NAME_ATTR of our output events. */
+  private final byte[] mStreamNameBytes;
 
   public BucketedAggregationElement(FlowElementContext ctxt, AggregateNode aggregateNode) {
     super(ctxt, (Schema) aggregateNode.getAttr(PlanNode.OUTPUT_SCHEMA_ATTR));
 
+    mStreamName = (String) aggregateNode.getAttr(PlanNode.OUTPUT_STREAM_NAME_ATTR);
+    mStreamNameBytes = null == mStreamName ? null : mStreamName.getBytes();
+
     Configuration conf = aggregateNode.getConf();
     assert null != conf;
     mNumBuckets = conf.getInt(NUM_BUCKETS_KEY, DEFAULT_NUM_BUCKETS);
@@ -202,6 +251,7 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
     mAggregateExprs = aggregateNode.getAggregateExprs();
     assert mAggregateExprs != null;
     mPropagateFields = aggregateNode.getPropagateFields();
+    mGroupKeyFactory = new GroupKey.Factory(mGroupByFields, mPropagateFields);
 
     Expr windowExpr = aggregateNode.getWindowExpr();
     assert windowExpr.isConstant();
@@ -216,181 +266,430 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
       throw new RuntimeException(ioe);
     }
 
-    mBucketMap = new HashMap<Pair<Long, HashedEvent>, List<Bucket>>(mNumBuckets);
-    mBucketsByGroup = new HashMap<HashedEvent, List<Pair<Long, List<Bucket>>>>();
-
     // Calculate the width of each bucket.
     mTimeModulus = mTimeSpan.getWidth() / mNumBuckets;
     if (mTimeModulus * mNumBuckets != mTimeSpan.getWidth()) {
       LOG.warn("Aggregation time step does not cleanly divide the time interval; "
           + "results may be inaccurate. Set " + NUM_BUCKETS_KEY + " to a better divisor.");
     }
+
+    // Live buckets span at most one window width behind the oldest open window,
+    // which itself trails the newest bucket by the slack time. Late events may
+    // be accepted up to mMaxPriorEmitInterval behind the newest bucket.
+    long ringLen = (mTimeSpan.getWidth() + mMaxPriorEmitInterval + mSlackTime)
+        / mTimeModulus + 2;
+    assert ringLen <= Integer.MAX_VALUE;
+    mBucketRing = new BucketSlot[(int) ringLen];
+    for (int i = 0; i < mBucketRing.length; i++) {
+      mBucketRing[i] = new BucketSlot();
+    }
+
+    mGroupWindows = new LinkedHashMap<GroupKey, GroupWindow>();
+    mArgBuffer = new Object[mAggregateExprs.size()];
+    mWakeups = new ArrayDeque<Pair<Long, TimerWheel.Timeout>>();
+  }
+
+  /**
+   * All the buckets associated with a single bucket timestamp, for each group.
+   * Groups are keyed by a GroupKey holding the values of the group-by fields.
+   */
+  private static class BucketSlot {
+    /** The bucket timestamp whose buckets this slot currently holds. */
+    private long mTime = Long.MIN_VALUE;
+
+    private final Map<GroupKey, GroupBuckets> mGroups =
+        new HashMap<GroupKey, GroupBuckets>();
+
+    /** Discard all buckets in this slot and reassign it to 'time'. */
+    void reset(long time) {
+      mTime = time;
+      mGroups.clear();
+    }
+  }
+
+  /** The buckets for a single group at a single bucket timestamp. */
+  private static class GroupBuckets {
+    /**
+     * One Bucket object per aggregation function, holding the state
+     * associated with that function.
+     */
+    private final List<Bucket> mBuckets;
+
+    /** The sliding window over the group these buckets belong to. */
+    private final GroupWindow mWindow;
+
+    GroupBuckets(List<Bucket> buckets, GroupWindow window) {
+      mBuckets = buckets;
+      mWindow = window;
+    }
+  }
+
+  /**
+   * The sliding window over a single group's buckets. Holds a WindowAccumulator
+   * per aggregation function, reflecting the group's buckets with timestamps in
+   * (mLoTime, mHiTime]. When a window closes, the range slides forward: buckets
+   * leaving it are removed from the accumulators, and buckets entering it are
+   * inserted. Closing a window thus visits a constant number of buckets per
+   * group, rather than every bucket in the window.
+   */
+  private static class GroupWindow {
+    /** The group; its key supplies the values of propagated fields. */
+    private final GroupKey mGroup;
+
+    /**
+     * An accumulator per aggregation function; null for functions which only
+     * support finishWindow().
+     */
+    private final WindowAccumulator[] mAccumulators;
+
+    /** False if the accumulators must be rebuilt before they are next used. */
+    private boolean mValid;
+
+    private long mLoTime;
+    private long mHiTime;
+
+    /** Number of this group's buckets in the range (mLoTime, mHiTime]. */
+    private int mNumBuckets;
+
+    /** Timestamp of this group's newest bucket. */
+    private long mNewestBucketTime = Long.MIN_VALUE;
+
+    GroupWindow(GroupKey group, List<AliasedExpr> aggregateExprs,
+        PrimitiveAggregate[] primitiveAggregates) {
+      mGroup = group;
+      mAccumulators = new WindowAccumulator[aggregateExprs.size()];
+      for (int i = 0; i < mAccumulators.length; i++) {
+        if (null != primitiveAggregates[i]) {
+          mAccumulators[i] = primitiveAggregates[i].newWindowAccumulator();
+        } else {
+          FnCallExpr fnCall = (FnCallExpr) aggregateExprs.get(i).getExpr();
+          mAccumulators[i] = fnCall.newWindowAccumulator();
+        }
+      }
+    }
+
+    /** Add a group's buckets for one timestamp to the newest end of the window. */
+    void insert(List<Bucket> buckets) throws IOException {
+      try {
+        for (int i = 0; i < mAccumulators.length; i++) {
+          if (null != mAccumulators[i]) {
+            mAccumulators[i].insert(buckets.get(i));
+          }
+        }
+      } catch (EvalException ee) {
+        throw new IOException(ee);
+      }
+      mNumBuckets++;
+    }
+
+    /** Remove a group's buckets for one timestamp from the oldest end of the window. */
+    void remove(List<Bucket> buckets) throws IOException {
+      try {
+        for (int i = 0; i < mAccumulators.length; i++) {
+          if (null != mAccumulators[i]) {
+            mAccumulators[i].remove(buckets.get(i));
+          }
+        }
+      } catch (EvalException ee) {
+        throw new IOException(ee);
+      }
+      mNumBuckets--;
+    }
+
+    /** Remove all buckets from the window. */
+    void clear() {
+      for (WindowAccumulator accumulator : mAccumulators) {
+        if (null != accumulator) {
+          accumulator.clear();
+        }
+      }
+      mNumBuckets = 0;
+    }
+  }
+
+  /**
+   * Bind each aggregation function with primitive state to its argument
+   * type, and lay out the slots of their shared AggregateState.
+   */
+  private void bindAggregates() throws IOException {
+    mPrimitiveAggregates = new PrimitiveAggregate[mAggregateExprs.size()];
+    mNumLongSlots = 0;
+    mNumDoubleSlots = 0;
+    mNumObjectSlots = 0;
+    mHasPrimitiveAggregates = false;
+    for (int i = 0; i < mAggregateExprs.size(); i++) {
+      FnCallExpr fnCall = (FnCallExpr) mAggregateExprs.get(i).getExpr();
+      if (fnCall.isPrimitiveAggregate()) {
+        PrimitiveAggregate aggregate = fnCall.bindPrimitiveAggregate();
+        aggregate.setOffsets(mNumLongSlots, mNumDoubleSlots, mNumObjectSlots);
+        mNumLongSlots += aggregate.getNumLongSlots();
+        mNumDoubleSlots += aggregate.getNumDoubleSlots();
+        mNumObjectSlots += aggregate.getNumObjectSlots();
+        mPrimitiveAggregates[i] = aggregate;
+        mHasPrimitiveAggregates = true;
+      }
+    }
   }
 
   /** {@inheritDoc} */
   @Override
   public void open() throws IOException, InterruptedException {
-    TimerFlowElemContext timerContext = (TimerFlowElemContext) getContext();
-    // Start the auto-closing thread. Initialize the reference to the queue it populates
-    // from our timer context.
-    mTimerQueue = timerContext.getTimerQueue();
-    mEvictionThread = new EvictionThread();
-    mEvictionThread.start();
+    bindAggregates();
+    // Wakeup calls that close old windows are delivered through our timer context.
+    mTimerContext = (TimerFlowElemContext) getContext();
     super.open();
   }
 
+  /**
+   * Prepare this element to hold a partition of the groups of a
+   * PartitionedAggregationElement. A partition is never opened as part of a
+   * flow; it receives events through insertEvent() and closes windows only
+   * when its closeUntil() method is called.
+   */
+  void openPartition() throws IOException {
+    bindAggregates();
+  }
+
   /** {@inheritDoc} */
   @Override
   public void close() throws IOException, InterruptedException {
     // We've got no new elements coming in; expire all buckets immediately.
     LOG.debug("Immediately expiring all buckets to mHeadBucketTime=" + mHeadBucketTime);
     closeUntil(mHeadBucketTime, mHeadBucketTime, getContext());
-    mEvictionThread.finish();
-    mEvictionThread = null;
+    discardWakeupsUntil(Long.MAX_VALUE);
     super.close();
   }
 
   /**
    * Initialize the list of Bucket entries that are associated with a new
-   * timestamp -&gt; bucket mapping. This is typically done just before inserting
+   * (timestamp, group) pair. This is typically done just before inserting
    * a value in a new bucket at the head of a new time window.
    * @return the list of initialized Bucket objects for this time subrange.
    */
-  private List<Bucket> initBuckets(Pair<Long, HashedEvent> bucketKey) {
+  private List<Bucket> initBuckets() {
+    // Functions with primitive state share a single bucket, holding their AggregateState.
+    Bucket<AggregateState> primitiveBucket = null;
+    if (mHasPrimitiveAggregates) {
+      AggregateState state = new AggregateState(mNumLongSlots, mNumDoubleSlots, mNumObjectSlots);
+      for (PrimitiveAggregate aggregate : mPrimitiveAggregates) {
+        if (null != aggregate) {
+          aggregate.init(state);
+        }
+      }
+      primitiveBucket = new Bucket<AggregateState>();
+      primitiveBucket.setState(state);
+    }
+
     List<Bucket> newBuckets = new ArrayList<Bucket>(mAggregateExprs.size());
     for (int i = 0; i < mAggregateExprs.size(); i++) {
-      // Put in a new bucket instance for each aggregation funtion we're going to run.
-      newBuckets.add(new Bucket());
+      if (null != mPrimitiveAggregates[i]) {
+        newBuckets.add(primitiveBucket);
+      } else {
+        // Put in a new bucket instance for each other aggregation funtion we're going to run.
+        newBuckets.add(new Bucket());
+      }
     }
 
-    assert null == mBucketMap.get(bucketKey);
-    mBucketMap.put(bucketKey, newBuckets);
+    return newBuckets;
+  }
 
-    // Put this into the map organized by group, as well.
-    // Get the set of (time, bucketlist) pairs for the group.
-    List<Pair<Long, List<Bucket>>> bucketsByTime = mBucketsByGroup.get(bucketKey.getRight());
-    if (null == bucketsByTime) {
-      bucketsByTime = new LinkedList<Pair<Long, List<Bucket>>>();
-      mBucketsByGroup.put(bucketKey.getRight(), bucketsByTime);
-    }
-    bucketsByTime.add(new Pair<Long, List<Bucket>>(bucketKey.getLeft(), newBuckets));
+  /** @return the width of each bucket, in milliseconds. */
+  long getTimeModulus() {
+    return mTimeModulus;
+  }
 
-    // Return the initialized set of Bucket objects back to the caller.
-    return newBuckets;
+  /**
+   * @return the bucket timestamp for the event.
+   */
+  private long getBucketTime(EventWrapper e) {
+    return floorBucketTime(e.getEvent().getTimestamp());
   }
 
   /**
-   * @return a key into our group-by map that is composed of the bucket
-   * timestamp for the event, and a HashedEvent that reads the fields
-   * of the event necessary to group by those fields. If we are not grouping
-   * by any fields, this component of the pair is null.
+   * @return the timestamp of the bucket that holds events at 'eventTime'.
    */
-  private Pair<Long, HashedEvent> getEventKey(EventWrapper e) {
-    long eventTime = e.getEvent().getTimestamp();
+  private long floorBucketTime(long eventTime) {
     long remainder = eventTime % mTimeModulus;
-    Long bucketTime;
+    if (remainder < 0) {
+      // Java's % takes the sign of the dividend; round negative times down too.
+      remainder += mTimeModulus;
+    }
 
     // If we're on an interval boundary (e.g., t=100) we go into that bucket.
     // If we're off-boundary (e.g., t=103), we go into the closest "previous" bucket (t=100).
-    bucketTime = Long.valueOf(eventTime - remainder);
-    HashedEvent hashedEvent = new HashedEvent(e, mGroupByFields);
-    return new Pair<Long, HashedEvent>(bucketTime, hashedEvent);
+    return eventTime - remainder;
   }
 
   /**
-   * Given a set of time buckets associated with a given group,
-   * iterate over the time buckets for a specific time interval,
-   * for a particular aggregation function.
+   * @return the smallest bucket timestamp that is greater than or equal to 'time'.
    */
-  private static class BucketIterator<T> implements Iterator<Bucket<T>> {
-    /**
-     * Offset of the true Bucket object in the final List<Buckets> that
-     * specifies buckest for each aggregation function we operate.
-     */
-    private final int mFunctionId;
+  private long ceilBucketTime(long time) {
+    long remainder = time % mTimeModulus;
+    if (remainder < 0) {
+      remainder += mTimeModulus;
+    }
 
-    /** Lowest timestamped bucket we return. */
-    private final long mLoTime;
+    return remainder == 0 ? time : time - remainder + mTimeModulus;
+  }
 
-    /** Highest timestamped bucket we return. */
-    private final long mHiTime;
+  /** @return the slot in mBucketRing that holds buckets for 'bucketTime'. */
+  private BucketSlot getRingSlot(long bucketTime) {
+    int idx = (int) ((bucketTime / mTimeModulus) % mBucketRing.length);
+    if (idx < 0) {
+      idx += mBucketRing.length;
+    }
+    return mBucketRing[idx];
+  }
 
-    /**
-     * Iterator over the outer list. We require this iterator
-     * to return values in order.
-     */ 
-    private final Iterator<Pair<Long, List<Bucket>>> mIterator;
+  /**
+   * @return the slot holding the buckets for 'bucketTime', or null if there
+   * are no buckets for that time.
+   */
+  private BucketSlot getSlot(long bucketTime) {
+    BucketSlot slot = getRingSlot(bucketTime);
+    if (slot.mTime != bucketTime) {
+      return null;
+    }
+    return slot;
+  }
+
+  /**
+   * @return the slot in which to store buckets for 'bucketTime', or null if
+   * it is too late to store buckets for that time.
+   */
+  private BucketSlot getWritableSlot(long bucketTime) throws IOException {
+    if (bucketTime < mExpiredBefore) {
+      // All windows which could include this bucket are already closed.
+      return null;
+    }
 
-    /** The next value we return. */
-    private Bucket<T> mNextBucket;
+    BucketSlot slot = getRingSlot(bucketTime);
+    if (slot.mTime != bucketTime) {
+      if (slot.mTime > bucketTime && !slot.mGroups.isEmpty()) {
+        // The slot is in use by a newer bucket.
+        return null;
+      }
 
-    /** Set to true if prepBucket() has been called, but not next(). */
-    private boolean mIsReady;
+      // Anything left in this slot is too old to contribute to any open window.
+      resetSlot(slot, bucketTime, false);
+    }
 
-    /** The number of buckets in the time interval that were returned by this iterator. */
-    private int mYieldCount;
+    return slot;
+  }
 
-    public BucketIterator(int functionId, long loTime, long hiTime,
-        List<Pair<Long, List<Bucket>>> inputList) {
-      mFunctionId = functionId;
-      mLoTime = loTime;
-      mHiTime = hiTime;
-      mIterator = inputList.iterator();
-      mYieldCount = 0;
+  /**
+   * @return the buckets for 'group' at 'bucketTime', or null if there are none.
+   */
+  private List<Bucket> getGroupBuckets(GroupKey group, long bucketTime) {
+    BucketSlot slot = getSlot(bucketTime);
+    if (null == slot) {
+      return null;
     }
 
-    /**
-     * Scan ahead in the underlying iterator til we find the next element.
-     * Set mNextBucket to the next value that next() should return, or null
-     * if we cannot yield any more values.
-     * Sets mIsReady to true.
-     */
-    private void prepBucket() {
-      assert !mIsReady; // This should not be called twice in a row.
-
-      mIsReady = true;
-      mNextBucket = null;
-
-      while (mIterator.hasNext()) {
-        Pair<Long, List<Bucket>> nextPair = mIterator.next();
-        long timestamp = nextPair.getLeft();
-        if (timestamp > mLoTime && timestamp <= mHiTime) {
-          // We found the next one to return.
-          mNextBucket = nextPair.getRight().get(mFunctionId);
-          return;
-        }
-      }
+    GroupBuckets groupBuckets = slot.mGroups.get(group);
+    if (null == groupBuckets) {
+      return null;
     }
+    return groupBuckets.mBuckets;
+  }
 
-    public Bucket<T> next() {
-      if (!mIsReady) {
-        prepBucket();
+  /**
+   * Discard the buckets in 'slot' and reassign it to 'time'. Buckets which are
+   * still inside a group's window are removed from the window first; if
+   * 'inOrder' is true, the slot is known to hold the oldest remaining buckets,
+   * so they can be removed from any accumulator. Otherwise the affected windows
+   * are rebuilt when next used. Forget the windows of groups whose newest
+   * buckets were in the slot.
+   */
+  private void resetSlot(BucketSlot slot, long time, boolean inOrder) throws IOException {
+    for (GroupBuckets groupBuckets : slot.mGroups.values()) {
+      GroupWindow window = groupBuckets.mWindow;
+      if (window.mValid && slot.mTime > window.mLoTime && slot.mTime <= window.mHiTime) {
+        if (inOrder) {
+          window.remove(groupBuckets.mBuckets);
+        } else {
+          window.mValid = false;
+        }
       }
 
-      assert mIsReady;
-      mIsReady = false;
-      if (mNextBucket != null) {
-        mYieldCount++;
+      if (window.mNewestBucketTime <= slot.mTime
+          && mGroupWindows.get(window.mGroup) == window) {
+        mGroupWindows.remove(window.mGroup);
       }
-      return mNextBucket;
     }
 
-    public boolean hasNext() {
-      if (!mIsReady) {
-        prepBucket();
-      }
+    slot.reset(time);
+  }
 
-      assert mIsReady;
-      return mNextBucket != null;
+  /**
+   * Discard all buckets with timestamps before 'minTime', since they
+   * will no longer contribute to any open windows. Each slot is
+   * discarded as a whole.
+   */
+  private void expireBefore(long minTime) throws IOException {
+    long ringWidth = mTimeModulus * mBucketRing.length;
+    if (Long.MIN_VALUE == mExpireCursor || minTime - mExpireCursor > ringWidth) {
+      // We don't know which slots hold old data; check them all.
+      for (BucketSlot slot : mBucketRing) {
+        if (slot.mTime < minTime) {
+          resetSlot(slot, Long.MIN_VALUE, false);
+        }
+      }
+    } else {
+      for ( ; mExpireCursor < minTime; mExpireCursor += mTimeModulus) {
+        BucketSlot slot = getSlot(mExpireCursor);
+        if (null != slot) {
+          resetSlot(slot, Long.MIN_VALUE, true);
+        }
+      }
     }
 
-    public void remove() {
-      throw new RuntimeException("Not implemented.");
-    }
+    mExpireCursor = Math.max(mExpireCursor, ceilBucketTime(minTime));
+    mExpiredBefore = Math.max(mExpiredBefore, minTime);
+  }
+
+  /**
+   * Slide a group's window to cover the range (loTime, hiTime].
+   */
+  private void advanceWindow(GroupWindow window, long loTime, long hiTime)
+      throws IOException {
+    GroupKey group = window.mGroup;
+    boolean rebuild = !window.mValid
+        || loTime < window.mLoTime || hiTime < window.mHiTime
+        || hiTime - window.mHiTime >= mTimeSpan.getWidth(); // Nothing carries over.
+
+    if (rebuild) {
+      window.clear();
+      for (long t = ceilBucketTime(loTime + 1); t <= hiTime; t += mTimeModulus) {
+        List<Bucket> buckets = getGroupBuckets(group, t);
+        if (null != buckets) {
+          window.insert(buckets);
+        }
+      }
+    } else {
+      // Remove the buckets leaving the window, oldest first. Any that have
+      // already been discarded were removed by resetSlot().
+      long lastLeaving = Math.min(loTime, window.mHiTime);
+      for (long t = ceilBucketTime(window.mLoTime + 1); t <= lastLeaving; t += mTimeModulus) {
+        List<Bucket> buckets = getGroupBuckets(group, t);
+        if (null != buckets) {
+          window.remove(buckets);
+        }
+      }
 
-    int getYieldCount() {
-      return mYieldCount;
+      // Insert the buckets entering the window.
+      long firstEntering = ceilBucketTime(Math.max(window.mHiTime, loTime) + 1);
+      for (long t = firstEntering; t <= hiTime; t += mTimeModulus) {
+        List<Bucket> buckets = getGroupBuckets(group, t);
+        if (null != buckets) {
+          window.insert(buckets);
+        }
+      }
     }
+
+    window.mLoTime = loTime;
+    window.mHiTime = hiTime;
+    window.mValid = true;
   }
 
   /**
@@ -401,90 +700,85 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
   private void closeWindow(long closeTime, FlowElementContext context)
       throws IOException, InterruptedException {
     long loTime = closeTime - mTimeSpan.getWidth();
-    Long closeBucketTimestamp = Long.valueOf(closeTime);
 
     LOG.debug("Closing window for range: " + loTime + " -> " + closeTime);
 
+    // Determine the set of groups to emit output records for.
+    Collection<GroupWindow> windows;
+    if (!mContinuousOutput) {
+      // In non-continuous (demand-only) mode, only emit groups that have a bucket
+      // associated with this window's closing time.
+      BucketSlot closeSlot = getSlot(closeTime);
+      if (null == closeSlot) {
+        windows = Collections.emptyList();
+      } else {
+        windows = new ArrayList<GroupWindow>(closeSlot.mGroups.size());
+        for (GroupBuckets groupBuckets : closeSlot.mGroups.values()) {
+          windows.add(groupBuckets.mWindow);
+        }
+      }
+    } else {
+      windows = mGroupWindows.values();
+    }
+
     // For each group, emit an output record containing the aggregate values over
     // the whole time window.
-    for (Map.Entry<HashedEvent, List<Pair<Long, List<Bucket>>>> entry :
-        mBucketsByGroup.entrySet()) {
-      HashedEvent group = entry.getKey();
-
-      // In non-continuous (demand-only) mode, check whether there's a bucket associated
-      // with this window's closing time for this group.
-      if (!mContinuousOutput &&
-          mBucketMap.get(new Pair<Long, HashedEvent>(closeBucketTimestamp, group)) == null) {
-        continue; // Nothing to do.
+    for (GroupWindow window : windows) {
+      advanceWindow(window, loTime, closeTime);
+
+      // If there are no buckets for this group in our time range,
+      // we should not emit anything for this group. Just silently continue.
+      if (0 == window.mNumBuckets) {
+        continue;
       }
 
       GenericData.Record record = new GenericData.Record(getOutputSchema());
-      List<Pair<Long, List<Bucket>>> bucketsByTime = entry.getValue();
-
-      int numBucketsInRangeForGroup = 0;
-      // Execute each aggregation function over the applicable subset of buckets
-      // in bucketsByTime.
+      GroupKey group = window.mGroup;
       for (int i = 0; i < mAggregateExprs.size(); i++) {
-        BucketIterator aggIterator = new BucketIterator(i, loTime, closeTime, bucketsByTime);
         AliasedExpr aliasExpr = mAggregateExprs.get(i);
         FnCallExpr fnCall = (FnCallExpr) aliasExpr.getExpr();
-        Object result = fnCall.finishWindow(new IterableIterator(aggIterator));
-        numBucketsInRangeForGroup += aggIterator.getYieldCount();
+        WindowAccumulator accumulator = window.mAccumulators[i];
+        Object result;
+        if (null != accumulator) {
+          try {
+            result = accumulator.finish();
+          } catch (EvalException ee) {
+            throw new IOException(ee);
+          }
+        } else {
+          // Gather this function's buckets in the time range, in time order.
+          List<Bucket> fnBuckets = new ArrayList<Bucket>(window.mNumBuckets);
+          for (long t = ceilBucketTime(loTime + 1); t <= closeTime; t += mTimeModulus) {
+            List<Bucket> buckets = getGroupBuckets(group, t);
+            if (null != buckets) {
+              fnBuckets.add(buckets.get(i));
+            }
+          }
+          result = fnCall.finishWindow((Iterable) fnBuckets);
+        }
         record.put(aliasExpr.getAvroLabel(), result);
       }
 
-      // If there are no buckets in bucketsByTime that are in our time range,
-      // we should not emit anything for this group. Just silently continue.
-      if (0 == numBucketsInRangeForGroup) {
-        // Discard this output; we didn't actually calculate anything.
-        continue;
-      }
-
       // Copy the specified fields to propagate from the record used to define
       // the group, into the output record.
-      EventWrapper groupWrapper = group.getEventWrapper();
-      for (TypedField propagateField : mPropagateFields) {
-        record.put(propagateField.getAvroName(), groupWrapper.getField(propagateField));
+      for (int i = 0; i < mPropagateFields.size(); i++) {
+        record.put(mPropagateFields.get(i).getAvroName(), group.getPropagateValue(i));
       }
 
       // Emit this as an output event!
-      emitAvroRecord(record, groupWrapper.getEvent(), closeTime, context);
+      emitAvroRecord(record, closeTime, group.getPriority(), group.getNanos(),
+          group.getHost(), mStreamNameBytes, context);
     }
 
     // Remove any buckets that are too old to be useful to any subsequent windows.
-    // TODO(aaron): This is O(groups * num_buckets). We should actually use a TreeMap
-    // instad of a list internally, so we can quickly cull the herd. That would be
-    // O(groups * log(num_buckets)).
-    Iterator<Map.Entry<HashedEvent, List<Pair<Long, List<Bucket>>>>> bucketsByGrpIter =
-        mBucketsByGroup.entrySet().iterator();
-    while (bucketsByGrpIter.hasNext()) {
-      Map.Entry<HashedEvent, List<Pair<Long, List<Bucket>>>> entry = bucketsByGrpIter.next();
-      HashedEvent group = entry.getKey();
-      List<Pair<Long, List<Bucket>>> bucketsByTime = entry.getValue();
-      Iterator<Pair<Long, List<Bucket>>> bucketsByTimeIter = bucketsByTime.iterator();
-      while (bucketsByTimeIter.hasNext()) {
-        Pair<Long, List<Bucket>> timedBucket = bucketsByTimeIter.next();
-        Long timestamp = timedBucket.getLeft();
-        if (timestamp.longValue() < loTime) {
-          bucketsByTimeIter.remove(); // Remove from bucketsByTime list.
-          Pair<HashedEvent, Long> key = new Pair<HashedEvent, Long>(group, timestamp);
-          mBucketMap.remove(key); // Remove from mBucketMap.
-        }
-      }
-
-      if (bucketsByTime.size() == 0) {
-        // We've removed the last time bucket for a given group from mBucketsByGroup.
-        // Remove the group from that map.
-        bucketsByGrpIter.remove();
-      }
-    }
+    expireBefore(loTime);
   }
 
   /**
    * Close all open windows up to and including the window that ends with the bucket
    * for time 'lastWindow'.
    */
-  private void closeUntil(long curBucketTime, long lastWindow, FlowElementContext context)
+  void closeUntil(long curBucketTime, long lastWindow, FlowElementContext context)
       throws IOException, InterruptedException {
 
     LOG.debug("Close until: cur=" + curBucketTime + ", lastWindow=" + lastWindow
@@ -508,9 +802,7 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
 
   @Override
   public void takeEvent(EventWrapper e) throws IOException, InterruptedException {
-    Pair<Long, HashedEvent> bucketKey = getEventKey(e);
-
-    long curBucketTime = bucketKey.getLeft();
+    long curBucketTime = getBucketTime(e);
     LOG.debug("Handling event time=" + curBucketTime);
     if (curBucketTime > mHeadBucketTime) {
       // We've just received an event that is newer than any others we've yet
@@ -518,9 +810,15 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
       // Emit any output groups that are older than this one by at least the
       // slack time interval.
       LOG.debug("New bucket: cur=" + curBucketTime + "; mHeadBucketTime=" + mHeadBucketTime);
-      closeUntil(curBucketTime, curBucketTime - mSlackTime - mTimeModulus, getContext());
-      // Since we've already handled these, remove their wake-up calls..
-      mEvictionThread.discardUntil(mHeadBucketTime - mSlackTime);
+      if (mWatermarkDriven) {
+        // Watermarks close our windows, but a window which falls too far
+        // behind the head must be closed before its buckets leave the ring.
+        closeUntil(curBucketTime, curBucketTime - mMaxPriorEmitInterval, getContext());
+      } else {
+        closeUntil(curBucketTime, curBucketTime - mSlackTime - mTimeModulus, getContext());
+        // Since we've already handled these, remove their wake-up calls..
+        discardWakeupsUntil(mHeadBucketTime - mSlackTime);
+      }
       mHeadBucketTime = curBucketTime; // This insert advances our head bucket.
     } else if (curBucketTime < mHeadBucketTime - mMaxPriorEmitInterval) {
       // This event is too old -- ignore it.
@@ -530,211 +828,158 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
       return;
     }
 
-    // Get the bucket for the (timestamp, group-by-fields) of this event.
-    // Actually returns a list of Bucket objects, one per AggregateFunc to
-    // execute.
-    List<Bucket> buckets = mBucketMap.get(bucketKey);
-    if (null == buckets) {
-      // We're putting the first event into a new bucket.
-      buckets = initBuckets(bucketKey);
+    GroupKey group = mGroupKeyFactory.makeKey(e);
+    evalAggregateArguments(e, mArgBuffer, 0);
+    if (insertEvent(group, curBucketTime, mArgBuffer, 0) && !mWatermarkDriven) {
+      // Insert a callback into a queue to allow time to expire these windows.
+      enqueueWakeup(curBucketTime);
     }
+  }
 
-    // For each aggregation function we're performing, insert this event into
-    // the bucket for the aggregate function.
-    assert buckets.size() == mAggregateExprs.size();
-    for (int i = 0; i < mAggregateExprs.size(); i++ ) {
-      AliasedExpr aliasExpr = mAggregateExprs.get(i);
-      Expr expr = aliasExpr.getExpr();
-      assert expr instanceof FnCallExpr;
-      FnCallExpr fnCall = (FnCallExpr) expr;
-      Bucket bucket = buckets.get(i);
-      fnCall.insertAggregate(e, bucket);
+  /**
+   * {@inheritDoc}
+   * <p>Closes every window which can no longer receive events, and emits a
+   * watermark for our output: no window closing before the oldest one still
+   * open will be emitted in the future.</p>
+   */
+  @Override
+  public void takeWatermark(WatermarkEventWrapper watermark)
+      throws IOException, InterruptedException {
+    if (!mWatermarkDriven) {
+      LOG.debug("Watermark received; closing windows by watermark from now on");
+      mWatermarkDriven = true;
+      discardWakeupsUntil(Long.MAX_VALUE);
     }
 
-    // Insert a callback into a queue to allow time to expire these windows.
-    enqueueWakeup(curBucketTime);
+    // Events may still arrive for the bucket containing the watermark;
+    // every window that ends before that bucket is complete.
+    long lastWindow = floorBucketTime(watermark.getTime()) - mTimeModulus;
+    closeUntil(Math.max(mHeadBucketTime, lastWindow), lastWindow, getContext());
+    emitWatermark(lastWindow + mTimeModulus, mStreamName);
   }
 
   /**
-   * Enqueue a wakeup in the EvictionThread that closes the bucket with the
-   * specified bucket timestamp.
+   * Evaluate the argument of each aggregation function over the event,
+   * storing them in 'args' starting at 'offset'.
    */
-  private void enqueueWakeup(long bucketTime) {
-    if (bucketTime <= mLastEnqueuedWakeup) {
-      // We've already enqueued a wakeup to close this bucket.
-      return;
+  private void evalAggregateArguments(EventWrapper e, Object[] args, int offset)
+      throws IOException {
+    for (int i = 0; i < mAggregateExprs.size(); i++) {
+      FnCallExpr fnCall = (FnCallExpr) mAggregateExprs.get(i).getExpr();
+      args[offset + i] = fnCall.evalAggregateArgument(e);
     }
-
-    long curTime = System.currentTimeMillis();
-    long offset = mTimeModulus + mSlackTime;
-    long closeTime = curTime + offset; // local time to close the bucket.
-    LOG.debug("Insert wakeup call: " + bucketTime + " at time offset=" + offset);
-    mEvictionThread.insert(new Pair<Long, Long>(closeTime, bucketTime));
-    mLastEnqueuedWakeup = bucketTime;
   }
 
   /**
-   * Thread that sends notices to our coprocessor FlowElement when it is time to
-   * close old windows based on elapsed local time.
+   * Insert an event's aggregate function arguments (as stored by
+   * evalAggregateArguments()) into the buckets of its group at 'curBucketTime'.
+   * @return false if the event was too late to be inserted.
    */
-  private class EvictionThread extends Thread {
-    private final Logger LOG = LoggerFactory.getLogger(
-        EvictionThread.class.getName());
-
-    /**
-     * Set to true when it's time for the thread to go home. The thread
-     * actually exits after this flag is set to true and the incoming queue
-     * is empty.
-     */
-    private boolean mIsFinished;
-
-    /**
-     * Priority queue (heap) of times when we should insert expiry-times in
-     * the coprocessor FlowElement's input queue.
-     *
-     * <p>The queue holds tuples of two long values. The first is a local
-     * time when this thread should wake up; this is what the queue is
-     * ordered on. The latter is the window time that should be expired.</p>
-     */
-    private PriorityBlockingQueue<Pair<Long, Long>> mQueue;
-
-    // Maximum queue length == number of open windows + the newly-opening window
-    //     + the currently-closing window.
-    final long mMaxQueueLen = 2 + (mSlackTime / mTimeModulus);
-
-    public EvictionThread() {
-      super("AggregatorEvictionThread");
-
-      mQueue = new PriorityBlockingQueue<Pair<Long, Long>>((int) mMaxQueueLen,
-          new PairLeftRightComparator<Long, Long>());
+  boolean insertEvent(GroupKey group, long curBucketTime, Object[] args, int offset)
+      throws IOException {
+    // Get the buckets for the (timestamp, group-by-fields) of this event:
+    // a list of Bucket objects, one per AggregateFunc to execute.
+    BucketSlot slot = getWritableSlot(curBucketTime);
+    if (null == slot) {
+      LOG.debug("Dropping late event arriving at aggregator; bucket " + curBucketTime
+          + " has already been discarded.");
+      return false;
     }
 
-    /**
-     * Add a wake-up call to the queue.
-     */
-    public void insert(Pair<Long, Long> wakeUpCall) {
-      synchronized (this) {
-        assert mQueue.size() < mMaxQueueLen; // This operation should never block.
-        mQueue.put(wakeUpCall);
-        this.notify();
+    GroupBuckets groupBuckets = slot.mGroups.get(group);
+    boolean isNewBucket = null == groupBuckets;
+    if (isNewBucket) {
+      // We're putting the first event into a new bucket.
+      GroupWindow window = mGroupWindows.get(group);
+      if (null == window) {
+        window = new GroupWindow(group, mAggregateExprs, mPrimitiveAggregates);
+        mGroupWindows.put(group, window);
       }
-
-      // Interrupt any wait that's going on, in case we are asleep and should
-      // actually immediately service this wake-up call.
-      this.interrupt();
+      groupBuckets = new GroupBuckets(initBuckets(), window);
+      slot.mGroups.put(group, groupBuckets);
     }
 
-    /**
-     * Discard all wakeup calls up to time 'minTime'.
-     * minTime is a 'bucket time', not a 'local time'.
-     */
-    public void discardUntil(long minTime) {
-      synchronized (this) {
-        LOG.debug("discardUntil: " + minTime);
-        Iterator<Pair<Long, Long>> iterator = mQueue.iterator();
-        while (iterator.hasNext()) {
-          Pair<Long, Long> wakeUpCall = iterator.next();
-          if (wakeUpCall.getRight() < minTime) {
-            LOG.debug("discard@ " + wakeUpCall); 
-            iterator.remove();
+    List<Bucket> buckets = groupBuckets.mBuckets;
+    GroupWindow window = groupBuckets.mWindow;
+    window.mNewestBucketTime = Math.max(window.mNewestBucketTime, curBucketTime);
+
+    // If this bucket is inside the group's current window, the window's
+    // accumulators must reflect this event too.
+    boolean inWindow = window.mValid
+        && curBucketTime > window.mLoTime && curBucketTime <= window.mHiTime;
+
+    // For each aggregation function we're performing, insert this event into
+    // the bucket for the aggregate function.
+    assert buckets.size() == mAggregateExprs.size();
+    try {
+      for (int i = 0; i < mAggregateExprs.size(); i++ ) {
+        AliasedExpr aliasExpr = mAggregateExprs.get(i);
+        Expr expr = aliasExpr.getExpr();
+        assert expr instanceof FnCallExpr;
+        FnCallExpr fnCall = (FnCallExpr) expr;
+        Bucket bucket = buckets.get(i);
+        WindowAccumulator accumulator = window.mAccumulators[i];
+        boolean updateInPlace = inWindow && null != accumulator && accumulator.isInvertible();
+        if (updateInPlace && !isNewBucket) {
+          accumulator.remove(bucket);
+        }
+
+        PrimitiveAggregate primitiveAggregate = mPrimitiveAggregates[i];
+        Object arg = args[offset + i];
+        if (null != primitiveAggregate) {
+          if (null != arg) {
+            primitiveAggregate.insert(arg, (AggregateState) bucket.getState());
           }
+        } else {
+          fnCall.insertAggregateValue(arg, bucket);
         }
 
-        this.notify();
+        if (updateInPlace) {
+          accumulator.insert(bucket);
+        } else if (inWindow && null != accumulator) {
+          // This accumulator can't be updated in the middle of its window.
+          window.mValid = false;
+        }
       }
+    } catch (EvalException ee) {
+      throw new IOException(ee);
     }
 
-    /**
-     * Set the finished flag to true; try to get the thread to stop as
-     * quickly as possible.
-     */
-    public void finish() {
-      synchronized (this) {
-        this.mIsFinished = true;
-        this.notify();
-      }
-      this.interrupt(); // Interrupt any current sleep.
+    if (inWindow && isNewBucket) {
+      window.mNumBuckets++;
     }
 
-    /**
-     * Main loop of the thread.
-     * Continually sleeps until the next timer event is ready to occur.
-     */
-    public void run() {
-      while (true) {
-        Pair<Long, Long> wakeUpCall = null;
-        long curTime;
-        long nextWakeUp;
-
-        synchronized (this) {
-          while (mQueue.size() == 0) {
-            try {
-              if (this.mIsFinished) {
-                // Parent is finished and we have drained our input queue. Go home.
-                return;
-              }
-              this.wait();
-            } catch (InterruptedException ie) {
-              // Interrupted while waiting for another wake-up call to enter our queue.
-              // Try again, if we're not already finished.
-              continue;
-            }
-          }
-
-          assert mQueue.size() > 0;
-          wakeUpCall = mQueue.peek();
-        }
+    return true;
+  }
 
-        if (null == wakeUpCall) {
-          continue;
-        }
+  /**
+   * Schedule a wakeup call with the timer wheel that closes the bucket with
+   * the specified bucket timestamp.
+   */
+  private void enqueueWakeup(long bucketTime) {
+    if (bucketTime <= mLastEnqueuedWakeup) {
+      // We've already enqueued a wakeup to close this bucket.
+      return;
+    }
 
-        curTime = System.currentTimeMillis();
-        nextWakeUp = wakeUpCall.getLeft();
-        if (nextWakeUp <= curTime) {
-          // TODO(aaron): This section probably bears further deadlock analysis.
-          // The put() into the timer queue can block (it has fixed length
-          // LocalEnvironment.MAX_QUEUE_LEN) until the timer FE services its
-          // existing list.
-          // If we are interrupted doing this, it is because the main thread
-          // has just inserted another wakeup call while we were blocking.
-          // This thread's input queue must not block when being filled from
-          // the main aggregation FE. I believe mMaxQueueLen should be sufficient
-          // to guarantee this is the case, because before we call enqueueWakeup(),
-          // we will have had to call closeUntil() in BucketedAggElem.takeEvent()
-          // on enough windows to free up the slots in this queue.
-          try {
-            LOG.debug("Timer evicting at " + curTime + ": " + wakeUpCall);
-            // Service this by injecting the getRight() into our outbound queue.
-            mTimerQueue.put(new TimeoutEventWrapper(wakeUpCall.getRight()));
-          } catch (InterruptedException ie) {
-            // Not a problem. If we were interrupted doing the put into mTimerQueue,
-            // then we'll service this again on the next go-around of the loop.
-            // Just make sure we don't mark this as 'complete.'
-            continue;
-          }
+    long curTime = System.currentTimeMillis();
+    long offset = mTimeModulus + mSlackTime;
+    long closeTime = curTime + offset; // local time to close the bucket.
+    LOG.debug("Insert wakeup call: " + bucketTime + " at time offset=" + offset);
+    TimerWheel.Timeout timeout = mTimerContext.scheduleTimeout(closeTime,
+        new TimeoutEventWrapper(bucketTime));
+    mWakeups.add(new Pair<Long, TimerWheel.Timeout>(bucketTime, timeout));
+    mLastEnqueuedWakeup = bucketTime;
+  }
 
-          synchronized (this) {
-            // Now actually remove this from the input queue.
-            if (mQueue.peek() == wakeUpCall) {
-              // O(1) fast path; no intervening push.
-              mQueue.remove();
-            } else {
-              // intervening push of an earlier wakeup (?). Slow path.
-              mQueue.remove(wakeUpCall);
-            }
-          }
-        } else {
-          // If we're down here, we need to sleep until it is the next wake-up time.
-          long napTime = nextWakeUp - curTime;
-          try {
-            Thread.sleep(napTime);
-          } catch (InterruptedException ie) {
-            // We were awoken early... this is expected (there may have been a
-            // new enqueue, etc).
-          }
-        }
-      }
+  /**
+   * Cancel all wakeup calls for bucket times before 'minTime'.
+   * minTime is a 'bucket time', not a 'local time'.
+   */
+  private void discardWakeupsUntil(long minTime) {
+    LOG.debug("discardUntil: " + minTime);
+    while (!mWakeups.isEmpty() && mWakeups.peek().getLeft() < minTime) {
+      mWakeups.poll().getRight().cancel();
     }
   }
 
@@ -754,7 +999,7 @@ public class BucketedAggregationElement extends AvroOutputElementImpl {
   }
 
   /**
-   * Separate FlowElement that handles notifications from the EvictionThread; this
+   * Separate FlowElement that handles notifications from the timer wheel; this
    * operates in the main thread, closing windows that cannot receive new events
    * because they are past the slack time interval.
    */
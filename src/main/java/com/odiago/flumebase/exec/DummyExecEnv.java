@@ -91,6 +91,11 @@ public class DummyExecEnv extends ExecEnvironment {
     LOG.error("Not connected");
   }
 
+  @Override
+  public void watchFlowRecords(SessionId sessionId, FlowId flowId) {
+    LOG.error("Not connected");
+  }
+
   @Override
   public void unwatchFlow(SessionId sessionId, FlowId flowId) {
     LOG.error("Not connected");
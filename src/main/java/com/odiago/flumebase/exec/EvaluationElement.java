@@ -26,7 +26,7 @@ import org.apache.avro.Schema;
 import org.apache.avro.generic.GenericData;
 
 import com.odiago.flumebase.parser.AliasedExpr;
-import com.odiago.flumebase.parser.Expr;
+import com.odiago.flumebase.parser.CompiledExpr;
 import com.odiago.flumebase.parser.TypedField;
 
 /**
@@ -37,6 +37,9 @@ public class EvaluationElement extends AvroOutputElementImpl {
   /** The expressions to evaluate. */
   private List<AliasedExpr> mExprs;
 
+  /** Compiled forms of mExprs, in the same order. */
+  private CompiledExpr[] mCompiledExprs;
+
   /** Additional fields to propagate forward. */
   private List<TypedField> mPropagateFields;
 
@@ -45,6 +48,11 @@ public class EvaluationElement extends AvroOutputElementImpl {
     super(ctxt, outputSchema);
     mExprs = exprs;
     mPropagateFields = propagateFields;
+
+    mCompiledExprs = new CompiledExpr[exprs.size()];
+    for (int i = 0; i < mCompiledExprs.length; i++) {
+      mCompiledExprs[i] = exprs.get(i).getExpr().compile();
+    }
   }
 
   @Override
@@ -53,10 +61,9 @@ public class EvaluationElement extends AvroOutputElementImpl {
 
     // Evaluate all our input expressions, left-to-right, and emit
     // their results into the output record.
-    for (AliasedExpr aliasedExpr : mExprs) {
-      Expr expr = aliasedExpr.getExpr();
-      Object result = expr.eval(e);
-      String fieldName = aliasedExpr.getAvroLabel();
+    for (int i = 0; i < mCompiledExprs.length; i++) {
+      Object result = mCompiledExprs[i].eval(e);
+      String fieldName = mExprs.get(i).getAvroLabel();
       record.put(fieldName, result);
     }
 
@@ -100,6 +100,13 @@ public abstract class ExecEnvironment {
   public abstract void watchFlow(SessionId sessionId, FlowId flowId)
       throws InterruptedException, IOException;
 
+  /**
+   * Subscribe the specified user session to the output of the specified flow,
+   * delivered as blocks of Avro records rather than as text.
+   */
+  public abstract void watchFlowRecords(SessionId sessionId, FlowId flowId)
+      throws InterruptedException, IOException;
+
   /** Unsubscribe the specified user session from the output of the specified flow. */
   public abstract void unwatchFlow(SessionId sessionId, FlowId flowId)
       throws InterruptedException, IOException;
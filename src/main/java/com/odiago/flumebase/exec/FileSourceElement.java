@@ -77,6 +77,9 @@ public class FileSourceElement extends FlowElementImpl {
 
   private StreamSymbol mStream;
 
+  /** Assigns watermarks to the events we emit; null if watermarks are disabled. */
+  private WatermarkGenerator mWatermarks;
+
   /** Private extension of EventImpl that allows us to call setTimestamp(). */
   private static class FileSourceEvent extends EventImpl {
     public FileSourceEvent(byte[] body) {
@@ -164,7 +167,11 @@ public class FileSourceElement extends FlowElementImpl {
                 event.setTimestamp(timestamp.milliseconds);
               }
             }
-            emit(wrapper);
+            if (null == mWatermarks) {
+              emit(wrapper);
+            } else {
+              mWatermarks.emit(wrapper, getContext());
+            }
           } catch (NumberFormatException nfe) {
             LOG.warn("Could not parse timestamp: " + nfe);
           }
@@ -194,13 +201,14 @@ public class FileSourceElement extends FlowElementImpl {
   }
 
   public FileSourceElement(FlowElementContext context, String fileName, boolean local,
-      List<TypedField> fields, StreamSymbol streamSym) {
+      List<TypedField> fields, StreamSymbol streamSym, WatermarkGenerator watermarks) {
     super(context);
     mFilename = fileName;
     mLocal = local;
     mFields = fields;
     mFieldNames = new ArrayList<String>();
     mStream = streamSym;
+    mWatermarks = watermarks;
     for (TypedField field : fields) {
       mFieldNames.add(field.getAvroName());
     }
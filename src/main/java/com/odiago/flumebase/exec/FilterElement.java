@@ -19,6 +19,7 @@ package com.odiago.flumebase.exec;
 
 import java.io.IOException;
 
+import com.odiago.flumebase.parser.CompiledExpr;
 import com.odiago.flumebase.parser.Expr;
 
 /**
@@ -29,15 +30,20 @@ import com.odiago.flumebase.parser.Expr;
 public class FilterElement extends FlowElementImpl {
   private Expr mFilterExpr;
 
+  /** The compiled form of mFilterExpr, which we actually evaluate. */
+  private CompiledExpr mCompiledFilter;
+
   public FilterElement(FlowElementContext ctxt, Expr filterExpr) {
     super(ctxt);
     mFilterExpr = filterExpr;
+    mCompiledFilter = filterExpr.compile();
   }
 
 
   @Override
   public void takeEvent(EventWrapper e) throws IOException, InterruptedException {
-    if (Boolean.TRUE.equals(mFilterExpr.eval(e))) {
+    boolean result = mCompiledFilter.evalBool(e);
+    if (result && !mCompiledFilter.wasNull()) {
       emit(e);
     }
   }
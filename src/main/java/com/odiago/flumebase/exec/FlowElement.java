@@ -19,6 +19,8 @@ package com.odiago.flumebase.exec;
 
 import java.io.IOException;
 
+import java.util.List;
+
 import com.odiago.flumebase.server.UserSession;
 
 /**
@@ -70,6 +72,39 @@ public abstract class FlowElement {
    */
   public abstract void takeEvent(EventWrapper e) throws IOException, InterruptedException;
 
+  /**
+   * Process a batch of input events, in order. The default implementation
+   * calls takeEvent() for each event; FlowElements which can amortize work
+   * across several events may override this. The list belongs to the caller
+   * and may be reused after this method returns.
+   */
+  public void takeEvents(List<EventWrapper> events) throws IOException, InterruptedException {
+    for (int i = 0; i < events.size(); i++) {
+      deliver(events.get(i));
+    }
+  }
+
+  /**
+   * Process a watermark arriving on one of this element's inputs: no
+   * further events with timestamps before the watermark's time will arrive
+   * on that input. Elements should forward watermarks downstream once any
+   * output they make up to that time has been emitted.
+   */
+  public abstract void takeWatermark(WatermarkEventWrapper watermark)
+      throws IOException, InterruptedException;
+
+  /**
+   * Hand an event to takeEvent(), or to takeWatermark() if it is a watermark.
+   * Contexts deliver events to their downstream elements through this method.
+   */
+  public final void deliver(EventWrapper e) throws IOException, InterruptedException {
+    if (e instanceof WatermarkEventWrapper) {
+      takeWatermark((WatermarkEventWrapper) e);
+    } else {
+      takeEvent(e);
+    }
+  }
+
   /**
    * @return the FlowElementContext that the element is bound to.
    */
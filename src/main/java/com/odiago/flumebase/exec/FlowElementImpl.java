@@ -41,6 +41,9 @@ public abstract class FlowElementImpl extends FlowElement {
 
   private int mNumOpenUpstream;
 
+  /** Time of the latest watermark this element has emitted. */
+  private long mWatermark = Long.MIN_VALUE;
+
   public FlowElementImpl(FlowElementContext ctxt) {
     mContext = ctxt;
     mIsClosed = false;
@@ -78,6 +81,32 @@ public abstract class FlowElementImpl extends FlowElement {
     context.emit(e);
   }
 
+  /**
+   * {@inheritDoc}
+   * <p>The default implementation forwards the watermark downstream, which
+   * suits elements whose output events keep the timestamps of their inputs.</p>
+   */
+  @Override
+  public void takeWatermark(WatermarkEventWrapper watermark)
+      throws IOException, InterruptedException {
+    if (watermark.getTime() > mWatermark) {
+      mWatermark = watermark.getTime();
+      emit(watermark);
+    }
+  }
+
+  /**
+   * Emit a watermark for the output stream, if it is newer than any this
+   * element has already emitted.
+   */
+  protected void emitWatermark(long time, String streamName)
+      throws IOException, InterruptedException {
+    if (time > mWatermark) {
+      mWatermark = time;
+      emit(new WatermarkEventWrapper(time, streamName));
+    }
+  }
+
   /** {@inheritDoc} */
   @Override
   public void open() throws IOException, InterruptedException {
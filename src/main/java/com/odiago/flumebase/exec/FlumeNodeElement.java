@@ -21,42 +21,32 @@ import java.io.IOException;
 
 import java.util.List;
 
-import org.apache.avro.Schema;
+import org.apache.hadoop.conf.Configuration;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.odiago.flumebase.exec.EventWrapper;
-import com.odiago.flumebase.exec.FlowElementContext;
-import com.odiago.flumebase.exec.FlowElementImpl;
-
-import com.odiago.flumebase.flume.EmbeddedFlumeConfig;
-import com.odiago.flumebase.flume.SinkContext;
-import com.odiago.flumebase.flume.SinkContextBindings;
+import com.odiago.flumebase.flume.SharedStreamSource;
+import com.odiago.flumebase.flume.SharedStreamSources;
 
 import com.odiago.flumebase.parser.TypedField;
 
 /**
  * FlowElement providing source data from a (possibly remote) Flume node.
- * This creates a local Flume node that acts as a receiver for the true origin node.
+ * This uses a local Flume node that acts as a receiver for the true origin node.
  * The origin Flume node has its output reconfigured to fan out to its original
- * destination as well as this local node.
+ * destination as well as this local node. The receiver is shared with all
+ * other flows reading the same stream.
  */
 public class FlumeNodeElement extends FlowElementImpl {
   private static final Logger LOG = LoggerFactory.getLogger(
       FlumeNodeElement.class.getName());
 
-  /** Flume's name for this logical node. */
-  private String mFlowSourceId;
-
-  /** The manager of the embedded Flume node instances. */
-  private EmbeddedFlumeConfig mFlumeConfig;
+  /** Registry of shared Flume sources in the environment. */
+  private SharedStreamSources mSharedSources;
 
-  /**
-   * The Avro record schema for event bodies emitted by this node into our
-   * internal pipeline.
-   */
-  private Schema mOutputSchema;
+  /** The shared source we subscribed to; null if not open. */
+  private SharedStreamSource mSharedSource;
 
   /** The fields of each record emitted by this node, and their types. */ 
   private List<TypedField> mFieldTypes;
@@ -64,36 +54,45 @@ public class FlumeNodeElement extends FlowElementImpl {
   /** Symbol of the stream we are reading from. */
   private StreamSymbol mStreamSym;
 
-  /**
-   * The name of the upstream node we are reading from.
-   */
-  private String mUpstreamNode;
+  /** Assigns watermarks to the events we receive; null if watermarks are disabled. */
+  private WatermarkGenerator mWatermarks;
+
+  /** The context we subscribed to the shared source with. */
+  private FlowElementContext mSourceContext;
+
+  /** Configuration of the flow, which sets how the shared source buffers for us. */
+  private Configuration mConf;
 
-  public FlumeNodeElement(FlowElementContext context, String flowSourceId,
-      EmbeddedFlumeConfig flumeConfig, String upstreamSource, Schema outputSchema,
-      List<TypedField> fieldTypes, StreamSymbol streamSym) {
+  public FlumeNodeElement(FlowElementContext context, SharedStreamSources sharedSources,
+      List<TypedField> fieldTypes, StreamSymbol streamSym, WatermarkGenerator watermarks,
+      Configuration conf) {
     super(context);
 
-    mFlowSourceId = flowSourceId;
-    mFlumeConfig = flumeConfig;
-    mUpstreamNode = upstreamSource;
-    mOutputSchema = outputSchema;
+    mSharedSources = sharedSources;
     mFieldTypes = fieldTypes;
     mStreamSym = streamSym;
+    mWatermarks = watermarks;
+    mConf = conf;
   }
 
   @Override
   public void open() throws IOException, InterruptedException {
     super.open();
-    LOG.debug("Opening Flume node element; binding sink context id=" + mFlowSourceId);
-    SinkContextBindings.get().bindContext(mFlowSourceId,
-        new SinkContext(getContext(), mOutputSchema, mFieldTypes, mStreamSym));
-    mFlumeConfig.addFlowToForeignNode(mUpstreamNode, mFlowSourceId);
+    LOG.debug("Opening Flume node element for stream " + mStreamSym.getName());
+    if (null == mWatermarks) {
+      mSourceContext = getContext();
+    } else {
+      mSourceContext = mWatermarks.wrap(getContext());
+    }
+    mSharedSource = mSharedSources.subscribe(mStreamSym, mSourceContext, mFieldTypes, mConf);
   }
 
   @Override
   public void close() throws IOException, InterruptedException {
-    mFlumeConfig.cancelForeignConn(mUpstreamNode, mFlowSourceId);
+    if (null != mSharedSource) {
+      mSharedSource.unsubscribe(mSourceContext);
+      mSharedSource = null;
+    }
     super.close();
   }
 
@@ -105,7 +104,7 @@ public class FlumeNodeElement extends FlowElementImpl {
 
   @Override
   public String toString() {
-    return "FlumeNode[mFlowSourceId=\"" + mFlowSourceId + "\", "
-        + "mUpstreamNode=\"" + mUpstreamNode + "\"]";
+    return "FlumeNode[mStream=\"" + mStreamSym.getName() + "\", "
+        + "mUpstreamNode=\"" + mStreamSym.getSource() + "\"]";
   }
 }
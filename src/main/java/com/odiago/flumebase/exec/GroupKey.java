@@ -0,0 +1,282 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.cloudera.flume.core.Event;
+
+import com.odiago.flumebase.lang.Type;
+
+import com.odiago.flumebase.parser.TypedField;
+
+/**
+ * Immutable key identifying a group in a GROUP BY aggregation.
+ *
+ * <p>The values of the group-by fields are copied out of the event once, when
+ * the key is built. Numeric and boolean values are packed into a long[];
+ * strings are copied into immutable Strings, and other values are held as-is.
+ * A well-mixed 64-bit hash over the values, in field order, is computed up
+ * front; hashCode() and equals() never go back to the event.</p>
+ *
+ * <p>The key also carries the values of the fields to propagate into the
+ * output record, and the event attributes used for output events. These do
+ * not take part in equals() or hashCode(). The key holds no reference to the
+ * event it was built from.</p>
+ */
+final class GroupKey {
+  /** Hash contribution of a null value. */
+  private static final long NULL_HASH = 0x5bd1e9955bd1e995L;
+
+  private static final long[] EMPTY_LONGS = new long[0];
+  private static final Object[] EMPTY_OBJECTS = new Object[0];
+
+  /** Packed values of numeric and boolean group-by fields. */
+  private final long[] mLongs;
+
+  /** Bit i is set if the value packed in mLongs[i] is null. */
+  private final long mNullMask;
+
+  /** Values of the other group-by fields. */
+  private final Object[] mObjects;
+
+  /** Hash over all group-by values. */
+  private final long mHash;
+
+  /** Values of the fields to propagate into output records. */
+  private final Object[] mPropagateValues;
+
+  private final Event.Priority mPriority;
+  private final long mNanos;
+  private final String mHost;
+
+  private GroupKey(long[] longs, long nullMask, Object[] objects, long hash,
+      Object[] propagateValues, Event.Priority priority, long nanos, String host) {
+    mLongs = longs;
+    mNullMask = nullMask;
+    mObjects = objects;
+    mHash = hash;
+    mPropagateValues = propagateValues;
+    mPriority = priority;
+    mNanos = nanos;
+    mHost = host;
+  }
+
+  /** @return the 64-bit hash of the group-by values. */
+  public long getHash() {
+    return mHash;
+  }
+
+  /** @return the value of the i'th propagated field. */
+  public Object getPropagateValue(int i) {
+    return mPropagateValues[i];
+  }
+
+  public Event.Priority getPriority() {
+    return mPriority;
+  }
+
+  public long getNanos() {
+    return mNanos;
+  }
+
+  public String getHost() {
+    return mHost;
+  }
+
+  @Override
+  public int hashCode() {
+    return (int) (mHash ^ (mHash >>> 32));
+  }
+
+  @Override
+  public boolean equals(Object otherObj) {
+    if (otherObj == this) {
+      return true;
+    } else if (!(otherObj instanceof GroupKey)) {
+      return false;
+    }
+
+    GroupKey other = (GroupKey) otherObj;
+    return mHash == other.mHash
+        && mNullMask == other.mNullMask
+        && Arrays.equals(mLongs, other.mLongs)
+        && Arrays.equals(mObjects, other.mObjects);
+  }
+
+  @Override
+  public String toString() {
+    return "(" + Arrays.toString(mLongs) + ", nulls=" + Long.toHexString(mNullMask)
+        + ", " + Arrays.toString(mObjects) + ")";
+  }
+
+  /** Step the running hash over one value's hash, in field order. */
+  private static long mixStep(long hash, long valueHash) {
+    return Long.rotateLeft(hash ^ valueHash, 27) * 0x9e3779b97f4a7c15L + 0x52dce729L;
+  }
+
+  /** Final avalanche of the running hash (the MurmurHash3 fmix64 finalizer). */
+  private static long finish(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb53fe1a85ec3L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  /**
+   * @return a copy of a field value that is safe to hold in a key: strings
+   * are copied out of any (possibly reused) buffer.
+   */
+  private static Object copyValue(Object val) {
+    if (val instanceof CharSequence && !(val instanceof String)) {
+      return val.toString();
+    }
+    return val;
+  }
+
+  /**
+   * Builds GroupKeys for events, given the group-by and propagated fields of
+   * an aggregation. The layout of each key is decided once, from the field
+   * types.
+   */
+  static class Factory {
+    /** How a group-by field is stored. */
+    private enum Slot { LONG, FLOAT, DOUBLE, BOOLEAN, OBJECT }
+
+    private final List<TypedField> mGroupByFields;
+    private final List<TypedField> mPropagateFields;
+
+    /** For each group-by field, how it is stored, and its index in that array. */
+    private final Slot[] mSlots;
+    private final int[] mSlotIndexes;
+
+    private final int mNumLongs;
+    private final int mNumObjects;
+
+    Factory(List<TypedField> groupByFields, List<TypedField> propagateFields) {
+      mGroupByFields = groupByFields;
+      mPropagateFields = propagateFields;
+      mSlots = new Slot[groupByFields.size()];
+      mSlotIndexes = new int[groupByFields.size()];
+
+      int numLongs = 0;
+      int numObjects = 0;
+      for (int i = 0; i < mSlots.length; i++) {
+        Slot slot = getSlot(groupByFields.get(i).getType());
+        if (Slot.OBJECT != slot && numLongs == Long.SIZE) {
+          // The null mask is full; store any further values as objects.
+          slot = Slot.OBJECT;
+        }
+
+        mSlots[i] = slot;
+        if (Slot.OBJECT == slot) {
+          mSlotIndexes[i] = numObjects++;
+        } else {
+          mSlotIndexes[i] = numLongs++;
+        }
+      }
+
+      mNumLongs = numLongs;
+      mNumObjects = numObjects;
+    }
+
+    private static Slot getSlot(Type type) {
+      Type.TypeName typeName = type.getPrimitiveTypeName();
+      if (null == typeName) {
+        return Slot.OBJECT;
+      }
+
+      switch (typeName) {
+      case INT:
+      case BIGINT:
+        return Slot.LONG;
+      case FLOAT:
+        return Slot.FLOAT;
+      case DOUBLE:
+        return Slot.DOUBLE;
+      case BOOLEAN:
+        return Slot.BOOLEAN;
+      default:
+        return Slot.OBJECT;
+      }
+    }
+
+    /** @return the key for the group that the event belongs to. */
+    GroupKey makeKey(EventWrapper e) throws IOException {
+      long[] longs = 0 == mNumLongs ? EMPTY_LONGS : new long[mNumLongs];
+      Object[] objects = 0 == mNumObjects ? EMPTY_OBJECTS : new Object[mNumObjects];
+      long nullMask = 0;
+      long hash = mSlots.length;
+
+      for (int i = 0; i < mSlots.length; i++) {
+        Object val = e.getField(mGroupByFields.get(i));
+        int idx = mSlotIndexes[i];
+        if (Slot.OBJECT == mSlots[i]) {
+          val = copyValue(val);
+          objects[idx] = val;
+          hash = mixStep(hash, null == val ? NULL_HASH : val.hashCode());
+          continue;
+        }
+
+        if (null == val) {
+          nullMask |= 1L << idx;
+          hash = mixStep(hash, NULL_HASH);
+          continue;
+        }
+
+        long packed;
+        switch (mSlots[i]) {
+        case LONG:
+          packed = ((Number) val).longValue();
+          break;
+        case FLOAT:
+          packed = Float.floatToIntBits(((Number) val).floatValue());
+          break;
+        case DOUBLE:
+          packed = Double.doubleToLongBits(((Number) val).doubleValue());
+          break;
+        case BOOLEAN:
+          packed = ((Boolean) val).booleanValue() ? 1 : 0;
+          break;
+        default:
+          throw new IOException("Unexpected slot type: " + mSlots[i]);
+        }
+        longs[idx] = packed;
+        hash = mixStep(hash, packed);
+      }
+
+      Object[] propagateValues;
+      if (mPropagateFields.isEmpty()) {
+        propagateValues = EMPTY_OBJECTS;
+      } else {
+        propagateValues = new Object[mPropagateFields.size()];
+        for (int i = 0; i < propagateValues.length; i++) {
+          propagateValues[i] = copyValue(e.getField(mPropagateFields.get(i)));
+        }
+      }
+
+      Event event = e.getEvent();
+      return new GroupKey(longs, nullMask, objects, finish(hash), propagateValues,
+          event.getPriority(), event.getNanos(), event.getHost());
+    }
+  }
+}
@@ -17,12 +17,10 @@
 
 package com.odiago.flumebase.exec;
 
+import java.io.File;
 import java.io.IOException;
 
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import org.apache.hadoop.conf.Configuration;
 
@@ -38,8 +36,6 @@ import com.odiago.flumebase.parser.WindowSpec;
 
 import com.odiago.flumebase.plan.HashJoinNode;
 
-import com.odiago.flumebase.util.WindowedHashMap;
-
 /**
  * FlowElement that performs a hash join between two input streams
  * based on equality of a specific input key.
@@ -49,16 +45,32 @@ public class HashJoinElement extends FlowElementImpl {
       HashJoinElement.class.getName());
 
   /**
-   * HashMap containing enqueued elements of the left stream within the
+   * Configuration key for the number of bytes of heap a join may use to
+   * hold the events in its window, including the index kept for events
+   * spilled to local disk. Beyond this, older events are spilled. Each side
+   * of the join gets half of the budget. If zero or less, all events are
+   * held on the heap.
+   */
+  public static final String HEAP_BUDGET_KEY = "flumebase.join.heap.budget";
+  public static final long DEFAULT_HEAP_BUDGET = -1;
+
+  /**
+   * Configuration key for the directory in which spilled join state is
+   * written. Defaults to java.io.tmpdir.
+   */
+  public static final String SPILL_DIR_KEY = "flumebase.join.spill.dir";
+
+  /**
+   * Map containing enqueued elements of the left stream within the
    * current window.
    */
-  private WindowedHashMap<Object, EventWrapper, Long> mLeftMap;
+  private SpillingJoinMap mLeftMap;
 
   /**
-   * HashMap containing enqueued elements of the right stream within the
+   * Map containing enqueued elements of the right stream within the
    * current window.
    */
-  private WindowedHashMap<Object, EventWrapper, Long> mRightMap;
+  private SpillingJoinMap mRightMap;
 
   /** Name of the left-side stream. */
   private String mLeftName; 
@@ -81,20 +93,20 @@ public class HashJoinElement extends FlowElementImpl {
    */
   private TimeSpan mTimeSpan;
 
-  /** Name of the output stream. */
-  private String mOutName;
-
   /**
-   * Mapping from field names to indices in CompositeEventWrapper arrays
-   * describing the output events from this join operation. 
+   * Describes which input provides each field of the output events from
+   * this join operation, and names the output stream.
    */
-  private Map<String, Integer> mFieldMap;
+  private JoinedEventWrapper.Layout mLayout;
 
   /**
    * The amount of slack time we provide before we evict old elements.
    */
   private int mSlackTime;
 
+  /** The watermarks received on the left and right inputs. */
+  private InputWatermarks mInputWatermarks;
+
   public HashJoinElement(FlowElementContext ctxt, String leftName, String rightName,
       TypedField leftKey, TypedField rightKey, WindowSpec windowWidth, String outName,
       List<TypedField> leftFieldNames, List<TypedField> rightFieldNames, Configuration conf) {
@@ -106,13 +118,16 @@ public class HashJoinElement extends FlowElementImpl {
       mSlackTime = BucketedAggregationElement.DEFAULT_SLACK_INTERVAL;
     }
 
-    mLeftMap = new WindowedHashMap<Object, EventWrapper, Long>();
-    mRightMap = new WindowedHashMap<Object, EventWrapper, Long>();
+    long heapBudget = conf.getLong(HEAP_BUDGET_KEY, DEFAULT_HEAP_BUDGET);
+    File spillDir = new File(conf.get(SPILL_DIR_KEY, System.getProperty("java.io.tmpdir")));
+    mLeftMap = new SpillingJoinMap(leftFieldNames, heapBudget / 2, spillDir);
+    mRightMap = new SpillingJoinMap(rightFieldNames, heapBudget / 2, spillDir);
 
     mLeftName = leftName;
     mRightName = rightName;
     mLeftKey = leftKey;
     mRightKey = rightKey;
+    mInputWatermarks = new InputWatermarks(leftName, rightName);
     mWindowWidth = windowWidth;
     try {
       assert mWindowWidth.getRangeSpec().isConstant();
@@ -121,9 +136,8 @@ public class HashJoinElement extends FlowElementImpl {
       // This should be a constant expression, so this would be quite surprising.
       LOG.error("Unexpected IOE during timespan eval() in HashJoin: " + ioe);
     }
-    mOutName = outName;
 
-    initFieldMap(leftFieldNames, rightFieldNames);
+    mLayout = new JoinedEventWrapper.Layout(leftFieldNames, rightFieldNames, outName);
   }
 
   public HashJoinElement(FlowElementContext ctxt, HashJoinNode joinNode) {
@@ -133,27 +147,12 @@ public class HashJoinElement extends FlowElementImpl {
   }
 
 
-  /**
-   * Initialize the map we install in every output CompositeEventWrapper.
-   * This describes which of the nested EventWrappers contains each field of
-   * the joined record. We compute this once and then reuse it in each output
-   * event; we always use the ordered list [leftStream, rightStream] in the wrapped
-   * list.
-   */
-  private void initFieldMap(List<TypedField> leftFields, List<TypedField> rightFields) {
-    mFieldMap = new HashMap<String, Integer>();
-
-    // Left EventWrapper has index 0...
-    for (TypedField f : leftFields) {
-      mFieldMap.put(f.getAvroName(), 0);
-    }
-
-    // Right EventWrapper has index 1.
-    for (TypedField f : rightFields) {
-      mFieldMap.put(f.getAvroName(), 1);
-    }
-
-    mFieldMap = Collections.unmodifiableMap(mFieldMap);
+  @Override
+  public void close() throws IOException, InterruptedException {
+    // Delete any spilled state.
+    mLeftMap.clear();
+    mRightMap.clear();
+    super.close();
   }
 
   @Override
@@ -169,8 +168,8 @@ public class HashJoinElement extends FlowElementImpl {
       return;
     }
 
-    WindowedHashMap<Object, EventWrapper, Long> insertMap; // Map where we insert this event.
-    WindowedHashMap<Object, EventWrapper, Long> joinMap; // Map we pull join candidates from.
+    SpillingJoinMap insertMap; // Map where we insert this event.
+    SpillingJoinMap joinMap; // Map we pull join candidates from.
     TypedField keyField; // The field to grab from the event wrapper.
     boolean isLeft;
 
@@ -199,8 +198,8 @@ public class HashJoinElement extends FlowElementImpl {
 
     assert mTimeSpan.isRelative;
     long curTime = event.getTimestamp();
-    Long lo;
-    Long hi;
+    long lo;
+    long hi;
 
     if (isLeft) {
       // If this event is from the left stream, calculate the relative time interval normally. 
@@ -220,26 +219,23 @@ public class HashJoinElement extends FlowElementImpl {
     // Join with all the events in the window.
     List<EventWrapper> joinEvents = joinMap.getRange(key, lo, hi, isLeft, !isLeft);
     for (EventWrapper joinWrapper : joinEvents) {
-      CompositeEvent outEvent = new CompositeEvent(mFieldMap,
-          event.getPriority(), event.getTimestamp(), event.getNanos(), event.getHost());
-      CompositeEventWrapper outWrapper = new CompositeEventWrapper();
       if (isLeft) {
-        outEvent.add(e);
-        outEvent.add(joinWrapper);
+        emit(new JoinedEventWrapper(mLayout, e, joinWrapper, event));
       } else {
-        // Add the left event to the composite first.
-        // Order matters due to the fixed mFieldMap.
-        outEvent.add(joinWrapper);
-        outEvent.add(e);
+        emit(new JoinedEventWrapper(mLayout, joinWrapper, e, event));
       }
-      outEvent.setAttr(STREAM_NAME_ATTR, mOutName); // set the output stream name.
-      outWrapper.reset(outEvent);
-      emit(outWrapper);
     }
 
     // Save the event for joining with other events that arrive in the future.
     insertMap.put(key, e, curTime);
 
+    if (mInputWatermarks.allReported()) {
+      // Old events are evicted in takeWatermark(). Until both inputs have
+      // reported a watermark, the lesser watermark does not move, so they
+      // are evicted after the slack time.
+      return;
+    }
+
     // Remove entries from the join target map that are behind the current
     // window, to keep the window maps from overfilling.
     // Anything behind the 'lo' value can be removed.
@@ -263,4 +259,26 @@ public class HashJoinElement extends FlowElementImpl {
       insertMap.removeOlderThan(otherMapLo - mSlackTime);
     }
   }
+
+  /**
+   * {@inheritDoc}
+   * <p>Once both inputs have advanced, evicts the events which can no longer
+   * join with any event that arrives in the future, and forwards the lesser
+   * watermark as the watermark of the joined stream.</p>
+   */
+  @Override
+  public void takeWatermark(WatermarkEventWrapper watermark)
+      throws IOException, InterruptedException {
+    if (!mInputWatermarks.advance(watermark)) {
+      return;
+    }
+
+    // Every event that arrives from now on is at least this new. A right event
+    // joins left events at most mTimeSpan.hi older than itself, and a left
+    // event joins right events at least mTimeSpan.lo newer than itself.
+    long minimum = mInputWatermarks.getMinimum();
+    mLeftMap.removeOlderThan(minimum - mTimeSpan.hi);
+    mRightMap.removeOlderThan(minimum + mTimeSpan.lo);
+    emitWatermark(minimum, mLayout.getStreamName());
+  }
 }
@@ -0,0 +1,105 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.odiago.flumebase.exec;
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks the watermark of each input stream of a FlowElement that has
+ * several inputs. The element as a whole may only advance to the minimum
+ * watermark across its inputs.
+ */
+class InputWatermarks {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      InputWatermarks.class.getName());
+
+  /** Names of the input streams. */
+  private final String[] mInputNames;
+
+  /** The latest watermark received on each input. */
+  private final long[] mWatermarks;
+
+  /** The minimum of mWatermarks. */
+  private long mMinimum;
+
+  /** The number of inputs which have received a watermark. */
+  private int mNumReported;
+
+  InputWatermarks(String... inputNames) {
+    mInputNames = inputNames;
+    mWatermarks = new long[inputNames.length];
+    Arrays.fill(mWatermarks, Long.MIN_VALUE);
+    mMinimum = Long.MIN_VALUE;
+  }
+
+  /**
+   * Record a watermark received on the input it names.
+   * @return true if this advanced the minimum watermark across all inputs.
+   */
+  boolean advance(WatermarkEventWrapper watermark) {
+    String streamName = watermark.getAttr(FlowElement.STREAM_NAME_ATTR);
+    int input = -1;
+    for (int i = 0; i < mInputNames.length; i++) {
+      if (mInputNames[i].equals(streamName)) {
+        input = i;
+        break;
+      }
+    }
+
+    if (input < 0) {
+      LOG.warn("Got watermark with unexpected " + FlowElement.STREAM_NAME_ATTR + "="
+          + streamName);
+      return false;
+    }
+
+    if (watermark.getTime() <= mWatermarks[input]) {
+      return false;
+    }
+
+    if (Long.MIN_VALUE == mWatermarks[input]) {
+      mNumReported++;
+    }
+    mWatermarks[input] = watermark.getTime();
+    long minimum = Long.MAX_VALUE;
+    for (long inputWatermark : mWatermarks) {
+      minimum = Math.min(minimum, inputWatermark);
+    }
+
+    if (minimum <= mMinimum) {
+      return false;
+    }
+
+    mMinimum = minimum;
+    return true;
+  }
+
+  /**
+   * @return true if every input has received a watermark. Until then, the
+   * minimum watermark stays at Long.MIN_VALUE.
+   */
+  boolean allReported() {
+    return mNumReported == mWatermarks.length;
+  }
+
+  /** @return the minimum watermark across all inputs. */
+  long getMinimum() {
+    return mMinimum;
+  }
+}
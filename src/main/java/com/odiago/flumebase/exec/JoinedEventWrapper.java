@@ -0,0 +1,160 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cloudera.flume.core.Event;
+
+import com.odiago.flumebase.parser.TypedField;
+
+/**
+ * An EventWrapper for a row produced by a join. It holds the wrappers of
+ * the left and right input events, and reads each field from the side that
+ * provides it.
+ *
+ * <p>Which side provides each field is described by a Layout that is built
+ * once per join from the plan's field lists, and shared by every row the
+ * join emits. TypedFields cache their slot in the Layout, so a field read
+ * is an int comparison rather than a map lookup.</p>
+ *
+ * <p>The timestamp, priority, etc. of the row are those of the probing
+ * event whose arrival produced it; getEvent() returns that event.</p>
+ */
+public class JoinedEventWrapper extends EventWrapper {
+
+  /** Slot of fields that come from the left input. */
+  public static final int LEFT_SLOT = 0;
+
+  /** Slot of fields that come from the right input. */
+  public static final int RIGHT_SLOT = 1;
+
+  /**
+   * Describes the rows emitted by one join: which slot holds each field,
+   * and the name of the output stream. Slots are numbered by the position
+   * of the input in the join.
+   */
+  public static final class Layout {
+    /** Maps a field's avro name to the slot of the input providing it. */
+    private final Map<String, Integer> mSlots;
+
+    /** Name of the stream the joined rows belong to. */
+    private final String mStreamName;
+
+    public Layout(List<TypedField> leftFields, List<TypedField> rightFields,
+        String streamName) {
+      this(Arrays.asList(leftFields, rightFields), streamName);
+    }
+
+    /**
+     * Create a layout for a join of any number of inputs.
+     * @param inputFields the fields of each input, in slot order. If a field
+     * name appears in more than one input, the last one provides it.
+     */
+    public Layout(List<List<TypedField>> inputFields, String streamName) {
+      Map<String, Integer> slots = new HashMap<String, Integer>();
+      for (int i = 0; i < inputFields.size(); i++) {
+        for (TypedField f : inputFields.get(i)) {
+          slots.put(f.getAvroName(), Integer.valueOf(i));
+        }
+      }
+
+      mSlots = Collections.unmodifiableMap(slots);
+      mStreamName = streamName;
+    }
+
+    /** @return the slot which provides the specified field. */
+    public int getSlot(TypedField field) {
+      int slot = field.getIndex(this);
+      if (slot < 0) {
+        Integer index = mSlots.get(field.getAvroName());
+        assert null != index;
+        slot = index.intValue();
+        field.setIndex(this, slot);
+      }
+
+      return slot;
+    }
+
+    public String getStreamName() {
+      return mStreamName;
+    }
+  }
+
+  private Layout mLayout;
+  private EventWrapper mLeft;
+  private EventWrapper mRight;
+  private Event mEvent;
+
+  public JoinedEventWrapper(Layout layout, EventWrapper left, EventWrapper right,
+      Event event) {
+    mLayout = layout;
+    mLeft = left;
+    mRight = right;
+    mEvent = event;
+  }
+
+  @Override
+  public void reset(Event e) {
+    throw new RuntimeException("JoinedEventWrapper cannot wrap a raw event");
+  }
+
+  @Override
+  public Object getField(TypedField field) throws IOException {
+    if (mLayout.getSlot(field) == LEFT_SLOT) {
+      return mLeft.getField(field);
+    } else {
+      return mRight.getField(field);
+    }
+  }
+
+  @Override
+  public Event getEvent() {
+    return mEvent;
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>The stream name is that of the join's output. Other attributes are
+   * taken from the left event, or else the right event.</p>
+   */
+  @Override
+  public String getAttr(String attrName) {
+    if (FlowElement.STREAM_NAME_ATTR.equals(attrName)) {
+      return mLayout.getStreamName();
+    }
+
+    String val = mLeft.getAttr(attrName);
+    if (null == val) {
+      val = mRight.getAttr(attrName);
+    }
+
+    return val;
+  }
+
+  @Override
+  public String getEventText() {
+    return "[{" + mLeft.getEventText() + "}, {" + mRight.getEventText() + "}]";
+  }
+}
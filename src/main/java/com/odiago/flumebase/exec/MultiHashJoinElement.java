@@ -0,0 +1,341 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cloudera.flume.core.Event;
+
+import com.odiago.flumebase.lang.TimeSpan;
+
+import com.odiago.flumebase.parser.TypedField;
+import com.odiago.flumebase.parser.WindowSpec;
+
+import com.odiago.flumebase.plan.MultiJoinNode;
+
+/**
+ * FlowElement that performs a hash join between three or more input
+ * streams, all joined on equality of the same key.
+ *
+ * <p>This computes the same rows as a chain of binary HashJoinElements
+ * "((s0 JOIN s1) JOIN s2) ...", but holds only one window store per input
+ * rather than also storing the intermediate joined rows. Input i (i &gt; 0)
+ * is joined to a row of inputs 0..i-1 over window i, measured relative to
+ * the timestamp of that row; as in the chain of joins, a row's timestamp is
+ * that of its newest event.</p>
+ *
+ * <p>When an event arrives, it is inserted in its input's store, and each
+ * other store is probed for events with the same key that complete a row
+ * with it.</p>
+ */
+public class MultiHashJoinElement extends FlowElementImpl {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      MultiHashJoinElement.class.getName());
+
+  /** Names of the input streams, in join order. */
+  private final String[] mInputNames;
+
+  /** Key field of each input stream. */
+  private final TypedField[] mKeys;
+
+  /**
+   * The time interval over which each input is joined to the inputs before
+   * it. mSpans[0] is unused.
+   */
+  private final TimeSpan[] mSpans;
+
+  /** The enqueued events of each input stream within the current window. */
+  private final SpillingJoinMap[] mMaps;
+
+  /**
+   * Describes which input provides each field of the output events, and
+   * names the output stream.
+   */
+  private final JoinedEventWrapper.Layout mLayout;
+
+  /**
+   * The max difference between the timestamps of two events in the same
+   * output row.
+   */
+  private final long mMaxSpread;
+
+  /** The amount of slack time we provide before we evict old elements. */
+  private int mSlackTime;
+
+  /** The newest timestamp of any event received on each input. */
+  private final long[] mNewestTimes;
+
+  /** Events older than mEvictedBefore[i] have been evicted from store i. */
+  private final long[] mEvictedBefore;
+
+  /** The watermarks received on each input. */
+  private final InputWatermarks mInputWatermarks;
+
+  public MultiHashJoinElement(FlowElementContext ctxt, List<String> inputNames,
+      List<TypedField> keys, List<WindowSpec> windows, String outName,
+      List<List<TypedField>> inputFields, Configuration conf) {
+    super(ctxt);
+
+    mSlackTime = conf.getInt(BucketedAggregationElement.SLACK_INTERVAL_KEY,
+        BucketedAggregationElement.DEFAULT_SLACK_INTERVAL);
+    if (mSlackTime < 0) {
+      mSlackTime = BucketedAggregationElement.DEFAULT_SLACK_INTERVAL;
+    }
+
+    int numInputs = inputNames.size();
+    mInputNames = inputNames.toArray(new String[numInputs]);
+    mKeys = keys.toArray(new TypedField[numInputs]);
+    mSpans = new TimeSpan[numInputs];
+    mMaps = new SpillingJoinMap[numInputs];
+
+    long heapBudget = conf.getLong(HashJoinElement.HEAP_BUDGET_KEY,
+        HashJoinElement.DEFAULT_HEAP_BUDGET);
+    File spillDir = new File(conf.get(HashJoinElement.SPILL_DIR_KEY,
+        System.getProperty("java.io.tmpdir")));
+
+    long maxHi = 0;
+    long minLo = 0;
+    for (int i = 0; i < numInputs; i++) {
+      mMaps[i] = new SpillingJoinMap(inputFields.get(i), heapBudget / numInputs, spillDir);
+      if (i == 0) {
+        continue;
+      }
+
+      WindowSpec window = windows.get(i);
+      try {
+        assert window.getRangeSpec().isConstant();
+        mSpans[i] = (TimeSpan) window.getRangeSpec().eval(new EmptyEventWrapper());
+      } catch (IOException ioe) {
+        // This should be a constant expression, so this would be quite surprising.
+        LOG.error("Unexpected IOE during timespan eval() in MultiHashJoin: " + ioe);
+      }
+      assert mSpans[i].isRelative;
+
+      maxHi += Math.max(0, mSpans[i].hi);
+      minLo = Math.min(minLo, mSpans[i].lo);
+    }
+
+    // The newest event of a row is at most maxHi after the row's first
+    // event, and the oldest is at most -minLo before it.
+    mMaxSpread = maxHi - minLo;
+    mNewestTimes = new long[numInputs];
+    Arrays.fill(mNewestTimes, Long.MIN_VALUE);
+    mEvictedBefore = new long[numInputs];
+    Arrays.fill(mEvictedBefore, Long.MIN_VALUE);
+    mInputWatermarks = new InputWatermarks(mInputNames);
+    mLayout = new JoinedEventWrapper.Layout(inputFields, outName);
+  }
+
+  public MultiHashJoinElement(FlowElementContext ctxt, MultiJoinNode joinNode) {
+    this(ctxt, joinNode.getInputNames(), joinNode.getKeys(), joinNode.getWindows(),
+        joinNode.getOutputName(), joinNode.getInputFields(), joinNode.getConf());
+  }
+
+  @Override
+  public void close() throws IOException, InterruptedException {
+    // Delete any spilled state.
+    for (SpillingJoinMap map : mMaps) {
+      map.clear();
+    }
+    super.close();
+  }
+
+  @Override
+  public void takeEvent(EventWrapper e) throws IOException, InterruptedException {
+    String streamName = e.getAttr(STREAM_NAME_ATTR);
+    if (null == streamName) {
+      // We don't know which stream this came from. Don't process it.
+      LOG.warn("Got event with no " + STREAM_NAME_ATTR + " attribute!");
+      return;
+    }
+
+    int input = -1;
+    for (int i = 0; i < mInputNames.length; i++) {
+      if (streamName.equals(mInputNames[i])) {
+        input = i;
+        break;
+      }
+    }
+
+    if (input < 0) {
+      LOG.warn("Got event with unexpected " + STREAM_NAME_ATTR + "=" + streamName);
+      return; // Don't know what to do with this.
+    }
+
+    Object key = e.getField(mKeys[input]);
+    if (null == key) {
+      // The key field is null; this will not match to anything in an inner join.
+      return;
+    }
+
+    Event event = e.getEvent();
+    long curTime = event.getTimestamp();
+
+    // Emit every row that this event completes.
+    EventWrapper[] row = new EventWrapper[mInputNames.length];
+    row[input] = e;
+    if (input == 0) {
+      probe(1, curTime, row, input, key, event);
+    } else {
+      // The first event of the row can't be so old that this event falls
+      // outside its window, even if the events in between it and this one
+      // each extend the row's timestamp as far as their windows allow.
+      long lo = curTime - mSpans[input].hi;
+      for (int i = 1; i < input; i++) {
+        lo -= Math.max(0, mSpans[i].hi);
+      }
+      long hi = curTime - mSpans[input].lo;
+      for (EventWrapper first : mMaps[0].getRange(key, lo, hi, false, true)) {
+        row[0] = first;
+        probe(1, first.getEvent().getTimestamp(), row, input, key, event);
+      }
+    }
+
+    // Save the event for joining with other events that arrive in the future.
+    mMaps[input].put(key, e, curTime);
+
+    mNewestTimes[input] = Math.max(mNewestTimes[input], curTime);
+    // Once every input has reported a watermark, takeWatermark() evicts
+    // old events instead. Until then, the least watermark does not move.
+    if (!mInputWatermarks.allReported()) {
+      evictStale();
+    }
+  }
+
+  /**
+   * Remove events which can no longer be part of a row with any event that
+   * arrives in the future. An event in one store only joins with events that
+   * arrive on the other inputs, and each input is assumed to be at most
+   * mSlackTime behind its own newest event. So each store is culled relative
+   * to the least newest time among the other inputs, as the binary join
+   * culls each map relative to the other map; a delayed input holds back
+   * eviction until it catches up.
+   */
+  private void evictStale() throws IOException {
+    // Find the least and second-least newest times; the least among the
+    // inputs other than i is the second-least if input i holds the least.
+    int leastInput = 0;
+    long least = Long.MAX_VALUE;
+    long secondLeast = Long.MAX_VALUE;
+    for (int i = 0; i < mNewestTimes.length; i++) {
+      if (mNewestTimes[i] < least) {
+        secondLeast = least;
+        least = mNewestTimes[i];
+        leastInput = i;
+      } else if (mNewestTimes[i] < secondLeast) {
+        secondLeast = mNewestTimes[i];
+      }
+    }
+
+    for (int i = 0; i < mMaps.length; i++) {
+      long othersNewest = i == leastInput ? secondLeast : least;
+      if (othersNewest != Long.MIN_VALUE) {
+        evict(i, othersNewest - mSlackTime - mMaxSpread);
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>Once every input has advanced, evicts the events which can no longer
+   * be part of a row with any event that arrives in the future, and forwards
+   * the least watermark as the watermark of the joined stream.</p>
+   */
+  @Override
+  public void takeWatermark(WatermarkEventWrapper watermark)
+      throws IOException, InterruptedException {
+    if (!mInputWatermarks.advance(watermark)) {
+      return;
+    }
+
+    long minimum = mInputWatermarks.getMinimum();
+    evictBefore(minimum - mMaxSpread);
+    emitWatermark(minimum, mLayout.getStreamName());
+  }
+
+  /** Remove events older than 'time' from all stores. */
+  private void evictBefore(long time) throws IOException {
+    for (int i = 0; i < mMaps.length; i++) {
+      evict(i, time);
+    }
+  }
+
+  /** Remove events older than 'time' from the store of input i. */
+  private void evict(int i, long time) throws IOException {
+    if (time > mEvictedBefore[i]) {
+      mEvictedBefore[i] = time;
+      mMaps[i].removeOlderThan(time);
+    }
+  }
+
+  /**
+   * Fill in row[k...] with events that complete the row, and emit each
+   * completed row.
+   * @param k the input to fill in next.
+   * @param rowTime the timestamp of the row of inputs 0..k-1: the newest
+   * timestamp among them.
+   * @param row the events chosen for inputs 0..k-1, and for input 'input'.
+   * @param input the input of the event being processed.
+   * @param key the join key.
+   * @param event the event being processed.
+   */
+  private void probe(int k, long rowTime, EventWrapper[] row, int input, Object key,
+      Event event) throws IOException, InterruptedException {
+    if (k == row.length) {
+      emit(new MultiJoinedEventWrapper(mLayout, row.clone(), event));
+      return;
+    }
+
+    // Input k joins to the row if its time is in (rowTime + lo, rowTime + hi].
+    long lo = rowTime + mSpans[k].lo;
+    long hi = rowTime + mSpans[k].hi;
+    if (k == input) {
+      long curTime = event.getTimestamp();
+      if (curTime > lo && curTime <= hi) {
+        probe(k + 1, Math.max(rowTime, curTime), row, input, key, event);
+      }
+      return;
+    }
+
+    // When filling in inputs before the event being processed, the row's
+    // timestamp must stay below the latest time this event could join to.
+    long maxRowTime = Long.MAX_VALUE;
+    if (k < input) {
+      maxRowTime = event.getTimestamp() - mSpans[input].lo;
+    }
+
+    for (EventWrapper candidate : mMaps[k].getRange(key, lo, hi, true, false)) {
+      long newRowTime = Math.max(rowTime, candidate.getEvent().getTimestamp());
+      if (newRowTime >= maxRowTime) {
+        continue;
+      }
+
+      row[k] = candidate;
+      probe(k + 1, newRowTime, row, input, key, event);
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import com.cloudera.flume.core.Event;
+
+import com.odiago.flumebase.parser.TypedField;
+
+/**
+ * An EventWrapper for a row produced by a join of three or more inputs.
+ * It holds the wrapper of one event from each input, and reads each field
+ * from the input that provides it, as described by a JoinedEventWrapper.Layout.
+ *
+ * <p>The timestamp, priority, etc. of the row are those of the probing
+ * event whose arrival produced it; getEvent() returns that event.</p>
+ */
+public class MultiJoinedEventWrapper extends EventWrapper {
+  private JoinedEventWrapper.Layout mLayout;
+  private EventWrapper[] mInputs;
+  private Event mEvent;
+
+  /**
+   * @param inputs the event from each input, in slot order. The array is
+   * retained by this wrapper.
+   */
+  public MultiJoinedEventWrapper(JoinedEventWrapper.Layout layout, EventWrapper[] inputs,
+      Event event) {
+    mLayout = layout;
+    mInputs = inputs;
+    mEvent = event;
+  }
+
+  @Override
+  public void reset(Event e) {
+    throw new RuntimeException("MultiJoinedEventWrapper cannot wrap a raw event");
+  }
+
+  @Override
+  public Object getField(TypedField field) throws IOException {
+    return mInputs[mLayout.getSlot(field)].getField(field);
+  }
+
+  @Override
+  public Event getEvent() {
+    return mEvent;
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>The stream name is that of the join's output. Other attributes are
+   * taken from the first input event that has them.</p>
+   */
+  @Override
+  public String getAttr(String attrName) {
+    if (FlowElement.STREAM_NAME_ATTR.equals(attrName)) {
+      return mLayout.getStreamName();
+    }
+
+    for (EventWrapper input : mInputs) {
+      String val = input.getAttr(attrName);
+      if (null != val) {
+        return val;
+      }
+    }
+
+    return null;
+  }
+
+  @Override
+  public String getEventText() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("[{");
+    for (int i = 0; i < mInputs.length; i++) {
+      if (i > 0) {
+        sb.append("}, {");
+      }
+      sb.append(mInputs[i].getEventText());
+    }
+    sb.append("}]");
+    return sb.toString();
+  }
+}
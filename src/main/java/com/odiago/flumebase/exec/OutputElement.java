@@ -18,15 +18,12 @@
 package com.odiago.flumebase.exec;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-
 import org.apache.avro.Schema;
 
 import org.apache.avro.generic.GenericData;
@@ -36,17 +33,19 @@ import org.apache.avro.generic.GenericRecord;
 import org.apache.avro.io.BinaryEncoder;
 import org.apache.avro.io.Encoder;
 
+import org.apache.hadoop.conf.Configuration;
+
 import org.apache.thrift.TException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.cloudera.flume.core.Event;
 import com.cloudera.flume.core.EventImpl;
 
 import com.odiago.flumebase.exec.local.LocalContext;
 
 import com.odiago.flumebase.flume.EmbeddedFlumeConfig;
+import com.odiago.flumebase.flume.OutputBuffer;
 import com.odiago.flumebase.flume.SourceContext;
 import com.odiago.flumebase.flume.SourceContextBindings;
 
@@ -76,8 +75,27 @@ public class OutputElement extends FlowElementImpl {
   private static final Logger LOG = LoggerFactory.getLogger(
       OutputElement.class.getName());
 
-  /** Max queue length we deliver to Flume before blocking. */
-  private static final int MAX_QUEUE_LEN = 512;
+  /**
+   * Configuration key for the number of output events buffered in memory
+   * for delivery to Flume.
+   */
+  public static final String BUFFER_LEN_KEY = "flumebase.output.buffer.len";
+  public static final int DEFAULT_BUFFER_LEN = 512;
+
+  /**
+   * Configuration key for what happens when the output buffer is full: one
+   * of "block" (pause this flow until the buffer drains), "drop-oldest" or
+   * "spill" (append events to a local file, and deliver them later).
+   */
+  public static final String OVERFLOW_POLICY_KEY = "flumebase.output.overflow.policy";
+  public static final String DEFAULT_OVERFLOW_POLICY = "block";
+
+  /** Configuration key for the directory where output events are spilled. */
+  public static final String SPILL_DIR_KEY = "flumebase.output.spill.dir";
+
+  /** Configuration key for the max size in bytes of an output spill file. */
+  public static final String MAX_SPILL_BYTES_KEY = "flumebase.output.spill.max.bytes";
+  public static final long DEFAULT_MAX_SPILL_BYTES = 1024L * 1024L * 1024L;
 
   /** Input fields being delivered to this node. */
   private List<TypedField> mInputFields;
@@ -94,8 +112,8 @@ public class OutputElement extends FlowElementImpl {
    */
   private boolean mOwnsSymbol;
 
-  /** Queue of events that are delivered to Flume by this OutputElement. */
-  private BlockingQueue<Event> mOutputQueue;
+  /** Buffer of events that are delivered to Flume by this OutputElement. */
+  private OutputBuffer mOutputQueue;
 
   /** De-dup'd version of mInputFields, for version emitted to Flume. */
   private List<TypedField> mFlumeInputFields;
@@ -149,7 +167,62 @@ public class OutputElement extends FlowElementImpl {
   @Override
   public void onConnect(UserSession session) {
     // When a user first connects, print the header for our output columns.
-    session.sendInfo(formatHeader().toString());
+    // Sessions receiving records get the schema with their first block instead.
+    FlowId flowId = ((LocalContext) getContext()).getFlowData().getFlowId();
+    if (!session.isRecordDelivery(flowId)) {
+      session.sendInfo(formatHeader().toString());
+    }
+  }
+
+  /**
+   * @return the OverflowPolicy named by the value of OVERFLOW_POLICY_KEY.
+   */
+  static OutputBuffer.OverflowPolicy parseOverflowPolicy(String name) throws IOException {
+    if ("block".equalsIgnoreCase(name)) {
+      return OutputBuffer.OverflowPolicy.Block;
+    } else if ("drop-oldest".equalsIgnoreCase(name)) {
+      return OutputBuffer.OverflowPolicy.DropOldest;
+    } else if ("spill".equalsIgnoreCase(name)) {
+      return OutputBuffer.OverflowPolicy.Spill;
+    } else {
+      throw new IOException("Invalid value for " + OVERFLOW_POLICY_KEY + ": " + name);
+    }
+  }
+
+  /**
+   * Create the buffer of events delivered to Flume, configured by the
+   * options of this flow.
+   */
+  private OutputBuffer makeOutputBuffer() throws IOException {
+    final LocalContext context = (LocalContext) getContext();
+    Configuration conf = context.getFlowData().getFlow().getConf();
+    if (null == conf) {
+      conf = new Configuration();
+    }
+
+    int bufferLen = conf.getInt(BUFFER_LEN_KEY, DEFAULT_BUFFER_LEN);
+    OutputBuffer.OverflowPolicy policy =
+        parseOverflowPolicy(conf.get(OVERFLOW_POLICY_KEY, DEFAULT_OVERFLOW_POLICY));
+    File spillFile = null;
+    if (policy == OutputBuffer.OverflowPolicy.Spill) {
+      File spillDir = new File(conf.get(SPILL_DIR_KEY, System.getProperty("java.io.tmpdir")));
+      spillFile = File.createTempFile("flumebase-output-", ".spill", spillDir);
+      spillFile.deleteOnExit();
+    }
+
+    OutputBuffer.FlowControl flowControl = new OutputBuffer.FlowControl() {
+      public void pause() {
+        LOG.debug("Output to " + mFlumeNodeName + " is backed up; pausing flow");
+        context.pauseFlow();
+      }
+
+      public void resume() {
+        context.resumeFlow();
+      }
+    };
+
+    return new OutputBuffer(bufferLen, policy, flowControl, spillFile,
+        conf.getLong(MAX_SPILL_BYTES_KEY, DEFAULT_MAX_SPILL_BYTES));
   }
 
   @Override
@@ -161,7 +234,7 @@ public class OutputElement extends FlowElementImpl {
 
       // Open a Flume logical node to host the results of this query.
       // TODO(aaron): What happens if this flume node already exists? This should error...
-      mOutputQueue = new ArrayBlockingQueue<Event>(MAX_QUEUE_LEN);
+      mOutputQueue = makeOutputBuffer();
       SourceContext srcContext = new SourceContext(mFlumeNodeName, mOutputQueue);
       SourceContextBindings.get().bindContext(mFlumeNodeName, srcContext);
       try {
@@ -248,6 +321,13 @@ public class OutputElement extends FlowElementImpl {
         throw new IOException(te);
       } finally {
         SourceContextBindings.get().dropContext(mFlumeNodeName);
+        if (null != mOutputQueue) {
+          if (mOutputQueue.getNumDropped() > 0) {
+            LOG.info("Output to " + mFlumeNodeName + " dropped "
+                + mOutputQueue.getNumDropped() + " events");
+          }
+          mOutputQueue.close();
+        }
         mOutputQueue = null;
       }
     }
@@ -265,10 +345,11 @@ public class OutputElement extends FlowElementImpl {
   }
 
   /**
-   * Format the internal event as an Avro record of the output schema,
-   * and emit it to the Flume node via our queue.
+   * Format the internal event as a binary-encoded Avro record of the output
+   * schema.
+   * @return the encoded record, or null if it cannot be encoded.
    */
-  private void emitToFlume(EventWrapper e) throws IOException, InterruptedException {
+  private byte[] encodeRecord(EventWrapper e) throws IOException {
     GenericData.Record record = new GenericData.Record(mOutputSchema);
     for (int i = 0; i < mFlumeInputFields.size(); i++) {
       TypedField inField = mFlumeInputFields.get(i);
@@ -284,24 +365,47 @@ public class OutputElement extends FlowElementImpl {
     } catch (NullPointerException npe) {
       // Schema error -- null output value in non-null field. Drop the record.
       LOG.debug("Dropping output record with NULL value in non-null field: " + npe);
-      return;
+      return null;
     }
 
-    Event out = new EventImpl(mOutputBytes.toByteArray());
-    mOutputQueue.put(out);
+    return mOutputBytes.toByteArray();
   }
 
   @Override
   public void takeEvent(EventWrapper e) throws IOException, InterruptedException {
     LocalContext context = (LocalContext) getContext();
-    List<UserSession> subscribers = new LinkedList<UserSession>(
-        context.getFlowData().getSubscribers());
+    // This is a copy-on-write list; we can iterate over it without copying.
+    List<UserSession> subscribers = context.getFlowData().getSubscribers();
+    FlowId flowId = context.getFlowData().getFlowId();
+
+    // Determine which forms of output are needed.
+    boolean needsText = false;
+    boolean needsRecord = mOutputQueue != null;
+    for (UserSession session : subscribers) {
+      if (session.isRecordDelivery(flowId)) {
+        needsRecord = true;
+      } else {
+        needsText = true;
+      }
+    }
+
+    if (needsRecord) {
+      byte[] record = encodeRecord(e);
+      if (null != record) {
+        if (mOutputQueue != null) {
+          // Emit to the Flume node via our buffer. This does not block.
+          mOutputQueue.put(new EventImpl(record));
+        }
 
-    if (mOutputQueue != null) {
-      emitToFlume(e);
+        for (UserSession session : subscribers) {
+          if (session.isRecordDelivery(flowId)) {
+            session.sendRecord(flowId, mOutputSchema, record);
+          }
+        }
+      }
     }
 
-    if (subscribers.size() == 0) {
+    if (!needsText) {
       // Nobody is listening on a console; don't waste time formatting it as a string.
       return;
     }
@@ -321,10 +425,13 @@ public class OutputElement extends FlowElementImpl {
       }
     }
 
-    // Notify all subscribers of our output.
+    // Notify all subscribers of our output. This does not block on the
+    // client; each session delivers its output on its own thread.
     String output = sb.toString();
     for (UserSession session : subscribers) {
-      session.sendInfo(output);
+      if (!session.isRecordDelivery(flowId)) {
+        session.sendInfo(output);
+      }
     }
   }
 
@@ -19,7 +19,6 @@ package com.odiago.flumebase.exec;
 
 import java.io.IOException;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -46,12 +45,21 @@ public class ParsingEventWrapper extends EventWrapperImpl {
   private EventParser mParser;
   private Event mEvent;
 
-  /** An ordered list of field names. */
+  /**
+   * An ordered list of field names. TypedFields cache their index in this
+   * list, keyed by its identity.
+   */
   private List<String> mFieldNames;
 
+  /**
+   * Create a wrapper around events parsed by 'parser'. Sources should create
+   * a single list of field names and share it between all the wrappers they
+   * create, so that field positions are only resolved once.
+   * The list must not be modified after this call.
+   */
   public ParsingEventWrapper(EventParser parser, List<String> fieldNames) {
     mParser = parser;
-    mFieldNames = new ArrayList<String>(fieldNames);
+    mFieldNames = fieldNames;
   }
 
   @Override
@@ -62,10 +70,14 @@ public class ParsingEventWrapper extends EventWrapperImpl {
 
   @Override
   public Object getField(TypedField field) throws IOException {
-    int pos = mFieldNames.indexOf(field.getAvroName());
-    // The field name should have an index, or else there was an error during
-    // the logical planning phase.
-    assert pos != -1;
+    int pos = field.getIndex(mFieldNames);
+    if (pos < 0) {
+      pos = mFieldNames.indexOf(field.getAvroName());
+      // The field name should have an index, or else there was an error during
+      // the logical planning phase.
+      assert pos != -1;
+      field.setIndex(mFieldNames, pos);
+    }
     return getField(pos, field.getType());
   }
 
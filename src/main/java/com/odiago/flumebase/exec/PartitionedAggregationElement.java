@@ -0,0 +1,382 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.odiago.flumebase.plan.AggregateNode;
+
+/**
+ * Performs the same aggregation as a BucketedAggregationElement, with the
+ * group state split across several partitions that run in threads of their
+ * own.
+ *
+ * <p>This element tracks event time and window closing exactly as its
+ * parent class does, in the flow's worker thread. The group key and the
+ * aggregate function arguments of each event are computed here too; the
+ * event is then routed by the hash of its group key to the partition which
+ * owns that group's buckets. Each partition is a BucketedAggregationElement
+ * of its own, fed in batches through a bounded queue.</p>
+ *
+ * <p>Closing windows is a barrier: the close is sent to every partition,
+ * and the worker thread waits for all of them to finish closing before it
+ * emits their output records, ordered by window. The output is thus the
+ * same as that of a single BucketedAggregationElement, and is emitted at the
+ * same points in the flow.</p>
+ *
+ * <p>If a partition fails to insert an event, the first such error is
+ * rethrown in the worker thread by the next takeEvent() or close().</p>
+ */
+public class PartitionedAggregationElement extends BucketedAggregationElement {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      PartitionedAggregationElement.class.getName());
+
+  /** Configuration key for the number of partitions of a GROUP BY aggregation. */
+  public static final String NUM_PARTITIONS_KEY = "flumebase.aggregation.partitions";
+  public static final int DEFAULT_NUM_PARTITIONS = 1;
+
+  /** Number of events routed to a partition in a single queue entry. */
+  private static final int BATCH_LEN = 256;
+
+  /** Number of batches that may be waiting for each partition. */
+  private static final int MAX_QUEUED_BATCHES = 16;
+
+  /** Message telling a partition thread to exit. */
+  private static final Object STOP = new Object();
+
+  /** Sorts output records by the time of the window they were emitted for. */
+  private static final Comparator<EventWrapper> WINDOW_ORDER = new Comparator<EventWrapper>() {
+    public int compare(EventWrapper a, EventWrapper b) {
+      long ta = a.getEvent().getTimestamp();
+      long tb = b.getEvent().getTimestamp();
+      return ta < tb ? -1 : (ta == tb ? 0 : 1);
+    }
+  };
+
+  private final int mNumAggregates;
+
+  private final Partition[] mPartitions;
+
+  /**
+   * Output records and completion notices from all partitions. Unbounded,
+   * so partition threads never wait on the worker thread.
+   */
+  private final BlockingQueue<Object> mResults;
+
+  /** Windows ending at or before this time have been closed in all partitions. */
+  private long mPartitionTail = Long.MIN_VALUE;
+
+  /** Set once the partition threads have been told to exit. */
+  private boolean mStopped;
+
+  /**
+   * The first error encountered by a partition thread while inserting events,
+   * to be rethrown in the worker thread. Guarded by this element.
+   */
+  private IOException mPartitionError;
+
+  public PartitionedAggregationElement(FlowElementContext ctxt, AggregateNode aggregateNode,
+      int numPartitions) {
+    super(ctxt, aggregateNode);
+    assert numPartitions > 0;
+    mNumAggregates = aggregateNode.getAggregateExprs().size();
+    mResults = new LinkedBlockingQueue<Object>();
+    mPartitions = new Partition[numPartitions];
+    for (int i = 0; i < numPartitions; i++) {
+      mPartitions[i] = new Partition(i, aggregateNode);
+    }
+  }
+
+  /** A batch of events routed to one partition. */
+  private static class EventBatch {
+    private final GroupKey[] mGroups = new GroupKey[BATCH_LEN];
+    private final long[] mBucketTimes = new long[BATCH_LEN];
+
+    /** Aggregate function arguments; numAggregates per event. */
+    private final Object[] mArgs;
+
+    private int mLen;
+
+    EventBatch(int numAggregates) {
+      mArgs = new Object[BATCH_LEN * numAggregates];
+    }
+
+    boolean isFull() {
+      return mLen == BATCH_LEN;
+    }
+  }
+
+  /** Message asking a partition to close the windows up to 'lastWindow'. */
+  private static class CloseRequest {
+    private final long mCurBucketTime;
+    private final long mLastWindow;
+
+    CloseRequest(long curBucketTime, long lastWindow) {
+      mCurBucketTime = curBucketTime;
+      mLastWindow = lastWindow;
+    }
+  }
+
+  /** Posted by a partition when it has handled a CloseRequest. */
+  private static class CloseComplete {
+    /** Set if the partition failed to close its windows. */
+    private final IOException mError;
+
+    CloseComplete(IOException error) {
+      mError = error;
+    }
+  }
+
+  /** Context for a partition's output; sends records back to the worker thread. */
+  private class ResultContext extends FlowElementContext {
+    @Override
+    public void emit(EventWrapper e) throws IOException, InterruptedException {
+      mResults.put(e);
+    }
+
+    @Override
+    public void notifyCompletion() {
+      // Partitions are closed along with this element; nothing to do.
+    }
+  }
+
+  /** One partition of the groups, and the thread that maintains them. */
+  private class Partition extends Thread {
+    private final BucketedAggregationElement mAggregator;
+
+    /** Batches and requests for this partition, in the order they were sent. */
+    private final BlockingQueue<Object> mQueue;
+
+    /** The batch being filled by the worker thread. */
+    private EventBatch mBatch;
+
+    Partition(int id, AggregateNode aggregateNode) {
+      super("AggregatorPartition-" + id);
+      setDaemon(true);
+      mAggregator = new BucketedAggregationElement(new ResultContext(), aggregateNode);
+      mQueue = new ArrayBlockingQueue<Object>(MAX_QUEUED_BATCHES);
+      mBatch = new EventBatch(mNumAggregates);
+    }
+
+    /** Hand the current batch to the partition thread. Called by the worker thread. */
+    void flush() throws InterruptedException {
+      if (mBatch.mLen > 0) {
+        mQueue.put(mBatch);
+        mBatch = new EventBatch(mNumAggregates);
+      }
+    }
+
+    /** Send a message to the partition thread, after any events for it. */
+    void send(Object msg) throws InterruptedException {
+      flush();
+      mQueue.put(msg);
+    }
+
+    @Override
+    public void run() {
+      FlowElementContext resultContext = mAggregator.getContext();
+      while (true) {
+        Object msg;
+        try {
+          msg = mQueue.take();
+        } catch (InterruptedException ie) {
+          continue; // Only STOP ends this thread.
+        }
+
+        if (STOP == msg) {
+          return;
+        } else if (msg instanceof EventBatch) {
+          EventBatch batch = (EventBatch) msg;
+          for (int i = 0; i < batch.mLen; i++) {
+            try {
+              mAggregator.insertEvent(batch.mGroups[i], batch.mBucketTimes[i], batch.mArgs,
+                  i * mNumAggregates);
+            } catch (IOException ioe) {
+              LOG.error("Aggregation partition encountered IOException: " + ioe);
+              setPartitionError(ioe);
+            } catch (RuntimeException re) {
+              LOG.error("Aggregation partition encountered exception: " + re);
+              setPartitionError(new IOException(re));
+            }
+          }
+        } else {
+          CloseRequest request = (CloseRequest) msg;
+          IOException error = null;
+          try {
+            mAggregator.closeUntil(request.mCurBucketTime, request.mLastWindow, resultContext);
+          } catch (IOException ioe) {
+            error = ioe;
+          } catch (InterruptedException ie) {
+            error = new IOException(ie);
+          } catch (RuntimeException re) {
+            // Report this to the worker thread, which is waiting on us.
+            error = new IOException(re);
+          }
+          mResults.add(new CloseComplete(error));
+        }
+      }
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void open() throws IOException, InterruptedException {
+    for (Partition partition : mPartitions) {
+      partition.mAggregator.openPartition();
+      partition.start();
+    }
+    super.open();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void takeEvent(EventWrapper e) throws IOException, InterruptedException {
+    throwPartitionError();
+    super.takeEvent(e);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void close() throws IOException, InterruptedException {
+    try {
+      super.close();
+    } finally {
+      stopPartitions();
+    }
+    throwPartitionError();
+  }
+
+  /** Record an error from a partition thread, unless one is already recorded. */
+  private synchronized void setPartitionError(IOException error) {
+    if (null == mPartitionError) {
+      mPartitionError = error;
+    }
+  }
+
+  /** Rethrow the first error encountered by a partition thread, if any. */
+  private synchronized void throwPartitionError() throws IOException {
+    IOException error = mPartitionError;
+    mPartitionError = null;
+    if (null != error) {
+      throw error;
+    }
+  }
+
+  private void stopPartitions() throws InterruptedException {
+    if (mStopped) {
+      return;
+    }
+
+    mStopped = true;
+    for (Partition partition : mPartitions) {
+      partition.mQueue.put(STOP);
+    }
+    for (Partition partition : mPartitions) {
+      partition.join();
+    }
+  }
+
+  /** @return the partition which owns the group. */
+  private Partition getPartition(GroupKey group) {
+    // Use the high bits of the hash; the partition's hash table uses the low ones.
+    long idx = ((group.getHash() >>> 32) * mPartitions.length) >>> 32;
+    return mPartitions[(int) idx];
+  }
+
+  /**
+   * Route the event to the partition that owns its group. The arguments are
+   * copied; the caller may reuse its array. The partition inserts the event
+   * later, so this cannot tell whether it was too late; it always returns
+   * true, and errors reach the caller from a later takeEvent() or close().
+   */
+  @Override
+  boolean insertEvent(GroupKey group, long curBucketTime, Object[] args, int offset)
+      throws IOException {
+    Partition partition = getPartition(group);
+    EventBatch batch = partition.mBatch;
+    int pos = batch.mLen++;
+    batch.mGroups[pos] = group;
+    batch.mBucketTimes[pos] = curBucketTime;
+    System.arraycopy(args, offset, batch.mArgs, pos * mNumAggregates, mNumAggregates);
+
+    if (batch.isFull()) {
+      try {
+        partition.flush();
+      } catch (InterruptedException ie) {
+        throw new IOException(ie);
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Close windows in all partitions, wait for them to finish, and emit their
+   * output in window order.
+   */
+  @Override
+  void closeUntil(long curBucketTime, long lastWindow, FlowElementContext context)
+      throws IOException, InterruptedException {
+    if (mStopped || lastWindow <= mPartitionTail) {
+      return; // Nothing new to close.
+    }
+
+    CloseRequest request = new CloseRequest(curBucketTime, lastWindow);
+    for (Partition partition : mPartitions) {
+      partition.send(request);
+    }
+
+    List<EventWrapper> output = new ArrayList<EventWrapper>();
+    IOException error = null;
+    int numComplete = 0;
+    while (numComplete < mPartitions.length) {
+      Object result = mResults.take();
+      if (result instanceof CloseComplete) {
+        numComplete++;
+        if (null == error) {
+          error = ((CloseComplete) result).mError;
+        }
+      } else {
+        output.add((EventWrapper) result);
+      }
+    }
+
+    mPartitionTail = lastWindow + getTimeModulus();
+    if (null != error) {
+      throw error;
+    }
+
+    // Each partition emits its windows in order; interleave them. The sort
+    // is stable, so each window's records keep their per-partition order.
+    Collections.sort(output, WINDOW_ORDER);
+    for (EventWrapper record : output) {
+      emit(record, context);
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.odiago.flumebase.exec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+
+import org.apache.avro.io.BinaryEncoder;
+
+import com.cloudera.flume.core.EventImpl;
+
+/**
+ * An Event whose body is an Avro record that has already been materialized
+ * in memory. Passed between FlowElements in the same process so that the
+ * receiver can read the record's fields directly, rather than decoding a
+ * serialized copy of them.
+ *
+ * <p>The binary-encoded body is only computed if getBody() is called, e.g.,
+ * when the event leaves the process. The record must not be modified after
+ * the event is constructed.</p>
+ */
+public class RecordEvent extends EventImpl {
+  private static final byte[] EMPTY_BODY = new byte[0];
+
+  /** The record carried by this event. */
+  private final GenericData.Record mRecord;
+
+  /** The binary Avro encoding of mRecord; null until getBody() is called. */
+  private byte[] mBody;
+
+  public RecordEvent(GenericData.Record record, long timestamp, Priority priority,
+      long nanos, String host) {
+    super(EMPTY_BODY, timestamp, priority, nanos, host);
+    mRecord = record;
+  }
+
+  /** @return the record carried by this event. */
+  public GenericData.Record getRecord() {
+    return mRecord;
+  }
+
+  /**
+   * @return the record, serialized in Avro binary format.
+   */
+  @Override
+  public synchronized byte[] getBody() {
+    if (null == mBody) {
+      ByteArrayOutputStream outBytes = new ByteArrayOutputStream();
+      GenericDatumWriter<GenericRecord> writer =
+          new GenericDatumWriter<GenericRecord>(mRecord.getSchema());
+      try {
+        writer.write(mRecord, new BinaryEncoder(outBytes));
+      } catch (IOException ioe) {
+        // Writing to a byte array should not fail.
+        throw new RuntimeException(ioe);
+      }
+      mBody = outBytes.toByteArray();
+    }
+
+    return mBody;
+  }
+}
@@ -15,67 +15,55 @@
  * under the License.
  */
 
+
 package com.odiago.flumebase.exec;
 
 import java.io.IOException;
 
-import java.util.List;
+import org.apache.avro.generic.GenericData;
 
 import com.cloudera.flume.core.Event;
 
 import com.odiago.flumebase.parser.TypedField;
 
 /**
- * Wraps around a CompositeEvent.
+ * An EventWrapper that operates on RecordEvents, whose parsed records
+ * are handed directly from the upstream FlowElement.
  */
-public class CompositeEventWrapper extends EventWrapper {
-  private CompositeEvent mEvent;
+public class RecordEventWrapper extends EventWrapperImpl {
+  private RecordEvent mEvent;
 
-  public CompositeEventWrapper() {
+  public RecordEventWrapper() {
   }
 
   @Override
   public void reset(Event e) {
-    if (e instanceof CompositeEvent) {
-      mEvent = (CompositeEvent) e;
+    if (e instanceof RecordEvent) {
+      mEvent = (RecordEvent) e;
     } else {
-      throw new RuntimeException("CompositeEventWrapper.reset() only accepts CompositeEvent");
+      throw new RuntimeException("RecordEventWrapper.reset() only accepts RecordEvent");
     }
   }
 
+  @Override
   public Object getField(TypedField field) throws IOException {
-    return mEvent.getField(field);
-  }
-  
-  public Event getEvent() {
-    return mEvent;
+    return AvroEventWrapper.getRecordField(mEvent.getRecord(), field);
   }
 
   @Override
-  public String getAttr(String attrName) {
-    return mEvent.getAttr(attrName);
+  public Event getEvent() {
+    return mEvent;
   }
 
-  /** Set an attribute on the composite event. */
-  public void setAttr(String attrName, String attrVal) {
-    mEvent.setAttr(attrName, attrVal);
+  /**
+   * @return the avro record.
+   */
+  public GenericData.Record getRecord() {
+    return mEvent.getRecord();
   }
 
   @Override
   public String getEventText() {
-    List<EventWrapper> innerWrappers = mEvent.getEventWrappers();
-    StringBuilder sb = new StringBuilder();
-    sb.append("[{");
-    boolean first = true;
-    for (EventWrapper ew : innerWrappers) {
-      if (!first) {
-        sb.append("}, {");
-      }
-
-      first = false;
-      sb.append(ew.getEventText());
-    }
-    sb.append("}]");
-    return sb.toString();
+    return mEvent.getRecord().toString();
   }
 }
@@ -0,0 +1,69 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import java.util.List;
+
+import com.cloudera.flume.core.Event;
+
+import com.odiago.flumebase.parser.TypedField;
+
+/**
+ * EventWrapper over an event whose fields have already been parsed,
+ * so that the parsed values can be shared by several flows reading the
+ * same stream. The values array is not modified after construction, so
+ * any number of threads may read from wrappers over the same values.
+ *
+ * <p>Each subscriber to the stream has its own list of field names; the
+ * i'th field name refers to the i'th parsed value.</p>
+ */
+public class SharedEventWrapper extends EventWrapperImpl {
+  private final Event mEvent;
+  private final Object[] mValues;
+  private final List<String> mFieldNames;
+
+  public SharedEventWrapper(Event event, Object[] values, List<String> fieldNames) {
+    mEvent = event;
+    mValues = values;
+    mFieldNames = fieldNames;
+  }
+
+  @Override
+  public void reset(Event e) {
+    throw new RuntimeException("SharedEventWrapper cannot be reset");
+  }
+
+  @Override
+  public Object getField(TypedField field) throws IOException {
+    int pos = field.getIndex(mFieldNames);
+    if (pos < 0) {
+      pos = mFieldNames.indexOf(field.getAvroName());
+      // The field name should have an index, or else there was an error during
+      // the logical planning phase.
+      assert pos != -1;
+      field.setIndex(mFieldNames, pos);
+    }
+    return mValues[pos];
+  }
+
+  @Override
+  public Event getEvent() {
+    return mEvent;
+  }
+}
@@ -0,0 +1,400 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+import java.nio.channels.FileChannel;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+
+import org.apache.avro.util.Utf8;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cloudera.flume.core.Event;
+
+/**
+ * A time slice of one side of a join's window state, written to a local
+ * file and memory-mapped for reading.
+ *
+ * <p>The file holds, back to back for each event, the Avro binary encoding
+ * of its record followed by its priority, nanos and host. An in-memory index
+ * maps each join key to the timestamps and file positions of its events,
+ * sorted by timestamp, so a probe for a key within a time range is a binary
+ * search followed by decoding only the matching records. The index costs
+ * about INDEX_ENTRY_BYTES of heap per event and INDEX_KEY_BYTES per key;
+ * getIndexBytes() reports the estimate so that it can be counted against a
+ * heap budget.</p>
+ *
+ * <p>Segments are immutable once written. Events read back from a segment
+ * are RecordEvents that carry the original record, timestamp, priority,
+ * nanos and host; the original event's attributes are not kept.</p>
+ */
+public class SpillSegment {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      SpillSegment.class.getName());
+
+  /** Estimated heap used by each event's entry in the index. */
+  public static final int INDEX_ENTRY_BYTES = 16;
+
+  /**
+   * Estimated heap used by the index for each key, beyond its entries: the
+   * KeyIndex and its array headers, the index map's entry, and the key.
+   */
+  public static final int INDEX_KEY_BYTES = 160;
+
+  /**
+   * The timestamps and file positions of all the events with a given key,
+   * sorted by timestamp.
+   */
+  private static final class KeyIndex {
+    private long[] mTimes = new long[4];
+    private int[] mOffsets = new int[4];
+    private int[] mLengths = new int[4];
+    private int mCount;
+
+    int capacity() {
+      return mTimes.length;
+    }
+
+    void add(long timestamp, int offset, int length) {
+      if (mCount == mTimes.length) {
+        resize(mCount * 2);
+      }
+
+      mTimes[mCount] = timestamp;
+      mOffsets[mCount] = offset;
+      mLengths[mCount] = length;
+      mCount++;
+    }
+
+    /** Drop the unused capacity, once no more entries will be added. */
+    void trim() {
+      if (mCount < mTimes.length) {
+        resize(mCount);
+      }
+    }
+
+    private void resize(int newLen) {
+      long[] times = new long[newLen];
+      int[] offsets = new int[newLen];
+      int[] lengths = new int[newLen];
+      System.arraycopy(mTimes, 0, times, 0, mCount);
+      System.arraycopy(mOffsets, 0, offsets, 0, mCount);
+      System.arraycopy(mLengths, 0, lengths, 0, mCount);
+      mTimes = times;
+      mOffsets = offsets;
+      mLengths = lengths;
+    }
+
+    /** @return the position of the first entry with time &gt;= t. */
+    int lowerBound(long t) {
+      int lo = 0;
+      int hi = mCount;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (mTimes[mid] < t) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+
+      return lo;
+    }
+
+    /** @return the position of the first entry with time &gt; t. */
+    int upperBound(long t) {
+      int lo = 0;
+      int hi = mCount;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (mTimes[mid] <= t) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+
+      return lo;
+    }
+  }
+
+  /**
+   * Segments are addressed with int offsets; a writer reports itself full
+   * once it has written this many bytes.
+   */
+  public static final int MAX_SEGMENT_BYTES = 1024 * 1024 * 1024;
+
+  /** Event priorities, indexed by the ordinal written to the file. */
+  private static final Event.Priority[] PRIORITIES = Event.Priority.values();
+
+  /**
+   * Writes the events of a new segment to its file. Events must be added in
+   * timestamp order.
+   */
+  public static class Writer {
+    private final File mFile;
+    private final Schema mSchema;
+    private final OutputStream mOut;
+    private final Map<Object, KeyIndex> mIndex;
+    private final GenericDatumWriter<GenericRecord> mDatumWriter;
+    private final ByteArrayOutputStream mRecordBytes;
+    private final BinaryEncoder mEncoder;
+    private int mOffset;
+    private int mNumEvents;
+    private long mMinTime;
+    private long mMaxTime;
+
+    /** Estimated heap used by mIndex. */
+    private long mIndexBytes;
+
+    public Writer(File file, Schema schema) throws IOException {
+      mFile = file;
+      mSchema = schema;
+      mOut = new BufferedOutputStream(new FileOutputStream(file));
+      mIndex = new HashMap<Object, KeyIndex>();
+      mDatumWriter = new GenericDatumWriter<GenericRecord>(schema);
+      mRecordBytes = new ByteArrayOutputStream();
+      mEncoder = new BinaryEncoder(mRecordBytes);
+      mMinTime = Long.MAX_VALUE;
+      mMaxTime = Long.MIN_VALUE;
+    }
+
+    /**
+     * Append a record with the specified key and timestamp, along with the
+     * priority, nanos and host of the event it came from.
+     */
+    public void add(Object key, long timestamp, GenericData.Record record, Event event)
+        throws IOException {
+      assert timestamp >= mMaxTime || mNumEvents == 0;
+      mRecordBytes.reset();
+      mDatumWriter.write(record, mEncoder);
+      mEncoder.writeEnum(event.getPriority().ordinal());
+      mEncoder.writeLong(event.getNanos());
+      String host = event.getHost();
+      if (null == host) {
+        mEncoder.writeIndex(0);
+      } else {
+        mEncoder.writeIndex(1);
+        mEncoder.writeString(new Utf8(host));
+      }
+      mEncoder.flush();
+      int length = mRecordBytes.size();
+      mRecordBytes.writeTo(mOut);
+
+      KeyIndex keyIndex = mIndex.get(key);
+      if (null == keyIndex) {
+        keyIndex = new KeyIndex();
+        mIndex.put(key, keyIndex);
+        mIndexBytes += INDEX_KEY_BYTES + keyIndex.capacity() * INDEX_ENTRY_BYTES;
+      }
+      int oldCapacity = keyIndex.capacity();
+      keyIndex.add(timestamp, mOffset, length);
+      mIndexBytes += (keyIndex.capacity() - oldCapacity) * INDEX_ENTRY_BYTES;
+
+      mOffset += length;
+      mNumEvents++;
+      mMinTime = Math.min(mMinTime, timestamp);
+      mMaxTime = Math.max(mMaxTime, timestamp);
+    }
+
+    /** @return true if no more events should be added to this segment. */
+    public boolean isFull() {
+      return mOffset >= MAX_SEGMENT_BYTES;
+    }
+
+    /** @return the number of events added so far. */
+    public int size() {
+      return mNumEvents;
+    }
+
+    /** @return the estimated number of bytes of heap used by the index so far. */
+    public long getIndexBytes() {
+      return mIndexBytes;
+    }
+
+    /**
+     * Close the file and map it into memory.
+     * @return the completed segment.
+     */
+    public SpillSegment finish() throws IOException {
+      mOut.close();
+
+      RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+      MappedByteBuffer buffer;
+      try {
+        // The mapping remains valid after the channel is closed.
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, mOffset);
+      } finally {
+        raf.close();
+      }
+
+      for (KeyIndex keyIndex : mIndex.values()) {
+        keyIndex.trim();
+      }
+      long indexBytes = (long) mIndex.size() * INDEX_KEY_BYTES
+          + (long) mNumEvents * INDEX_ENTRY_BYTES;
+
+      return new SpillSegment(mFile, mSchema, buffer, mIndex, mNumEvents,
+          indexBytes, mMinTime, mMaxTime);
+    }
+
+    /** Close and delete the file, abandoning the segment. */
+    public void abort() {
+      try {
+        mOut.close();
+      } catch (IOException ioe) {
+        LOG.warn("Error closing spill file " + mFile + ": " + ioe);
+      }
+
+      if (!mFile.delete()) {
+        LOG.warn("Could not delete spill file " + mFile);
+      }
+    }
+  }
+
+  private final File mFile;
+  private final Map<Object, KeyIndex> mIndex;
+  private final int mNumEvents;
+  private final int mNumBytes;
+  private final long mIndexBytes;
+  private final long mMinTime;
+  private final long mMaxTime;
+  private final GenericDatumReader<GenericData.Record> mDatumReader;
+  private final DecoderFactory mDecoderFactory;
+  private MappedByteBuffer mBuffer;
+  private BinaryDecoder mDecoder;
+  private byte[] mRecordBytes;
+
+  private SpillSegment(File file, Schema schema, MappedByteBuffer buffer,
+      Map<Object, KeyIndex> index, int numEvents, long indexBytes, long minTime,
+      long maxTime) {
+    mFile = file;
+    mBuffer = buffer;
+    mIndex = index;
+    mNumEvents = numEvents;
+    mNumBytes = buffer.capacity();
+    mIndexBytes = indexBytes;
+    mMinTime = minTime;
+    mMaxTime = maxTime;
+    mDatumReader = new GenericDatumReader<GenericData.Record>(schema);
+    mDecoderFactory = new DecoderFactory();
+    mRecordBytes = new byte[256];
+  }
+
+  /** @return the number of events in the segment. */
+  public int size() {
+    return mNumEvents;
+  }
+
+  /** @return the timestamp of the oldest event in the segment. */
+  public long getMinTime() {
+    return mMinTime;
+  }
+
+  /** @return the timestamp of the newest event in the segment. */
+  public long getMaxTime() {
+    return mMaxTime;
+  }
+
+  /** @return the number of bytes of event data in the segment. */
+  public int getNumBytes() {
+    return mNumBytes;
+  }
+
+  /** @return the estimated number of bytes of heap used by the segment's index. */
+  public long getIndexBytes() {
+    return mIndexBytes;
+  }
+
+  /**
+   * Decode all events for a key within a given timestamp range, and add
+   * them to 'out' in timestamp order. Arguments specify whether the lower
+   * and upper bounds of the interval are open-ended or closed.
+   */
+  public void getRange(Object key, long lo, long hi, boolean openLo, boolean openHi,
+      List<EventWrapper> out) throws IOException {
+    KeyIndex keyIndex = mIndex.get(key);
+    if (null == keyIndex) {
+      return;
+    }
+
+    int from = openLo ? keyIndex.upperBound(lo) : keyIndex.lowerBound(lo);
+    int to = openHi ? keyIndex.lowerBound(hi) : keyIndex.upperBound(hi);
+    for (int i = from; i < to; i++) {
+      int length = keyIndex.mLengths[i];
+      if (length > mRecordBytes.length) {
+        mRecordBytes = new byte[Math.max(length, mRecordBytes.length * 2)];
+      }
+
+      // Copy the record out through a duplicate, leaving the shared
+      // buffer's position untouched.
+      ByteBuffer view = mBuffer.duplicate();
+      view.position(keyIndex.mOffsets[i]);
+      view.get(mRecordBytes, 0, length);
+      mDecoder = mDecoderFactory.createBinaryDecoder(mRecordBytes, 0, length, mDecoder);
+      GenericData.Record record = mDatumReader.read(null, mDecoder);
+      Event.Priority priority = PRIORITIES[mDecoder.readEnum()];
+      long nanos = mDecoder.readLong();
+      String host = null;
+      if (mDecoder.readIndex() != 0) {
+        host = mDecoder.readString(null).toString();
+      }
+
+      RecordEventWrapper wrapper = new RecordEventWrapper();
+      wrapper.reset(new RecordEvent(record, keyIndex.mTimes[i], priority, nanos, host));
+      out.add(wrapper);
+    }
+  }
+
+  /**
+   * Release the segment and delete its file. The mapped memory itself is
+   * freed when the buffer is garbage collected.
+   */
+  public void delete() {
+    mBuffer = null;
+    if (!mFile.delete()) {
+      LOG.warn("Could not delete spill file " + mFile);
+    }
+  }
+}
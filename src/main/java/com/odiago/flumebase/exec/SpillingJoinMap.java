@@ -0,0 +1,406 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.avro.Schema;
+
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+
+import org.apache.avro.io.BinaryEncoder;
+
+import org.apache.avro.util.Utf8;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.odiago.flumebase.parser.SQLStatement;
+import com.odiago.flumebase.parser.TypedField;
+
+import com.odiago.flumebase.util.WindowedHashMap;
+
+/**
+ * Holds the events of one side of a windowed join, keyed by join key and
+ * timestamp.
+ *
+ * <p>Recent events are kept on the heap in a WindowedHashMap. When the
+ * estimated heap footprint of those events exceeds a budget, the oldest
+ * half of their time range is moved into a SpillSegment on local disk;
+ * probes then consult both the heap and any segments whose time range they
+ * overlap. A segment is deleted as a whole once all of its events have
+ * fallen out of the window.</p>
+ *
+ * <p>The heap footprint is estimated from the Avro-encoded size of a
+ * sample of the inserted events, plus the in-memory indexes of the spill
+ * segments. If those indexes alone outgrow the budget, spilling cannot bring
+ * the footprint back under it; the heap then spills whenever its own events
+ * reach the amount a spill would normally free.</p>
+ */
+public class SpillingJoinMap {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      SpillingJoinMap.class.getName());
+
+  /**
+   * Estimated heap cost of a stored event beyond the size of its values:
+   * the event and wrapper objects, and the map's entry for it.
+   */
+  private static final int EVENT_OVERHEAD_BYTES = 256;
+
+  /** Estimated ratio of the heap size of an event's values to their encoded size. */
+  private static final int HEAP_EXPANSION = 4;
+
+  /** The encoded size of one in this many inserted events is measured. */
+  private static final int SIZE_SAMPLE_INTERVAL = 64;
+
+  /** After spilling, the heap footprint is at most this fraction of the budget. */
+  private static final double SPILL_TARGET_FRACTION = 0.75;
+
+  /** Events held on the heap. */
+  private final WindowedHashMap<Object, EventWrapper> mHeap;
+
+  /** Spilled segments, oldest first. */
+  private final List<SpillSegment> mSegments;
+
+  /** The fields of this side of the join, in the order of mSchema. */
+  private final List<TypedField> mFields;
+
+  /** Schema of the records written to spill segments. */
+  private final Schema mSchema;
+
+  /** For each field, true if it holds a string. */
+  private final boolean[] mStringFields;
+
+  /** Max estimated bytes of heap to use; zero or less means no limit. */
+  private final long mHeapBudget;
+
+  /** Directory where segment files are created. */
+  private final File mSpillDir;
+
+  /** Number of events held in mHeap. */
+  private int mNumHeapEvents;
+
+  /** Estimated heap footprint of each event in mHeap. */
+  private long mEventBytes;
+
+  /** Estimated heap used by the indexes of the segments in mSegments. */
+  private long mIndexBytes;
+
+  /** Set once a warning has been logged that the indexes exceed the budget. */
+  private boolean mWarnedIndexBytes;
+
+  /** Running average of the encoded size of sampled events; -1 if unknown. */
+  private double mAvgEncodedBytes;
+
+  /** Number of events inserted since the last size sample. */
+  private int mSinceSample;
+
+  /** Events older than this have been removed from the map. */
+  private long mExpiredBefore;
+
+  /** Segment being written by a spill in progress. */
+  private SpillSegment.Writer mWriter;
+
+  /** Used to encode sampled events. */
+  private GenericDatumWriter<GenericRecord> mDatumWriter;
+  private ByteArrayOutputStream mSampleBytes;
+  private BinaryEncoder mSampleEncoder;
+
+  /** Keeps mNumHeapEvents current as events expire from the heap. */
+  private final WindowedHashMap.EvictionListener<Object, EventWrapper> mExpireListener =
+      new WindowedHashMap.EvictionListener<Object, EventWrapper>() {
+        public void evicted(Object key, EventWrapper value, long timestamp) {
+          mNumHeapEvents--;
+        }
+      };
+
+  /** Moves events from the heap into spill segments. */
+  private final WindowedHashMap.EvictionListener<Object, EventWrapper> mSpillListener =
+      new WindowedHashMap.EvictionListener<Object, EventWrapper>() {
+        public void evicted(Object key, EventWrapper value, long timestamp)
+            throws IOException {
+          mNumHeapEvents--;
+          if (null != mWriter && mWriter.isFull()) {
+            finishSegment();
+          }
+
+          if (null == mWriter) {
+            File file = File.createTempFile("flumebase-join-", ".seg", mSpillDir);
+            mWriter = new SpillSegment.Writer(file, mSchema);
+          }
+
+          mWriter.add(key, timestamp, toRecord(value), value.getEvent());
+        }
+      };
+
+  /**
+   * Create a map for one side of a join.
+   * @param fields the fields of the events stored in the map.
+   * @param heapBudget the max number of bytes of heap to use, or zero or less
+   * to keep all events on the heap.
+   * @param spillDir the directory in which to create segment files.
+   */
+  public SpillingJoinMap(List<TypedField> fields, long heapBudget, File spillDir) {
+    mHeap = new WindowedHashMap<Object, EventWrapper>();
+    mSegments = new ArrayList<SpillSegment>();
+    mFields = new ArrayList<TypedField>(fields);
+    mSchema = SQLStatement.createFieldSchema(mFields);
+    mHeapBudget = heapBudget;
+    mSpillDir = spillDir;
+    mEventBytes = EVENT_OVERHEAD_BYTES;
+    mAvgEncodedBytes = -1;
+    mExpiredBefore = Long.MIN_VALUE;
+
+    mStringFields = new boolean[mFields.size()];
+    List<Schema.Field> schemaFields = mSchema.getFields();
+    for (int i = 0; i < mStringFields.length; i++) {
+      Schema fieldSchema = schemaFields.get(i).schema();
+      if (fieldSchema.getType().equals(Schema.Type.UNION)) {
+        for (Schema branch : fieldSchema.getTypes()) {
+          mStringFields[i] |= branch.getType().equals(Schema.Type.STRING);
+        }
+      } else {
+        mStringFields[i] = fieldSchema.getType().equals(Schema.Type.STRING);
+      }
+    }
+  }
+
+  /**
+   * @return a record holding the fields of the event, with strings
+   * represented as Utf8 for the Avro encoder.
+   */
+  private GenericData.Record toRecord(EventWrapper e) throws IOException {
+    GenericData.Record record = new GenericData.Record(mSchema);
+    for (int i = 0; i < mStringFields.length; i++) {
+      Object val = e.getField(mFields.get(i));
+      if (mStringFields[i] && null != val && !(val instanceof Utf8)) {
+        val = new Utf8(val.toString());
+      }
+      record.put(i, val);
+    }
+
+    return record;
+  }
+
+  /** Update the estimated per-event heap footprint from the size of 'e'. */
+  private void sampleSize(EventWrapper e) throws IOException {
+    if (null == mDatumWriter) {
+      mDatumWriter = new GenericDatumWriter<GenericRecord>(mSchema);
+      mSampleBytes = new ByteArrayOutputStream();
+      mSampleEncoder = new BinaryEncoder(mSampleBytes);
+    }
+
+    mSampleBytes.reset();
+    mDatumWriter.write(toRecord(e), mSampleEncoder);
+    mSampleEncoder.flush();
+    int size = mSampleBytes.size();
+
+    if (mAvgEncodedBytes < 0) {
+      mAvgEncodedBytes = size;
+    } else {
+      mAvgEncodedBytes += (size - mAvgEncodedBytes) / 8;
+    }
+
+    mEventBytes = EVENT_OVERHEAD_BYTES + (long) (HEAP_EXPANSION * mAvgEncodedBytes);
+  }
+
+  /** @return the estimated number of bytes of heap used by events in mHeap. */
+  private long getHeapEventBytes() {
+    return mNumHeapEvents * mEventBytes;
+  }
+
+  /**
+   * @return the estimated number of bytes of heap used by stored events,
+   * including the indexes of spilled events.
+   */
+  private long getHeapBytes() {
+    long bytes = getHeapEventBytes() + mIndexBytes;
+    if (null != mWriter) {
+      bytes += mWriter.getIndexBytes();
+    }
+
+    return bytes;
+  }
+
+  /** Insert an event with the specified key and timestamp. */
+  public void put(Object key, EventWrapper e, long timestamp) throws IOException {
+    mHeap.put(key, e, timestamp);
+    mNumHeapEvents++;
+
+    if (mHeapBudget <= 0) {
+      return;
+    }
+
+    if (mSinceSample++ % SIZE_SAMPLE_INTERVAL == 0) {
+      sampleSize(e);
+    }
+
+    // A spill normally frees the part of the budget above the target; if
+    // the segment indexes leave less than that to the heap, wait for at least
+    // that much rather than spilling a few events at a time.
+    if (getHeapBytes() > mHeapBudget
+        && getHeapEventBytes() >= mHeapBudget - (long) (mHeapBudget * SPILL_TARGET_FRACTION)) {
+      spill();
+    }
+  }
+
+  /**
+   * Move the oldest events from the heap into new spill segments, until
+   * the heap footprint is back under the target.
+   */
+  private void spill() throws IOException {
+    long target = (long) (mHeapBudget * SPILL_TARGET_FRACTION);
+    try {
+      while (mNumHeapEvents > 0 && getHeapBytes() > target) {
+        // Spill the older half of the time range on the heap.
+        long oldest = mHeap.oldestTimestamp().longValue();
+        long newest = mHeap.newestTimestamp().longValue();
+        mHeap.removeOlderThan(oldest + (newest - oldest) / 2 + 1, mSpillListener);
+      }
+      finishSegment();
+    } catch (IOException ioe) {
+      if (null != mWriter) {
+        mWriter.abort();
+        mWriter = null;
+      }
+      throw ioe;
+    }
+  }
+
+  /** Complete the segment being written, if any, and make it available to probes. */
+  private void finishSegment() throws IOException {
+    if (null == mWriter) {
+      return;
+    }
+
+    SpillSegment segment = mWriter.finish();
+    mWriter = null;
+    mSegments.add(segment);
+    mIndexBytes += segment.getIndexBytes();
+    if (mIndexBytes > mHeapBudget && !mWarnedIndexBytes) {
+      LOG.warn("Index of spilled join events uses an estimated " + mIndexBytes
+          + " bytes, more than the heap budget of " + mHeapBudget + " bytes");
+      mWarnedIndexBytes = true;
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Spilled " + segment.size() + " events (" + segment.getNumBytes()
+          + " bytes) for t=[" + segment.getMinTime() + ", " + segment.getMaxTime() + "]");
+    }
+  }
+
+  /**
+   * Look up all values for a key within a given timestamp range. Arguments
+   * specify whether the lower and upper bounds of the interval are open-ended
+   * or closed. The returned list is only valid until the next modification
+   * of the map.
+   */
+  public List<EventWrapper> getRange(Object key, long lo, long hi, boolean openLo,
+      boolean openHi) throws IOException {
+    List<EventWrapper> heapEvents = mHeap.getRange(key, lo, hi, openLo, openHi);
+    if (mSegments.isEmpty()) {
+      return heapEvents;
+    }
+
+    // Spilled events older than mExpiredBefore are logically gone.
+    if (lo < mExpiredBefore) {
+      lo = mExpiredBefore;
+      openLo = false;
+    }
+
+    List<EventWrapper> out = null;
+    for (SpillSegment segment : mSegments) {
+      if (segment.getMaxTime() < lo || segment.getMinTime() > hi) {
+        continue;
+      }
+
+      if (null == out) {
+        out = new ArrayList<EventWrapper>();
+      }
+      segment.getRange(key, lo, hi, openLo, openHi, out);
+    }
+
+    if (null == out) {
+      return heapEvents;
+    }
+
+    out.addAll(heapEvents);
+    return out;
+  }
+
+  /**
+   * Remove all events whose timestamp is less than 'test'. Spill segments
+   * are deleted once all their events are older than 'test'.
+   */
+  public void removeOlderThan(long test) throws IOException {
+    mHeap.removeOlderThan(test, mExpireListener);
+    if (test <= mExpiredBefore) {
+      return;
+    }
+
+    mExpiredBefore = test;
+    Iterator<SpillSegment> segments = mSegments.iterator();
+    while (segments.hasNext()) {
+      SpillSegment segment = segments.next();
+      if (segment.getMaxTime() < test) {
+        mIndexBytes -= segment.getIndexBytes();
+        segment.delete();
+        segments.remove();
+      }
+    }
+  }
+
+  /**
+   * @return the oldest timestamp in the map, or null if the map is empty.
+   * For spilled events, this may be an underestimate.
+   */
+  public Long oldestTimestamp() {
+    Long oldest = mHeap.oldestTimestamp();
+    for (SpillSegment segment : mSegments) {
+      long segmentOldest = Math.max(segment.getMinTime(), mExpiredBefore);
+      if (null == oldest || segmentOldest < oldest.longValue()) {
+        oldest = Long.valueOf(segmentOldest);
+      }
+    }
+
+    return oldest;
+  }
+
+  /** @return the number of spill segments currently on disk. */
+  public int getNumSegments() {
+    return mSegments.size();
+  }
+
+  /** Discard all events, and delete any spill segments. */
+  public void clear() {
+    mHeap.clear();
+    mNumHeapEvents = 0;
+    for (SpillSegment segment : mSegments) {
+      segment.delete();
+    }
+    mSegments.clear();
+    mIndexBytes = 0;
+  }
+}
@@ -0,0 +1,61 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.odiago.flumebase.exec;
+
+/**
+ * A control event flowing alongside the data events of a stream. A watermark
+ * with time 't' promises that no further events with timestamps before 't'
+ * will follow it on the same input. Watermarks travel through the same
+ * contexts and queues as data events, so their order relative to the data
+ * is preserved; FlowElements receive them through takeWatermark() rather
+ * than takeEvent().
+ */
+public class WatermarkEventWrapper extends EmptyEventWrapper {
+  /** Timestamp before which the stream is complete. */
+  private final long mTime;
+
+  /** Name of the stream the watermark applies to; may be null. */
+  private final String mStreamName;
+
+  public WatermarkEventWrapper(long time, String streamName) {
+    mTime = time;
+    mStreamName = streamName;
+  }
+
+  /** @return the timestamp before which the stream is complete. */
+  public long getTime() {
+    return mTime;
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>Watermarks carry the name of the stream they apply to, so elements
+   * with several inputs can tell which input a watermark arrived on.</p>
+   */
+  @Override
+  public String getAttr(String attrName) {
+    if (FlowElement.STREAM_NAME_ATTR.equals(attrName)) {
+      return mStreamName;
+    }
+    return null;
+  }
+
+  @Override
+  public String getEventText() {
+    return "(watermark " + mTime + ")";
+  }
+}
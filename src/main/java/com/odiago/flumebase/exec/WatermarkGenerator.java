@@ -0,0 +1,177 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Assigns watermarks to the events a source FlowElement emits. Sources emit
+ * each event through emit(), which follows the event with a watermark when
+ * the configured policy lets the stream's watermark advance:
+ * <ul>
+ *   <li>"bounded": events may arrive up to a fixed bound out of order.
+ *   The watermark trails the newest timestamp seen by that bound.</li>
+ *   <li>"marker": the stream carries explicit watermark markers: events
+ *   with a MARKER_ATTR attribute holding the watermark time, in
+ *   milliseconds. Markers are turned into watermarks rather than being
+ *   emitted as data.</li>
+ * </ul>
+ * Events may be emitted from several threads.
+ */
+public class WatermarkGenerator {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      WatermarkGenerator.class.getName());
+
+  /**
+   * Configuration key for the policy used to generate watermarks from
+   * source streams: "none", "bounded", or "marker". If "none", no watermarks
+   * are generated, and windows are closed after the slack time instead.
+   */
+  public static final String POLICY_KEY = "flumebase.watermark.policy";
+  public static final String DEFAULT_POLICY = "none";
+
+  /**
+   * Configuration key for the number of milliseconds by which events may
+   * arrive out of order under the "bounded" policy.
+   */
+  public static final String MAX_DISORDER_KEY = "flumebase.watermark.max.disorder";
+  public static final long DEFAULT_MAX_DISORDER = 200;
+
+  /**
+   * Configuration key for the minimum number of milliseconds the watermark
+   * must advance by under the "bounded" policy before a new one is emitted.
+   */
+  public static final String INTERVAL_KEY = "flumebase.watermark.interval";
+  public static final long DEFAULT_INTERVAL = 100;
+
+  /** Event attribute that marks an event as a watermark marker. */
+  public static final String MARKER_ATTR = "rtsql:watermark";
+
+  /** Ways of generating watermarks. */
+  private enum Policy {
+    Bounded,
+    Marker,
+  }
+
+  private final Policy mPolicy;
+
+  /** Name of the stream whose watermarks we generate. */
+  private final String mStreamName;
+
+  /** How far behind the newest timestamp the watermark trails. */
+  private final long mMaxDisorder;
+
+  /** The minimum advance between consecutive bounded watermarks. */
+  private final long mInterval;
+
+  /** Time of the latest watermark generated. */
+  private long mWatermark = Long.MIN_VALUE;
+
+  private WatermarkGenerator(Policy policy, String streamName, long maxDisorder,
+      long interval) {
+    mPolicy = policy;
+    mStreamName = streamName;
+    mMaxDisorder = maxDisorder;
+    mInterval = interval;
+  }
+
+  /**
+   * @return a WatermarkGenerator for the named stream, as configured by 'conf',
+   * or null if watermarks are not enabled.
+   */
+  public static WatermarkGenerator create(Configuration conf, String streamName) {
+    String policy = conf.get(POLICY_KEY, DEFAULT_POLICY).trim();
+    long maxDisorder = Math.max(0, conf.getLong(MAX_DISORDER_KEY, DEFAULT_MAX_DISORDER));
+    long interval = Math.max(1, conf.getLong(INTERVAL_KEY, DEFAULT_INTERVAL));
+    if ("bounded".equalsIgnoreCase(policy)) {
+      return new WatermarkGenerator(Policy.Bounded, streamName, maxDisorder, interval);
+    } else if ("marker".equalsIgnoreCase(policy)) {
+      return new WatermarkGenerator(Policy.Marker, streamName, maxDisorder, interval);
+    } else if (!DEFAULT_POLICY.equalsIgnoreCase(policy)) {
+      LOG.warn("Unknown " + POLICY_KEY + " '" + policy + "'; watermarks are disabled.");
+    }
+
+    return null;
+  }
+
+  /**
+   * Emit an event to 'context', followed by a watermark if the event
+   * advances the stream's watermark.
+   */
+  public void emit(EventWrapper e, FlowElementContext context)
+      throws IOException, InterruptedException {
+    long watermark;
+    if (mPolicy == Policy.Marker) {
+      String marker = e.getAttr(MARKER_ATTR);
+      if (null == marker) {
+        context.emit(e);
+        return;
+      }
+
+      try {
+        watermark = advance(Long.parseLong(marker.trim()), 1);
+      } catch (NumberFormatException nfe) {
+        LOG.warn("Could not parse watermark marker '" + marker + "' in stream " + mStreamName);
+        return;
+      }
+    } else {
+      context.emit(e);
+      watermark = advance(e.getEvent().getTimestamp() - mMaxDisorder, mInterval);
+    }
+
+    if (Long.MIN_VALUE != watermark) {
+      context.emit(new WatermarkEventWrapper(watermark, mStreamName));
+    }
+  }
+
+  /**
+   * Advance the watermark to 'time' if that moves it forward by at least
+   * 'minStep' milliseconds.
+   * @return the new watermark, or Long.MIN_VALUE if it did not advance.
+   */
+  private synchronized long advance(long time, long minStep) {
+    if (Long.MIN_VALUE != mWatermark && time - mWatermark < minStep) {
+      return Long.MIN_VALUE;
+    }
+
+    mWatermark = time;
+    return time;
+  }
+
+  /**
+   * @return a context that emits events to 'context' through this
+   * generator, for sources that hand their context to another component.
+   */
+  public FlowElementContext wrap(final FlowElementContext context) {
+    return new FlowElementContext() {
+      @Override
+      public void emit(EventWrapper e) throws IOException, InterruptedException {
+        WatermarkGenerator.this.emit(e, context);
+      }
+
+      @Override
+      public void notifyCompletion() throws IOException, InterruptedException {
+        context.notifyCompletion();
+      }
+    };
+  }
+}
@@ -0,0 +1,81 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.builtins;
+
+import com.odiago.flumebase.lang.AggregateState;
+import com.odiago.flumebase.lang.PrimitiveAggregate;
+import com.odiago.flumebase.lang.Type;
+
+/**
+ * Count and total of floating-point values, for sum() and avg(). Uses a long
+ * slot for the number of values, and a double slot for their total.
+ *
+ * <p>This is not invertible: subtracting expired buckets from a running
+ * total would accumulate floating-point error, and a single NaN or infinite
+ * value would poison the total for good (Inf - Inf is NaN). Sliding windows
+ * instead recombine the totals of their live buckets.</p>
+ */
+class DoubleTotal extends PrimitiveAggregate {
+  private final Type.TypeName mRetTypeName;
+
+  /** True to return the mean of the values, rather than their total. */
+  private final boolean mIsAverage;
+
+  DoubleTotal(Type.TypeName retTypeName, boolean isAverage) {
+    super(ArgKind.DOUBLE);
+    mRetTypeName = retTypeName;
+    mIsAverage = isAverage;
+  }
+
+  @Override
+  public int getNumLongSlots() {
+    return 1;
+  }
+
+  @Override
+  public int getNumDoubleSlots() {
+    return 1;
+  }
+
+  @Override
+  public void add(double arg, AggregateState state) {
+    state.getLongs()[mLongOffset]++;
+    state.getDoubles()[mDoubleOffset] += arg;
+  }
+
+  @Override
+  public void merge(AggregateState src, AggregateState dst) {
+    dst.getLongs()[mLongOffset] += src.getLongs()[mLongOffset];
+    dst.getDoubles()[mDoubleOffset] += src.getDoubles()[mDoubleOffset];
+  }
+
+  @Override
+  public Object finish(AggregateState state) {
+    long count = state.getLongs()[mLongOffset];
+    double total = state.getDoubles()[mDoubleOffset];
+    if (0 == count) {
+      return null; // Only null values in buckets.
+    }
+
+    if (Type.TypeName.FLOAT.equals(mRetTypeName)) {
+      return Float.valueOf(mIsAverage ? (float) total / (float) count : (float) total);
+    } else {
+      return Double.valueOf(mIsAverage ? total / (double) count : total);
+    }
+  }
+}
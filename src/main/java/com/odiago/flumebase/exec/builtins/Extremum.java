@@ -0,0 +1,264 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.builtins;
+
+import com.odiago.flumebase.lang.AggregateState;
+import com.odiago.flumebase.lang.PrimitiveAggregate;
+import com.odiago.flumebase.lang.TwoStackWindowAccumulator;
+import com.odiago.flumebase.lang.Type;
+import com.odiago.flumebase.lang.WindowAccumulator;
+
+/**
+ * The minimum or maximum of the values of a column, for min() and max().
+ * Integral values use two long slots (whether there is a value, then the
+ * value); floating-point values use a long slot and a double slot; other
+ * comparable values use an object slot, which is null if there is no value.
+ */
+@SuppressWarnings("rawtypes")
+abstract class Extremum extends PrimitiveAggregate {
+  /** 1 to keep the maximum value, -1 to keep the minimum. */
+  protected final int mSign;
+
+  protected Extremum(ArgKind argKind, boolean isMax) {
+    super(argKind);
+    mSign = isMax ? 1 : -1;
+  }
+
+  /**
+   * @return an Extremum over values of type 'argType'.
+   */
+  static Extremum create(Type argType, boolean isMax) {
+    Type.TypeName typeName = argType.getPrimitiveTypeName();
+    switch (getArgKind(argType)) {
+    case LONG:
+      return new LongExtremum(typeName, isMax);
+    case DOUBLE:
+      return new DoubleExtremum(typeName, isMax);
+    default:
+      return new ObjectExtremum(isMax);
+    }
+  }
+
+  /** @return true if the state holds a value. */
+  protected abstract boolean hasValue(AggregateState state);
+
+  /** @return true if the value in state 'a' should be kept over the value in 'b'. */
+  protected abstract boolean isBetter(AggregateState a, AggregateState b);
+
+  @Override
+  public WindowAccumulator<AggregateState> newWindowAccumulator() {
+    // Combining two states just picks the one with the better value.
+    return new TwoStackWindowAccumulator<AggregateState>() {
+      @Override
+      protected AggregateState combine(AggregateState a, AggregateState b) {
+        if (null == a || !hasValue(a)) {
+          return b;
+        } else if (null == b || !hasValue(b) || isBetter(a, b)) {
+          return a;
+        } else {
+          return b;
+        }
+      }
+
+      @Override
+      public Object finish() {
+        AggregateState state = getWindowState();
+        if (null == state) {
+          return null;
+        }
+        return Extremum.this.finish(state);
+      }
+    };
+  }
+
+  /** Extremum of integral values. */
+  private static class LongExtremum extends Extremum {
+    private final Type.TypeName mTypeName;
+
+    LongExtremum(Type.TypeName typeName, boolean isMax) {
+      super(ArgKind.LONG, isMax);
+      mTypeName = typeName;
+    }
+
+    @Override
+    public int getNumLongSlots() {
+      return 2;
+    }
+
+    @Override
+    public void add(long arg, AggregateState state) {
+      long[] longs = state.getLongs();
+      long cur = longs[mLongOffset + 1];
+      if (0 == longs[mLongOffset] || (mSign > 0 ? arg > cur : arg < cur)) {
+        longs[mLongOffset] = 1;
+        longs[mLongOffset + 1] = arg;
+      }
+    }
+
+    @Override
+    protected boolean hasValue(AggregateState state) {
+      return 0 != state.getLongs()[mLongOffset];
+    }
+
+    @Override
+    protected boolean isBetter(AggregateState a, AggregateState b) {
+      long aVal = a.getLongs()[mLongOffset + 1];
+      long bVal = b.getLongs()[mLongOffset + 1];
+      return mSign > 0 ? aVal >= bVal : aVal <= bVal;
+    }
+
+    @Override
+    public void merge(AggregateState src, AggregateState dst) {
+      if (hasValue(src)) {
+        add(src.getLongs()[mLongOffset + 1], dst);
+      }
+    }
+
+    @Override
+    public Object finish(AggregateState state) {
+      if (!hasValue(state)) {
+        return null;
+      }
+
+      long val = state.getLongs()[mLongOffset + 1];
+      if (Type.TypeName.INT.equals(mTypeName)) {
+        return Integer.valueOf((int) val);
+      } else {
+        return Long.valueOf(val);
+      }
+    }
+  }
+
+  /** Extremum of floating-point values. */
+  private static class DoubleExtremum extends Extremum {
+    private final Type.TypeName mTypeName;
+
+    DoubleExtremum(Type.TypeName typeName, boolean isMax) {
+      super(ArgKind.DOUBLE, isMax);
+      mTypeName = typeName;
+    }
+
+    @Override
+    public int getNumLongSlots() {
+      return 1;
+    }
+
+    @Override
+    public int getNumDoubleSlots() {
+      return 1;
+    }
+
+    @Override
+    public void add(double arg, AggregateState state) {
+      long[] longs = state.getLongs();
+      double[] doubles = state.getDoubles();
+      if (0 == longs[mLongOffset] || isBetter(arg, doubles[mDoubleOffset])) {
+        longs[mLongOffset] = 1;
+        doubles[mDoubleOffset] = arg;
+      }
+    }
+
+    @Override
+    protected boolean hasValue(AggregateState state) {
+      return 0 != state.getLongs()[mLongOffset];
+    }
+
+    /** @return true if 'a' should replace 'b' as the extreme value. */
+    private boolean isBetter(double a, double b) {
+      int cmp = Double.compare(a, b);
+      return mSign > 0 ? cmp > 0 : cmp < 0;
+    }
+
+    @Override
+    protected boolean isBetter(AggregateState a, AggregateState b) {
+      return !isBetter(b.getDoubles()[mDoubleOffset], a.getDoubles()[mDoubleOffset]);
+    }
+
+    @Override
+    public void merge(AggregateState src, AggregateState dst) {
+      if (hasValue(src)) {
+        add(src.getDoubles()[mDoubleOffset], dst);
+      }
+    }
+
+    @Override
+    public Object finish(AggregateState state) {
+      if (!hasValue(state)) {
+        return null;
+      }
+
+      double val = state.getDoubles()[mDoubleOffset];
+      if (Type.TypeName.FLOAT.equals(mTypeName)) {
+        return Float.valueOf((float) val);
+      } else {
+        return Double.valueOf(val);
+      }
+    }
+  }
+
+  /** Extremum of other comparable values, held by reference. */
+  private static class ObjectExtremum extends Extremum {
+    ObjectExtremum(boolean isMax) {
+      super(ArgKind.OBJECT, isMax);
+    }
+
+    @Override
+    public int getNumObjectSlots() {
+      return 1;
+    }
+
+    @Override
+    public void addObject(Object arg, AggregateState state) {
+      Object[] objects = state.getObjects();
+      Comparable cur = (Comparable) objects[mObjectOffset];
+      if (null == cur || isBetter((Comparable) arg, cur)) {
+        objects[mObjectOffset] = arg;
+      }
+    }
+
+    @Override
+    protected boolean hasValue(AggregateState state) {
+      return null != state.getObjects()[mObjectOffset];
+    }
+
+    /** @return true if 'a' should replace 'b' as the extreme value. */
+    @SuppressWarnings("unchecked")
+    private boolean isBetter(Comparable a, Comparable b) {
+      int cmp = a.compareTo(b);
+      return mSign > 0 ? cmp > 0 : cmp < 0;
+    }
+
+    @Override
+    protected boolean isBetter(AggregateState a, AggregateState b) {
+      return !isBetter((Comparable) b.getObjects()[mObjectOffset],
+          (Comparable) a.getObjects()[mObjectOffset]);
+    }
+
+    @Override
+    public void merge(AggregateState src, AggregateState dst) {
+      if (hasValue(src)) {
+        addObject(src.getObjects()[mObjectOffset], dst);
+      }
+    }
+
+    @Override
+    public Object finish(AggregateState state) {
+      return state.getObjects()[mObjectOffset];
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.builtins;
+
+import com.odiago.flumebase.lang.AggregateState;
+import com.odiago.flumebase.lang.PrimitiveAggregate;
+import com.odiago.flumebase.lang.Type;
+
+/**
+ * Count and total of integral values, for sum() and avg(). Uses two long
+ * slots: the number of values, then their total.
+ */
+class LongTotal extends PrimitiveAggregate {
+  private final Type.TypeName mRetTypeName;
+
+  /** True to return the mean of the values, rather than their total. */
+  private final boolean mIsAverage;
+
+  LongTotal(Type.TypeName retTypeName, boolean isAverage) {
+    super(ArgKind.LONG);
+    mRetTypeName = retTypeName;
+    mIsAverage = isAverage;
+  }
+
+  @Override
+  public int getNumLongSlots() {
+    return 2;
+  }
+
+  @Override
+  public void add(long arg, AggregateState state) {
+    long[] longs = state.getLongs();
+    longs[mLongOffset]++;
+    longs[mLongOffset + 1] += arg;
+  }
+
+  @Override
+  public void merge(AggregateState src, AggregateState dst) {
+    long[] srcLongs = src.getLongs();
+    long[] dstLongs = dst.getLongs();
+    dstLongs[mLongOffset] += srcLongs[mLongOffset];
+    dstLongs[mLongOffset + 1] += srcLongs[mLongOffset + 1];
+  }
+
+  @Override
+  public boolean isInvertible() {
+    return true;
+  }
+
+  @Override
+  public void unmerge(AggregateState src, AggregateState dst) {
+    long[] srcLongs = src.getLongs();
+    long[] dstLongs = dst.getLongs();
+    dstLongs[mLongOffset] -= srcLongs[mLongOffset];
+    dstLongs[mLongOffset + 1] -= srcLongs[mLongOffset + 1];
+  }
+
+  @Override
+  public Object finish(AggregateState state) {
+    long[] longs = state.getLongs();
+    long count = longs[mLongOffset];
+    long total = longs[mLongOffset + 1];
+    if (0 == count) {
+      return null; // Only null values in buckets.
+    }
+
+    if (Type.TypeName.INT.equals(mRetTypeName)) {
+      return Integer.valueOf(mIsAverage ? (int) total / (int) count : (int) total);
+    } else {
+      return Long.valueOf(mIsAverage ? total / count : total);
+    }
+  }
+}
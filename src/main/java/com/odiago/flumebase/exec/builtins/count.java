@@ -20,16 +20,16 @@ package com.odiago.flumebase.exec.builtins;
 import java.util.Collections;
 import java.util.List;
 
-import com.odiago.flumebase.exec.Bucket;
-
-import com.odiago.flumebase.lang.AggregateFunc;
+import com.odiago.flumebase.lang.AggregateState;
+import com.odiago.flumebase.lang.PrimitiveAggregate;
+import com.odiago.flumebase.lang.PrimitiveAggregateFunc;
 import com.odiago.flumebase.lang.Type;
 import com.odiago.flumebase.lang.UniversalType;
 
 /**
  * Return the count of non-null values in a column.
  */
-public class count extends AggregateFunc<Integer> {
+public class count extends PrimitiveAggregateFunc {
   private UniversalType mArgType;
 
   public count() {
@@ -38,42 +38,58 @@ public class count extends AggregateFunc<Integer> {
     mArgType.addConstraint(Type.getNullable(Type.TypeName.TYPECLASS_ANY));
   }
 
-  private Integer getState(Bucket<Integer> bucket) {
-    Integer state = bucket.getState();
-    if (null == state) {
-      state = Integer.valueOf(0);
+  /** Counts values in a single long slot. */
+  private static class CountAggregate extends PrimitiveAggregate {
+    CountAggregate() {
+      // The value itself is never used, so don't bother to unbox it.
+      super(ArgKind.OBJECT);
     }
 
-    return state;
-  }
- 
-  @Override
-  public void addToBucket(Object arg, Bucket<Integer> bucket, Type type) {
-    assert type.equals(Type.getPrimitive(Type.TypeName.INT));
-
-    if (null != arg) {
-      Integer state = getState(bucket);
-      int val = 0;
-      if (null != state) {
-        val = state.intValue();
-      }
-
-      val++; // Non-null item in bucket increments state.
-      bucket.setState(Integer.valueOf(val));
+    @Override
+    public int getNumLongSlots() {
+      return 1;
     }
-  }
 
-  @Override
-  public Object finishWindow(Iterable<Bucket<Integer>> buckets, Type type) {
-    int total = 0;
-    for (Bucket<Integer> bucket : buckets) {
-      Integer state = bucket.getState();
-      if (null != state) {
-        total += state.intValue();
-      }
+    @Override
+    public void add(long arg, AggregateState state) {
+      state.getLongs()[mLongOffset]++;
     }
 
-    return Integer.valueOf(total);
+    @Override
+    public void add(double arg, AggregateState state) {
+      state.getLongs()[mLongOffset]++;
+    }
+
+    @Override
+    public void addObject(Object arg, AggregateState state) {
+      state.getLongs()[mLongOffset]++;
+    }
+
+    @Override
+    public void merge(AggregateState src, AggregateState dst) {
+      dst.getLongs()[mLongOffset] += src.getLongs()[mLongOffset];
+    }
+
+    @Override
+    public boolean isInvertible() {
+      return true;
+    }
+
+    @Override
+    public void unmerge(AggregateState src, AggregateState dst) {
+      dst.getLongs()[mLongOffset] -= src.getLongs()[mLongOffset];
+    }
+
+    @Override
+    public Object finish(AggregateState state) {
+      return Integer.valueOf((int) state.getLongs()[mLongOffset]);
+    }
+  }
+
+  @Override
+  public PrimitiveAggregate bind(Type argType, Type retType) {
+    assert retType.equals(Type.getPrimitive(Type.TypeName.INT));
+    return new CountAggregate();
   }
 
   @Override
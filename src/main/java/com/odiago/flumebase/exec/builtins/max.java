@@ -20,17 +20,15 @@ package com.odiago.flumebase.exec.builtins;
 import java.util.Collections;
 import java.util.List;
 
-import com.odiago.flumebase.exec.Bucket;
-
-import com.odiago.flumebase.lang.AggregateFunc;
+import com.odiago.flumebase.lang.PrimitiveAggregate;
+import com.odiago.flumebase.lang.PrimitiveAggregateFunc;
 import com.odiago.flumebase.lang.Type;
 import com.odiago.flumebase.lang.UniversalType;
 
 /**
  * Return the max non-null value in a column.
  */
-@SuppressWarnings("rawtypes")
-public class max extends AggregateFunc<Comparable> {
+public class max extends PrimitiveAggregateFunc {
   private UniversalType mArgType;
 
   public max() {
@@ -40,30 +38,9 @@ public class max extends AggregateFunc<Comparable> {
   }
 
   @Override
-  public void addToBucket(Object arg, Bucket<Comparable> bucket, Type type) {
-    assert type.isComparable();
-
-    Comparable comparableArg = (Comparable) arg;
-    if (null != comparableArg) {
-      Object curMax = bucket.getState();
-      if (curMax == null || comparableArg.compareTo(curMax) > 0) {
-        // No currently defined max, or we just exceeded the observed max. Use this.
-        bucket.setState(comparableArg);
-      }
-    }
-  }
-
-  @Override
-  public Object finishWindow(Iterable<Bucket<Comparable>> buckets, Type type) {
-    Comparable curMax = null;
-    for (Bucket<Comparable> bucket : buckets) {
-      Comparable state = bucket.getState();
-      if (curMax == null || (null != state && state.compareTo(curMax) > 0)) {
-        curMax = state;
-      }
-    }
-
-    return curMax;
+  public PrimitiveAggregate bind(Type argType, Type retType) {
+    assert argType.isComparable();
+    return Extremum.create(argType, true);
   }
 
   @Override
@@ -20,6 +20,8 @@ package com.odiago.flumebase.exec.local;
 import java.util.ArrayList;
 import java.util.List;
 
+import java.util.concurrent.CopyOnWriteArrayList;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,6 +34,8 @@ import com.odiago.flumebase.util.DAG;
 import com.odiago.flumebase.util.DAGOperatorException;
 import com.odiago.flumebase.util.Ref;
 
+import com.odiago.flumebase.util.concurrent.SelectableQueue;
+
 /**
  * Container for information maintained by the local environment
  * regarding an active flow.
@@ -50,15 +54,25 @@ public class ActiveFlowData implements CloseHandler<UserSession> {
    */
   private final List<Ref<Boolean>> mJoinTargets;
 
+  /**
+   * Sessions watching the output of this flow. Modified by the control thread,
+   * but read by the worker thread executing the flow.
+   */
   private final List<UserSession> mWatchingSessions;
 
   /** Stream name associated with the output of this flow. */
-  private String mStreamName;
+  private volatile String mStreamName;
+
+  /** The worker thread which executes this flow's FlowElements. */
+  private volatile LocalFlowWorker mWorker;
+
+  /** Queue where the flow's FlowElements post their completion events. */
+  private SelectableQueue<Object> mCompletionQueue;
 
   public ActiveFlowData(LocalFlow flow) {
     mLocalFlow = flow;
     mJoinTargets = new ArrayList<Ref<Boolean>>();
-    mWatchingSessions = new ArrayList<UserSession>();
+    mWatchingSessions = new CopyOnWriteArrayList<UserSession>();
     mStreamName = null;
   }
 
@@ -78,6 +92,24 @@ public class ActiveFlowData implements CloseHandler<UserSession> {
     return mStreamName;
   }
 
+  void setWorker(LocalFlowWorker worker) {
+    mWorker = worker;
+  }
+
+  /** @return the worker thread which executes this flow. */
+  LocalFlowWorker getWorker() {
+    return mWorker;
+  }
+
+  void setCompletionQueue(SelectableQueue<Object> completionQueue) {
+    mCompletionQueue = completionQueue;
+  }
+
+  /** @return the queue where FlowElements post their completion events. */
+  SelectableQueue<Object> getCompletionQueue() {
+    return mCompletionQueue;
+  }
+
   /** Notifies everyone waiting on this flow that it is canceled. */
   public void cancel() {
     for (Ref<Boolean> joinTarget : mJoinTargets) {
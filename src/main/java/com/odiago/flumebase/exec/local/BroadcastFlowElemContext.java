@@ -0,0 +1,64 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.odiago.flumebase.exec.local;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.odiago.flumebase.exec.EventWrapper;
+import com.odiago.flumebase.exec.FlowElement;
+
+/**
+ * Context for a FlowElement which has several downstream FEs on the
+ * same physical host. An event emitted by the upstream FE is consumed by
+ * each downstream FE in turn, with no intermediate buffering.
+ *
+ * <p>The same EventWrapper instance is delivered to every downstream FE;
+ * FlowElements must not modify the events they receive.</p>
+ */
+public class BroadcastFlowElemContext extends LocalContext {
+
+  /** The downstream elements where we send events. */
+  private final FlowElement[] mDownstream;
+
+  public BroadcastFlowElemContext(List<FlowElement> downstream) {
+    mDownstream = downstream.toArray(new FlowElement[downstream.size()]);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void emit(EventWrapper e) throws IOException, InterruptedException {
+    for (FlowElement downstream : mDownstream) {
+      downstream.deliver(e);
+    }
+  }
+
+  /**
+   * Return the downstream FlowElements. Used by the LocalEnvironment.
+   */
+  @Override
+  List<FlowElement> getDownstream() {
+    List<FlowElement> out = new ArrayList<FlowElement>(mDownstream.length);
+    Collections.addAll(out, mDownstream);
+    return out;
+  }
+}
@@ -44,7 +44,7 @@ public class DirectCoupledFlowElemContext extends LocalContext {
    */
   @Override
   public void emit(EventWrapper e) throws IOException, InterruptedException {
-    mDownstream.takeEvent(e);
+    mDownstream.deliver(e);
   }
 
   /**
@@ -33,7 +33,7 @@ import com.odiago.flumebase.util.concurrent.SelectableQueue;
  */
 public abstract class LocalContext extends FlowElementContext {
   
-  /** The control operations queue used by the LocalEnvironment. */
+  /** The queue where the flow's worker thread receives completion events. */
   private SelectableQueue<Object> mControlQueue;
 
   /** Set to true after notifyCompletion() was called once. */
@@ -47,8 +47,8 @@ public abstract class LocalContext extends FlowElementContext {
   }
 
   /**
-   * Called by the LocalEnvironment to initialize the control queue instance
-   * that is pinged by the post() command in this class.
+   * Called by the LocalEnvironment to initialize the completion queue instance
+   * that is pinged by notifyCompletion() in this class.
    */
   void initControlQueue(SelectableQueue<Object> opQueue) {
     mControlQueue = opQueue;
@@ -70,6 +70,15 @@ public abstract class LocalContext extends FlowElementContext {
     mNotifiedCompletion = true;
   }
 
+  /**
+   * Release anything this context holds on behalf of its FlowElement. Called
+   * by the flow's worker thread when the flow is torn down, after the
+   * FlowElement is closed.
+   */
+  void release() {
+    // Nothing to release by default.
+  }
+
   void setFlowData(ActiveFlowData flowData) {
     mFlowData = flowData;
   }
@@ -78,6 +87,30 @@ public abstract class LocalContext extends FlowElementContext {
     return mFlowData;
   }
 
+  /**
+   * Ask the worker executing this flow to stop delivering events from the
+   * flow's queues, e.g. because its output is backed up. Events already
+   * being delivered still arrive. May be called from any thread.
+   */
+  public void pauseFlow() {
+    postToWorker(LocalEnvironment.ControlOp.Code.PauseFlow);
+  }
+
+  /**
+   * Ask the worker executing this flow to resume delivering events after
+   * pauseFlow(). May be called from any thread.
+   */
+  public void resumeFlow() {
+    postToWorker(LocalEnvironment.ControlOp.Code.ResumeFlow);
+  }
+
+  private void postToWorker(LocalEnvironment.ControlOp.Code code) {
+    LocalFlowWorker worker = mFlowData.getWorker();
+    if (null != worker) {
+      worker.post(new LocalEnvironment.ControlOp(code, mFlowData.getFlowId()));
+    }
+  }
+
   /**
    * Create any necessary downstream communication queues. Default: don't create any queues.
    */
@@ -23,11 +23,8 @@ import java.io.PrintStream;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.TreeMap;
 
 import org.antlr.runtime.RecognitionException;
@@ -42,17 +39,16 @@ import com.cloudera.util.Pair;
 import com.odiago.flumebase.client.ClientConsoleImpl;
 
 import com.odiago.flumebase.exec.BuiltInSymbolTable;
-import com.odiago.flumebase.exec.EventWrapper;
 import com.odiago.flumebase.exec.ExecEnvironment;
 import com.odiago.flumebase.exec.FlowElement;
 import com.odiago.flumebase.exec.FlowId;
 import com.odiago.flumebase.exec.FlowInfo;
 import com.odiago.flumebase.exec.HashSymbolTable;
-import com.odiago.flumebase.exec.OutputElement;
 import com.odiago.flumebase.exec.QuerySubmitResponse;
 import com.odiago.flumebase.exec.SymbolTable;
 
 import com.odiago.flumebase.flume.EmbeddedFlumeConfig;
+import com.odiago.flumebase.flume.SharedStreamSources;
 
 import com.odiago.flumebase.lang.AssignFieldLabelsVisitor;
 import com.odiago.flumebase.lang.CountStarVisitor;
@@ -67,6 +63,7 @@ import com.odiago.flumebase.parser.ASTGenerator;
 import com.odiago.flumebase.parser.SQLStatement;
 
 import com.odiago.flumebase.plan.FlowSpecification;
+import com.odiago.flumebase.plan.MergeDuplicateNodes;
 import com.odiago.flumebase.plan.PlanContext;
 import com.odiago.flumebase.plan.PropagateSchemas;
 
@@ -99,6 +96,20 @@ public class LocalEnvironment extends ExecEnvironment {
   /** Config key specifying the session id of the submitting user for a query. */
   public static final String SUBMITTER_SESSION_ID_KEY = "flumebase.query.submitter.session.id";
 
+  /**
+   * Config key specifying the number of worker threads which deliver events to
+   * the FlowElements of running flows. Each flow is pinned to a single worker.
+   */
+  public static final String NUM_WORKERS_KEY = "flumebase.exec.worker.threads";
+  public static final int DEFAULT_NUM_WORKERS = 1;
+
+  /**
+   * Config key specifying the maximum number of events a worker thread reads
+   * from an input queue and hands to its FlowElement at once.
+   */
+  public static final String EVENT_BATCH_SIZE_KEY = "flumebase.exec.batch.size";
+  public static final int DEFAULT_EVENT_BATCH_SIZE = 16;
+
   static class ControlOp {
     enum Code {
       AddFlow,         // A new flow shold be deployed.
@@ -114,9 +125,13 @@ public class LocalEnvironment extends ExecEnvironment {
       UnwatchFlow,     // Unsubscribe from a flow's output.
       GetWatchList,    // Get a list of flows being watched by a session.
       SetFlowName,     // Set the name of the output stream for a flow.
+      AttachFlow,      // (worker) Begin delivering events for a deployed flow.
+      FlowComplete,    // (control) A worker has closed all elements of a flow.
+      PauseFlow,       // (worker) Stop delivering events to a flow's elements.
+      ResumeFlow,      // (worker) Resume delivering events to a paused flow.
     };
 
-    /** What operation should be performed by the worker thread? */
+    /** What operation should be performed by the control or worker thread? */
     private final Code mOpCode;
 
     /** What add'l data is required to do this operation? */
@@ -141,52 +156,106 @@ public class LocalEnvironment extends ExecEnvironment {
    */
   private static class WatchRequest {
     public final boolean mIsWatch; // true for watch, false for unwatch.
+    public final boolean mAsRecords; // true to receive records instead of text.
     public final SessionId mSessionId;
     public final FlowId mFlowId;
 
     public WatchRequest(SessionId sessionId, FlowId flowId, boolean isWatch) {
+      this(sessionId, flowId, isWatch, false);
+    }
+
+    public WatchRequest(SessionId sessionId, FlowId flowId, boolean isWatch,
+        boolean asRecords) {
       mIsWatch = isWatch;
+      mAsRecords = asRecords;
       mSessionId = sessionId;
       mFlowId = flowId;
     }
   }
 
   /**
-   * The thread where the active flows in the local environment actually operate.
+   * The control thread of the local environment. This deploys and cancels flows,
+   * and services all client requests (watch, list, join, etc). The events of the
+   * active flows are delivered by a set of LocalFlowWorker threads; each flow is
+   * pinned to a single worker for its lifetime.
    */
   private class LocalEnvThread extends Thread {
 
     /** The set of running flows. */
     private Map<FlowId, ActiveFlowData> mActiveFlows;
 
-    /** Mapping from an input queue to the FlowElement it is feeding values to. */
-    private Map<SelectableQueue<Object>, FlowElement> mInputQueues;
+    /** The threads that execute the FlowElements of the active flows. */
+    private List<LocalFlowWorker> mWorkers;
 
     /** The selector that lets us read from multiple producers */
     private Select<Object> mSelect;
 
-    /** Unbounded queue used in-thread to post completion events back to the main loop. */
+    /** Unbounded queue used by the workers to post completion events back to this thread. */
     private SelectableQueue<Object> mCompletionEventQueue;
 
-    /**
-     * Set of queues which should be watched for emptiness; when they transition
-     * to empty, notify the associated downstream element of the upstream element's
-     * closure.
-     */
-    private Set<SelectableQueue<Object>> mCloseQueues;
-
     public LocalEnvThread() {
       mActiveFlows = new HashMap<FlowId, ActiveFlowData>();
+      mWorkers = new ArrayList<LocalFlowWorker>();
       mSelect = new Select<Object>();
       mCompletionEventQueue = new SyncSelectableQueue<Object>();
-      mInputQueues = new HashMap<SelectableQueue<Object>, FlowElement>();
-      mCloseQueues = new HashSet<SelectableQueue<Object>>();
 
-      setName("LocalEnvWorker");
+      setName("LocalEnvControl");
+    }
+
+    /**
+     * Create and start the worker threads, as specified by NUM_WORKERS_KEY.
+     */
+    private void startWorkers() {
+      int numWorkers = mConf.getInt(NUM_WORKERS_KEY, DEFAULT_NUM_WORKERS);
+      if (numWorkers < 1) {
+        LOG.warn("Invalid value for " + NUM_WORKERS_KEY + ": " + numWorkers
+            + "; using 1 worker thread.");
+        numWorkers = 1;
+      }
+
+      int batchSize = mConf.getInt(EVENT_BATCH_SIZE_KEY, DEFAULT_EVENT_BATCH_SIZE);
+      if (batchSize < 1) {
+        LOG.warn("Invalid value for " + EVENT_BATCH_SIZE_KEY + ": " + batchSize
+            + "; using batch size of 1.");
+        batchSize = 1;
+      }
+
+      LOG.debug("Starting " + numWorkers + " flow worker thread(s)");
+      for (int i = 0; i < numWorkers; i++) {
+        LocalFlowWorker worker = new LocalFlowWorker(i, mCompletionEventQueue, batchSize);
+        mWorkers.add(worker);
+        worker.start();
+      }
+    }
+
+    /**
+     * @return the worker thread with the fewest active flows pinned to it.
+     */
+    private LocalFlowWorker chooseWorker() {
+      Map<LocalFlowWorker, Integer> loads = new HashMap<LocalFlowWorker, Integer>();
+      for (ActiveFlowData flowData : mActiveFlows.values()) {
+        Integer load = loads.get(flowData.getWorker());
+        loads.put(flowData.getWorker(), null == load ? 1 : load + 1);
+      }
+
+      LocalFlowWorker best = null;
+      int bestLoad = Integer.MAX_VALUE;
+      for (LocalFlowWorker worker : mWorkers) {
+        Integer load = loads.get(worker);
+        int numFlows = null == load ? 0 : load.intValue();
+        if (numFlows < bestLoad) {
+          best = worker;
+          bestLoad = numFlows;
+        }
+      }
+
+      return best;
     }
 
     private void deployFlow(LocalFlow newFlow) throws IOException, InterruptedException {
       final ActiveFlowData activeFlowData = new ActiveFlowData(newFlow);
+      final SelectableQueue<Object> completionQueue = new SyncSelectableQueue<Object>();
+      activeFlowData.setCompletionQueue(completionQueue);
 
       Configuration flowConf = newFlow.getConf();
       if (flowConf.getBoolean(AUTO_WATCH_FLOW_KEY, DEFAULT_AUTO_WATCH_FLOW)) {
@@ -209,34 +278,19 @@ public class LocalEnvironment extends ExecEnvironment {
       }
 
       // Open all FlowElements in the flow, in reverse bfs order
-      // (so sinks are always ready before sources). Add the output
-      // queue(s) from the FlowElement to the set of output queues
-      // we monitor for further event processing.
+      // (so sinks are always ready before sources). Events emitted
+      // by sources during this phase wait in their output queues until
+      // the flow is attached to its worker thread.
       try {
         newFlow.reverseBfs(new DAG.Operator<FlowElementNode>() {
           public void process(FlowElementNode elemNode) throws DAGOperatorException {
             FlowElement flowElem = elemNode.getFlowElement();
 
             // All FlowElements that we see will have LocalContext subclass contexts.
-            // Get the output queue from this.
             LocalContext elemContext = (LocalContext) flowElem.getContext();
-            elemContext.initControlQueue(mCompletionEventQueue);
+            elemContext.initControlQueue(completionQueue);
             elemContext.setFlowData(activeFlowData);
-
             elemContext.createDownstreamQueues();
-            List<SelectableQueue<Object>> elemBuffers = elemContext.getDownstreamQueues();
-            if (null != elemBuffers) {
-              List<FlowElement> downstreams = elemContext.getDownstream();
-              // Bind each queue to its downstream element.
-              for (int i = 0; i < elemBuffers.size(); i++) {
-                SelectableQueue<Object> elemBuffer = elemBuffers.get(i);
-                if (null != elemBuffer) {
-                  FlowElement downstream = downstreams.get(i);
-                  mInputQueues.put(elemBuffer, downstream);
-                  mSelect.add(elemBuffer); // And watch this queue for updates.
-                }
-              }
-            }
 
             try {
               LOG.debug("Opening flow element of class: " + flowElem.getClass().getName());
@@ -263,65 +317,35 @@ public class LocalEnvironment extends ExecEnvironment {
         }
       }
 
+      // Hand the flow over to a worker; from here on, that thread owns its FlowElements.
+      LocalFlowWorker worker = chooseWorker();
+      activeFlowData.setWorker(worker);
       mActiveFlows.put(newFlow.getId(), activeFlowData);
+      worker.post(new ControlOp(ControlOp.Code.AttachFlow, activeFlowData));
     }
 
-    private void cancelFlowInner(ActiveFlowData flowData) {
-      // Close all FlowElements in the flow, and remove their output queues
-      // from the set of queues we track.
-      LocalFlow flow = flowData.getFlow();
-      try {
-        flow.rankTraversal(new DAG.Operator<FlowElementNode>() {
-          public void process(FlowElementNode elemNode) {
-            FlowElement flowElem = elemNode.getFlowElement();
-            if (!flowElem.isClosed()) {
-              try {
-                flowElem.close();
-              } catch (IOException ioe) {
-                LOG.error("IOException when closing flow element: " + ioe);
-              } catch (InterruptedException ie) {
-                LOG.error("InterruptedException when closing flow element: " + ie);
-              }
-            }
-
-            // All FlowElements that we see will have LocalContext subclass contexts.
-            // Get the output queue from this, and remove it from the tracking set.
-            LocalContext elemContext = (LocalContext) flowElem.getContext();
-            List<SelectableQueue<Object>> outQueues = elemContext.getDownstreamQueues();
-            if (null != outQueues) {
-              for (SelectableQueue<Object> outQueue : outQueues) {
-                if (null != outQueue) {
-                  mSelect.remove(outQueue);
-                  mInputQueues.remove(outQueue);
-                  mCloseQueues.remove(outQueue);
-                }
-              }
-            }
-          }
-        });
-      } catch (DAGOperatorException doe) {
-        // Shouldn't get here with this operator.
-        LOG.error("Unexpected dag op exn: " + doe);
-      }
-
-      // Notify external threads that this flow is complete.
-      flowData.cancel();
-    }
-
+    /**
+     * Ask the worker executing a flow to close it. The flow is removed
+     * from the active set when the worker reports back with FlowComplete.
+     */
     private void cancelFlow(FlowId id) {
-      LOG.info("Closing flow: " + id);
       ActiveFlowData flowData = mActiveFlows.get(id);
       if (null == flowData) {
         LOG.error("Cannot cancel flow: No flow available for id: " + id);
         return;
       }
-      cancelFlowInner(flowData);
-      mActiveFlows.remove(id);
+      flowData.getWorker().post(new ControlOp(ControlOp.Code.CancelFlow, id));
     }
 
-    /** @return true if 'id' refers to an active flow. */
-    private boolean isActive(FlowId id) {
-      return mActiveFlows.get(id) != null;
+    /**
+     * A worker has closed all the FlowElements of a flow; remove it from
+     * the active set.
+     */
+    private void flowComplete(ActiveFlowData flowData) {
+      mActiveFlows.remove(flowData.getFlowId());
+
+      // Notify external threads that this flow is complete.
+      flowData.cancel();
     }
 
     private void cancelAllFlows() {
@@ -330,14 +354,9 @@ public class LocalEnvironment extends ExecEnvironment {
       }
 
       LOG.info("Closing all flows");
-      Set<Map.Entry<FlowId, ActiveFlowData>> flowSet = mActiveFlows.entrySet();
-      Iterator<Map.Entry<FlowId, ActiveFlowData>> flowIter = flowSet.iterator();
-      while (flowIter.hasNext()) {
-        Map.Entry<FlowId, ActiveFlowData> entry = flowIter.next();
-        cancelFlowInner(entry.getValue());
+      for (FlowId id : mActiveFlows.keySet()) {
+        cancelFlow(id);
       }
-
-      mActiveFlows.clear();
     }
 
     /**
@@ -380,9 +399,11 @@ public class LocalEnvironment extends ExecEnvironment {
       }
 
       if(watchReq.mIsWatch) {
+        userSession.setRecordDelivery(watchReq.mFlowId, watchReq.mAsRecords);
         flow.addSession(userSession);
       } else {
         flow.removeSession(userSession);
+        userSession.setRecordDelivery(watchReq.mFlowId, false);
       }
     }
 
@@ -411,54 +432,49 @@ public class LocalEnvironment extends ExecEnvironment {
     }
 
     /**
-     * The specified queue is empty and its upstream element is closed. Notify
-     * the downstream element of this closure, and remove the queue from the
-     * set of things we track.
+     * Update the OutputElement of a flow to use a different output stream
+     * name for the output. This is performed by the flow's worker thread.
      */
-    private void closeQueue(SelectableQueue<Object> queue, FlowElement flowElem)
-        throws IOException, InterruptedException {
-      flowElem.closeUpstream();
-      mSelect.remove(queue);
-      mInputQueues.remove(queue);
-      mCloseQueues.remove(queue);
+    private void setFlowName(ControlOp nameOp) {
+      Pair<FlowId, String> flowNameData = (Pair<FlowId, String>) nameOp.getDatum();
+      ActiveFlowData flowData = mActiveFlows.get(flowNameData.getLeft());
+      if (null == flowData) {
+        LOG.error("Cannot set flow name for flow id " + flowNameData.getLeft()
+            + ": no such flow.");
+        return;
+      }
+
+      flowData.getWorker().post(nameOp);
     }
 
     /**
-     * Update the OutputElement of a flow to use a different output stream
-     * name for the output.
+     * Stop all worker threads. Any flows canceled before this call are
+     * closed by their workers before the workers exit.
      */
-    private void setFlowName(final FlowId flowId, final String name) {
-      ActiveFlowData flowData = mActiveFlows.get(flowId);
-      if (null == flowData) {
-        LOG.error("Cannot set flow name for flow id " + flowId + ": no such flow.");
-        return;
+    private void stopWorkers() {
+      for (LocalFlowWorker worker : mWorkers) {
+        worker.post(new ControlOp(ControlOp.Code.ShutdownThread, null));
       }
 
-      try {
-        // NOTE - This assumes a single OutputElement per flow; we find it by
-        // reverseBfs because we assume it's at the end. If there are multiple
-        // OutputElements in the flow, we'll get them all trying to open the
-        // same node...
-
-        flowData.getFlow().reverseBfs(new DAG.Operator<FlowElementNode>() {
-          public void process(FlowElementNode node) throws DAGOperatorException {
-            FlowElement flowElem = node.getFlowElement();
-            if (flowElem instanceof OutputElement) {
-              try {
-                ((OutputElement) flowElem).setFlumeTarget(name);
-              } catch (IOException ioe) {
-                throw new DAGOperatorException(ioe);
-              }
-            }
-          }
-        });
-      } catch (DAGOperatorException doe) {
-        LOG.error("Error setting output stream name: " + doe);
+      for (LocalFlowWorker worker : mWorkers) {
+        try {
+          worker.join();
+        } catch (InterruptedException ie) {
+          LOG.warn("Interrupted waiting for " + worker.getName() + " to exit");
+        }
       }
+
+      // Release any clients still joined to the flows the workers just closed.
+      for (ActiveFlowData flowData : mActiveFlows.values()) {
+        flowData.cancel();
+      }
+      mActiveFlows.clear();
     }
 
     @Override
     public void run() {
+      startWorkers();
+
       mSelect.add(mControlQueue); // Listen to events on the control queue.
       mSelect.add(mCompletionEventQueue);
       try {
@@ -515,6 +531,9 @@ public class LocalEnvironment extends ExecEnvironment {
               cancelAllFlows();
               break;
             case ShutdownThread:
+              // Workers process their queues in order, so flows canceled
+              // before this point are closed before the workers exit.
+              stopWorkers();
               isFinished = true;
               break;
             case WatchFlow:
@@ -531,66 +550,14 @@ public class LocalEnvironment extends ExecEnvironment {
               getWatchList(getReq.getLeft(), getReq.getRight());
               break;
             case SetFlowName:
-              Pair<FlowId, String> flowNameData =
-                  (Pair<FlowId, String>) nextOp.getDatum();
-              setFlowName(flowNameData.getLeft(), flowNameData.getRight());
+              setFlowName(nextOp);
+              break;
             case Noop:
-              // Don't do any control operation; skip ahead to event processing.
+              // Don't do any control operation.
               break;
-            case ElementComplete:
-              // Remove a specific FlowElement from service; it's done.
-              LocalCompletionEvent completionEvent = (LocalCompletionEvent) nextOp.getDatum();
-              try {
-                LocalContext context = completionEvent.getContext();
-
-                List<SelectableQueue<Object>> downstreamQueues =
-                    context.getDownstreamQueues();
-                List<FlowElement> downstreamElements = context.getDownstream();
-                if (null == downstreamElements || downstreamElements.size() == 0) {
-                  // We have received close() notification from the last element in a flow.
-                  // Remove the entire flow from service.
-                  // TODO(aaron): Are multiple SinkFlowElemContexts possible per flow?
-                  // If so, we need to wait for the last of these...
-                  SinkFlowElemContext sinkContext = (SinkFlowElemContext) context;
-                  FlowId id = sinkContext.getFlowId();
-                  LOG.info("Processing complete for flow: " + id);
-                  if (isActive(id)) {
-                    // If the flow is closing naturally, cancel it. If it's
-                    // already canceled (inactive), don't do this twice.
-                    cancelFlow(id);
-                  }
-                } else if (null == downstreamQueues || downstreamQueues.size() == 0) {
-                  // Has elements, but no queues. Notify the downstream
-                  // FlowElement(s) to close too.
-                  for (FlowElement downstream : downstreamElements) {
-                    downstream.closeUpstream();
-                  }
-                } else {
-                  // May have downstream queues. For each downstream element, close it
-                  // immediately if it has no queue, or an empty queue. Otherwise,
-                  // watch these queues for emptiness.
-                  assert downstreamQueues.size() == downstreamElements.size();
-                  for (int i = 0; i < downstreamElements.size(); i++) {
-                    SelectableQueue<Object> downstreamQueue = downstreamQueues.get(i);
-                    FlowElement downstreamElement = downstreamElements.get(i);
-                    if (downstreamQueue == null) {
-                      // Close directly.
-                      downstreamElement.closeUpstream();
-                    } else if (downstreamQueue.size() == 0) {
-                      // Queue's dry, close it down.
-                      closeQueue(downstreamQueue, downstreamElement);
-                    } else {
-                      // Watch this queue for completion.
-                      mCloseQueues.add(downstreamQueue);
-                    }
-
-                  }
-                }
-              } catch (IOException ioe) {
-                LOG.error("IOException closing flow element: " + ioe);
-              } catch (InterruptedException ie) {
-                LOG.error("Interruption closing downstream element: " + ie);
-              }
+            case FlowComplete:
+              // A worker has closed all elements of a flow.
+              flowComplete((ActiveFlowData) nextOp.getDatum());
               break;
             case Join:
               FlowJoinRequest joinReq = (FlowJoinRequest) nextOp.getDatum();
@@ -612,41 +579,15 @@ public class LocalEnvironment extends ExecEnvironment {
               Map<FlowId, FlowInfo> resultMap = (Map<FlowId, FlowInfo>) nextOp.getDatum();
               listFlows(resultMap);
               break;
+            default:
+              LOG.error("Control thread cannot handle operation " + nextOp.getOpCode());
+              break;
             }
 
             if (isFinished) {
-              // Stop immediately; ignore any further event processing or control work.
+              // Stop immediately; ignore any further control work.
               break;
             }
-          } else if (nextAction instanceof EventWrapper) {
-            // Process this event with its associated FlowElement.
-            // Look up the correct FlowElement based on the queue->FE map.
-            FlowElement processor = mInputQueues.get(nextQueue);
-            if (null == processor) {
-              LOG.error("No FlowElement for input queue " + nextQueue);
-            } else {
-              try {
-                processor.takeEvent((EventWrapper) nextAction);
-              } catch (IOException ioe) {
-                // TODO(aaron): Encountering an exception mid-flow should cancel the flow.
-                LOG.error("Flow element encountered IOException: " + ioe);
-              } catch (InterruptedException ie) {
-                LOG.error("Flow element encountered InterruptedException: " + ie);
-              }
-            }
-
-            if (((SelectableQueue<Object>) nextQueue).size() == 0
-                && mCloseQueues.contains(nextQueue)) {
-              // We just transitioned this FE's input queue to empty, and it was closed
-              // upstream. Notify the downstream element of this closure.
-              try {
-                closeQueue((SelectableQueue<Object>) nextQueue, processor);
-              } catch (IOException ioe) {
-                LOG.error("IOException closing flow element: " + ioe);
-              } catch (InterruptedException ie) {
-                LOG.error("InterruptedException closing flow element: " + ie);
-              }
-            }
           } else {
             LOG.error("Do not know what to do with queue element " + nextAction
                 + " of class " + nextAction.getClass().getName());
@@ -691,14 +632,20 @@ public class LocalEnvironment extends ExecEnvironment {
    */
   private EmbeddedFlumeConfig mFlumeConfig;
 
-  /** The thread that does the actual flow execution. */
+  /**
+   * The Flume connections for streams read by running flows; each is
+   * shared by all the flows reading its stream.
+   */
+  private SharedStreamSources mSharedSources;
+
+  /** The thread that manages the flows; it owns the worker threads that execute them. */
   private LocalEnvThread mLocalThread;
 
   /** set to true after connect(). */
   private boolean mConnected;
 
   /**
-   * Queue of control events passed from the console thread to the worker thread
+   * Queue of control events passed from the console thread to the control thread
    * (e.g., "deploy stream", "cancel stream", etc.)
    */
   private SelectableQueue<Object> mControlQueue; // Actually full of ControlOp instances
@@ -737,9 +684,18 @@ public class LocalEnvironment extends ExecEnvironment {
     mNextFlowId = 0;
     mControlQueue = new ArrayBoundedSelectableQueue<Object>(MAX_QUEUE_LEN);
     mFlumeConfig = flumeConfig;
+    mSharedSources = new SharedStreamSources(flumeConfig);
     mLocalThread = this.new LocalEnvThread();
   }
 
+  /**
+   * @return the registry of Flume connections shared by the flows that
+   * read each stream.
+   */
+  public SharedStreamSources getSharedSources() {
+    return mSharedSources;
+  }
+
   /** Given a Configuration that has SUBMITTER_SESSION_ID_KEY set, return the
    * UserSession corresponding to this SessionId. This is used to resolve the
    * submitter of a LocalFlow, FlowSpecification, etc.
@@ -817,6 +773,7 @@ public class LocalEnvironment extends ExecEnvironment {
         // Given a flow specification from the AST, run it through
         // necessary post-processing and optimization phases.
         spec.bfs(new PropagateSchemas());
+        new MergeDuplicateNodes().merge(spec);
         if (retContext.isExplain()) {
           // We just should explain this flow, but not actually add it.
           msgBuilder.append("Execution plan:\n");
@@ -844,7 +801,7 @@ public class LocalEnvironment extends ExecEnvironment {
       FlowId flowId = new FlowId(mNextFlowId++);
       UserSession userSession = getSessionForConf(spec.getConf());
       LocalFlowBuilder flowBuilder = new LocalFlowBuilder(flowId, mRootSymbolTable,
-          mFlumeConfig, mMemoryOutputMap, userSession);
+          mFlumeConfig, mSharedSources, mMemoryOutputMap, userSession, spec.getConf());
       try {
         spec.reverseBfs(flowBuilder);
       } catch (DAGOperatorException doe) {
@@ -905,6 +862,12 @@ public class LocalEnvironment extends ExecEnvironment {
         new WatchRequest(sessionId, flowId, true)));
   }
 
+  @Override
+  public void watchFlowRecords(SessionId sessionId, FlowId flowId) throws InterruptedException {
+    mControlQueue.put(new ControlOp(ControlOp.Code.WatchFlow,
+        new WatchRequest(sessionId, flowId, true, true)));
+  }
+
   @Override
   public void unwatchFlow(SessionId sessionId, FlowId flowId) throws InterruptedException {
     mControlQueue.put(new ControlOp(ControlOp.Code.UnwatchFlow,
@@ -33,6 +33,9 @@ public class LocalFlow extends DAG<FlowElementNode> {
   private Configuration mConf;
   private boolean mIsDeployed;
 
+  /** Number of sink FlowElements in the flow that have not yet completed. */
+  private int mOpenSinks;
+
   public LocalFlow(FlowId id) {
     mFlowId = id;
     mRequiresFlume = false;
@@ -56,6 +59,22 @@ public class LocalFlow extends DAG<FlowElementNode> {
     mIsDeployed = deployed;
   }
 
+  /**
+   * Called by the LocalFlowBuilder for each sink FlowElement in the flow.
+   */
+  void addSink() {
+    mOpenSinks++;
+  }
+
+  /**
+   * Called when a sink FlowElement of this flow completes.
+   * @return true if this was the last sink that was still open.
+   */
+  boolean sinkComplete() {
+    mOpenSinks--;
+    return mOpenSinks <= 0;
+  }
+
   /**
    * @return true if Flume is required locally to execute this flow.
    */
@@ -23,6 +23,8 @@ import java.util.Map;
 
 import org.apache.avro.Schema;
 
+import org.apache.hadoop.conf.Configuration;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,14 +37,18 @@ import com.odiago.flumebase.exec.FlowId;
 import com.odiago.flumebase.exec.FlumeNodeElement;
 import com.odiago.flumebase.exec.HashJoinElement;
 import com.odiago.flumebase.exec.InMemStreamSymbol;
+import com.odiago.flumebase.exec.MultiHashJoinElement;
 import com.odiago.flumebase.exec.OutputElement;
+import com.odiago.flumebase.exec.PartitionedAggregationElement;
 import com.odiago.flumebase.exec.ProjectionElement;
 import com.odiago.flumebase.exec.FilterElement;
 import com.odiago.flumebase.exec.StreamSymbol;
 import com.odiago.flumebase.exec.Symbol;
 import com.odiago.flumebase.exec.SymbolTable;
+import com.odiago.flumebase.exec.WatermarkGenerator;
 
 import com.odiago.flumebase.flume.EmbeddedFlumeConfig;
+import com.odiago.flumebase.flume.SharedStreamSources;
 
 import com.odiago.flumebase.parser.EntityTarget;
 import com.odiago.flumebase.parser.Expr;
@@ -56,6 +62,7 @@ import com.odiago.flumebase.plan.DropNode;
 import com.odiago.flumebase.plan.EvaluateExprsNode;
 import com.odiago.flumebase.plan.HashJoinNode;
 import com.odiago.flumebase.plan.MemoryOutputNode;
+import com.odiago.flumebase.plan.MultiJoinNode;
 import com.odiago.flumebase.plan.NamedSourceNode;
 import com.odiago.flumebase.plan.PlanNode;
 import com.odiago.flumebase.plan.ProjectionNode;
@@ -85,18 +92,29 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
   private LocalFlow mLocalFlow;
   private SymbolTable mRootSymbolTable;
   private EmbeddedFlumeConfig mFlumeConfig;
+  private SharedStreamSources mSharedSources;
   private Map<String, MemoryOutputElement> mMemOutputMap;
   private UserSession mSubmitterSession;
 
+  /** Configuration of the flow being built. */
+  private Configuration mConf;
+
   public LocalFlowBuilder(FlowId flowId, SymbolTable rootSymTable,
-      EmbeddedFlumeConfig flumeConfig, Map<String, MemoryOutputElement> memOutputMap,
-      UserSession submitterSession) {
+      EmbeddedFlumeConfig flumeConfig, SharedStreamSources sharedSources,
+      Map<String, MemoryOutputElement> memOutputMap, UserSession submitterSession,
+      Configuration conf) {
     mFlowId = flowId;
     mMemOutputMap = memOutputMap;
     mLocalFlow = new LocalFlow(flowId);
     mRootSymbolTable = rootSymTable;
     mFlumeConfig = flumeConfig;
+    mSharedSources = sharedSources;
     mSubmitterSession = submitterSession;
+    if (null == conf) {
+      mConf = new Configuration();
+    } else {
+      mConf = conf;
+    }
   }
 
   /**
@@ -127,6 +145,51 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
     }
   }
 
+  /**
+   * @return true if the FlowElement for the specified node emits events
+   * from exactly one thread of its own. File and in-memory sources each
+   * run a single generator thread; sources driven by Flume are called from
+   * threads that Flume manages, and make no such promise.
+   */
+  private boolean isSingleProducer(PlanNode node, SymbolTable rootTable) {
+    if (!(node instanceof NamedSourceNode)) {
+      return false;
+    }
+
+    Symbol symbol = rootTable.resolve(((NamedSourceNode) node).getStreamName());
+    if (null == symbol) {
+      return false;
+    }
+
+    symbol = symbol.resolveAliases();
+    if (!(symbol instanceof StreamSymbol)) {
+      return false;
+    }
+
+    switch (((StreamSymbol) symbol).getSourceType()) {
+    case File:
+    case Memory:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  /**
+   * Given a list of FlowElementNodes, register an upstream connection with
+   * each of their FlowElements and return the list of FlowElements.
+   */
+  private List<FlowElement> registerUpstreamOf(List<FlowElementNode> nodes) {
+    List<FlowElement> out = new ArrayList<FlowElement>(nodes.size());
+    for (FlowElementNode node : nodes) {
+      FlowElement elem = node.getFlowElement();
+      elem.registerUpstream();
+      out.add(elem);
+    }
+
+    return out;
+  }
+
   /**
    * Given a PlanNode, produce the FlowElementContext that is appropriate
    * for connecting to all of its downstream components.
@@ -137,15 +200,12 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
     boolean isMultiThreaded = isMultiThreaded(node, rootTable);
     if (childElements.size() == 0) {
       return new SinkFlowElemContext(mFlowId);
-    } else if (childElements.size() == 1 &&
-        (Boolean) node.getAttr(PlanNode.USES_TIMER_ATTR, Boolean.FALSE) == true) {
-      // This node has only one 'official' output, but will instantiate a separate
+    } else if ((Boolean) node.getAttr(PlanNode.USES_TIMER_ATTR, Boolean.FALSE) == true) {
+      // This node has one or more 'official' outputs, but will instantiate a separate
       // FlowElement servicing interrupts from a timer thread. Use a normal connection
-      // to the official output, but use this context to manage a queue into the timer
+      // to the official outputs, but use this context to manage a queue into the timer
       // FlowElement as well.
-      FlowElement childElem = childElements.get(0).getFlowElement();
-      childElem.registerUpstream();
-      return new TimerFlowElemContext(childElem);
+      return new TimerFlowElemContext(registerUpstreamOf(childElements));
     } else if (childElements.size() == 1 && !isMultiThreaded) {
       // Normal direct connection from node to node.
       FlowElement childElem = childElements.get(0).getFlowElement();
@@ -155,11 +215,14 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
       // We should put a buffer between ourselves and the child node.
       FlowElement childElem = childElements.get(0).getFlowElement();
       childElem.registerUpstream();
-      return new MTGeneratorElemContext(childElem);
+      return new MTGeneratorElemContext(childElem, isSingleProducer(node, rootTable));
+    } else if (!isMultiThreaded) {
+      // Fan-out: hand each event to every child in turn.
+      return new BroadcastFlowElemContext(registerUpstreamOf(childElements));
     } else {
-      // TODO(aaron): Create a multi-output context and use here.
-      LOG.error("No local context available for fan-out");
-      return null;
+      // Fan-out through a buffer per child.
+      return new MTBroadcastElemContext(registerUpstreamOf(childElements),
+          isSingleProducer(node, rootTable));
     }
   }
 
@@ -265,44 +328,34 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
       }
 
       StreamSymbol streamSymbol = (StreamSymbol) symbol;
+      WatermarkGenerator watermarks = WatermarkGenerator.create(mConf, streamSymbol.getName());
 
       switch (streamSymbol.getSourceType()) {
       case File:
         String fileName = streamSymbol.getSource();
         newElem = new FileSourceElement(newContext, fileName, streamSymbol.isLocal(),
-            namedInput.getFields(), streamSymbol);
+            namedInput.getFields(), streamSymbol, watermarks);
         break;
       case Source:
         if (!streamSymbol.isLocal()) {
           throw new DAGOperatorException("Do not know how to handle a non-local source yet.");
         }
-        String flumeSource = streamSymbol.getSource();
-        long flowIdNum = mFlowId.getId();
-        String flowSourceId = "flumebase-flow-" + flowIdNum + "-" + streamSymbol.getName();
-        newElem = new LocalFlumeSourceElement(newContext, flowSourceId,
-            mFlumeConfig, flumeSource, (Schema) namedInput.getAttr(PlanNode.OUTPUT_SCHEMA_ATTR),
-            namedInput.getFields(), streamSymbol);
-        if (!streamSymbol.isLocal()) {
-          LOG.info("Created local Flume logical node: " + flowSourceId);
-          LOG.info("You may need to connect upstream Flume elements to this source.");
-        }
+        newElem = new LocalFlumeSourceElement(newContext, mSharedSources,
+            namedInput.getFields(), streamSymbol, watermarks, mConf);
 
         // Mark Flume as required to execute this flow.
         mLocalFlow.setFlumeRequired(true);
         break;
       case Memory:
         newElem = new LocalInMemSourceElement(newContext,
-            namedInput.getFields(), (InMemStreamSymbol) streamSymbol);
+            namedInput.getFields(), (InMemStreamSymbol) streamSymbol, watermarks);
         break;
       case Node:
-        String nodeSourceId = "flumebase-flow-" + mFlowId.getId() + "-" + streamSymbol.getName();
-        newElem = new FlumeNodeElement(newContext, nodeSourceId,
-            mFlumeConfig, streamSymbol.getSource(),
-            (Schema) namedInput.getAttr(PlanNode.OUTPUT_SCHEMA_ATTR),
-            namedInput.getFields(), streamSymbol);
+        newElem = new FlumeNodeElement(newContext, mSharedSources,
+            namedInput.getFields(), streamSymbol, watermarks, mConf);
 
-        LOG.info("Created local Flume receiver context: " + nodeSourceId);
-        LOG.info("This will be connected to upstream Flume node: " + streamSymbol.getSource());
+        LOG.info("Stream " + streamSymbol.getName() + " will be read from upstream Flume node: "
+            + streamSymbol.getSource());
 
         // Mark Flume as required to execute this flow.
         mLocalFlow.setFlumeRequired(true);
@@ -322,7 +375,16 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
           projNode.getOutputFields());
     } else if (node instanceof AggregateNode) {
       AggregateNode aggNode = (AggregateNode) node;
-      newElem = new BucketedAggregationElement(newContext, aggNode);
+      int numPartitions = aggNode.getConf().getInt(
+          PartitionedAggregationElement.NUM_PARTITIONS_KEY,
+          PartitionedAggregationElement.DEFAULT_NUM_PARTITIONS);
+      if (numPartitions > 1 && null != aggNode.getGroupByFields()
+          && !aggNode.getGroupByFields().isEmpty()) {
+        // Split the groups across several threads.
+        newElem = new PartitionedAggregationElement(newContext, aggNode, numPartitions);
+      } else {
+        newElem = new BucketedAggregationElement(newContext, aggNode);
+      }
     } else if (node instanceof EvaluateExprsNode) {
       EvaluateExprsNode evalNode = (EvaluateExprsNode) node;
       Schema outSchema = (Schema) evalNode.getAttr(PlanNode.OUTPUT_SCHEMA_ATTR);
@@ -331,6 +393,9 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
     } else if (node instanceof HashJoinNode) {
       HashJoinNode joinNode = (HashJoinNode) node;
       newElem = new HashJoinElement(newContext, joinNode);
+    } else if (node instanceof MultiJoinNode) {
+      MultiJoinNode joinNode = (MultiJoinNode) node;
+      newElem = new MultiHashJoinElement(newContext, joinNode);
     } else {
       throw new DAGOperatorException("Cannot create FlowElement for PlanNode of type: "
           + node.getClass().getName());
@@ -341,6 +406,9 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
       FlowElementNode elemHolder = new FlowElementNode(newElem);
       mapChildren(node, elemHolder);
       elemHolder.setId(node.getId());
+      if (newContext instanceof SinkFlowElemContext) {
+        mLocalFlow.addSink();
+      }
 
       // Bind the FlowElementNode to the PlanNode.
       node.setAttr(LOCAL_FLOW_ELEM_KEY, elemHolder);
@@ -353,14 +421,17 @@ public class LocalFlowBuilder extends DAG.Operator<PlanNode> {
       if (newElem instanceof BucketedAggregationElement) {
         BucketedAggregationElement bucketElem = (BucketedAggregationElement) newElem;
 
-        FlowElement downstream = getNodeElements(node.getChildren()).get(0).getFlowElement();
-
-        FlowElementContext timeoutContext = new DirectCoupledFlowElemContext(downstream);
+        // The timeout element is now upstream to the primary downstream element(s) of
+        // the BucketedAggregationElement.
+        List<FlowElement> downstream = registerUpstreamOf(getNodeElements(node.getChildren()));
+        FlowElementContext timeoutContext;
+        if (downstream.size() == 1) {
+          timeoutContext = new DirectCoupledFlowElemContext(downstream.get(0));
+        } else {
+          timeoutContext = new BroadcastFlowElemContext(downstream);
+        }
         BucketedAggregationElement.TimeoutEvictionElement timeoutElem =
             bucketElem.getTimeoutElement(timeoutContext);
-        // The timeout element is now upstream to the primary downstream element of the
-        // BucketedAggregationElement.
-        downstream.registerUpstream();
         timeoutElem.registerUpstream(); // BucketedAggEl't is upstream of the timeout elem.
 
         // Add the timeout element to the BucketedAggregationElement's output list.
@@ -0,0 +1,472 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.local;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cloudera.util.Pair;
+
+import com.odiago.flumebase.exec.EventWrapper;
+import com.odiago.flumebase.exec.FlowElement;
+import com.odiago.flumebase.exec.FlowId;
+import com.odiago.flumebase.exec.OutputElement;
+
+import com.odiago.flumebase.util.DAG;
+import com.odiago.flumebase.util.DAGOperatorException;
+
+import com.odiago.flumebase.util.concurrent.Select;
+import com.odiago.flumebase.util.concurrent.Selectable;
+import com.odiago.flumebase.util.concurrent.SelectableQueue;
+import com.odiago.flumebase.util.concurrent.SyncSelectableQueue;
+
+/**
+ * A thread which delivers events to the FlowElements of the flows pinned to it.
+ *
+ * <p>The LocalEnvironment's control thread deploys a flow (opening all of its
+ * FlowElements) and then hands it to exactly one LocalFlowWorker with an
+ * AttachFlow operation. From then on, all takeEvent(), closeUpstream() and
+ * close() calls on that flow's elements happen in this thread. Each worker has
+ * its own Select instance and input queue map, so flows pinned to different
+ * workers never contend with one another.</p>
+ */
+class LocalFlowWorker extends Thread {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      LocalFlowWorker.class.getName());
+
+  /** The flows attached to this worker. */
+  private final Map<FlowId, ActiveFlowData> mFlows;
+
+  /** Mapping from an input queue to the FlowElement it is feeding values to. */
+  private final Map<SelectableQueue<Object>, FlowElement> mInputQueues;
+
+  /** The selector that lets us read from multiple producers */
+  private final Select<Object> mSelect;
+
+  /** Unbounded queue of operations posted to this worker by the control thread. */
+  private final SelectableQueue<Object> mWorkQueue;
+
+  /**
+   * Unbounded queue owned by the control thread; we post FlowComplete
+   * notifications back to it when a flow is removed from this worker.
+   */
+  private final SelectableQueue<Object> mControlReplyQueue;
+
+  /**
+   * Set of queues which should be watched for emptiness; when they transition
+   * to empty, notify the associated downstream element of the upstream element's
+   * closure.
+   */
+  private final Set<SelectableQueue<Object>> mCloseQueues;
+
+  /** Flows whose input queues are not being watched; see setFlowPaused(). */
+  private final Set<FlowId> mPausedFlows;
+
+  /** Max number of events to read from an input queue per wakeup. */
+  private final int mBatchSize;
+
+  /** Buffer that holds a batch of events read from an input queue. */
+  private final List<Object> mBatch;
+
+  public LocalFlowWorker(int workerId, SelectableQueue<Object> controlReplyQueue,
+      int batchSize) {
+    mFlows = new HashMap<FlowId, ActiveFlowData>();
+    mInputQueues = new HashMap<SelectableQueue<Object>, FlowElement>();
+    mSelect = new Select<Object>();
+    mWorkQueue = new SyncSelectableQueue<Object>();
+    mControlReplyQueue = controlReplyQueue;
+    mCloseQueues = new HashSet<SelectableQueue<Object>>();
+    mPausedFlows = new HashSet<FlowId>();
+    mBatchSize = batchSize;
+    mBatch = new ArrayList<Object>(batchSize);
+
+    setName("LocalEnvWorker-" + workerId);
+  }
+
+  /**
+   * Post an operation to this worker. Called by the control thread; never blocks.
+   */
+  void post(LocalEnvironment.ControlOp op) {
+    mWorkQueue.offer(op);
+  }
+
+  /**
+   * Bind all the inter-element queues of a deployed flow to this worker, and
+   * start listening for its completion events.
+   */
+  private void attachFlow(final ActiveFlowData flowData) {
+    try {
+      flowData.getFlow().bfs(new DAG.Operator<FlowElementNode>() {
+        public void process(FlowElementNode elemNode) {
+          LocalContext elemContext = (LocalContext) elemNode.getFlowElement().getContext();
+          List<SelectableQueue<Object>> elemBuffers = elemContext.getDownstreamQueues();
+          if (null != elemBuffers) {
+            List<FlowElement> downstreams = elemContext.getDownstream();
+            // Bind each queue to its downstream element.
+            for (int i = 0; i < elemBuffers.size(); i++) {
+              SelectableQueue<Object> elemBuffer = elemBuffers.get(i);
+              if (null != elemBuffer && !mInputQueues.containsKey(elemBuffer)) {
+                FlowElement downstream = downstreams.get(i);
+                mInputQueues.put(elemBuffer, downstream);
+                mSelect.add(elemBuffer); // And watch this queue for updates.
+              }
+            }
+          }
+        }
+      });
+    } catch (DAGOperatorException doe) {
+      // Shouldn't get here with this operator.
+      LOG.error("Unexpected dag op exn: " + doe);
+    }
+
+    mSelect.add(flowData.getCompletionQueue());
+    mFlows.put(flowData.getFlowId(), flowData);
+  }
+
+  /**
+   * Close all FlowElements in the flow, stop tracking their queues, and tell
+   * the control thread that the flow is gone.
+   */
+  private void detachFlow(FlowId id) {
+    ActiveFlowData flowData = mFlows.remove(id);
+    if (null == flowData) {
+      // Already completed or canceled.
+      LOG.debug("Flow " + id + " is not attached to " + getName());
+      return;
+    }
+
+    LOG.info("Closing flow: " + id);
+    LocalFlow flow = flowData.getFlow();
+    try {
+      flow.rankTraversal(new DAG.Operator<FlowElementNode>() {
+        public void process(FlowElementNode elemNode) {
+          FlowElement flowElem = elemNode.getFlowElement();
+          if (!flowElem.isClosed()) {
+            try {
+              flowElem.close();
+            } catch (IOException ioe) {
+              LOG.error("IOException when closing flow element: " + ioe);
+            } catch (InterruptedException ie) {
+              LOG.error("InterruptedException when closing flow element: " + ie);
+            }
+          }
+
+          // All FlowElements that we see will have LocalContext subclass contexts.
+          // Get the output queue from this, and remove it from the tracking set.
+          LocalContext elemContext = (LocalContext) flowElem.getContext();
+          elemContext.release();
+          List<SelectableQueue<Object>> outQueues = elemContext.getDownstreamQueues();
+          if (null != outQueues) {
+            for (SelectableQueue<Object> outQueue : outQueues) {
+              if (null != outQueue) {
+                mSelect.remove(outQueue);
+                mInputQueues.remove(outQueue);
+                mCloseQueues.remove(outQueue);
+              }
+            }
+          }
+        }
+      });
+    } catch (DAGOperatorException doe) {
+      // Shouldn't get here with this operator.
+      LOG.error("Unexpected dag op exn: " + doe);
+    }
+
+    mSelect.remove(flowData.getCompletionQueue());
+    mPausedFlows.remove(id);
+
+    // Let the control thread notify external threads that this flow is complete.
+    mControlReplyQueue.offer(new LocalEnvironment.ControlOp(
+        LocalEnvironment.ControlOp.Code.FlowComplete, flowData));
+  }
+
+  /**
+   * Stop or resume delivering events from the input queues of a flow. While
+   * a flow is paused, its queues fill up and their producers block; other
+   * flows on this worker are unaffected. Completion events are still
+   * processed.
+   */
+  private void setFlowPaused(FlowId id, final boolean paused) {
+    ActiveFlowData flowData = mFlows.get(id);
+    if (null == flowData) {
+      LOG.debug("Cannot pause or resume flow " + id + ": not attached to " + getName());
+      return;
+    } else if (paused == mPausedFlows.contains(id)) {
+      return; // Already in the requested state.
+    }
+
+    if (paused) {
+      mPausedFlows.add(id);
+    } else {
+      mPausedFlows.remove(id);
+    }
+
+    try {
+      flowData.getFlow().bfs(new DAG.Operator<FlowElementNode>() {
+        public void process(FlowElementNode elemNode) {
+          LocalContext elemContext = (LocalContext) elemNode.getFlowElement().getContext();
+          List<SelectableQueue<Object>> elemBuffers = elemContext.getDownstreamQueues();
+          if (null == elemBuffers) {
+            return;
+          }
+
+          for (SelectableQueue<Object> elemBuffer : elemBuffers) {
+            if (null == elemBuffer || !mInputQueues.containsKey(elemBuffer)) {
+              continue; // Not a queue, or already closed.
+            } else if (paused) {
+              mSelect.remove(elemBuffer);
+            } else {
+              mSelect.add(elemBuffer);
+            }
+          }
+        }
+      });
+    } catch (DAGOperatorException doe) {
+      // Shouldn't get here with this operator.
+      LOG.error("Unexpected dag op exn: " + doe);
+    }
+  }
+
+  /**
+   * The specified queue is empty and its upstream element is closed. Notify
+   * the downstream element of this closure, and remove the queue from the
+   * set of things we track.
+   */
+  private void closeQueue(SelectableQueue<Object> queue, FlowElement flowElem)
+      throws IOException, InterruptedException {
+    flowElem.closeUpstream();
+    mSelect.remove(queue);
+    mInputQueues.remove(queue);
+    mCloseQueues.remove(queue);
+  }
+
+  /**
+   * Update the OutputElement of a flow to use a different output stream
+   * name for the output.
+   */
+  private void setFlowName(final FlowId flowId, final String name) {
+    ActiveFlowData flowData = mFlows.get(flowId);
+    if (null == flowData) {
+      LOG.error("Cannot set flow name for flow id " + flowId + ": no such flow.");
+      return;
+    }
+
+    try {
+      // NOTE - This assumes a single OutputElement per flow; we find it by
+      // reverseBfs because we assume it's at the end. If there are multiple
+      // OutputElements in the flow, we'll get them all trying to open the
+      // same node...
+
+      flowData.getFlow().reverseBfs(new DAG.Operator<FlowElementNode>() {
+        public void process(FlowElementNode node) throws DAGOperatorException {
+          FlowElement flowElem = node.getFlowElement();
+          if (flowElem instanceof OutputElement) {
+            try {
+              ((OutputElement) flowElem).setFlumeTarget(name);
+            } catch (IOException ioe) {
+              throw new DAGOperatorException(ioe);
+            }
+          }
+        }
+      });
+    } catch (DAGOperatorException doe) {
+      LOG.error("Error setting output stream name: " + doe);
+    }
+  }
+
+  /**
+   * A FlowElement has notified us of its completion. Propagate the closure
+   * to its downstream elements, or retire the flow if it was the sink.
+   */
+  private void elementComplete(LocalCompletionEvent completionEvent)
+      throws IOException, InterruptedException {
+    LocalContext context = completionEvent.getContext();
+
+    List<SelectableQueue<Object>> downstreamQueues = context.getDownstreamQueues();
+    List<FlowElement> downstreamElements = context.getDownstream();
+    if (null == downstreamElements || downstreamElements.size() == 0) {
+      // We have received close() notification from a last element in a flow.
+      // A flow that fans out may have several of these; once they have all
+      // closed, remove the entire flow from service.
+      SinkFlowElemContext sinkContext = (SinkFlowElemContext) context;
+      FlowId id = sinkContext.getFlowId();
+      ActiveFlowData flowData = mFlows.get(id);
+      if (null != flowData && !flowData.getFlow().sinkComplete()) {
+        return; // Wait for the other sinks to finish.
+      }
+
+      LOG.info("Processing complete for flow: " + id);
+      // If the flow is closing naturally, cancel it. If it's
+      // already canceled (detached), this does nothing.
+      detachFlow(id);
+    } else if (null == downstreamQueues || downstreamQueues.size() == 0) {
+      // Has elements, but no queues. Notify the downstream
+      // FlowElement(s) to close too.
+      for (FlowElement downstream : downstreamElements) {
+        downstream.closeUpstream();
+      }
+    } else {
+      // May have downstream queues. For each downstream element, close it
+      // immediately if it has no queue, or an empty queue. Otherwise,
+      // watch these queues for emptiness.
+      assert downstreamQueues.size() == downstreamElements.size();
+      for (int i = 0; i < downstreamElements.size(); i++) {
+        SelectableQueue<Object> downstreamQueue = downstreamQueues.get(i);
+        FlowElement downstreamElement = downstreamElements.get(i);
+        if (downstreamQueue == null) {
+          // Close directly.
+          downstreamElement.closeUpstream();
+        } else if (downstreamQueue.size() == 0) {
+          // Queue's dry, close it down.
+          closeQueue(downstreamQueue, downstreamElement);
+        } else {
+          // Watch this queue for completion.
+          mCloseQueues.add(downstreamQueue);
+        }
+      }
+    }
+  }
+
+  /**
+   * Read up to mBatchSize events from an input queue and hand them to the
+   * FlowElement it feeds.
+   */
+  private void deliverEvents(SelectableQueue<Object> queue, FlowElement processor) {
+    mBatch.clear();
+    synchronized (queue) {
+      queue.drainTo(mBatch, mBatchSize);
+    }
+
+    if (mBatch.size() > 0) {
+      try {
+        // Input queues only ever carry EventWrappers.
+        processor.takeEvents((List<EventWrapper>) (List) mBatch);
+      } catch (IOException ioe) {
+        // TODO(aaron): Encountering an exception mid-flow should cancel the flow.
+        LOG.error("Flow element encountered IOException: " + ioe);
+      } catch (InterruptedException ie) {
+        LOG.error("Flow element encountered InterruptedException: " + ie);
+      } finally {
+        mBatch.clear(); // Don't hold references to delivered events.
+      }
+    }
+
+    if (queue.size() == 0 && mCloseQueues.contains(queue)) {
+      // We just transitioned this FE's input queue to empty, and it was closed
+      // upstream. Notify the downstream element of this closure.
+      try {
+        closeQueue(queue, processor);
+      } catch (IOException ioe) {
+        LOG.error("IOException closing flow element: " + ioe);
+      } catch (InterruptedException ie) {
+        LOG.error("InterruptedException closing flow element: " + ie);
+      }
+    }
+  }
+
+  @Override
+  public void run() {
+    mSelect.add(mWorkQueue); // Listen to operations from the control thread.
+    while (true) {
+      Selectable<Object> nextQueue = null;
+      try {
+        nextQueue = mSelect.join();
+      } catch (InterruptedException ie) {
+        // This can happen to notify us we're done processing, etc.
+      }
+
+      if (null == nextQueue) {
+        continue;
+      }
+
+      FlowElement processor = mInputQueues.get(nextQueue);
+      if (null != processor) {
+        // This is a data queue; deliver a batch of its events to the consumer.
+        deliverEvents((SelectableQueue<Object>) nextQueue, processor);
+        continue;
+      }
+
+      Object nextAction = null;
+      synchronized (nextQueue) {
+        if (nextQueue.canRead()) {
+          try {
+            nextAction = nextQueue.read();
+          } catch (InterruptedException ie) {
+            // This can happen if we're closing shop fast. We'll just loop around.
+          }
+        }
+      }
+
+      if (null == nextAction) {
+        continue;
+      } else if (nextAction instanceof LocalEnvironment.ControlOp) {
+        LocalEnvironment.ControlOp nextOp = (LocalEnvironment.ControlOp) nextAction;
+
+        switch (nextOp.getOpCode()) {
+        case AttachFlow:
+          attachFlow((ActiveFlowData) nextOp.getDatum());
+          break;
+        case CancelFlow:
+          detachFlow((FlowId) nextOp.getDatum());
+          break;
+        case SetFlowName:
+          Pair<FlowId, String> flowNameData = (Pair<FlowId, String>) nextOp.getDatum();
+          setFlowName(flowNameData.getLeft(), flowNameData.getRight());
+          break;
+        case PauseFlow:
+          setFlowPaused((FlowId) nextOp.getDatum(), true);
+          break;
+        case ResumeFlow:
+          setFlowPaused((FlowId) nextOp.getDatum(), false);
+          break;
+        case ElementComplete:
+          // Remove a specific FlowElement from service; it's done.
+          try {
+            elementComplete((LocalCompletionEvent) nextOp.getDatum());
+          } catch (IOException ioe) {
+            LOG.error("IOException closing flow element: " + ioe);
+          } catch (InterruptedException ie) {
+            LOG.error("Interruption closing downstream element: " + ie);
+          }
+          break;
+        case ShutdownThread:
+          // The control thread has already canceled all our flows.
+          if (mFlows.size() > 0) {
+            LOG.warn(getName() + " shutting down with " + mFlows.size() + " attached flows");
+          }
+          return;
+        default:
+          LOG.error("Worker cannot handle control operation " + nextOp.getOpCode());
+          break;
+        }
+      } else {
+        LOG.error("Do not know what to do with queue element " + nextAction
+            + " of class " + nextAction.getClass().getName());
+      }
+    }
+  }
+}
@@ -14,14 +14,13 @@
  * License for the specific language governing permissions and limitations
  * under the License.
  */
-
 package com.odiago.flumebase.exec.local;
 
 import java.io.IOException;
 
 import java.util.List;
 
-import org.apache.avro.Schema;
+import org.apache.hadoop.conf.Configuration;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,33 +29,27 @@ import com.odiago.flumebase.exec.EventWrapper;
 import com.odiago.flumebase.exec.FlowElementContext;
 import com.odiago.flumebase.exec.FlowElementImpl;
 import com.odiago.flumebase.exec.StreamSymbol;
+import com.odiago.flumebase.exec.WatermarkGenerator;
 
-import com.odiago.flumebase.flume.EmbeddedFlumeConfig;
-import com.odiago.flumebase.flume.EmbeddedNode;
+import com.odiago.flumebase.flume.SharedStreamSource;
+import com.odiago.flumebase.flume.SharedStreamSources;
 
 import com.odiago.flumebase.parser.TypedField;
 
 /**
  * FlowElement providing source data from a local Flume source.
+ * The Flume logical node hosting the source is shared with all other
+ * flows reading the same stream.
  */
 public class LocalFlumeSourceElement extends FlowElementImpl {
   private static final Logger LOG = LoggerFactory.getLogger(
       LocalFlumeSourceElement.class.getName());
 
-  /** Flume's name for this logical node. */
-  private String mFlowSourceId;
-
-  /** The manager of the embedded Flume node instances. */
-  private EmbeddedFlumeConfig mFlumeConfig;
-
-  /** The Flume logical node resources associated with this FlowElement. */
-  private EmbeddedNode mEmbeddedFlumeNode;
+  /** Registry of shared Flume sources in the environment. */
+  private SharedStreamSources mSharedSources;
 
-  /**
-   * The Avro record schema for event bodies emitted by this node into our
-   * internal pipeline.
-   */
-  private Schema mOutputSchema;
+  /** The shared source we subscribed to; null if not open. */
+  private SharedStreamSource mSharedSource;
 
   /** The fields of each record emitted by this node, and their types. */ 
   private List<TypedField> mFieldTypes;
@@ -64,36 +57,44 @@ public class LocalFlumeSourceElement extends FlowElementImpl {
   /** Symbol for the stream we are reading from. */
   private StreamSymbol mStreamSym;
 
-  /**
-   * The EventSource that we couple to our internal sink for
-   * this logical node.
-   */
-  private String mDataSource;
+  /** Assigns watermarks to the events we receive; null if watermarks are disabled. */
+  private WatermarkGenerator mWatermarks;
+
+  /** The context we subscribed to the shared source with. */
+  private FlowElementContext mSourceContext;
+
+  /** Configuration of the flow, which sets how the shared source buffers for us. */
+  private Configuration mConf;
 
-  public LocalFlumeSourceElement(FlowElementContext context, String flowSourceId,
-      EmbeddedFlumeConfig flumeConfig, String dataSource, Schema outputSchema,
-      List<TypedField> fieldTypes, StreamSymbol streamSym) {
+  public LocalFlumeSourceElement(FlowElementContext context,
+      SharedStreamSources sharedSources, List<TypedField> fieldTypes,
+      StreamSymbol streamSym, WatermarkGenerator watermarks, Configuration conf) {
     super(context);
 
-    mFlowSourceId = flowSourceId;
-    mFlumeConfig = flumeConfig;
-    mDataSource = dataSource;
-    mOutputSchema = outputSchema;
+    mSharedSources = sharedSources;
     mFieldTypes = fieldTypes;
     mStreamSym = streamSym;
+    mWatermarks = watermarks;
+    mConf = conf;
   }
 
   @Override
   public void open() throws IOException, InterruptedException {
     super.open();
-    mEmbeddedFlumeNode = new EmbeddedNode(mFlowSourceId, getContext(), mFlumeConfig,
-        mDataSource, mOutputSchema, mFieldTypes, mStreamSym);
-    mEmbeddedFlumeNode.open();
+    if (null == mWatermarks) {
+      mSourceContext = getContext();
+    } else {
+      mSourceContext = mWatermarks.wrap(getContext());
+    }
+    mSharedSource = mSharedSources.subscribe(mStreamSym, mSourceContext, mFieldTypes, mConf);
   }
 
   @Override
   public void close() throws IOException, InterruptedException {
-    mEmbeddedFlumeNode.close();
+    if (null != mSharedSource) {
+      mSharedSource.unsubscribe(mSourceContext);
+      mSharedSource = null;
+    }
     super.close();
   }
 
@@ -105,7 +106,7 @@ public class LocalFlumeSourceElement extends FlowElementImpl {
 
   @Override
   public String toString() {
-    return "FlumeSource[mFlowSourceId=\"" + mFlowSourceId + "\", "
-        + "mDataSource=\"" + mDataSource + "\"]";
+    return "FlumeSource[mStream=\"" + mStreamSym.getName() + "\", "
+        + "mDataSource=\"" + mStreamSym.getSource() + "\"]";
   }
 }
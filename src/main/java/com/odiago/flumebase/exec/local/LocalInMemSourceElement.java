@@ -35,6 +35,7 @@ import com.odiago.flumebase.exec.FlowElementContext;
 import com.odiago.flumebase.exec.FlowElementImpl;
 import com.odiago.flumebase.exec.InMemStreamSymbol;
 import com.odiago.flumebase.exec.ParsingEventWrapper;
+import com.odiago.flumebase.exec.WatermarkGenerator;
 
 import com.odiago.flumebase.parser.TypedField;
 
@@ -52,6 +53,9 @@ public class LocalInMemSourceElement extends FlowElementImpl {
   /** Fields of the input event. */ 
   private List<String> mFieldNames;
 
+  /** Assigns watermarks to the events we emit; null if watermarks are disabled. */
+  private WatermarkGenerator mWatermarks;
+
   /** Additional thread that actually drives event generation. */
   private class EventGenThread extends Thread {
     public void run() {
@@ -66,7 +70,11 @@ public class LocalInMemSourceElement extends FlowElementImpl {
           EventWrapper wrapper = new ParsingEventWrapper(mStreamSymbol.getEventParser(),
               mFieldNames);
           wrapper.reset(rawEvent);
-          context.emit(wrapper);
+          if (null == mWatermarks) {
+            context.emit(wrapper);
+          } else {
+            mWatermarks.emit(wrapper, context);
+          }
         }
       } catch (IOException ioe) {
         LOG.error("IOException emitting event: " + ioe);
@@ -87,10 +95,11 @@ public class LocalInMemSourceElement extends FlowElementImpl {
   private EventGenThread mEventGenThread;
 
   public LocalInMemSourceElement(FlowElementContext context,
-      List<TypedField> fields, InMemStreamSymbol streamSymbol) {
+      List<TypedField> fields, InMemStreamSymbol streamSymbol, WatermarkGenerator watermarks) {
 
     super(context);
     mStreamSymbol = streamSymbol;
+    mWatermarks = watermarks;
     mFieldNames = new ArrayList<String>();
     for (TypedField field : fields) {
       mFieldNames.add(field.getAvroName());
@@ -0,0 +1,100 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.odiago.flumebase.exec.local;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.odiago.flumebase.exec.EventWrapper;
+import com.odiago.flumebase.exec.FlowElement;
+
+import com.odiago.flumebase.util.concurrent.ArrayBoundedSelectableQueue;
+import com.odiago.flumebase.util.concurrent.SelectableQueue;
+import com.odiago.flumebase.util.concurrent.SpscRingSelectableQueue;
+
+/**
+ * Context for a FlowElement which has several downstream FEs on the
+ * same physical host, but in a different thread. An event emitted by the
+ * upstream FE is pushed into a bounded buffer for each downstream FE.
+ *
+ * <p>Each buffer holds a reference to the same EventWrapper instance; the
+ * event is not copied. All the buffers of a flow are drained by the same
+ * worker thread, so downstream FEs never observe the event concurrently.
+ * As with MTGeneratorElemContext, the buffers are lock-free
+ * single-producer/single-consumer queues if the upstream FE promises to
+ * emit from only one thread at a time.</p>
+ */
+public class MTBroadcastElemContext extends LocalContext {
+
+  /** The downstream elements where we send events. */
+  private final List<FlowElement> mDownstream;
+
+  /** One queue per element of mDownstream, in the same order. */
+  private List<SelectableQueue<Object>> mDownstreamQueues;
+
+  /** True if emit() is only ever called by a single thread at a time. */
+  private boolean mSingleProducer;
+
+  public MTBroadcastElemContext(List<FlowElement> downstream, boolean singleProducer) {
+    mDownstream = new ArrayList<FlowElement>(downstream);
+    mSingleProducer = singleProducer;
+    mDownstreamQueues = Collections.emptyList();
+  }
+
+  /**
+   * Create a queue to communicate with each of our downstream FlowElements.
+   */
+  @Override
+  public void createDownstreamQueues() {
+    mDownstreamQueues = new ArrayList<SelectableQueue<Object>>(mDownstream.size());
+    for (int i = 0; i < mDownstream.size(); i++) {
+      if (mSingleProducer) {
+        mDownstreamQueues.add(
+            new SpscRingSelectableQueue<Object>(LocalEnvironment.MAX_QUEUE_LEN));
+      } else {
+        mDownstreamQueues.add(
+            new ArrayBoundedSelectableQueue<Object>(LocalEnvironment.MAX_QUEUE_LEN));
+      }
+    }
+  }
+
+  @Override
+  public List<SelectableQueue<Object>> getDownstreamQueues() {
+    return mDownstreamQueues;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void emit(EventWrapper e) throws IOException, InterruptedException {
+    for (int i = 0; i < mDownstreamQueues.size(); i++) {
+      mDownstreamQueues.get(i).put(e);
+    }
+  }
+
+  /**
+   * Return the downstream FlowElements. Used by the LocalEnvironment.
+   */
+  @Override
+  List<FlowElement> getDownstream() {
+    return mDownstream;
+  }
+}
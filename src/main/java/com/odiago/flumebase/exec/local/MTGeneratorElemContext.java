@@ -27,12 +27,17 @@ import com.odiago.flumebase.exec.FlowElement;
 
 import com.odiago.flumebase.util.concurrent.ArrayBoundedSelectableQueue;
 import com.odiago.flumebase.util.concurrent.SelectableQueue;
+import com.odiago.flumebase.util.concurrent.SpscRingSelectableQueue;
 
 /**
  * Context for a FlowElement which has a single downstream FE on the
  * same physical host, but in a differen thread. An event emitted by the
  * upstream FE is pushed into a bounded buffer specific to the downstream
  * FE.
+ *
+ * <p>If the upstream FE promises to emit from only one thread at a time,
+ * the buffer is a lock-free single-producer/single-consumer queue;
+ * otherwise it is a lock-based queue which tolerates concurrent producers.</p>
  */
 public class MTGeneratorElemContext extends LocalContext {
 
@@ -41,8 +46,16 @@ public class MTGeneratorElemContext extends LocalContext {
 
   private SelectableQueue<Object> mDownstreamQueue;
 
+  /** True if emit() is only ever called by a single thread at a time. */
+  private boolean mSingleProducer;
+
   public MTGeneratorElemContext(FlowElement downstream) {
+    this(downstream, false);
+  }
+
+  public MTGeneratorElemContext(FlowElement downstream, boolean singleProducer) {
     mDownstream = downstream;
+    mSingleProducer = singleProducer;
   }
 
   /**
@@ -50,8 +63,12 @@ public class MTGeneratorElemContext extends LocalContext {
    */
   @Override
   public void createDownstreamQueues() {
-    mDownstreamQueue = 
-        new ArrayBoundedSelectableQueue<Object>(LocalEnvironment.MAX_QUEUE_LEN);
+    if (mSingleProducer) {
+      mDownstreamQueue = new SpscRingSelectableQueue<Object>(LocalEnvironment.MAX_QUEUE_LEN);
+    } else {
+      mDownstreamQueue =
+          new ArrayBoundedSelectableQueue<Object>(LocalEnvironment.MAX_QUEUE_LEN);
+    }
   }
 
   @Override
@@ -19,8 +19,14 @@ package com.odiago.flumebase.exec.local;
 
 import java.io.IOException;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.odiago.flumebase.exec.EventWrapper;
 import com.odiago.flumebase.exec.FlowElement;
@@ -29,22 +35,30 @@ import com.odiago.flumebase.util.concurrent.ArrayBoundedSelectableQueue;
 import com.odiago.flumebase.util.concurrent.SelectableQueue;
 
 /**
- * Context for a FlowElement which has a single downstream FE on the
- * same physical host, in the same thread, but which also uses a separate
- * internal thread which drives timer interrupts into a second 'timer' downstream FE.
+ * Context for a FlowElement which has one or more downstream FEs on the
+ * same physical host, in the same thread, but which also schedules timeouts
+ * with the shared TimerWheel, which drives timer interrupts into a second
+ * 'timer' downstream FE.
  * 
  * <p>This FlowElementContext implementation is unusual in that it differentiates
  * between the kinds of downstream flow elements it has. The 'main' downstream flow
- * element processes normal events, and is direct-coupled to our output. The
+ * elements process normal events, and are direct-coupled to our output. The
  * 'timer' downstream flow element will only process events generated by our timer
  * thread, which may contain arbitrary data. The timer element is not actually
  * recognized by our emit() method; we provide a separate method to retrieve the
  * timer queue for manual use.</p>
+ *
+ * <p>Timeouts which have not been delivered when the flow is torn down are
+ * canceled, and any that are already running drop their events, so the
+ * timer wheel does not retry deliveries into a queue nobody reads.</p>
  */
 public class TimerFlowElemContext extends LocalContext {
 
-  /** The main downstream element where we sent events. */
-  private FlowElement mDownstream;
+  /** Number of undelivered timeouts at which canceled ones are first pruned. */
+  private static final int MIN_PRUNE_LEN = 64;
+
+  /** The main downstream elements where we send events. */
+  private final FlowElement[] mDownstream;
 
   /** The separate timer element we drive via a queue. */
   private FlowElement mTimerElement;
@@ -52,8 +66,35 @@ public class TimerFlowElemContext extends LocalContext {
   /** Event queue driving the timer element. null if mTimerElement is null. */
   private SelectableQueue<Object> mTimerQueue;
 
+  /** The timer wheel with which timeouts are scheduled. */
+  private final TimerWheel mTimerWheel;
+
+  /**
+   * Timeouts which have been scheduled and not yet delivered. Timeouts
+   * canceled by the FlowElement are pruned lazily, by scheduleTimeout().
+   */
+  private final Set<TimerWheel.Timeout> mPendingTimeouts;
+
+  /** Number of entries in mPendingTimeouts at which they are next pruned. */
+  private int mPruneLen;
+
+  /** Set to true when the flow is torn down. */
+  private volatile boolean mIsReleased;
+
   public TimerFlowElemContext(FlowElement downstream) {
-    mDownstream = downstream;
+    this(Collections.singletonList(downstream));
+  }
+
+  public TimerFlowElemContext(List<FlowElement> downstream) {
+    this(downstream, TimerWheel.getShared());
+  }
+
+  public TimerFlowElemContext(List<FlowElement> downstream, TimerWheel timerWheel) {
+    mDownstream = downstream.toArray(new FlowElement[downstream.size()]);
+    mTimerWheel = timerWheel;
+    mPendingTimeouts = Collections.newSetFromMap(
+        new ConcurrentHashMap<TimerWheel.Timeout, Boolean>());
+    mPruneLen = MIN_PRUNE_LEN;
   }
 
   /**
@@ -69,7 +110,9 @@ public class TimerFlowElemContext extends LocalContext {
   @Override
   public List<SelectableQueue<Object>> getDownstreamQueues() {
     List<SelectableQueue<Object>> out = new LinkedList<SelectableQueue<Object>>();
-    out.add(null);
+    for (int i = 0; i < mDownstream.length; i++) {
+      out.add(null);
+    }
     if (null != mTimerQueue) {
       out.add(mTimerQueue);
     }
@@ -81,14 +124,90 @@ public class TimerFlowElemContext extends LocalContext {
    */
   @Override
   public void emit(EventWrapper e) throws IOException, InterruptedException {
-    // NOTE: we emit to the main downstream element. We don't emit to the timer element.
-    mDownstream.takeEvent(e);
+    // NOTE: we emit to the main downstream elements. We don't emit to the timer element.
+    for (FlowElement downstream : mDownstream) {
+      downstream.deliver(e);
+    }
   }
 
   public SelectableQueue<Object> getTimerQueue() {
     return mTimerQueue;
   }
 
+  /**
+   * Deliver 'timerEvent' to the timer element at local time 'deadline'
+   * (in milliseconds). Called by the thread executing the FlowElement. If
+   * the timer queue is full at that time, delivery is retried on each tick
+   * of the timer wheel until it succeeds, is canceled, or the flow is torn
+   * down.
+   * @return a handle which may be used to cancel the delivery.
+   */
+  public TimerWheel.Timeout scheduleTimeout(long deadline, EventWrapper timerEvent) {
+    if (mPendingTimeouts.size() >= mPruneLen) {
+      Iterator<TimerWheel.Timeout> it = mPendingTimeouts.iterator();
+      while (it.hasNext()) {
+        if (it.next().isCanceled()) {
+          it.remove();
+        }
+      }
+      mPruneLen = Math.max(MIN_PRUNE_LEN, 2 * mPendingTimeouts.size());
+    }
+
+    TimerDelivery delivery = new TimerDelivery(mTimerQueue, timerEvent);
+    TimerWheel.Timeout timeout = mTimerWheel.schedule(deadline, delivery);
+    delivery.mTimeout = timeout;
+    mPendingTimeouts.add(timeout);
+    if (delivery.mIsDone) {
+      // Delivered before we could record it.
+      mPendingTimeouts.remove(timeout);
+    }
+    return timeout;
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>Cancels every timeout which has not been delivered.</p>
+   */
+  @Override
+  void release() {
+    mIsReleased = true;
+    for (TimerWheel.Timeout timeout : mPendingTimeouts) {
+      timeout.cancel();
+    }
+    mPendingTimeouts.clear();
+  }
+
+  /** Timer wheel callback which delivers an event into the timer queue. */
+  private class TimerDelivery implements TimerWheel.Callback {
+    private final SelectableQueue<Object> mQueue;
+    private final EventWrapper mEvent;
+
+    /** The timeout which runs this callback; null until it is scheduled. */
+    private volatile TimerWheel.Timeout mTimeout;
+
+    /** Set to true once the event is delivered or dropped. */
+    private volatile boolean mIsDone;
+
+    TimerDelivery(SelectableQueue<Object> queue, EventWrapper event) {
+      mQueue = queue;
+      mEvent = event;
+    }
+
+    public boolean expire() {
+      // Once the flow is torn down, nothing reads the queue; drop the event.
+      if (!mIsReleased && !mQueue.offer(mEvent)) {
+        return false; // Queue is full; retry on the next tick.
+      }
+
+      mIsDone = true;
+      TimerWheel.Timeout timeout = mTimeout;
+      if (null != timeout) {
+        mPendingTimeouts.remove(timeout);
+      }
+      return true;
+    }
+  }
+
   public FlowElement getTimerElement() {
     return mTimerElement;
   }
@@ -102,8 +221,8 @@ public class TimerFlowElemContext extends LocalContext {
    */
   @Override
   List<FlowElement> getDownstream() {
-    List<FlowElement> out = new LinkedList<FlowElement>();
-    out.add(mDownstream);
+    List<FlowElement> out = new ArrayList<FlowElement>(mDownstream.length + 1);
+    Collections.addAll(out, mDownstream);
     if (null != mTimerElement) {
       out.add(mTimerElement);
     }
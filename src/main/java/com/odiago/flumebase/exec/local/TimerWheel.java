@@ -0,0 +1,320 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.odiago.flumebase.exec.local;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hashed timer wheel: a single thread which runs callbacks at (roughly)
+ * requested times, shared by every timed FlowElement in the process.
+ *
+ * <p>Time is divided into ticks of a fixed length. A timeout due in tick t
+ * is stored in slot (t % wheel length), with a count of the full turns of
+ * the wheel remaining before it is due. Each tick, the thread visits a
+ * single slot. Timeouts may thus be scheduled and canceled in constant time,
+ * and fire up to one tick late.</p>
+ *
+ * <p>Scheduling a timeout never blocks, takes no lock, and does not wake the
+ * timer thread, except when the wheel was idle. Callbacks run in the timer
+ * thread, and must not block; a callback which cannot complete its work
+ * (e.g., because the queue it delivers into is full) asks to be retried on
+ * the next tick instead.</p>
+ */
+public class TimerWheel {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      TimerWheel.class.getName());
+
+  /** Length of a tick of the shared wheel, in milliseconds. */
+  public static final long DEFAULT_TICK_MILLIS = 10;
+
+  /** Number of slots in the shared wheel. */
+  public static final int DEFAULT_WHEEL_LEN = 512;
+
+  /** The wheel shared by all flows in this process. */
+  private static TimerWheel mSharedWheel;
+
+  /**
+   * Callback run by the timer thread when a timeout is due.
+   */
+  public interface Callback {
+    /**
+     * Handle the timeout.
+     * @return true if the timeout has been handled, or false if it should be
+     * retried on the next tick.
+     */
+    boolean expire();
+  }
+
+  /** A scheduled callback. */
+  public static final class Timeout {
+    private final long mDeadline;
+    private final Callback mCallback;
+    private volatile boolean mCanceled;
+
+    /** Turns of the wheel remaining before this is due. Used by the timer thread. */
+    private long mRounds;
+
+    private Timeout(long deadline, Callback callback) {
+      mDeadline = deadline;
+      mCallback = callback;
+    }
+
+    /** @return the local time at which this timeout is due. */
+    public long getDeadline() {
+      return mDeadline;
+    }
+
+    /**
+     * Prevent the callback from running, if it has not run yet. The timeout
+     * is discarded when the timer thread next visits it.
+     */
+    public void cancel() {
+      mCanceled = true;
+    }
+
+    public boolean isCanceled() {
+      return mCanceled;
+    }
+  }
+
+  private final long mTickMillis;
+
+  /** Local time at which tick 0 began. */
+  private final long mStartTime;
+
+  /** Timeouts due in each slot's ticks. Used only by the timer thread. */
+  private final List<Timeout>[] mSlots;
+
+  /** Timeouts scheduled since the timer thread last visited the wheel. */
+  private final ConcurrentLinkedQueue<Timeout> mNewTimeouts;
+
+  /** Number of timeouts scheduled which have not fired or been discarded. */
+  private final AtomicInteger mNumPending;
+
+  /** Number of timeouts in mSlots. Used only by the timer thread. */
+  private int mNumInSlots;
+
+  /** The last tick that the timer thread has processed. */
+  private long mLastTick;
+
+  /** Lock on which the timer thread waits while the wheel is idle. */
+  private final Object mIdleLock;
+
+  private final TimerThread mThread;
+
+  private boolean mIsStarted;
+
+  private volatile boolean mIsStopped;
+
+  @SuppressWarnings("unchecked")
+  public TimerWheel(long tickMillis, int wheelLen) {
+    assert tickMillis > 0;
+    assert wheelLen > 0;
+    mTickMillis = tickMillis;
+    mStartTime = System.currentTimeMillis();
+    mSlots = new List[wheelLen];
+    for (int i = 0; i < wheelLen; i++) {
+      mSlots[i] = new ArrayList<Timeout>();
+    }
+    mNewTimeouts = new ConcurrentLinkedQueue<Timeout>();
+    mNumPending = new AtomicInteger(0);
+    mLastTick = -1;
+    mIdleLock = new Object();
+    mThread = new TimerThread();
+  }
+
+  /**
+   * @return the timer wheel shared by all flows in this process. Its thread
+   * is started when the first timeout is scheduled, and sleeps whenever no
+   * timeouts are pending.
+   */
+  public static synchronized TimerWheel getShared() {
+    if (null == mSharedWheel) {
+      mSharedWheel = new TimerWheel(DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_LEN);
+    }
+    return mSharedWheel;
+  }
+
+  /**
+   * Schedule a callback to run at the specified local time (in milliseconds).
+   * May be called from any thread.
+   * @return a handle which may be used to cancel the callback.
+   */
+  public Timeout schedule(long deadline, Callback callback) {
+    Timeout timeout = new Timeout(deadline, callback);
+    mNewTimeouts.add(timeout);
+    if (mNumPending.getAndIncrement() == 0) {
+      // The timer thread may be idle; wake it up.
+      synchronized (mIdleLock) {
+        if (!mIsStarted) {
+          mIsStarted = true;
+          mThread.start();
+        }
+        mIdleLock.notify();
+      }
+    }
+    return timeout;
+  }
+
+  /** @return the number of timeouts which have not fired or been discarded. */
+  public int getNumPending() {
+    return mNumPending.get();
+  }
+
+  /** Stop the timer thread. Pending callbacks will not run. */
+  public void shutdown() throws InterruptedException {
+    mIsStopped = true;
+    synchronized (mIdleLock) {
+      if (!mIsStarted) {
+        return;
+      }
+      mIdleLock.notify();
+    }
+    mThread.interrupt();
+    mThread.join();
+  }
+
+  /** @return the tick in which 'time' falls. */
+  private long getTick(long time) {
+    return (time - mStartTime) / mTickMillis;
+  }
+
+  /** Add a timeout to the slot for the tick it is due in. */
+  private void place(Timeout timeout, long dueTick, long curTick) {
+    if (dueTick < curTick) {
+      dueTick = curTick;
+    }
+    timeout.mRounds = (dueTick - curTick) / mSlots.length;
+    mSlots[(int) (dueTick % mSlots.length)].add(timeout);
+    mNumInSlots++;
+  }
+
+  /** Move newly-scheduled timeouts into the wheel. */
+  private void transferNewTimeouts(long curTick) {
+    Timeout timeout;
+    while ((timeout = mNewTimeouts.poll()) != null) {
+      if (timeout.mCanceled) {
+        mNumPending.decrementAndGet();
+        continue;
+      }
+
+      // Round the deadline up, so no callback runs early.
+      long dueTick = getTick(timeout.mDeadline + mTickMillis - 1);
+      place(timeout, dueTick, curTick);
+    }
+  }
+
+  /** Run the callbacks due in the specified tick. */
+  private void processTick(long tick) {
+    List<Timeout> slot = mSlots[(int) (tick % mSlots.length)];
+    int numKept = 0;
+    int len = slot.size();
+    for (int i = 0; i < len; i++) {
+      Timeout timeout = slot.get(i);
+      boolean done;
+      if (timeout.mCanceled) {
+        done = true;
+      } else if (timeout.mRounds > 0) {
+        timeout.mRounds--;
+        done = false;
+      } else {
+        try {
+          done = timeout.mCallback.expire();
+        } catch (RuntimeException re) {
+          LOG.error("Timer callback threw exception: " + re);
+          done = true;
+        }
+
+        if (!done) {
+          // Try again next tick.
+          mSlots[(int) ((tick + 1) % mSlots.length)].add(timeout);
+          continue;
+        }
+      }
+
+      if (done) {
+        mNumInSlots--;
+        mNumPending.decrementAndGet();
+      } else {
+        slot.set(numKept++, timeout);
+      }
+    }
+
+    // Remove the timeouts we've handled; keep those due in later turns.
+    // Retried timeouts added to this slot (only possible with a
+    // one-slot wheel) follow the ones we visited.
+    slot.subList(numKept, len).clear();
+  }
+
+  /** Thread which advances the wheel. */
+  private class TimerThread extends Thread {
+    public TimerThread() {
+      super("TimerWheel");
+      setDaemon(true);
+    }
+
+    public void run() {
+      while (!mIsStopped) {
+        synchronized (mIdleLock) {
+          while (mNumPending.get() == 0 && !mIsStopped) {
+            try {
+              mIdleLock.wait();
+            } catch (InterruptedException ie) {
+              // Check again.
+            }
+          }
+        }
+
+        if (mIsStopped) {
+          break;
+        }
+
+        long curTick = getTick(System.currentTimeMillis());
+        if (0 == mNumInSlots) {
+          // Nothing in the wheel; skip over the ticks we were idle for.
+          mLastTick = Math.max(mLastTick, curTick - 1);
+        }
+
+        for (long tick = mLastTick + 1; tick <= curTick; tick++) {
+          if (tick == curTick) {
+            transferNewTimeouts(curTick);
+          }
+          processTick(tick);
+        }
+        mLastTick = Math.max(mLastTick, curTick);
+
+        long nextTickTime = mStartTime + (mLastTick + 1) * mTickMillis;
+        long napTime = nextTickTime - System.currentTimeMillis();
+        if (napTime > 0) {
+          try {
+            Thread.sleep(napTime);
+          } catch (InterruptedException ie) {
+            // Only used to stop the thread.
+          }
+        }
+      }
+    }
+  }
+}
@@ -161,7 +161,7 @@ public class EmbeddedFlumeConfig {
   }
 
   /** Starts Flume services. */
-  public void start() throws IOException {
+  public synchronized void start() throws IOException {
     if (mIsRunning) {
       LOG.warn("Superfluous call to start(): already running.");
       return;
@@ -201,12 +201,12 @@ public class EmbeddedFlumeConfig {
   }
 
   /** @return true if the local Flume environment has been started. */
-  public boolean isRunning() {
+  public synchronized boolean isRunning() {
     return mIsRunning;
   }
 
   /** Submit a command to the Flume master and wait for it to finish executing. */
-  private void submitCommand(FlumeMasterCommandThrift cmd) throws TException {
+  private synchronized void submitCommand(FlumeMasterCommandThrift cmd) throws TException {
     mMasterClient.submit(cmd);
   }
 
@@ -296,7 +296,9 @@ public class EmbeddedFlumeConfig {
    * and have an RtsqlMultiSink in their output sink(s).
    */
   public void addLocalMultiSink(String nodeName) {
-    mLocalMultiSinks.add(nodeName);
+    synchronized (mForeignNodeConnections) {
+      mLocalMultiSinks.add(nodeName);
+    }
   }
 
   /**
@@ -304,7 +306,9 @@ public class EmbeddedFlumeConfig {
    * RtsqlMultiSink output. This does not decommission the node itself.
    */
   public void dropLocalMultiSink(String nodeName) {
-    mLocalMultiSinks.remove(nodeName);
+    synchronized (mForeignNodeConnections) {
+      mLocalMultiSinks.remove(nodeName);
+    }
   }
 
   /**
@@ -344,7 +348,7 @@ public class EmbeddedFlumeConfig {
   /**
    * Stop our Flume nodes.
    */
-  public void stop() {
+  public synchronized void stop() {
     LOG.info("Disconnecting from foreign resources");
     for (Map.Entry<String, ForeignNodeConn>  entry : mForeignNodeConnections.entrySet()) {
       String foreignName = entry.getKey();
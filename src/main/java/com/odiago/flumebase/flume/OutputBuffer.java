@@ -0,0 +1,323 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.odiago.flumebase.flume;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.ArrayDeque;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cloudera.flume.core.Event;
+import com.cloudera.flume.core.EventImpl;
+
+/**
+ * Bounded buffer of events emitted by a flow, waiting to be delivered to
+ * Flume by an RtsqlSource.
+ *
+ * <p>The flow puts events in with put(), which never blocks the calling
+ * thread. Events are held in a fixed-size ring; what happens when the ring
+ * is full depends on the OverflowPolicy:</p>
+ * <ul>
+ *   <li>Block: the event is accepted, and the FlowControl is asked to stop
+ *   delivering input to this flow. Events already in flight in the flow are
+ *   still accepted, so the ring may be briefly overcommitted. Input resumes
+ *   when the Flume side has drained the buffer to half its capacity.</li>
+ *   <li>DropOldest: the oldest buffered event is discarded.</li>
+ *   <li>Spill: the event is appended to a local file. Spilled events are
+ *   read back into the ring, in order, as the Flume side drains it. If
+ *   the spill file reaches its size limit, new events are dropped.</li>
+ * </ul>
+ *
+ * <p>The Flume side removes events with take(), which blocks until an event
+ * is available. A single thread may call put() and a single thread take().</p>
+ */
+public class OutputBuffer {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      OutputBuffer.class.getName());
+
+  /** What to do with an event that arrives when the buffer is full. */
+  public enum OverflowPolicy {
+    Block,
+    DropOldest,
+    Spill,
+  };
+
+  /** Callbacks that suspend and resume delivery of input to the producing flow. */
+  public interface FlowControl {
+    void pause();
+    void resume();
+  }
+
+  /** Ring storage for buffered events. */
+  private final Event[] mRing;
+
+  /** Index of the oldest event in mRing. */
+  private int mHead;
+
+  /** Number of events in mRing. */
+  private int mSize;
+
+  private final OverflowPolicy mPolicy;
+
+  /** Flow control used by the Block policy. */
+  private final FlowControl mFlowControl;
+
+  /**
+   * Events accepted under the Block policy after the ring filled; these
+   * are newer than every event in mRing.
+   */
+  private final ArrayDeque<Event> mOverflow;
+
+  /** True if we have asked the flow to pause. */
+  private boolean mPaused;
+
+  /** The file that events are spilled to under the Spill policy. */
+  private final File mSpillFile;
+
+  /** Max size of the spill file in bytes. */
+  private final long mMaxSpillBytes;
+
+  private DataOutputStream mSpillOut;
+  private DataInputStream mSpillIn;
+
+  /** Bytes written to the spill file. */
+  private long mSpillBytes;
+
+  /** Number of events written to, and read back from, the spill file. */
+  private long mNumSpilled;
+  private long mNumUnspilled;
+
+  /** Number of events discarded by this buffer. */
+  private long mNumDropped;
+
+  /**
+   * Create an OutputBuffer.
+   * @param capacity the number of events held in memory.
+   * @param policy the overflow policy.
+   * @param flowControl used to pause the flow under the Block policy; may be
+   * null for the other policies.
+   * @param spillFile the file to spill to under the Spill policy; may be null
+   * for the other policies. It is created when first needed, and deleted
+   * whenever it has been fully read back.
+   * @param maxSpillBytes the max size of the spill file.
+   */
+  public OutputBuffer(int capacity, OverflowPolicy policy, FlowControl flowControl,
+      File spillFile, long maxSpillBytes) {
+    assert capacity > 0;
+    mRing = new Event[capacity];
+    mPolicy = policy;
+    mFlowControl = flowControl;
+    mOverflow = new ArrayDeque<Event>();
+    mSpillFile = spillFile;
+    mMaxSpillBytes = maxSpillBytes;
+  }
+
+  /** Add an event to the tail of the ring, which must not be full. */
+  private void addToRing(Event e) {
+    mRing[(mHead + mSize) % mRing.length] = e;
+    mSize++;
+  }
+
+  /** Remove and return the event at the head of the ring, which must not be empty. */
+  private Event removeFromRing() {
+    Event e = mRing[mHead];
+    mRing[mHead] = null;
+    mHead = (mHead + 1) % mRing.length;
+    mSize--;
+    return e;
+  }
+
+  /**
+   * Add an event to the buffer. Does not block.
+   */
+  public synchronized void put(Event e) throws IOException {
+    boolean wasEmpty = mSize == 0;
+    if (mSize < mRing.length && mOverflow.isEmpty() && mNumSpilled == mNumUnspilled) {
+      addToRing(e);
+    } else {
+      switch (mPolicy) {
+      case Block:
+        mOverflow.add(e);
+        if (!mPaused) {
+          mPaused = true;
+          mFlowControl.pause();
+        }
+        break;
+      case DropOldest:
+        removeFromRing();
+        mNumDropped++;
+        addToRing(e);
+        break;
+      case Spill:
+        spill(e);
+        break;
+      default:
+        throw new IOException("Unknown overflow policy: " + mPolicy);
+      }
+    }
+
+    if (wasEmpty) {
+      notifyAll();
+    }
+  }
+
+  /**
+   * Remove the oldest event from the buffer, blocking until one is available.
+   */
+  public synchronized Event take() throws IOException, InterruptedException {
+    while (mSize == 0) {
+      wait();
+    }
+
+    Event e = removeFromRing();
+
+    // Refill the ring with the next-oldest events.
+    if (!mOverflow.isEmpty()) {
+      addToRing(mOverflow.remove());
+    } else if (mNumUnspilled < mNumSpilled) {
+      addToRing(unspill());
+    }
+
+    if (mPaused && mSize + mOverflow.size() <= mRing.length / 2) {
+      mPaused = false;
+      mFlowControl.resume();
+    }
+
+    return e;
+  }
+
+  /** Append an event to the spill file, or drop it if the file is full. */
+  private void spill(Event e) throws IOException {
+    byte[] body = e.getBody();
+    String host = e.getHost();
+    if (null == host) {
+      host = "";
+    }
+
+    // Timestamp, nanos, priority, host and body; the host length is only an
+    // estimate of its encoded size.
+    long recordBytes = 8 + 8 + 4 + 2 + host.length() + 4 + body.length;
+    if (mSpillBytes + recordBytes > mMaxSpillBytes) {
+      if (mNumDropped++ == 0) {
+        LOG.warn("Output spill file " + mSpillFile + " is full; dropping new events");
+      }
+      return;
+    }
+
+    if (null == mSpillOut) {
+      LOG.debug("Spilling output events to " + mSpillFile);
+      mSpillOut = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(mSpillFile)));
+    }
+
+    mSpillOut.writeLong(e.getTimestamp());
+    mSpillOut.writeLong(e.getNanos());
+    mSpillOut.writeInt(e.getPriority().ordinal());
+    mSpillOut.writeUTF(host);
+    mSpillOut.writeInt(body.length);
+    mSpillOut.write(body);
+    mSpillBytes += recordBytes;
+    mNumSpilled++;
+  }
+
+  /** Read the oldest event back from the spill file. */
+  private Event unspill() throws IOException {
+    // Make sure every record we have counted has reached the file.
+    mSpillOut.flush();
+    if (null == mSpillIn) {
+      mSpillIn = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(mSpillFile)));
+    }
+
+    long timestamp = mSpillIn.readLong();
+    long nanos = mSpillIn.readLong();
+    Event.Priority priority = Event.Priority.values()[mSpillIn.readInt()];
+    String host = mSpillIn.readUTF();
+    byte[] body = new byte[mSpillIn.readInt()];
+    mSpillIn.readFully(body);
+    mNumUnspilled++;
+
+    if (mNumUnspilled == mNumSpilled) {
+      // Everything spilled has been read back; start over with an empty file.
+      closeSpillFile();
+    }
+
+    return new EventImpl(body, timestamp, priority, nanos, host);
+  }
+
+  /** Close and delete the spill file. */
+  private void closeSpillFile() throws IOException {
+    try {
+      if (null != mSpillOut) {
+        mSpillOut.close();
+      }
+      if (null != mSpillIn) {
+        mSpillIn.close();
+      }
+    } finally {
+      mSpillOut = null;
+      mSpillIn = null;
+      mSpillBytes = 0;
+      mNumSpilled = 0;
+      mNumUnspilled = 0;
+      if (null != mSpillFile && mSpillFile.exists() && !mSpillFile.delete()) {
+        LOG.warn("Could not delete output spill file " + mSpillFile);
+      }
+    }
+  }
+
+  /**
+   * Discard all buffered events and release the spill file.
+   */
+  public synchronized void close() throws IOException {
+    for (int i = 0; i < mRing.length; i++) {
+      mRing[i] = null;
+    }
+    mHead = 0;
+    mSize = 0;
+    mOverflow.clear();
+    closeSpillFile();
+    if (mPaused) {
+      mPaused = false;
+      mFlowControl.resume();
+    }
+  }
+
+  /** @return the number of events held in memory or in the spill file. */
+  public synchronized long size() {
+    return mSize + mOverflow.size() + mNumSpilled - mNumUnspilled;
+  }
+
+  /** @return the number of events this buffer has discarded. */
+  public synchronized long getNumDropped() {
+    return mNumDropped;
+  }
+
+  /** @return true if this buffer has asked its flow to pause. */
+  public synchronized boolean isPaused() {
+    return mPaused;
+  }
+}
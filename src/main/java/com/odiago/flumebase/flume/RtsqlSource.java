@@ -19,8 +19,6 @@ package com.odiago.flumebase.flume;
 
 import java.io.IOException;
 
-import java.util.concurrent.BlockingQueue;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -45,7 +43,7 @@ public class RtsqlSource extends EventSource.Base {
   private SourceContext mSourceContext;
 
   /** Queue of events being delivered by flumebase that we should emit as a source. */
-  private BlockingQueue<Event> mEventQueue;
+  private OutputBuffer mEventQueue;
 
 
   public RtsqlSource(String contextName) {
@@ -0,0 +1,402 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.odiago.flumebase.flume;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.avro.Schema;
+
+import org.apache.hadoop.conf.Configuration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.odiago.flumebase.exec.EventWrapper;
+import com.odiago.flumebase.exec.FlowElementContext;
+import com.odiago.flumebase.exec.SharedEventWrapper;
+import com.odiago.flumebase.exec.StreamSymbol;
+
+import com.odiago.flumebase.parser.SQLStatement;
+import com.odiago.flumebase.parser.TypedField;
+
+/**
+ * A single Flume binding for a stream, shared by all the flows which read
+ * from that stream at the same time.
+ *
+ * <p>The Flume connection is opened when the first flow subscribes, and
+ * closed when the last one unsubscribes. Each event is parsed once, on the
+ * Flume thread that delivers it, and the same parsed values are then
+ * queued for every subscribed flow. Each subscriber has its own bounded
+ * buffer, drained into the flow by a thread of its own, so a slow flow
+ * does not hold up the others while its buffer has room. When a buffer is
+ * full, the subscriber's overflow policy applies: under "block" (the
+ * default) the Flume thread waits for room, so no events are lost but all
+ * flows wait on the slow one; under "drop" the event is discarded for that
+ * subscriber only. If the Flume source ends, all current subscribers are
+ * notified of completion once their buffers drain, and the next flow to
+ * read from the stream opens a new connection.</p>
+ *
+ * <p>Instances are created and tracked by SharedStreamSources.</p>
+ */
+public class SharedStreamSource {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      SharedStreamSource.class.getName());
+
+  /**
+   * Configuration key for the number of events that may wait to be delivered
+   * to a flow reading from a shared stream.
+   */
+  public static final String BUFFER_LEN_KEY = "flumebase.flume.subscriber.buffer.len";
+  public static final int DEFAULT_BUFFER_LEN = 1000;
+
+  /**
+   * Configuration key for what to do with an event when a flow's buffer is
+   * full: "block" to wait for room, or "drop" to discard the event for that
+   * flow.
+   */
+  public static final String OVERFLOW_POLICY_KEY = "flumebase.flume.subscriber.overflow";
+  public static final String DEFAULT_OVERFLOW_POLICY = "block";
+
+  /** A warning is logged each time a subscriber drops this many more events. */
+  private static final long DROP_LOG_INTERVAL = 10000;
+
+  /** Wakes a subscriber's thread after the source completes. */
+  private static final Object COMPLETE = new Object();
+
+  /** A flow reading from this stream, and the thread that delivers to it. */
+  private class Subscriber extends Thread {
+    private final FlowElementContext mContext;
+
+    /** The subscriber's names for the stream's fields, in stream order. */
+    private final List<String> mFieldNames;
+
+    /** Events waiting to be delivered to the flow. */
+    private final BlockingQueue<Object> mQueue;
+
+    /** If true, events which do not fit in mQueue are discarded. */
+    private final boolean mDropOnOverflow;
+
+    /** Number of events discarded; only used by the Flume thread. */
+    private long mNumDropped;
+
+    /** Set when the source completes; mQueue then holds its last events. */
+    private volatile boolean mComplete;
+
+    /** Set when the flow unsubscribes. */
+    private volatile boolean mStopped;
+
+    public Subscriber(FlowElementContext context, List<TypedField> fields,
+        Configuration conf) throws IOException {
+      super("SharedStreamSource-" + mSourceId + "-" + mNextSubscriberId++);
+      setDaemon(true);
+      mContext = context;
+      mFieldNames = new ArrayList<String>(fields.size());
+      for (TypedField field : fields) {
+        mFieldNames.add(field.getAvroName());
+      }
+
+      mQueue = new ArrayBlockingQueue<Object>(
+          Math.max(1, conf.getInt(BUFFER_LEN_KEY, DEFAULT_BUFFER_LEN)));
+      String policy = conf.get(OVERFLOW_POLICY_KEY, DEFAULT_OVERFLOW_POLICY);
+      if ("drop".equals(policy)) {
+        mDropOnOverflow = true;
+      } else if ("block".equals(policy)) {
+        mDropOnOverflow = false;
+      } else {
+        throw new IOException("Unknown " + OVERFLOW_POLICY_KEY + ": " + policy);
+      }
+    }
+
+    /** Queue an event for delivery. Called by the Flume thread. */
+    void offer(EventWrapper e) throws InterruptedException {
+      if (!mDropOnOverflow) {
+        mQueue.put(e);
+      } else if (!mQueue.offer(e) && mNumDropped++ % DROP_LOG_INTERVAL == 0) {
+        LOG.warn("Buffer for flow reading shared stream " + mStreamSym.getName()
+            + " is full; " + mNumDropped + " events dropped so far");
+      }
+    }
+
+    /**
+     * Notify the flow of completion after the queued events. Called by the
+     * Flume thread, after the last call to offer().
+     */
+    void complete() {
+      mComplete = true;
+      mQueue.offer(COMPLETE); // If the queue is full, the thread isn't waiting.
+    }
+
+    /** Stop delivering events to the flow, and discard any still queued. */
+    void stopDelivery() {
+      mStopped = true;
+      interrupt();
+    }
+
+    @Override
+    public void run() {
+      while (!mStopped) {
+        // Once mComplete is seen, every event is already in the queue.
+        boolean complete = mComplete;
+        try {
+          Object msg = mQueue.poll();
+          if (null == msg) {
+            if (complete) {
+              mStopped = true;
+              mContext.notifyCompletion();
+              continue;
+            }
+            msg = mQueue.take();
+          }
+
+          if (COMPLETE != msg) {
+            mContext.emit((EventWrapper) msg);
+          }
+        } catch (InterruptedException ie) {
+          continue; // Only stopDelivery() interrupts this thread.
+        } catch (IOException ioe) {
+          LOG.error("Error delivering event from shared stream " + mStreamSym.getName()
+              + ": " + ioe);
+        }
+      }
+    }
+  }
+
+  /**
+   * The context that Flume's RtsqlSink delivers into. Parses each event
+   * once and hands the result to all subscribers.
+   */
+  private class IngestContext extends FlowElementContext {
+    @Override
+    public void emit(EventWrapper e) throws IOException, InterruptedException {
+      Object[] values = new Object[mFields.size()];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = e.getField(mFields.get(i));
+      }
+
+      for (Subscriber subscriber : mSubscribers) {
+        subscriber.offer(new SharedEventWrapper(e.getEvent(), values,
+            subscriber.mFieldNames));
+      }
+    }
+
+    @Override
+    public void notifyCompletion() throws IOException, InterruptedException {
+      LOG.debug("Flume source for shared stream " + mSourceId + " is complete");
+      // Lock as unsubscribe() does. Flows which subscribe from now on get a
+      // new source; the connection is still closed when the last of the
+      // current subscribers leaves.
+      synchronized (mOwner) {
+        synchronized (SharedStreamSource.this) {
+          mIsOpen = false;
+          mOwner.remove(SharedStreamSource.this);
+        }
+      }
+
+      for (Subscriber subscriber : mSubscribers) {
+        subscriber.complete();
+      }
+    }
+  }
+
+  /** The registry which tracks this instance. */
+  private final SharedStreamSources mOwner;
+
+  /** Flume's name for the logical node or local sink we open. */
+  private final String mSourceId;
+
+  /** Manager of the embedded Flume instance. */
+  private final EmbeddedFlumeConfig mFlumeConfig;
+
+  /** Symbol for the stream we are reading from. */
+  private final StreamSymbol mStreamSym;
+
+  /** The stream's fields, in the order they are parsed. */
+  private final List<TypedField> mFields;
+
+  /** Flows reading from this stream. */
+  private final List<Subscriber> mSubscribers;
+
+  /** The logical node hosting the Flume source, for local Source streams. */
+  private EmbeddedNode mEmbeddedNode;
+
+  /** True if the Flume connection is open and delivering events. */
+  private boolean mIsOpen;
+
+  /** True if the Flume connection has been opened and not yet closed. */
+  private boolean mNeedsClose;
+
+  /** Used to give each subscriber's thread a distinct name. */
+  private int mNextSubscriberId;
+
+  SharedStreamSource(SharedStreamSources owner, String sourceId,
+      EmbeddedFlumeConfig flumeConfig, StreamSymbol streamSym) {
+    mOwner = owner;
+    mSourceId = sourceId;
+    mFlumeConfig = flumeConfig;
+    mStreamSym = streamSym;
+    mFields = new ArrayList<TypedField>();
+    List<String> fieldNames = new ArrayList<String>();
+    for (TypedField field : streamSym.getFields()) {
+      // Flows read each distinct field name once; see LiteralSource.
+      if (!fieldNames.contains(field.getAvroName())) {
+        fieldNames.add(field.getAvroName());
+        mFields.add(field);
+      }
+    }
+    mSubscribers = new CopyOnWriteArrayList<Subscriber>();
+  }
+
+  /** @return the stream symbol this source reads. */
+  public StreamSymbol getStreamSymbol() {
+    return mStreamSym;
+  }
+
+  /** @return the number of flows currently reading from this source. */
+  public int getNumSubscribers() {
+    return mSubscribers.size();
+  }
+
+  /**
+   * Start delivering events from the stream to the specified context.
+   * @param context the context of the source FlowElement of the subscribing flow.
+   * @param fields the fields that the flow reads from the stream, in the
+   * order they are defined by the stream.
+   * @param conf the configuration of the subscribing flow, which sets the
+   * size of its buffer and its overflow policy.
+   */
+  public synchronized void subscribe(FlowElementContext context, List<TypedField> fields,
+      Configuration conf) throws IOException {
+    if (fields.size() != mFields.size()) {
+      throw new IOException("Flow reads " + fields.size() + " fields from stream "
+          + mStreamSym.getName() + ", which has " + mFields.size());
+    }
+
+    Subscriber subscriber = new Subscriber(context, fields, conf);
+    subscriber.start();
+    mSubscribers.add(subscriber);
+    if (!mIsOpen) {
+      try {
+        open();
+      } catch (IOException ioe) {
+        mSubscribers.remove(subscriber);
+        subscriber.stopDelivery();
+        throw ioe;
+      }
+    }
+  }
+
+  /**
+   * Stop delivering events to the specified context. Closes the Flume
+   * connection if this was the last subscriber.
+   */
+  public void unsubscribe(FlowElementContext context) throws IOException {
+    boolean shouldClose = false;
+    Subscriber removed = null;
+    // Lock the registry first, as SharedStreamSources.subscribe() does, so that
+    // no new subscriber can find this source once we decide to close it.
+    synchronized (mOwner) {
+      synchronized (this) {
+        for (Subscriber subscriber : mSubscribers) {
+          if (subscriber.mContext == context) {
+            mSubscribers.remove(subscriber);
+            subscriber.stopDelivery();
+            removed = subscriber;
+            break;
+          }
+        }
+
+        if (mSubscribers.isEmpty() && mNeedsClose) {
+          mIsOpen = false;
+          mNeedsClose = false;
+          shouldClose = true;
+          mOwner.remove(this);
+        }
+      }
+    }
+
+    if (null != removed && removed != Thread.currentThread()) {
+      // Don't let the flow receive events once it has unsubscribed.
+      try {
+        removed.join();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    if (shouldClose) {
+      // Don't hold any locks while Flume shuts down the sink; it will
+      // call back into IngestContext.notifyCompletion().
+      close();
+    }
+  }
+
+  /** Open the Flume connection for the stream. */
+  private void open() throws IOException {
+    LOG.info("Opening shared Flume source " + mSourceId + " for stream "
+        + mStreamSym.getName());
+    Schema schema = SQLStatement.createFieldSchema(mFields);
+    IngestContext ingestContext = new IngestContext();
+    switch (mStreamSym.getSourceType()) {
+    case Source:
+      mEmbeddedNode = new EmbeddedNode(mSourceId, ingestContext, mFlumeConfig,
+          mStreamSym.getSource(), schema, mFields, mStreamSym);
+      mEmbeddedNode.open();
+      break;
+    case Node:
+      SinkContextBindings.get().bindContext(mSourceId,
+          new SinkContext(ingestContext, schema, mFields, mStreamSym));
+      mFlumeConfig.addFlowToForeignNode(mStreamSym.getSource(), mSourceId);
+      break;
+    default:
+      throw new IOException("Stream " + mStreamSym.getName() + " of type "
+          + mStreamSym.getSourceType() + " is not read through Flume");
+    }
+
+    mIsOpen = true;
+    mNeedsClose = true;
+  }
+
+  /** Close the Flume connection for the stream. */
+  private void close() throws IOException {
+    LOG.info("Closing shared Flume source " + mSourceId);
+    switch (mStreamSym.getSourceType()) {
+    case Source:
+      mEmbeddedNode.close();
+      mEmbeddedNode = null;
+      break;
+    case Node:
+      mFlumeConfig.cancelForeignConn(mStreamSym.getSource(), mSourceId);
+      SinkContextBindings.get().dropContext(mSourceId);
+      break;
+    default:
+      break;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "SharedStreamSource[mSourceId=\"" + mSourceId + "\", subscribers="
+        + mSubscribers.size() + "]";
+  }
+}
@@ -0,0 +1,110 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.odiago.flumebase.flume;
+
+import java.io.IOException;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+
+import com.odiago.flumebase.exec.FlowElementContext;
+import com.odiago.flumebase.exec.StreamSymbol;
+
+import com.odiago.flumebase.parser.TypedField;
+
+/**
+ * Registry of the SharedStreamSource instances open in an execution
+ * environment. Flows that read the same Flume-backed stream at the same
+ * time subscribe to the same SharedStreamSource, so the stream is
+ * ingested and parsed once no matter how many flows read it.
+ *
+ * <p>Sources are identified by the stream name, type and Flume source, so
+ * a stream that is dropped and recreated with a different source while
+ * older flows still read it gets a new SharedStreamSource.</p>
+ */
+public class SharedStreamSources {
+
+  /** Manager of the embedded Flume instance. */
+  private final EmbeddedFlumeConfig mFlumeConfig;
+
+  /** The open sources, by their key. */
+  private final Map<String, SharedStreamSource> mSources;
+
+  /**
+   * Counter used to give each SharedStreamSource a distinct Flume name,
+   * since a new source for a stream may open before Flume has finished
+   * tearing down the previous one.
+   */
+  private long mNextSourceId;
+
+  public SharedStreamSources(EmbeddedFlumeConfig flumeConfig) {
+    mFlumeConfig = flumeConfig;
+    mSources = new HashMap<String, SharedStreamSource>();
+  }
+
+  /** @return the key identifying the source for the specified stream. */
+  private static String getKey(StreamSymbol streamSym) {
+    return streamSym.getName() + "\0" + streamSym.getSourceType() + "\0"
+        + streamSym.getSource();
+  }
+
+  /**
+   * Subscribe the specified flow element context to events from the stream,
+   * opening a Flume connection for the stream if no other flow is reading it.
+   * @param conf the configuration of the subscribing flow.
+   * @return the SharedStreamSource to unsubscribe from when the flow is done.
+   */
+  public synchronized SharedStreamSource subscribe(StreamSymbol streamSym, FlowElementContext context,
+      List<TypedField> fields, Configuration conf) throws IOException {
+    String key = getKey(streamSym);
+    SharedStreamSource source = mSources.get(key);
+    if (null == source) {
+      String sourceId = "flumebase-stream-" + streamSym.getName() + "-" + mNextSourceId++;
+      source = new SharedStreamSource(this, sourceId, mFlumeConfig, streamSym);
+      mSources.put(key, source);
+    }
+
+    try {
+      source.subscribe(context, fields, conf);
+    } catch (IOException ioe) {
+      if (source.getNumSubscribers() == 0) {
+        mSources.remove(key);
+      }
+      throw ioe;
+    }
+    return source;
+  }
+
+  /**
+   * Stop tracking a source; called by the source when it closes or its
+   * Flume connection ends.
+   */
+  synchronized void remove(SharedStreamSource source) {
+    String key = getKey(source.getStreamSymbol());
+    if (mSources.get(key) == source) {
+      mSources.remove(key);
+    }
+  }
+
+  /** @return the number of shared sources currently open. */
+  public synchronized int size() {
+    return mSources.size();
+  }
+}
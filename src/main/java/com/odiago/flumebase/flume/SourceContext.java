@@ -17,22 +17,18 @@
 
 package com.odiago.flumebase.flume;
 
-import java.util.concurrent.BlockingQueue;
-
-import com.cloudera.flume.core.Event;
-
 /** Container for all the state an RtsqlSource needs to lazily initialize. */
 public class SourceContext {
   /** Name associated with this source context. */
   private final String mContextName;
 
   /**
-   * Queue of events that will be populated by flumebase; these should be
+   * Buffer of events that will be populated by flumebase; these should be
    * broadcast to Flume via the associated RtsqlSource.
    */
-  private final BlockingQueue<Event> mEventQueue;
+  private final OutputBuffer mEventQueue;
 
-  public SourceContext(String contextName, BlockingQueue<Event> eventQueue) {
+  public SourceContext(String contextName, OutputBuffer eventQueue) {
     mContextName = contextName;
     mEventQueue = eventQueue;
   }
@@ -41,7 +37,7 @@ public class SourceContext {
     return mContextName;
   }
 
-  public BlockingQueue<Event> getEventQueue() {
+  public OutputBuffer getEventQueue() {
     return mEventQueue;
   }
 }
@@ -0,0 +1,166 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.io;
+
+import java.nio.charset.Charset;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Utility methods for parsing values directly out of a range of a byte
+ * array holding ASCII or UTF-8 text, without first decoding the bytes
+ * into characters. These accept the same inputs as the corresponding
+ * methods of CharBufferUtils.
+ */
+public class ByteArrayUtils {
+
+  private static final Logger LOG = LoggerFactory.getLogger(
+      ByteArrayUtils.class.getName());
+
+  public static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final byte[] TRUE_BYTES = "true".getBytes(UTF8);
+  private static final byte[] FALSE_BYTES = "false".getBytes(UTF8);
+
+  private ByteArrayUtils() { }
+
+  /**
+   * @return true if bytes[start..end) holds exactly the same bytes as 'match'.
+   */
+  public static boolean rangeEquals(byte[] bytes, int start, int end, byte[] match) {
+    if (end - start != match.length) {
+      return false;
+    }
+
+    for (int i = 0; i < match.length; i++) {
+      if (bytes[start + i] != match[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Parse bytes[start..end) into a bool. Only the case-sensitive values
+   * "true" and "false" are recongized; others result in a ColumnParseException.
+   */
+  public static boolean parseBool(byte[] bytes, int start, int end)
+      throws ColumnParseException {
+    if (rangeEquals(bytes, start, end, TRUE_BYTES)) {
+      return true;
+    } else if (rangeEquals(bytes, start, end, FALSE_BYTES)) {
+      return false;
+    } else {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Could not parse as boolean: " + parseString(bytes, start, end));
+      }
+      throw new ColumnParseException("Invalid boolean");
+    }
+  }
+
+  /**
+   * Parses bytes[start..end) into an integer in base 10.
+   */
+  public static int parseInt(byte[] bytes, int start, int end) throws ColumnParseException {
+    long result = parseLong(bytes, start, end);
+    // TODO: Detect over/underflow and signal exception?
+    return (int) result;
+  }
+
+  /**
+   * Parses bytes[start..end) into a long in base 10.
+   */
+  public static long parseLong(byte[] bytes, int start, int end) throws ColumnParseException {
+    if (0 == end - start) {
+      // The empty string can not be parsed as an integer.
+      throw new ColumnParseException("No value provided");
+    }
+
+    int pos = start;
+    boolean isNegative = false;
+    if (bytes[pos] == '-') {
+      isNegative = true;
+      pos++;
+      if (pos == end) {
+        // "-" is not an integer we accept.
+        throw new ColumnParseException("No integer part provided");
+      }
+    }
+
+    long result = 0L;
+    for ( ; pos < end; pos++) {
+      int digitVal = bytes[pos] - '0';
+      if (digitVal < 0 || digitVal > 9) {
+        throw new ColumnParseException("Invalid character in number");
+      }
+
+      // Build the value as a negative, to use the larger "half" of the
+      // integer range.
+      result = result * 10 - digitVal;
+      // TODO: Detect over/underflow and signal exception?
+    }
+
+    return isNegative ? result : -result;
+  }
+
+  /**
+   * Parses bytes[start..end) into a floating-point value.
+   */
+  public static float parseFloat(byte[] bytes, int start, int end)
+      throws ColumnParseException {
+    try {
+      return Float.parseFloat(parseAscii(bytes, start, end));
+    } catch (NumberFormatException nfe) {
+      throw new ColumnParseException(nfe);
+    }
+  }
+
+  /**
+   * Parses bytes[start..end) into a double-precision floating-point value.
+   */
+  public static double parseDouble(byte[] bytes, int start, int end)
+      throws ColumnParseException {
+    try {
+      return Double.parseDouble(parseAscii(bytes, start, end));
+    } catch (NumberFormatException nfe) {
+      throw new ColumnParseException(nfe);
+    }
+  }
+
+  /**
+   * Decodes the UTF-8 text in bytes[start..end) into a String.
+   */
+  public static String parseString(byte[] bytes, int start, int end) {
+    return new String(bytes, start, end - start, UTF8);
+  }
+
+  /**
+   * Converts bytes[start..end) into a String one byte per character. Only
+   * used for numeric text, which is always ASCII; any other byte will be
+   * rejected by the number parser anyway.
+   */
+  private static String parseAscii(byte[] bytes, int start, int end) {
+    char[] chars = new char[end - start];
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = (char) (bytes[start + i] & 0xff);
+    }
+    return new String(chars);
+  }
+}
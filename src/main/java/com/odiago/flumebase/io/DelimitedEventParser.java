@@ -17,13 +17,8 @@
 
 package com.odiago.flumebase.io;
 
-import java.nio.CharBuffer;
-
-import java.util.ArrayList;
 import java.util.Map;
 
-import org.apache.avro.util.Utf8;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,6 +33,12 @@ import com.odiago.flumebase.lang.Type;
  * EventParser implementation that uses a delimiter character in between fields.
  * The delimiter character cannot appear in the fields themselves;
  * this does not support any enclosed- or escaped-by characters.
+ *
+ * <p>The event body is scanned as raw UTF-8 bytes; it is never decoded
+ * into characters as a whole. The delimiter is matched by its UTF-8 encoding,
+ * which cannot occur inside the encoding of any other character. Numeric and
+ * boolean columns are parsed straight from the bytes; a String is only
+ * created when a STRING column is read.</p>
  */
 public class DelimitedEventParser extends EventParser {
 
@@ -52,38 +53,51 @@ public class DelimitedEventParser extends EventParser {
   public static final String NULL_STR_PARAM = "null.sequence";
   public static final String DEFAULT_NULL_STR = "\\N";
 
+  /** Initial size of the per-column arrays; they grow as needed. */
+  private static final int INITIAL_COLUMNS = 8;
+
   /** The event we're processing. */
   private Event mEvent;
 
-  /** A UTF-8 wrapper around the event's bytes. */
-  private Utf8 mAsUtf8;
-
-  /** A char array representation converted from the event's bytes. */
-  private char [] mAsCharacters;
+  /** The event's body. */
+  private byte[] mBytes;
 
-  /** The current cursor index into mAsCharacters. */
+  /** The current cursor index into mBytes. */
   private int mIndex;
 
   /** The delimiter character we're using. */
   private char mDelimiter;
 
+  /** The UTF-8 encoding of mDelimiter. */
+  private byte[] mDelimBytes;
+
   /** An escape sequence that specifies that the current field is a null string. */
   private String mNullStr;
 
-  /** Index of the field we will walk across next. */ 
+  /** The UTF-8 encoding of mNullStr. */
+  private byte[] mNullBytes;
+
+  /** Index of the field we will walk across next. */
   private int mCurField;
 
-  /** CharBuffers wrapping the text of each column. */
-  private ArrayList<CharBuffer> mColTexts;
+  /**
+   * Offsets into mBytes of the start of each field, and the end (exclusive)
+   * of each field. Only the first mCurField entries are valid.
+   */
+  private int[] mFieldStarts;
+  private int[] mFieldEnds;
 
   /** The reified instances of the columns in their final types. A null
-   * here may mean 'uncached', or true null, if mColumnNulls[i] is true. */
-  private ArrayList<Object> mColumnValues;
+   * here may mean 'uncached', or true null, if mColumnParsed[i] is true. */
+  private Object[] mColumnValues;
 
-  /** Array of t/f values; if true, indicates that we parsed the column
-   * in question, but determined the value to be null. */
-  private ArrayList<Boolean> mColumnNulls;
-  
+  /** If true, indicates that we parsed the column in question, and its
+   * value (which may be null) is in mColumnValues. */
+  private boolean[] mColumnParsed;
+
+  /** The highest column index we parsed plus one; bounds the entries
+   * of mColumnValues and mColumnParsed we need to clear on reset. */
+  private int mNumParsed;
 
   public DelimitedEventParser() {
     this(DEFAULT_DELIMITER);
@@ -114,22 +128,26 @@ public class DelimitedEventParser extends EventParser {
   }
 
   private void init() {
-    mColTexts = new ArrayList<CharBuffer>();
-    mColumnValues = new ArrayList<Object>();
-    mColumnNulls = new ArrayList<Boolean>();
+    mDelimBytes = String.valueOf(mDelimiter).getBytes(ByteArrayUtils.UTF8);
+    mNullBytes = mNullStr.getBytes(ByteArrayUtils.UTF8);
+    mFieldStarts = new int[INITIAL_COLUMNS];
+    mFieldEnds = new int[INITIAL_COLUMNS];
+    mColumnValues = new Object[INITIAL_COLUMNS];
+    mColumnParsed = new boolean[INITIAL_COLUMNS];
   }
 
   /** Clear all internal state and reset to a new unparsed event body. */
   @Override
   public void reset(Event e) {
     mEvent = e;
-    mAsUtf8 = new Utf8(mEvent.getBody());
-    mAsCharacters = null;
+    mBytes = mEvent.getBody();
     mIndex = 0;
     mCurField = 0;
-    mColTexts.clear();
-    mColumnValues.clear();
-    mColumnNulls.clear();
+    for (int i = 0; i < mNumParsed; i++) {
+      mColumnValues[i] = null;
+      mColumnParsed[i] = false;
+    }
+    mNumParsed = 0;
   }
 
   /**
@@ -137,173 +155,155 @@ public class DelimitedEventParser extends EventParser {
    *
    * <p>
    * First, check if we've already cached the value. If so, return it.
-   * Next, check if we've cached a CharBuffer that wraps the underlying text.
+   * Next, check if we've already found the bounds of the column's text.
    * If so, convert that to the correct value, cache it, and return it.
-   * Finally, walk forward from our current position in mAsCharacters,
-   * looking for delimiters. As we find delimiters, mark and cache the
-   * discovered columns in mColTexts. When we arrive at the column of
-   * interest, cache and return its value.
+   * Finally, walk forward from our current position in mBytes,
+   * looking for delimiters. As we find delimiters, record the bounds of the
+   * discovered columns. When we arrive at the column of interest, cache and
+   * return its value.
    * </p>
    */
   @Override
   public Object getColumn(int colIdx, Type expectedType) throws ColumnParseException {
     // Check if we've cached a value for the column.
-    if (mColumnValues.size() > colIdx) {
-      // We may have cached a value for this column.
-      Object cached = mColumnValues.get(colIdx);
-      if (cached != null) {
-        // Already parsed - return it!
-        return cached;
-      }
-
-      // We got null from the cache; this may mean not-yet-parsed, or it
-      // might be true null.
-      if (mColumnNulls.get(colIdx)) {
-        return null; // True null.
-      }
-    }
-
-    // Check if we've cached a wrapper for the column bytes.
-    CharBuffer cbCol = mColTexts.size() > colIdx ? mColTexts.get(colIdx) : null;
-
-    if (null != cbCol) {
-      // We have. Interpret the bytes inside.
-      return parseAndCache(cbCol, colIdx, expectedType);
-    }
-
-    // Check if we have yet decoded the UTF-8 bytes of the event into a char
-    // array.
-    if (mAsCharacters == null) {
-      // Nope, do so now.
-      // TODO(aaron): Make sure we're not making an additional copy. The
-      // toString() call converts the bytes into a String; Does String.toCharArray()
-      // then make an additional copy of the backing array? Can we do better?
-      mAsCharacters = mAsUtf8.toString().toCharArray();
+    if (colIdx < mNumParsed && mColumnParsed[colIdx]) {
+      return mColumnValues[colIdx];
     }
 
     // While we have to walk more fields to get the one we need...
-    CharBuffer cbField = null;
     while (mCurField <= colIdx) {
-      // We have to continue walking through the underlying string.
+      // We have to continue walking through the underlying bytes.
       int start = mIndex; // The field starts here.
-      if (start == mAsCharacters.length && mCurField == colIdx
-          && expectedType.getPrimitiveTypeName().equals(Type.TypeName.STRING)) {
-        // We have found an empty string field at the end of the record.
-        // Return the empty string as a field.
-        cbField = CharBuffer.wrap("");
-        mColTexts.add(cbField);
-        mCurField++;
-        mIndex++;
-        return parseAndCache(cbField, colIdx, expectedType);
-      } else if (start >= mAsCharacters.length) {
+      if (start > mBytes.length) {
         // We don't have any more fields we can parse. If we need to read
         // more fields, then this is an error; the event is too short.
         if (LOG.isDebugEnabled()) {
-          LOG.debug("Not enough fields: mCurField=" + mCurField + " and no more string left");
+          LOG.debug("Not enough fields: mCurField=" + mCurField + " and no more bytes left");
         }
 
         throw new ColumnParseException("Not enough fields");
       }
 
-      for ( ; mIndex < mAsCharacters.length; mIndex++) {
-        char cur = mAsCharacters[mIndex];
-        if (mDelimiter == cur) {
-          // Found the end of the current field.
-          break;
-        }
-      }
-
-      // We have ended the current field, either by finding its delimiter, or hitting
-      // the end of the entire record. Wrap this field in a character buffer, and
-      // memoize it.
-      int delimPos = mIndex;
-      cbField = CharBuffer.wrap(mAsCharacters, start, delimPos - start);
+      // Find the end of the current field: either its delimiter, or the end of
+      // the entire record.
+      int delimPos = findDelimiter(start);
 
-      mColTexts.add(cbField); // Always add fields to the end of the list.
+      if (mCurField == mFieldStarts.length) {
+        growFields();
+      }
+      mFieldStarts[mCurField] = start;
+      mFieldEnds[mCurField] = delimPos;
       mCurField++; // We've added another field.
-      mIndex++; // Advance past the delimiter character.
+      mIndex = delimPos + mDelimBytes.length; // Advance past the delimiter.
     }
 
-    // We have separated enough fields; this one's text is cached. Parse its
+    // We have separated enough fields; this one's bounds are known. Parse its
     // value and return it.
-    return parseAndCache(cbField, colIdx, expectedType);
+    return parseAndCache(mFieldStarts[colIdx], mFieldEnds[colIdx], colIdx, expectedType);
+  }
+
+  /**
+   * @return the offset of the next delimiter at or after 'start', or the
+   * length of the body if there is none.
+   */
+  private int findDelimiter(int start) {
+    final byte[] bytes = mBytes;
+    final int len = bytes.length;
+    if (mDelimBytes.length == 1) {
+      // The common case of an ASCII delimiter.
+      final byte delim = mDelimBytes[0];
+      for (int i = start; i < len; i++) {
+        if (bytes[i] == delim) {
+          return i;
+        }
+      }
+      return len;
+    }
+
+    final int lastStart = len - mDelimBytes.length;
+    for (int i = start; i <= lastStart; i++) {
+      if (ByteArrayUtils.rangeEquals(bytes, i, i + mDelimBytes.length, mDelimBytes)) {
+        return i;
+      }
+    }
+    return len;
+  }
+
+  /** Double the capacity of the per-column arrays. */
+  private void growFields() {
+    int newLen = mFieldStarts.length * 2;
+
+    int[] newStarts = new int[newLen];
+    System.arraycopy(mFieldStarts, 0, newStarts, 0, mFieldStarts.length);
+    mFieldStarts = newStarts;
+
+    int[] newEnds = new int[newLen];
+    System.arraycopy(mFieldEnds, 0, newEnds, 0, mFieldEnds.length);
+    mFieldEnds = newEnds;
+
+    Object[] newValues = new Object[newLen];
+    System.arraycopy(mColumnValues, 0, newValues, 0, mColumnValues.length);
+    mColumnValues = newValues;
+
+    boolean[] newParsed = new boolean[newLen];
+    System.arraycopy(mColumnParsed, 0, newParsed, 0, mColumnParsed.length);
+    mColumnParsed = newParsed;
   }
 
   /**
-   * Given a CharBuffer wrapping a field, return the field's value in the
+   * Given the bounds of a field within mBytes, return the field's value in the
    * type expected by the runtime. Before returning, cache it in the slot for
    * 'colIdx'.
    */
-  private Object parseAndCache(CharBuffer chars, int colIdx, Type expectedType)
+  private Object parseAndCache(int start, int end, int colIdx, Type expectedType)
       throws ColumnParseException {
     Type.TypeName primitiveTypeName = expectedType.getPrimitiveTypeName();
+    final byte[] bytes = mBytes;
 
-    String debugInputString = null;
-    if (LOG.isDebugEnabled()) {
-      // Save this for the end. This method may consume the chars object,
-      // so we need to do this up-front.
-      debugInputString = chars.toString();
-    }
-
-    // TODO(aaron): Test how this handles a field that is an empty string.
     Object out = null;
     switch (primitiveTypeName) {
     case BOOLEAN:
-      out = CharBufferUtils.parseBool(chars);
+      out = ByteArrayUtils.parseBool(bytes, start, end);
       break;
     case INT:
-      out = CharBufferUtils.parseInt(chars);
+      out = ByteArrayUtils.parseInt(bytes, start, end);
       break;
     case BIGINT:
-      out = CharBufferUtils.parseLong(chars);
+      out = ByteArrayUtils.parseLong(bytes, start, end);
       break;
     case FLOAT:
-      out = CharBufferUtils.parseFloat(chars);
+      out = ByteArrayUtils.parseFloat(bytes, start, end);
       break;
     case DOUBLE:
-      out = CharBufferUtils.parseDouble(chars);
+      out = ByteArrayUtils.parseDouble(bytes, start, end);
       break;
     case STRING:
-      String asStr = chars.toString();
-      if (expectedType.isNullable() && asStr.equals(mNullStr)) {
+      if (expectedType.isNullable() && ByteArrayUtils.rangeEquals(bytes, start, end, mNullBytes)) {
         out = null;
       } else {
-        out = asStr;
+        out = ByteArrayUtils.parseString(bytes, start, end);
       }
       break;
     case TIMESTAMP:
-      out = CharBufferUtils.parseLong(chars);
-      if (null != out) {
-        out = new Timestamp((Long) out);
-      }
+      out = new Timestamp(ByteArrayUtils.parseLong(bytes, start, end));
       break;
     case TIMESPAN:
       // TODO: This should return a TimeSpan object, which is actually two
       // fields. We need to work on this... it should not just be a 'long'
       // representation.
-      out = CharBufferUtils.parseLong(chars);
+      out = ByteArrayUtils.parseLong(bytes, start, end);
       break;
     default:
       throw new ColumnParseException("Cannot parse recursive types");
     }
 
-    while(mColumnValues.size() < colIdx) {
-      // Add nulls to the list to increase the memoized size up to this column.
-      mColumnValues.add(null);
-
-      // Add a 'false' in the mColumnNulls so we know these are "padding" nulls
-      // and not "true" nulls.
-      mColumnNulls.add(Boolean.valueOf(false));
+    // Field bounds were recorded for this column, so the arrays are big enough.
+    mColumnValues[colIdx] = out;
+    mColumnParsed[colIdx] = true;
+    if (colIdx >= mNumParsed) {
+      mNumParsed = colIdx + 1;
     }
 
-    // Now add this parsed value to the end of the list. Sets its null bit appropriately.
-    mColumnValues.add(out);
-    mColumnNulls.add(Boolean.valueOf(out == null));
-
-    //if (LOG.isDebugEnabled()) {
-    //  LOG.debug("Parsed string [" + debugInputString + "] with expected type ["
-    //      + expectedType + "] for column idx=" + colIdx + "; result is [" + out + "]"); 
-    //}
     return out;
   }
 
@@ -57,4 +57,15 @@ public abstract class AggregateFunc<BUCKETSTATE> extends Function {
    */
   public abstract Object finishWindow(Iterable<Bucket<BUCKETSTATE>> buckets, Type type)
       throws EvalException;
+
+  /**
+   * Create a WindowAccumulator that computes this function's value over a
+   * sliding window of buckets incrementally. Functions that do not
+   * support this return null, and their values are computed with
+   * finishWindow() each time a window closes.
+   * @param type the expected output type for this function.
+   */
+  public WindowAccumulator<BUCKETSTATE> newWindowAccumulator(Type type) {
+    return null;
+  }
 }
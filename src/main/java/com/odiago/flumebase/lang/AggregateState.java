@@ -0,0 +1,51 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.lang;
+
+/**
+ * Fixed-width state of the PrimitiveAggregates computed over one group, for
+ * a single bucket or window. Each PrimitiveAggregate owns a range of slots
+ * in each of the arrays, assigned to it once when the query is planned, so
+ * adding a value to the state never allocates.
+ *
+ * <p>Object slots hold references to argument values that have no primitive
+ * representation (e.g., the current minimum of a string column).</p>
+ */
+public final class AggregateState {
+  private final long[] mLongs;
+  private final double[] mDoubles;
+  private final Object[] mObjects;
+
+  public AggregateState(int numLongs, int numDoubles, int numObjects) {
+    mLongs = new long[numLongs];
+    mDoubles = new double[numDoubles];
+    mObjects = new Object[numObjects];
+  }
+
+  public long[] getLongs() {
+    return mLongs;
+  }
+
+  public double[] getDoubles() {
+    return mDoubles;
+  }
+
+  public Object[] getObjects() {
+    return mObjects;
+  }
+}
@@ -0,0 +1,330 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.lang;
+
+import com.odiago.flumebase.exec.Bucket;
+
+/**
+ * A PrimitiveAggregateFunc bound to a particular argument type, whose state
+ * is a fixed number of slots in an AggregateState.
+ *
+ * <p>Whether an argument is added as a long, a double, or an object is
+ * decided once, from the argument type, when the aggregate is bound; the
+ * argument is never null. A subclass implements the add method for its
+ * ArgKind; checkBinding() verifies this, and that the argument type suits
+ * the ArgKind, when the aggregate is bound. The slots this aggregate owns
+ * start at the offsets
+ * set by setOffsets(), so that the states of several aggregates over the
+ * same group can share one AggregateState.</p>
+ */
+public abstract class PrimitiveAggregate {
+
+  /** How argument values are passed to the aggregate. */
+  public enum ArgKind {
+    LONG,   // Integral values, passed to add(long).
+    DOUBLE, // Floating-point values, passed to add(double).
+    OBJECT, // Any other value, passed to addObject().
+  };
+
+  private final ArgKind mArgKind;
+
+  /** Index of this aggregate's first slot in the long, double and object arrays. */
+  protected int mLongOffset;
+  protected int mDoubleOffset;
+  protected int mObjectOffset;
+
+  protected PrimitiveAggregate(ArgKind argKind) {
+    mArgKind = argKind;
+  }
+
+  /**
+   * @return the ArgKind appropriate to values of the specified type.
+   */
+  public static ArgKind getArgKind(Type type) {
+    switch (type.getPrimitiveTypeName()) {
+    case INT:
+    case BIGINT:
+      return ArgKind.LONG;
+    case FLOAT:
+    case DOUBLE:
+      return ArgKind.DOUBLE;
+    default:
+      return ArgKind.OBJECT;
+    }
+  }
+
+  public ArgKind getArgKind() {
+    return mArgKind;
+  }
+
+  /**
+   * Check that this aggregate can take arguments of type 'argType': that the
+   * values of that type can be passed as this aggregate's ArgKind, that the
+   * aggregate implements the add method for its ArgKind, and that it
+   * implements unmerge() if it is invertible. Called when the aggregate is
+   * bound, so that a mismatch fails the flow as it is built rather than on
+   * the first event.
+   * @throws EvalException if the aggregate cannot take these arguments.
+   */
+  public void checkBinding(Type argType) throws EvalException {
+    ArgKind typeKind = getArgKind(argType);
+    boolean compatible;
+    String addMethod;
+    Class<?> addArgClass;
+    switch (mArgKind) {
+    case LONG:
+      compatible = ArgKind.LONG.equals(typeKind);
+      addMethod = "add";
+      addArgClass = long.class;
+      break;
+    case DOUBLE:
+      compatible = !ArgKind.OBJECT.equals(typeKind);
+      addMethod = "add";
+      addArgClass = double.class;
+      break;
+    default:
+      compatible = true;
+      addMethod = "addObject";
+      addArgClass = Object.class;
+      break;
+    }
+
+    String name = getClass().getSimpleName();
+    if (!compatible) {
+      throw new EvalException("Aggregate " + name + " takes " + mArgKind
+          + " arguments, which cannot hold values of type " + argType);
+    } else if (!overrides(addMethod, addArgClass, AggregateState.class)) {
+      throw new EvalException("Aggregate " + name + " does not implement " + addMethod
+          + "() for " + mArgKind + " arguments");
+    } else if (isInvertible() && !overrides("unmerge", AggregateState.class,
+        AggregateState.class)) {
+      throw new EvalException("Aggregate " + name + " is invertible but does not "
+          + "implement unmerge()");
+    }
+  }
+
+  /** @return true if this aggregate's class overrides the specified method. */
+  private boolean overrides(String methodName, Class<?>... paramTypes) {
+    try {
+      return !PrimitiveAggregate.class.equals(
+          getClass().getMethod(methodName, paramTypes).getDeclaringClass());
+    } catch (NoSuchMethodException nsme) {
+      return false;
+    }
+  }
+
+  /** @return the number of long slots this aggregate uses. */
+  public int getNumLongSlots() {
+    return 0;
+  }
+
+  /** @return the number of double slots this aggregate uses. */
+  public int getNumDoubleSlots() {
+    return 0;
+  }
+
+  /** @return the number of object slots this aggregate uses. */
+  public int getNumObjectSlots() {
+    return 0;
+  }
+
+  /** Sets the index of this aggregate's first slot in each array of its states. */
+  public void setOffsets(int longOffset, int doubleOffset, int objectOffset) {
+    mLongOffset = longOffset;
+    mDoubleOffset = doubleOffset;
+    mObjectOffset = objectOffset;
+  }
+
+  /**
+   * @return a new state large enough to hold this aggregate's slots, initialized.
+   */
+  public AggregateState newState() {
+    AggregateState state = new AggregateState(mLongOffset + getNumLongSlots(),
+        mDoubleOffset + getNumDoubleSlots(), mObjectOffset + getNumObjectSlots());
+    init(state);
+    return state;
+  }
+
+  /**
+   * Initializes this aggregate's slots in a new state to hold no values.
+   * Slots are zero (or null) to begin with; by default, this does nothing.
+   */
+  public void init(AggregateState state) {
+  }
+
+  /**
+   * Add a non-null argument value to the state, via add(long), add(double) or
+   * addObject() according to this aggregate's ArgKind.
+   */
+  public final void insert(Object arg, AggregateState state) {
+    switch (mArgKind) {
+    case LONG:
+      add(((Number) arg).longValue(), state);
+      break;
+    case DOUBLE:
+      add(((Number) arg).doubleValue(), state);
+      break;
+    default:
+      addObject(arg, state);
+      break;
+    }
+  }
+
+  /**
+   * Add an integral argument value to the state. Must be implemented by
+   * aggregates whose ArgKind is LONG; checkBinding() rejects those that don't.
+   */
+  public void add(long arg, AggregateState state) {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Add a floating-point argument value to the state. Must be implemented by
+   * aggregates whose ArgKind is DOUBLE.
+   */
+  public void add(double arg, AggregateState state) {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Add an argument value of any other type to the state. Must be
+   * implemented by aggregates whose ArgKind is OBJECT.
+   */
+  public void addObject(Object arg, AggregateState state) {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Combine the values in this aggregate's slots of 'src' into 'dst'.
+   */
+  public abstract void merge(AggregateState src, AggregateState dst);
+
+  /**
+   * @return true if unmerge() is supported.
+   */
+  public boolean isInvertible() {
+    return false;
+  }
+
+  /**
+   * Remove the values in this aggregate's slots of 'src', which were
+   * previously merged into 'dst', from 'dst'. Only called if isInvertible()
+   * is true; checkBinding() rejects invertible aggregates that don't
+   * implement it.
+   */
+  public void unmerge(AggregateState src, AggregateState dst) {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * @return the function's final value over the values in the state.
+   */
+  public abstract Object finish(AggregateState state);
+
+  /**
+   * @return a WindowAccumulator for buckets holding this aggregate's state.
+   * Invertible aggregates keep a running total of the window; others combine
+   * new states with merge() as the window slides.
+   */
+  public WindowAccumulator<AggregateState> newWindowAccumulator() {
+    if (isInvertible()) {
+      return new TotalWindowAccumulator();
+    }
+
+    return new TwoStackWindowAccumulator<AggregateState>() {
+      @Override
+      protected AggregateState combine(AggregateState a, AggregateState b) {
+        if (null == a) {
+          return b;
+        } else if (null == b) {
+          return a;
+        }
+
+        AggregateState combined = newState();
+        merge(a, combined);
+        merge(b, combined);
+        return combined;
+      }
+
+      @Override
+      public Object finish() {
+        AggregateState state = getWindowState();
+        if (null == state) {
+          state = newState();
+        }
+        return PrimitiveAggregate.this.finish(state);
+      }
+    };
+  }
+
+  /**
+   * WindowAccumulator for an invertible aggregate, which merges buckets into
+   * a running total, and unmerges them as they leave the window.
+   */
+  private class TotalWindowAccumulator extends WindowAccumulator<AggregateState> {
+    private final AggregateState mTotal;
+
+    TotalWindowAccumulator() {
+      mTotal = newState();
+    }
+
+    @Override
+    public void insert(Bucket<AggregateState> bucket) {
+      AggregateState state = bucket.getState();
+      if (null != state) {
+        merge(state, mTotal);
+      }
+    }
+
+    @Override
+    public void remove(Bucket<AggregateState> bucket) {
+      assert PrimitiveAggregate.this.isInvertible();
+      AggregateState state = bucket.getState();
+      if (null != state) {
+        unmerge(state, mTotal);
+      }
+    }
+
+    @Override
+    public boolean isInvertible() {
+      return true;
+    }
+
+    @Override
+    public void clear() {
+      long[] longs = mTotal.getLongs();
+      for (int i = 0; i < longs.length; i++) {
+        longs[i] = 0;
+      }
+      double[] doubles = mTotal.getDoubles();
+      for (int i = 0; i < doubles.length; i++) {
+        doubles[i] = 0;
+      }
+      Object[] objects = mTotal.getObjects();
+      for (int i = 0; i < objects.length; i++) {
+        objects[i] = null;
+      }
+      init(mTotal);
+    }
+
+    @Override
+    public Object finish() {
+      return PrimitiveAggregate.this.finish(mTotal);
+    }
+  }
+}
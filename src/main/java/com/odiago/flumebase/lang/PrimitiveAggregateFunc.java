@@ -0,0 +1,83 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.lang;
+
+import com.odiago.flumebase.exec.Bucket;
+
+/**
+ * An aggregate function whose per-bucket state is a fixed number of long,
+ * double and object slots, rather than an object of its own.
+ *
+ * <p>When a query is planned, the function is bound to its argument type
+ * with bind(), which returns a PrimitiveAggregate specialized to that type.
+ * The aggregation operator lays out the slots of all the PrimitiveAggregates
+ * it runs in one AggregateState per group and bucket, and inserts each
+ * value without boxing or allocation.</p>
+ *
+ * <p>The AggregateFunc methods are implemented in terms of bind(), for
+ * callers which drive the function one bucket at a time.</p>
+ */
+public abstract class PrimitiveAggregateFunc extends AggregateFunc<AggregateState> {
+
+  /**
+   * @return a PrimitiveAggregate that computes this function over arguments
+   * of type 'argType', returning values of type 'retType'.
+   * @throws EvalException if the function cannot be computed over argType.
+   */
+  public abstract PrimitiveAggregate bind(Type argType, Type retType) throws EvalException;
+
+  @Override
+  public void addToBucket(Object arg, Bucket<AggregateState> bucket, Type type)
+      throws EvalException {
+    if (null == arg) {
+      return;
+    }
+
+    PrimitiveAggregate aggregate = bind(type, type);
+    AggregateState state = bucket.getState();
+    if (null == state) {
+      state = aggregate.newState();
+      bucket.setState(state);
+    }
+    aggregate.insert(arg, state);
+  }
+
+  @Override
+  public Object finishWindow(Iterable<Bucket<AggregateState>> buckets, Type type)
+      throws EvalException {
+    PrimitiveAggregate aggregate = bind(type, type);
+    AggregateState total = aggregate.newState();
+    for (Bucket<AggregateState> bucket : buckets) {
+      AggregateState state = bucket.getState();
+      if (null != state) {
+        aggregate.merge(state, total);
+      }
+    }
+
+    return aggregate.finish(total);
+  }
+
+  @Override
+  public WindowAccumulator<AggregateState> newWindowAccumulator(Type type) {
+    try {
+      return bind(type, type).newWindowAccumulator();
+    } catch (EvalException ee) {
+      return null; // finishWindow() will report the error.
+    }
+  }
+}
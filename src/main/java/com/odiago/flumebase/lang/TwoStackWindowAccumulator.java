@@ -0,0 +1,116 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.lang;
+
+import java.util.ArrayList;
+
+import com.odiago.flumebase.exec.Bucket;
+
+/**
+ * WindowAccumulator for aggregate functions whose bucket states can be
+ * combined, but not un-combined (e.g., min and max). The window is held in
+ * two stacks: newly-inserted buckets are pushed on the back stack, which
+ * tracks the combined state of all its buckets. Buckets are removed from the
+ * front stack, in which each entry holds the combined state of itself and
+ * every newer entry. When the front stack is empty, the back stack is moved
+ * onto it. Each bucket is combined a constant number of times, so sliding the
+ * window by one bucket costs amortized O(1).
+ */
+public abstract class TwoStackWindowAccumulator<BUCKETSTATE>
+    extends WindowAccumulator<BUCKETSTATE> {
+
+  /** Buckets inserted since the front stack was last filled, oldest first. */
+  private final ArrayList<Bucket<BUCKETSTATE>> mBack;
+
+  /** Combined state of all the buckets in mBack. */
+  private BUCKETSTATE mBackState;
+
+  /** Older buckets, newest first; the oldest bucket in the window is last. */
+  private final ArrayList<Bucket<BUCKETSTATE>> mFront;
+
+  /** mFrontStates.get(i) holds the combined state of mFront.get(0..i). */
+  private final ArrayList<BUCKETSTATE> mFrontStates;
+
+  public TwoStackWindowAccumulator() {
+    mBack = new ArrayList<Bucket<BUCKETSTATE>>();
+    mFront = new ArrayList<Bucket<BUCKETSTATE>>();
+    mFrontStates = new ArrayList<BUCKETSTATE>();
+  }
+
+  /**
+   * @return the combination of two bucket states. Either may be null,
+   * which indicates a bucket with no state.
+   */
+  protected abstract BUCKETSTATE combine(BUCKETSTATE a, BUCKETSTATE b);
+
+  @Override
+  public void insert(Bucket<BUCKETSTATE> bucket) {
+    mBack.add(bucket);
+    mBackState = combine(mBackState, bucket.getState());
+  }
+
+  @Override
+  public void remove(Bucket<BUCKETSTATE> bucket) {
+    if (mFront.isEmpty()) {
+      // Move the back stack onto the front stack, newest first.
+      BUCKETSTATE state = null;
+      for (int i = mBack.size() - 1; i >= 0; i--) {
+        Bucket<BUCKETSTATE> back = mBack.get(i);
+        state = combine(state, back.getState());
+        mFront.add(back);
+        mFrontStates.add(state);
+      }
+      mBack.clear();
+      mBackState = null;
+    }
+
+    int last = mFront.size() - 1;
+    assert last >= 0 && mFront.get(last) == bucket; // Must remove the oldest bucket.
+    mFront.remove(last);
+    mFrontStates.remove(last);
+  }
+
+  @Override
+  public boolean isInvertible() {
+    return false;
+  }
+
+  @Override
+  public void clear() {
+    mBack.clear();
+    mBackState = null;
+    mFront.clear();
+    mFrontStates.clear();
+  }
+
+  /**
+   * @return the combined state of all the buckets in the window.
+   */
+  protected BUCKETSTATE getWindowState() {
+    if (mFrontStates.isEmpty()) {
+      return mBackState;
+    }
+
+    return combine(mFrontStates.get(mFrontStates.size() - 1), mBackState);
+  }
+
+  @Override
+  public Object finish() throws EvalException {
+    return getWindowState();
+  }
+}
@@ -0,0 +1,62 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.lang;
+
+import com.odiago.flumebase.exec.Bucket;
+
+/**
+ * Maintains the value of an AggregateFunc over a sliding window of buckets,
+ * so that the value for a window can be produced without visiting every
+ * bucket in the window each time it closes.
+ *
+ * <p>Buckets enter the window at its newest end through insert(), and leave
+ * it through remove(). An invertible accumulator (e.g., for a sum or a count)
+ * can remove any bucket in the window; a change to a bucket already inside
+ * the window is applied by removing the bucket before the change and
+ * inserting it again afterward. Other accumulators can only remove the
+ * oldest bucket in the window; if a bucket inside the window changes, the
+ * accumulator must be cleared and the window re-inserted.</p>
+ */
+public abstract class WindowAccumulator<BUCKETSTATE> {
+
+  /**
+   * Add a bucket to the newest end of the window.
+   */
+  public abstract void insert(Bucket<BUCKETSTATE> bucket) throws EvalException;
+
+  /**
+   * Remove a bucket from the window. Unless isInvertible() is true, this must
+   * be the oldest bucket in the window.
+   */
+  public abstract void remove(Bucket<BUCKETSTATE> bucket) throws EvalException;
+
+  /**
+   * @return true if any bucket in the window can be passed to remove().
+   */
+  public abstract boolean isInvertible();
+
+  /**
+   * Remove all buckets from the window.
+   */
+  public abstract void clear();
+
+  /**
+   * @return the function's final value for the buckets currently in the window.
+   */
+  public abstract Object finish() throws EvalException;
+}
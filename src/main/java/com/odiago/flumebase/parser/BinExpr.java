@@ -295,6 +295,443 @@ public class BinExpr extends Expr {
     }
   }
 
+  @Override
+  protected CompiledExpr compileExpr() {
+    CompiledExpr lhs = mLeftExpr.compile();
+    CompiledExpr rhs = mRightExpr.compile();
+    Type.TypeName argType = mArgType.getPrimitiveTypeName();
+
+    switch (mOp) {
+    case Times:
+    case Div:
+    case Mod:
+    case Add:
+    case Subtract:
+      switch (argType) {
+      case INT:
+        return new IntArithmetic(mOp, lhs, rhs);
+      case BIGINT:
+        return new LongArithmetic(mOp, lhs, rhs);
+      case FLOAT:
+        return new FloatArithmetic(mOp, lhs, rhs);
+      case DOUBLE:
+        return new DoubleArithmetic(mOp, lhs, rhs);
+      case STRING:
+        if (mOp == BinOp.Add) {
+          return new Concatenation(lhs, rhs);
+        }
+        break;
+      default:
+        break;
+      }
+      break;
+    case Greater:
+    case GreaterEq:
+    case Less:
+    case LessEq:
+    case Eq:
+    case NotEq:
+      switch (argType) {
+      case INT:
+      case BIGINT:
+        return new LongComparison(mOp, lhs, rhs);
+      case FLOAT:
+        return new FloatComparison(mOp, lhs, rhs);
+      case DOUBLE:
+        return new DoubleComparison(mOp, lhs, rhs);
+      default:
+        if (!mLhsType.equals(mArgType)) {
+          lhs = new CompiledExpr.Coerced(lhs, mLhsType, mArgType);
+        }
+        if (!mRhsType.equals(mArgType)) {
+          rhs = new CompiledExpr.Coerced(rhs, mRhsType, mArgType);
+        }
+        return new ObjectComparison(mOp, lhs, rhs);
+      }
+    case And:
+    case Or:
+      return new Logical(mOp, lhs, rhs);
+    default:
+      break;
+    }
+
+    // No specialized evaluator; use eval().
+    return super.compileExpr();
+  }
+
+  /** Arithmetic over INT arguments. */
+  private static class IntArithmetic extends CompiledExpr.IntValued {
+    private final BinOp mOp;
+    private final CompiledExpr mLhs;
+    private final CompiledExpr mRhs;
+
+    IntArithmetic(BinOp op, CompiledExpr lhs, CompiledExpr rhs) {
+      mOp = op;
+      mLhs = lhs;
+      mRhs = rhs;
+    }
+
+    @Override
+    public int evalInt(EventWrapper e) throws IOException {
+      int lhs = mLhs.evalInt(e);
+      boolean isNull = mLhs.wasNull();
+      int rhs = mRhs.evalInt(e);
+      isNull |= mRhs.wasNull();
+      setWasNull(isNull);
+      if (isNull) {
+        // NULL op X always returns null.
+        return 0;
+      }
+
+      switch (mOp) {
+      case Times:
+        return lhs * rhs;
+      case Div:
+        return lhs / rhs;
+      case Mod:
+        return lhs % rhs;
+      case Add:
+        return lhs + rhs;
+      case Subtract:
+        return lhs - rhs;
+      default:
+        throw new RuntimeException("Unknown arithmetic operator " + mOp);
+      }
+    }
+  }
+
+  /** Arithmetic over BIGINT arguments. */
+  private static class LongArithmetic extends CompiledExpr.LongValued {
+    private final BinOp mOp;
+    private final CompiledExpr mLhs;
+    private final CompiledExpr mRhs;
+
+    LongArithmetic(BinOp op, CompiledExpr lhs, CompiledExpr rhs) {
+      mOp = op;
+      mLhs = lhs;
+      mRhs = rhs;
+    }
+
+    @Override
+    public long evalLong(EventWrapper e) throws IOException {
+      long lhs = mLhs.evalLong(e);
+      boolean isNull = mLhs.wasNull();
+      long rhs = mRhs.evalLong(e);
+      isNull |= mRhs.wasNull();
+      setWasNull(isNull);
+      if (isNull) {
+        return 0;
+      }
+
+      switch (mOp) {
+      case Times:
+        return lhs * rhs;
+      case Div:
+        return lhs / rhs;
+      case Mod:
+        return lhs % rhs;
+      case Add:
+        return lhs + rhs;
+      case Subtract:
+        return lhs - rhs;
+      default:
+        throw new RuntimeException("Unknown arithmetic operator " + mOp);
+      }
+    }
+  }
+
+  /** Arithmetic over FLOAT arguments. */
+  private static class FloatArithmetic extends CompiledExpr.FloatValued {
+    private final BinOp mOp;
+    private final CompiledExpr mLhs;
+    private final CompiledExpr mRhs;
+
+    FloatArithmetic(BinOp op, CompiledExpr lhs, CompiledExpr rhs) {
+      mOp = op;
+      mLhs = lhs;
+      mRhs = rhs;
+    }
+
+    @Override
+    public float evalFloat(EventWrapper e) throws IOException {
+      float lhs = mLhs.evalFloat(e);
+      boolean isNull = mLhs.wasNull();
+      float rhs = mRhs.evalFloat(e);
+      isNull |= mRhs.wasNull();
+      setWasNull(isNull);
+      if (isNull) {
+        return 0;
+      }
+
+      switch (mOp) {
+      case Times:
+        return lhs * rhs;
+      case Div:
+        return lhs / rhs;
+      case Mod:
+        return lhs % rhs;
+      case Add:
+        return lhs + rhs;
+      case Subtract:
+        return lhs - rhs;
+      default:
+        throw new RuntimeException("Unknown arithmetic operator " + mOp);
+      }
+    }
+  }
+
+  /** Arithmetic over DOUBLE arguments. */
+  private static class DoubleArithmetic extends CompiledExpr.DoubleValued {
+    private final BinOp mOp;
+    private final CompiledExpr mLhs;
+    private final CompiledExpr mRhs;
+
+    DoubleArithmetic(BinOp op, CompiledExpr lhs, CompiledExpr rhs) {
+      mOp = op;
+      mLhs = lhs;
+      mRhs = rhs;
+    }
+
+    @Override
+    public double evalDouble(EventWrapper e) throws IOException {
+      double lhs = mLhs.evalDouble(e);
+      boolean isNull = mLhs.wasNull();
+      double rhs = mRhs.evalDouble(e);
+      isNull |= mRhs.wasNull();
+      setWasNull(isNull);
+      if (isNull) {
+        return 0;
+      }
+
+      switch (mOp) {
+      case Times:
+        return lhs * rhs;
+      case Div:
+        return lhs / rhs;
+      case Mod:
+        return lhs % rhs;
+      case Add:
+        return lhs + rhs;
+      case Subtract:
+        return lhs - rhs;
+      default:
+        throw new RuntimeException("Unknown arithmetic operator " + mOp);
+      }
+    }
+  }
+
+  /** String concatenation. */
+  private static class Concatenation extends CompiledExpr {
+    private final CompiledExpr mLhs;
+    private final CompiledExpr mRhs;
+
+    Concatenation(CompiledExpr lhs, CompiledExpr rhs) {
+      mLhs = lhs;
+      mRhs = rhs;
+    }
+
+    @Override
+    public Object eval(EventWrapper e) throws IOException {
+      Object lhs = mLhs.eval(e);
+      Object rhs = mRhs.eval(e);
+      if (null == lhs || null == rhs) {
+        return null;
+      }
+
+      StringBuilder sb = new StringBuilder();
+      sb.append(lhs);
+      sb.append(rhs);
+      return sb.toString();
+    }
+  }
+
+  /**
+   * @return the result of applying a comparison operator, given
+   * cmp &lt; 0, cmp == 0, or cmp &gt; 0 for lhs vs. rhs.
+   */
+  private static boolean compareResult(BinOp op, int cmp) {
+    switch (op) {
+    case Greater:
+      return cmp > 0;
+    case GreaterEq:
+      return cmp >= 0;
+    case Less:
+      return cmp < 0;
+    case LessEq:
+      return cmp <= 0;
+    case Eq:
+      return cmp == 0;
+    case NotEq:
+      return cmp != 0;
+    default:
+      throw new RuntimeException("Unknown comparison operator " + op);
+    }
+  }
+
+  /** Comparison of INT or BIGINT arguments. */
+  private static class LongComparison extends CompiledExpr.BoolValued {
+    private final BinOp mOp;
+    private final CompiledExpr mLhs;
+    private final CompiledExpr mRhs;
+
+    LongComparison(BinOp op, CompiledExpr lhs, CompiledExpr rhs) {
+      mOp = op;
+      mLhs = lhs;
+      mRhs = rhs;
+    }
+
+    @Override
+    public boolean evalBool(EventWrapper e) throws IOException {
+      long lhs = mLhs.evalLong(e);
+      boolean isNull = mLhs.wasNull();
+      long rhs = mRhs.evalLong(e);
+      isNull |= mRhs.wasNull();
+      setWasNull(isNull);
+      if (isNull) {
+        return false;
+      }
+
+      switch (mOp) {
+      case Greater:
+        return lhs > rhs;
+      case GreaterEq:
+        return lhs >= rhs;
+      case Less:
+        return lhs < rhs;
+      case LessEq:
+        return lhs <= rhs;
+      case Eq:
+        return lhs == rhs;
+      case NotEq:
+        return lhs != rhs;
+      default:
+        throw new RuntimeException("Unknown comparison operator " + mOp);
+      }
+    }
+  }
+
+  /**
+   * Comparison of FLOAT arguments. Uses Float.compare(), which agrees
+   * with Float.equals() and Float.compareTo() on NaN and -0.0.
+   */
+  private static class FloatComparison extends CompiledExpr.BoolValued {
+    private final BinOp mOp;
+    private final CompiledExpr mLhs;
+    private final CompiledExpr mRhs;
+
+    FloatComparison(BinOp op, CompiledExpr lhs, CompiledExpr rhs) {
+      mOp = op;
+      mLhs = lhs;
+      mRhs = rhs;
+    }
+
+    @Override
+    public boolean evalBool(EventWrapper e) throws IOException {
+      float lhs = mLhs.evalFloat(e);
+      boolean isNull = mLhs.wasNull();
+      float rhs = mRhs.evalFloat(e);
+      isNull |= mRhs.wasNull();
+      setWasNull(isNull);
+      if (isNull) {
+        return false;
+      }
+
+      return compareResult(mOp, Float.compare(lhs, rhs));
+    }
+  }
+
+  /** Comparison of DOUBLE arguments. */
+  private static class DoubleComparison extends CompiledExpr.BoolValued {
+    private final BinOp mOp;
+    private final CompiledExpr mLhs;
+    private final CompiledExpr mRhs;
+
+    DoubleComparison(BinOp op, CompiledExpr lhs, CompiledExpr rhs) {
+      mOp = op;
+      mLhs = lhs;
+      mRhs = rhs;
+    }
+
+    @Override
+    public boolean evalBool(EventWrapper e) throws IOException {
+      double lhs = mLhs.evalDouble(e);
+      boolean isNull = mLhs.wasNull();
+      double rhs = mRhs.evalDouble(e);
+      isNull |= mRhs.wasNull();
+      setWasNull(isNull);
+      if (isNull) {
+        return false;
+      }
+
+      return compareResult(mOp, Double.compare(lhs, rhs));
+    }
+  }
+
+  /**
+   * Comparison of other Comparable arguments (strings, booleans), which
+   * have already been coerced to the same type.
+   */
+  private static class ObjectComparison extends CompiledExpr.BoolValued {
+    private final BinOp mOp;
+    private final CompiledExpr mLhs;
+    private final CompiledExpr mRhs;
+
+    ObjectComparison(BinOp op, CompiledExpr lhs, CompiledExpr rhs) {
+      mOp = op;
+      mLhs = lhs;
+      mRhs = rhs;
+    }
+
+    @Override
+    public boolean evalBool(EventWrapper e) throws IOException {
+      Object lhs = mLhs.eval(e);
+      Object rhs = mRhs.eval(e);
+      if (null == lhs || null == rhs) {
+        setWasNull(true);
+        return false;
+      }
+
+      setWasNull(false);
+      switch (mOp) {
+      case Eq:
+        return lhs.equals(rhs);
+      case NotEq:
+        return !lhs.equals(rhs);
+      default:
+        return compareResult(mOp, ((Comparable) lhs).compareTo(rhs));
+      }
+    }
+  }
+
+  /** AND and OR. As with eval(), both sides are always evaluated. */
+  private static class Logical extends CompiledExpr.BoolValued {
+    private final BinOp mOp;
+    private final CompiledExpr mLhs;
+    private final CompiledExpr mRhs;
+
+    Logical(BinOp op, CompiledExpr lhs, CompiledExpr rhs) {
+      mOp = op;
+      mLhs = lhs;
+      mRhs = rhs;
+    }
+
+    @Override
+    public boolean evalBool(EventWrapper e) throws IOException {
+      boolean lhs = mLhs.evalBool(e);
+      boolean isNull = mLhs.wasNull();
+      boolean rhs = mRhs.evalBool(e);
+      isNull |= mRhs.wasNull();
+      setWasNull(isNull);
+      if (isNull) {
+        return false;
+      } else if (mOp == BinOp.And) {
+        return lhs && rhs;
+      } else {
+        return lhs || rhs;
+      }
+    }
+  }
+
   // Sets the type that the expression returns
   public void setType(Type t) {
     mType = t;
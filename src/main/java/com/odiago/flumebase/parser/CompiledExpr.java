@@ -0,0 +1,314 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.odiago.flumebase.parser;
+
+import java.io.IOException;
+
+import com.odiago.flumebase.exec.EventWrapper;
+
+import com.odiago.flumebase.lang.Type;
+
+/**
+ * An evaluator for an Expr, built by Expr.compile() after type checking.
+ * All type resolution and operator dispatch happens when the evaluator
+ * is built, so evaluating it only performs the actual computation.
+ *
+ * <p>Besides eval(), which returns a boxed value, a CompiledExpr can
+ * return its value as a Java primitive through evalInt(), evalLong(),
+ * evalFloat(), evalDouble() or evalBool(). After any of these calls,
+ * wasNull() reports whether the value was actually null. Compiled
+ * expressions which compute a primitive type call their children through
+ * these methods, so intermediate results are not boxed.</p>
+ *
+ * <p>A CompiledExpr holds per-evaluation state, and must only be used
+ * by one thread at a time.</p>
+ */
+public abstract class CompiledExpr {
+
+  /** True if the most recent evalXxx() call returned a null value. */
+  private boolean mWasNull;
+
+  /**
+   * Evaluate the expression, pulling identifiers from the input event wrapper.
+   * @return the boxed value of the expression, or null.
+   */
+  public abstract Object eval(EventWrapper e) throws IOException;
+
+  /**
+   * @return true if the value returned by the most recent call to evalInt(),
+   * evalLong(), evalFloat(), evalDouble() or evalBool() was null.
+   */
+  public final boolean wasNull() {
+    return mWasNull;
+  }
+
+  protected final void setWasNull(boolean wasNull) {
+    mWasNull = wasNull;
+  }
+
+  public int evalInt(EventWrapper e) throws IOException {
+    Number val = (Number) eval(e);
+    mWasNull = null == val;
+    return mWasNull ? 0 : val.intValue();
+  }
+
+  public long evalLong(EventWrapper e) throws IOException {
+    Number val = (Number) eval(e);
+    mWasNull = null == val;
+    return mWasNull ? 0L : val.longValue();
+  }
+
+  public float evalFloat(EventWrapper e) throws IOException {
+    Number val = (Number) eval(e);
+    mWasNull = null == val;
+    return mWasNull ? 0f : val.floatValue();
+  }
+
+  public double evalDouble(EventWrapper e) throws IOException {
+    Number val = (Number) eval(e);
+    mWasNull = null == val;
+    return mWasNull ? 0.0 : val.doubleValue();
+  }
+
+  public boolean evalBool(EventWrapper e) throws IOException {
+    Boolean val = (Boolean) eval(e);
+    mWasNull = null == val;
+    return mWasNull ? false : val.booleanValue();
+  }
+
+  /** A CompiledExpr which natively computes an INT. */
+  abstract static class IntValued extends CompiledExpr {
+    @Override
+    public abstract int evalInt(EventWrapper e) throws IOException;
+
+    @Override
+    public Object eval(EventWrapper e) throws IOException {
+      int val = evalInt(e);
+      return wasNull() ? null : Integer.valueOf(val);
+    }
+
+    @Override
+    public long evalLong(EventWrapper e) throws IOException {
+      return evalInt(e);
+    }
+
+    @Override
+    public float evalFloat(EventWrapper e) throws IOException {
+      return evalInt(e);
+    }
+
+    @Override
+    public double evalDouble(EventWrapper e) throws IOException {
+      return evalInt(e);
+    }
+  }
+
+  /** A CompiledExpr which natively computes a BIGINT. */
+  abstract static class LongValued extends CompiledExpr {
+    @Override
+    public abstract long evalLong(EventWrapper e) throws IOException;
+
+    @Override
+    public Object eval(EventWrapper e) throws IOException {
+      long val = evalLong(e);
+      return wasNull() ? null : Long.valueOf(val);
+    }
+
+    @Override
+    public int evalInt(EventWrapper e) throws IOException {
+      return (int) evalLong(e);
+    }
+
+    @Override
+    public float evalFloat(EventWrapper e) throws IOException {
+      return evalLong(e);
+    }
+
+    @Override
+    public double evalDouble(EventWrapper e) throws IOException {
+      return evalLong(e);
+    }
+  }
+
+  /** A CompiledExpr which natively computes a FLOAT. */
+  abstract static class FloatValued extends CompiledExpr {
+    @Override
+    public abstract float evalFloat(EventWrapper e) throws IOException;
+
+    @Override
+    public Object eval(EventWrapper e) throws IOException {
+      float val = evalFloat(e);
+      return wasNull() ? null : Float.valueOf(val);
+    }
+
+    @Override
+    public int evalInt(EventWrapper e) throws IOException {
+      return (int) evalFloat(e);
+    }
+
+    @Override
+    public long evalLong(EventWrapper e) throws IOException {
+      return (long) evalFloat(e);
+    }
+
+    @Override
+    public double evalDouble(EventWrapper e) throws IOException {
+      return evalFloat(e);
+    }
+  }
+
+  /** A CompiledExpr which natively computes a DOUBLE. */
+  abstract static class DoubleValued extends CompiledExpr {
+    @Override
+    public abstract double evalDouble(EventWrapper e) throws IOException;
+
+    @Override
+    public Object eval(EventWrapper e) throws IOException {
+      double val = evalDouble(e);
+      return wasNull() ? null : Double.valueOf(val);
+    }
+
+    @Override
+    public int evalInt(EventWrapper e) throws IOException {
+      return (int) evalDouble(e);
+    }
+
+    @Override
+    public long evalLong(EventWrapper e) throws IOException {
+      return (long) evalDouble(e);
+    }
+
+    @Override
+    public float evalFloat(EventWrapper e) throws IOException {
+      return (float) evalDouble(e);
+    }
+  }
+
+  /** A CompiledExpr which natively computes a BOOLEAN. */
+  abstract static class BoolValued extends CompiledExpr {
+    @Override
+    public abstract boolean evalBool(EventWrapper e) throws IOException;
+
+    @Override
+    public Object eval(EventWrapper e) throws IOException {
+      boolean val = evalBool(e);
+      return wasNull() ? null : Boolean.valueOf(val);
+    }
+  }
+
+  /** A CompiledExpr that always returns the same value. */
+  static class Constant extends CompiledExpr {
+    private final Object mValue;
+    private final boolean mBool;
+    private final int mInt;
+    private final long mLong;
+    private final float mFloat;
+    private final double mDouble;
+
+    Constant(Object value) {
+      mValue = value;
+      mBool = value instanceof Boolean && ((Boolean) value).booleanValue();
+      if (value instanceof Number) {
+        Number num = (Number) value;
+        mInt = num.intValue();
+        mLong = num.longValue();
+        mFloat = num.floatValue();
+        mDouble = num.doubleValue();
+      } else {
+        mInt = 0;
+        mLong = 0;
+        mFloat = 0;
+        mDouble = 0;
+      }
+    }
+
+    @Override
+    public Object eval(EventWrapper e) {
+      return mValue;
+    }
+
+    @Override
+    public int evalInt(EventWrapper e) {
+      setWasNull(null == mValue);
+      return mInt;
+    }
+
+    @Override
+    public long evalLong(EventWrapper e) {
+      setWasNull(null == mValue);
+      return mLong;
+    }
+
+    @Override
+    public float evalFloat(EventWrapper e) {
+      setWasNull(null == mValue);
+      return mFloat;
+    }
+
+    @Override
+    public double evalDouble(EventWrapper e) {
+      setWasNull(null == mValue);
+      return mDouble;
+    }
+
+    @Override
+    public boolean evalBool(EventWrapper e) {
+      setWasNull(null == mValue);
+      return mBool;
+    }
+  }
+
+  /**
+   * A CompiledExpr which evaluates its Expr through Expr.eval(). Used for
+   * expressions that have no specialized evaluator.
+   */
+  static class Interpreted extends CompiledExpr {
+    private final Expr mExpr;
+
+    Interpreted(Expr expr) {
+      mExpr = expr;
+    }
+
+    @Override
+    public Object eval(EventWrapper e) throws IOException {
+      return mExpr.eval(e);
+    }
+  }
+
+  /**
+   * A CompiledExpr which coerces the (boxed) result of another CompiledExpr
+   * from one type to another, as Expr.coerce() does.
+   */
+  static class Coerced extends CompiledExpr {
+    private final CompiledExpr mChild;
+    private final Type mFromType;
+    private final Type mToType;
+
+    Coerced(CompiledExpr child, Type fromType, Type toType) {
+      mChild = child;
+      mFromType = fromType;
+      mToType = toType;
+    }
+
+    @Override
+    public Object eval(EventWrapper e) throws IOException {
+      return Expr.coerceValue(mChild.eval(e), mFromType, mToType);
+    }
+  }
+}
@@ -51,6 +51,35 @@ public abstract class Expr extends SQLStatement {
    */
   public abstract Object eval(EventWrapper inWrapper) throws IOException;
 
+  /**
+   * Compile this expression into a CompiledExpr which evaluates it with
+   * all types and operators resolved up front. Must be called after the
+   * TypeChecker has visited the expression. Constant expressions are
+   * evaluated once, here.
+   */
+  public final CompiledExpr compile() {
+    if (isConstant()) {
+      try {
+        return new CompiledExpr.Constant(eval(null));
+      } catch (IOException ioe) {
+        // Can't fold this; evaluate it every time instead.
+      } catch (RuntimeException re) {
+        // e.g., division by zero; leave the error to occur at run time.
+      }
+    }
+
+    return compileExpr();
+  }
+
+  /**
+   * Build the CompiledExpr for this (non-constant) expression. Subclasses
+   * override this to return a specialized evaluator; the default evaluates
+   * the expression with eval().
+   */
+  protected CompiledExpr compileExpr() {
+    return new CompiledExpr.Interpreted(this);
+  }
+
   /**
    * @return the type of this node after type checking is complete.
    * The typechecker will set the type inside the node so it does not
@@ -69,6 +98,14 @@ public abstract class Expr extends SQLStatement {
    * from valType into targetType.
    */
   protected Object coerce(Object val, Type valType, Type targetType) {
+    return coerceValue(val, valType, targetType);
+  }
+
+  /**
+   * @return an object representing the same value as 'val' but coerced
+   * from valType into targetType.
+   */
+  static Object coerceValue(Object val, Type valType, Type targetType) {
     if (null == val) {
       return null;
     } else if (valType.equals(targetType)) {
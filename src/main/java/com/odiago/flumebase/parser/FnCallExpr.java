@@ -36,10 +36,13 @@ import com.odiago.flumebase.exec.SymbolTable;
 import com.odiago.flumebase.lang.AggregateFunc;
 import com.odiago.flumebase.lang.EvalException;
 import com.odiago.flumebase.lang.Function;
+import com.odiago.flumebase.lang.PrimitiveAggregate;
+import com.odiago.flumebase.lang.PrimitiveAggregateFunc;
 import com.odiago.flumebase.lang.ScalarFunc;
 import com.odiago.flumebase.lang.Type;
 import com.odiago.flumebase.lang.TypeCheckException;
 import com.odiago.flumebase.lang.UniversalType;
+import com.odiago.flumebase.lang.WindowAccumulator;
 
 /**
  * Function call expression.
@@ -262,6 +265,11 @@ public class FnCallExpr extends Expr {
     return mExecFunc instanceof AggregateFunc;
   }
 
+  /** @return true if this fn call is an aggregate function with primitive state. */
+  public boolean isPrimitiveAggregate() {
+    return mExecFunc instanceof PrimitiveAggregateFunc;
+  }
+
   /** @return true if this fn call is a scalar function. */
   public boolean isScalar() {
     return mExecFunc instanceof ScalarFunc;
@@ -310,6 +318,53 @@ public class FnCallExpr extends Expr {
     }
   }
 
+  @Override
+  protected CompiledExpr compileExpr() {
+    if (!isScalar()) {
+      // Aggregate functions are driven through insertAggregate() and finishWindow().
+      return super.compileExpr();
+    }
+
+    CompiledExpr[] args = new CompiledExpr[mArgExprs.size()];
+    for (int i = 0; i < args.length; i++) {
+      args[i] = mArgExprs.get(i).compile();
+      if (mAutoPromote && !mExprTypes.get(i).equals(mArgTypes[i])) {
+        args[i] = new CompiledExpr.Coerced(args[i], mExprTypes.get(i), mArgTypes[i]);
+      }
+    }
+
+    return new ScalarCall((ScalarFunc) mExecFunc, args);
+  }
+
+  /** Compiled form of a scalar function call. */
+  private static class ScalarCall extends CompiledExpr {
+    private final ScalarFunc mFunc;
+    private final CompiledExpr[] mArgs;
+
+    /** Reusable array where argument results are stored. */
+    private final Object[] mArgValues;
+
+    ScalarCall(ScalarFunc func, CompiledExpr[] args) {
+      mFunc = func;
+      mArgs = args;
+      mArgValues = new Object[args.length];
+    }
+
+    @Override
+    public Object eval(EventWrapper e) throws IOException {
+      // Evaluate arguments left-to-right.
+      for (int i = 0; i < mArgs.length; i++) {
+        mArgValues[i] = mArgs[i].eval(e);
+      }
+
+      try {
+        return mFunc.eval(mArgValues);
+      } catch (EvalException ee) {
+        throw new IOException(ee);
+      }
+    }
+  }
+
   /**
    * For a function call representing an aggregation function, call the
    * bucket-insertion method of the AggregationFunc on the (already
@@ -326,6 +381,47 @@ public class FnCallExpr extends Expr {
     }
   }
 
+  /**
+   * For a function call representing an aggregation function, call the
+   * bucket-insertion method of the AggregationFunc on an argument value
+   * previously returned by evalAggregateArgument().
+   */
+  public <T> void insertAggregateValue(Object value, Bucket<T> bucket) throws IOException {
+    assert mExecFunc instanceof AggregateFunc;
+    try {
+      ((AggregateFunc<T>) mExecFunc).addToBucket(value, bucket, mReturnType);
+    } catch (EvalException ee) {
+      throw new IOException(ee);
+    }
+  }
+
+  /**
+   * For a function call representing a PrimitiveAggregateFunc, bind the
+   * function to the resolved argument and return types of this call.
+   * @throws IOException if the bound aggregate cannot take the argument type.
+   */
+  public PrimitiveAggregate bindPrimitiveAggregate() throws IOException {
+    assert mExecFunc instanceof PrimitiveAggregateFunc;
+    try {
+      PrimitiveAggregate aggregate =
+          ((PrimitiveAggregateFunc) mExecFunc).bind(mArgTypes[0], mReturnType);
+      aggregate.checkBinding(mArgTypes[0]);
+      return aggregate;
+    } catch (EvalException ee) {
+      throw new IOException(ee);
+    }
+  }
+
+  /**
+   * For a function call representing an aggregation function, evaluate
+   * its argument over the event.
+   */
+  public Object evalAggregateArgument(EventWrapper e) throws IOException {
+    assert mExecFunc instanceof AggregateFunc;
+    evaluateArguments(e);
+    return mPartialResults[0];
+  }
+
   /**
    * For a function call representing an aggregation function, call the
    * finishWindow method of the AggregationFunc on the set of buckets
@@ -341,6 +437,15 @@ public class FnCallExpr extends Expr {
     }
   }
 
+  /**
+   * @return a new WindowAccumulator for the aggregate function, or null if the
+   * function only supports finishWindow().
+   */
+  public WindowAccumulator newWindowAccumulator() {
+    assert mExecFunc instanceof AggregateFunc;
+    return ((AggregateFunc) mExecFunc).newWindowAccumulator(mReturnType);
+  }
+
   @Override
   public Type getResolvedType() {
     return mReturnType;
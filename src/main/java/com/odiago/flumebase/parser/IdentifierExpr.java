@@ -52,6 +52,9 @@ public class IdentifierExpr extends Expr {
    */
   private AssignedSymbol mAssignedSym;
 
+  /** The field read by eval(); built on first use. */
+  private TypedField mField;
+
   public IdentifierExpr(String identifier) {
     mIdentifier = identifier;
   }
@@ -66,6 +69,7 @@ public class IdentifierExpr extends Expr {
 
   public void setAssignedName(String assignedName) {
     mAssignedName = assignedName;
+    mField = null;
   }
 
   @Override
@@ -101,6 +105,7 @@ public class IdentifierExpr extends Expr {
    */
   public void setType(Type t) {
     mType = t;
+    mField = null;
   }
 
   @Override
@@ -133,7 +138,30 @@ public class IdentifierExpr extends Expr {
 
   @Override
   public Object eval(EventWrapper e) throws IOException {
-    return e.getField(new TypedField(mAssignedName, mType));
+    if (null == mField) {
+      mField = new TypedField(mAssignedName, mType);
+    }
+
+    return e.getField(mField);
+  }
+
+  @Override
+  protected CompiledExpr compileExpr() {
+    return new FieldReader(new TypedField(mAssignedName, mType));
+  }
+
+  /** Compiled form of an IdentifierExpr; reads a single field of the event. */
+  private static class FieldReader extends CompiledExpr {
+    private final TypedField mField;
+
+    FieldReader(TypedField field) {
+      mField = field;
+    }
+
+    @Override
+    public Object eval(EventWrapper e) throws IOException {
+      return e.getField(mField);
+    }
   }
 
   @Override
@@ -20,7 +20,10 @@ package com.odiago.flumebase.parser;
 import java.io.IOException;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.avro.Schema;
 
@@ -34,6 +37,7 @@ import com.odiago.flumebase.exec.SymbolTable;
 
 import com.odiago.flumebase.plan.FlowSpecification;
 import com.odiago.flumebase.plan.HashJoinNode;
+import com.odiago.flumebase.plan.MultiJoinNode;
 import com.odiago.flumebase.plan.PlanContext;
 import com.odiago.flumebase.plan.PlanNode;
 
@@ -178,65 +182,92 @@ public class JoinedSource extends RecordSource {
     mWindowExpr.format(sb, depth + 2);
   }
 
-  @Override
-  public PlanContext createExecPlan(PlanContext planContext) {
-    RecordSource leftSrc = getLeft();
-    RecordSource rightSrc = getRight();
-
-    // Create separate execution plans to gather data from our upstream sources.
-    PlanContext leftContext = getSubPlan(leftSrc, planContext);
-    PlanContext rightContext = getSubPlan(rightSrc, planContext);
-
-    // Add our upstream source plans to our graph.
-    FlowSpecification flowSpec = planContext.getFlowSpec();
-    flowSpec.addNodesFromDAG(leftContext.getFlowSpec());
-    flowSpec.addNodesFromDAG(rightContext.getFlowSpec());
-    
-    // Get the true field names that represent keys on the left and right
-    // sides of the join.
-    String leftName = leftSrc.getSourceName();
-    AssignedSymbol leftSym = (AssignedSymbol) getLeftKey().resolveAliases();
-    TypedField leftKey = new TypedField(leftSym.getAssignedName(), leftSym.getType());
-
-    String rightName = rightSrc.getSourceName();
-    AssignedSymbol rightSym = (AssignedSymbol) getRightKey().resolveAliases();
-    TypedField rightKey = new TypedField(rightSym.getAssignedName(), rightSym.getType());
+  /**
+   * @return the TypedField naming the underlying field for a join key symbol.
+   */
+  private static TypedField getKeyField(Symbol keySym) {
+    AssignedSymbol assigned = (AssignedSymbol) keySym.resolveAliases();
+    return new TypedField(assigned.getAssignedName(), assigned.getType());
+  }
 
-    WindowSpec window = null;
+  /**
+   * @return the window specification of this join, or null if it cannot be
+   * evaluated.
+   */
+  private WindowSpec evalWindow() {
     try {
       // This should evaluate to itself, but make sure to resolve it anyway.
       assert mWindowExpr.isConstant();
-      window = (WindowSpec) mWindowExpr.eval(new EmptyEventWrapper());
+      return (WindowSpec) mWindowExpr.eval(new EmptyEventWrapper());
     } catch (IOException ioe) {
       // mWindowExpr should be constant, so this should be impossible.
       LOG.error("IOException calculating window expression: " + ioe);
-      // Signal error by returning a null flow specification anyway.
-      planContext.setFlowSpec(null);
-      return planContext;
+      return null;
     }
+  }
 
-    HashJoinNode joinNode = new HashJoinNode(leftName, rightName, leftKey, rightKey,
-        window, getSourceName(), leftContext.getOutFields(), rightContext.getOutFields(),
-        planContext.getConf());
+  /**
+   * Find the longest chain of joins "((s0 JOIN s1) JOIN s2) ... " that ends
+   * in this join, in which every join's left key is equal to a key of a join
+   * before it. All the inputs to such a chain are joined on the same value.
+   * @return the joins of the chain, innermost first.
+   */
+  private List<JoinedSource> getKeyedJoinChain() {
+    List<JoinedSource> joins = new ArrayList<JoinedSource>();
+    for (RecordSource src = this; src instanceof JoinedSource;
+        src = ((JoinedSource) src).getLeft()) {
+      joins.add(0, (JoinedSource) src);
+    }
+
+    // Try the longest chain first; drop inner joins until the keys line up.
+    for (int start = 0; start < joins.size() - 1; start++) {
+      Set<String> keyNames = new HashSet<String>();
+      boolean shared = true;
+      for (int i = start; i < joins.size() && shared; i++) {
+        JoinedSource join = joins.get(i);
+        String leftKeyName = getKeyField(join.getLeftKey()).getAvroName();
+        shared = i == start || keyNames.contains(leftKeyName);
+        keyNames.add(leftKeyName);
+        keyNames.add(getKeyField(join.getRightKey()).getAvroName());
+      }
+
+      if (shared) {
+        return joins.subList(start, joins.size());
+      }
+    }
+
+    return Collections.singletonList(this);
+  }
 
+  /**
+   * Add the plan node for a join to the flow, and create an output context
+   * describing its output fields.
+   */
+  private PlanContext attachJoinNode(PlanContext planContext, PlanNode joinNode,
+      List<PlanContext> inputContexts) {
     // Set this node to expect multiple input schemas.
     List<Schema> inputSchemas = new ArrayList<Schema>();
-    inputSchemas.add(leftContext.getSchema());
-    inputSchemas.add(rightContext.getSchema());
+    for (PlanContext inputContext : inputContexts) {
+      inputSchemas.add(inputContext.getSchema());
+    }
     joinNode.setAttr(PlanNode.MULTI_INPUT_SCHEMA_ATTR, inputSchemas);
 
-    flowSpec.attachToLastLayer(joinNode);
+    planContext.getFlowSpec().attachToLastLayer(joinNode);
 
     // Create an output context defining our fields, etc.
     PlanContext outContext = new PlanContext(planContext);
 
-    SymbolTable outTable = SymbolTable.mergeSymbols(leftContext.getSymbolTable(),
-        rightContext.getSymbolTable(), planContext.getSymbolTable());
+    SymbolTable outTable = inputContexts.get(0).getSymbolTable();
+    for (int i = 1; i < inputContexts.size(); i++) {
+      outTable = SymbolTable.mergeSymbols(outTable, inputContexts.get(i).getSymbolTable(),
+          planContext.getSymbolTable());
+    }
     outContext.setSymbolTable(outTable);
 
     List<TypedField> outputFields = new ArrayList<TypedField>();
-    outputFields.addAll(leftContext.getOutFields());
-    outputFields.addAll(rightContext.getOutFields());
+    for (PlanContext inputContext : inputContexts) {
+      outputFields.addAll(inputContext.getOutFields());
+    }
     outputFields = distinctFields(outputFields);
     outContext.setOutFields(outputFields);
 
@@ -246,4 +277,97 @@ public class JoinedSource extends RecordSource {
 
     return outContext;
   }
+
+  /**
+   * Create the execution plan for a chain of joins on a shared key, as a
+   * single MultiJoinNode.
+   * @param joins the joins in the chain, innermost first. The last is this join.
+   */
+  private PlanContext createMultiJoinPlan(List<JoinedSource> joins,
+      PlanContext planContext) {
+    List<RecordSource> inputs = new ArrayList<RecordSource>();
+    List<TypedField> keys = new ArrayList<TypedField>();
+    List<WindowSpec> windows = new ArrayList<WindowSpec>();
+
+    JoinedSource innermost = joins.get(0);
+    inputs.add(innermost.getLeft());
+    keys.add(getKeyField(innermost.getLeftKey()));
+    windows.add(null);
+
+    for (JoinedSource join : joins) {
+      WindowSpec window = join.evalWindow();
+      if (null == window) {
+        // Signal error by returning a null flow specification.
+        planContext.setFlowSpec(null);
+        return planContext;
+      }
+
+      inputs.add(join.getRight());
+      keys.add(getKeyField(join.getRightKey()));
+      windows.add(window);
+    }
+
+    // Create separate execution plans to gather data from each upstream source,
+    // and add them to our graph.
+    FlowSpecification flowSpec = planContext.getFlowSpec();
+    List<PlanContext> inputContexts = new ArrayList<PlanContext>();
+    List<String> inputNames = new ArrayList<String>();
+    List<List<TypedField>> inputFields = new ArrayList<List<TypedField>>();
+    for (RecordSource input : inputs) {
+      PlanContext inputContext = getSubPlan(input, planContext);
+      flowSpec.addNodesFromDAG(inputContext.getFlowSpec());
+      inputContexts.add(inputContext);
+      inputNames.add(input.getSourceName());
+      inputFields.add(inputContext.getOutFields());
+    }
+
+    MultiJoinNode joinNode = new MultiJoinNode(inputNames, keys, windows,
+        getSourceName(), inputFields, planContext.getConf());
+    return attachJoinNode(planContext, joinNode, inputContexts);
+  }
+
+  @Override
+  public PlanContext createExecPlan(PlanContext planContext) {
+    // A chain of joins on a shared key is performed by a single operator.
+    List<JoinedSource> joinChain = getKeyedJoinChain();
+    if (joinChain.size() > 1) {
+      return createMultiJoinPlan(joinChain, planContext);
+    }
+
+    RecordSource leftSrc = getLeft();
+    RecordSource rightSrc = getRight();
+
+    // Create separate execution plans to gather data from our upstream sources.
+    PlanContext leftContext = getSubPlan(leftSrc, planContext);
+    PlanContext rightContext = getSubPlan(rightSrc, planContext);
+
+    // Add our upstream source plans to our graph.
+    FlowSpecification flowSpec = planContext.getFlowSpec();
+    flowSpec.addNodesFromDAG(leftContext.getFlowSpec());
+    flowSpec.addNodesFromDAG(rightContext.getFlowSpec());
+    
+    // Get the true field names that represent keys on the left and right
+    // sides of the join.
+    String leftName = leftSrc.getSourceName();
+    TypedField leftKey = getKeyField(getLeftKey());
+
+    String rightName = rightSrc.getSourceName();
+    TypedField rightKey = getKeyField(getRightKey());
+
+    WindowSpec window = evalWindow();
+    if (null == window) {
+      // Signal error by returning a null flow specification anyway.
+      planContext.setFlowSpec(null);
+      return planContext;
+    }
+
+    HashJoinNode joinNode = new HashJoinNode(leftName, rightName, leftKey, rightKey,
+        window, getSourceName(), leftContext.getOutFields(), rightContext.getOutFields(),
+        planContext.getConf());
+
+    List<PlanContext> inputContexts = new ArrayList<PlanContext>();
+    inputContexts.add(leftContext);
+    inputContexts.add(rightContext);
+    return attachJoinNode(planContext, joinNode, inputContexts);
+  }
 }
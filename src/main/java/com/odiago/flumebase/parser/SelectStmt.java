@@ -459,6 +459,11 @@ public class SelectStmt extends RecordSource {
       }
       Schema aggregateOutSchema = createFieldSchema(aggOutputFields);
       aggregateNode.setAttr(PlanNode.OUTPUT_SCHEMA_ATTR, aggregateOutSchema);
+      if (null != mAlias) {
+        // Our output may be joined with other streams, which tell their
+        // inputs apart by name.
+        aggregateNode.setAttr(PlanNode.OUTPUT_STREAM_NAME_ATTR, mAlias);
+      }
     }
   }
 
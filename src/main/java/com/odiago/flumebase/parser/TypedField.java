@@ -46,6 +46,38 @@ public class TypedField {
    */
   private String mDisplayName;
 
+  /**
+   * The position of a field within one particular field layout (e.g., the
+   * list of column names of a stream, or a record schema). Immutable, so it
+   * may be read by other threads without synchronization.
+   */
+  private static final class Slot {
+    private final Object mLayout;
+    private final int mIndex;
+
+    Slot(Object layout, int index) {
+      mLayout = layout;
+      mIndex = index;
+    }
+  }
+
+  /** The most layouts whose positions a field records at once. */
+  private static final int MAX_LAYOUTS = 8;
+
+  private static final Slot[] NO_SLOTS = new Slot[0];
+
+  /**
+   * Positions of this field within the layouts it has been resolved against.
+   * A field is usually read from one or two layouts, but a field of a
+   * cascaded join is read through each join's layout and the source's field
+   * list in turn; all of them stay cached together. The array is replaced,
+   * never modified, when a layout is added.
+   */
+  private volatile Slot[] mSlots = NO_SLOTS;
+
+  /** Which slot setIndex() replaces next once all MAX_LAYOUTS are in use. */
+  private int mNextReplace;
+
   public TypedField(String name, Type type) {
     this(name, type, name, name);
   }
@@ -73,6 +105,47 @@ public class TypedField {
     return mDisplayName;
   }
 
+  /**
+   * @return the position of this field in the specified layout, as previously
+   * recorded by setIndex(), or -1 if it has not been resolved against that layout.
+   * Layouts are compared by identity, so this is a cheap check that EventWrappers
+   * use to avoid searching for a field by name on every access.
+   */
+  public int getIndex(Object layout) {
+    Slot[] slots = mSlots;
+    for (int i = 0; i < slots.length; i++) {
+      if (slots[i].mLayout == layout) {
+        return slots[i].mIndex;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * Record the position of this field in the specified layout. The layout
+   * object must not change afterward.
+   */
+  public synchronized void setIndex(Object layout, int index) {
+    if (getIndex(layout) == index) {
+      return; // Another thread got here first.
+    }
+
+    Slot[] slots = mSlots;
+    Slot[] newSlots;
+    if (slots.length < MAX_LAYOUTS) {
+      newSlots = new Slot[slots.length + 1];
+      System.arraycopy(slots, 0, newSlots, 0, slots.length);
+      newSlots[slots.length] = new Slot(layout, index);
+    } else {
+      // Only layouts that are no longer read from should be pushed out here.
+      newSlots = slots.clone();
+      newSlots[mNextReplace] = new Slot(layout, index);
+      mNextReplace = (mNextReplace + 1) % MAX_LAYOUTS;
+    }
+    mSlots = newSlots;
+  }
+
   @Override
   public String toString() {
     return mAvroName + "/" + mUserAlias + "/(" + mDisplayName + ") " + mType;
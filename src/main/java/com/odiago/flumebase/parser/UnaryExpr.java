@@ -184,6 +184,83 @@ public class UnaryExpr extends Expr {
     }
   }
 
+  @Override
+  protected CompiledExpr compileExpr() {
+    final CompiledExpr child = mSubExpr.compile();
+    switch (mOp) {
+    case Plus:
+      return child;
+    case Minus:
+      switch (mSubExpr.getResolvedType().getPrimitiveTypeName()) {
+      case INT:
+        return new CompiledExpr.IntValued() {
+          @Override
+          public int evalInt(EventWrapper e) throws IOException {
+            int val = child.evalInt(e);
+            setWasNull(child.wasNull());
+            return -val;
+          }
+        };
+      case BIGINT:
+        return new CompiledExpr.LongValued() {
+          @Override
+          public long evalLong(EventWrapper e) throws IOException {
+            long val = child.evalLong(e);
+            setWasNull(child.wasNull());
+            return -val;
+          }
+        };
+      case FLOAT:
+        return new CompiledExpr.FloatValued() {
+          @Override
+          public float evalFloat(EventWrapper e) throws IOException {
+            float val = child.evalFloat(e);
+            setWasNull(child.wasNull());
+            return -val;
+          }
+        };
+      case DOUBLE:
+        return new CompiledExpr.DoubleValued() {
+          @Override
+          public double evalDouble(EventWrapper e) throws IOException {
+            double val = child.evalDouble(e);
+            setWasNull(child.wasNull());
+            return -val;
+          }
+        };
+      default:
+        return super.compileExpr();
+      }
+    case Not:
+      return new CompiledExpr.BoolValued() {
+        @Override
+        public boolean evalBool(EventWrapper e) throws IOException {
+          boolean val = child.evalBool(e);
+          setWasNull(child.wasNull());
+          return !val;
+        }
+      };
+    case IsNull:
+      return new CompiledExpr.BoolValued() {
+        @Override
+        public boolean evalBool(EventWrapper e) throws IOException {
+          setWasNull(false);
+          return null == child.eval(e);
+        }
+      };
+    case IsNotNull:
+      return new CompiledExpr.BoolValued() {
+        @Override
+        public boolean evalBool(EventWrapper e) throws IOException {
+          setWasNull(false);
+          return null != child.eval(e);
+        }
+      };
+    default:
+      return super.compileExpr();
+    }
+  }
+
   @Override
   public boolean isConstant() {
     return mSubExpr.isConstant();
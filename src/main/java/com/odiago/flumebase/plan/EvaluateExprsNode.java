@@ -44,6 +44,11 @@ public class EvaluateExprsNode extends PlanNode {
     return mPropagateFields;
   }
 
+  @Override
+  public boolean isShareable() {
+    return true;
+  }
+
   @Override
   public void formatParams(StringBuilder sb) {
     sb.append("EvaluateExprs exprs=(");
@@ -30,6 +30,11 @@ public class FilterNode extends PlanNode {
     mFilterExpr = filterExpr;
   }
 
+  @Override
+  public boolean isShareable() {
+    return true;
+  }
+
   @Override 
   public void formatParams(StringBuilder sb) {
     sb.append("FilterNode mExpr=(");
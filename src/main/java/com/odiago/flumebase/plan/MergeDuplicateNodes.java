@@ -0,0 +1,111 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.odiago.flumebase.plan;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.odiago.flumebase.util.DAG;
+import com.odiago.flumebase.util.DAGOperatorException;
+
+/**
+ * Finds identical prefixes of a FlowSpecification (e.g., the same source
+ * and filter planned once for each of two consumers) and merges them so
+ * that they run once, fanning their output out to all the consumers.
+ *
+ * <p>Two nodes are merged if both are shareable (see PlanNode.isShareable()),
+ * have the same parameters and attributes, and have the same parents, in the
+ * same order. Merging proceeds from the roots downward until no duplicates
+ * remain, so chains of identical nodes collapse one layer at a time.</p>
+ *
+ * <p>This should be run after PropagateSchemas, so that the schemas of each
+ * node are part of its identity.</p>
+ */
+public class MergeDuplicateNodes {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      MergeDuplicateNodes.class.getName());
+
+  /**
+   * @return a string which is identical for two nodes iff they may be merged.
+   */
+  private String getSignature(PlanNode node) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(node.getClass().getName());
+    sb.append(" inputs=");
+    for (PlanNode parent : node.getParents()) {
+      sb.append(parent.getId());
+      sb.append(",");
+    }
+    sb.append("\n");
+    node.formatParams(sb);
+    return sb.toString();
+  }
+
+  /**
+   * Find one pair of duplicate nodes in the flow and merge them.
+   * @return true if a pair was merged, false if there are no duplicates.
+   */
+  private boolean mergeOne(FlowSpecification spec) throws DAGOperatorException {
+    final List<PlanNode> nodes = new ArrayList<PlanNode>();
+    spec.bfs(new DAG.Operator<PlanNode>() {
+      @Override
+      public void process(PlanNode node) {
+        nodes.add(node);
+      }
+    });
+
+    Map<String, PlanNode> canonicalNodes = new HashMap<String, PlanNode>();
+    for (PlanNode node : nodes) {
+      if (!node.isShareable()) {
+        continue;
+      }
+
+      String signature = getSignature(node);
+      PlanNode canonical = canonicalNodes.get(signature);
+      if (null == canonical) {
+        canonicalNodes.put(signature, node);
+        continue;
+      }
+
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Merging plan node " + node.getId() + " into " + canonical.getId());
+      }
+
+      if (node.isRoot()) {
+        spec.getRootSet().remove(node);
+      }
+      node.replaceWith(canonical);
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Merge all duplicate nodes in the specified flow.
+   */
+  public void merge(FlowSpecification spec) throws DAGOperatorException {
+    while (mergeOne(spec)) {
+      // Keep going until we reach a fixed point.
+    }
+  }
+}
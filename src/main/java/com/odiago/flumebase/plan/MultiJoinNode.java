@@ -0,0 +1,99 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.plan;
+
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+
+import com.odiago.flumebase.parser.TypedField;
+import com.odiago.flumebase.parser.WindowSpec;
+
+/**
+ * Join three or more input streams into an output stream, where every
+ * input is joined on the same key within range intervals.
+ *
+ * This replaces a chain of HashJoinNodes of the form
+ * "((s0 JOIN s1) JOIN s2) ...", where each join's key is equal to the key
+ * of the join before it. Input i (for i &gt; 0) is joined to the result of
+ * joining inputs 0..i-1 over window i.
+ */
+public class MultiJoinNode extends PlanNode {
+
+  private List<String> mInputNames; // names of the input streams, in join order.
+  private List<TypedField> mKeys; // the key field from each input stream.
+  private List<WindowSpec> mWindows; // window for each input; the first is unused.
+  private String mOutName; // name to assign to the output stream from this join.
+  private List<List<TypedField>> mInputFields; // field names from each input stream.
+  private Configuration mConf; // user configuration.
+
+  public MultiJoinNode(List<String> inputNames, List<TypedField> keys,
+      List<WindowSpec> windows, String outName, List<List<TypedField>> inputFields,
+      Configuration conf) {
+    assert inputNames.size() == keys.size();
+    assert inputNames.size() == windows.size();
+    assert inputNames.size() == inputFields.size();
+
+    mInputNames = inputNames;
+    mKeys = keys;
+    mWindows = windows;
+    mOutName = outName;
+    mInputFields = inputFields;
+    mConf = conf;
+  }
+
+  protected void formatParams(StringBuilder sb) {
+    sb.append("MultiJoin inputs=");
+    sb.append(mInputNames);
+    sb.append(", keys=");
+    sb.append(mKeys);
+    sb.append(", widths=");
+    sb.append(mWindows.subList(1, mWindows.size()));
+    sb.append(", outName=");
+    sb.append(mOutName);
+    formatAttributes(sb);
+  }
+
+  public List<String> getInputNames() {
+    return mInputNames;
+  }
+
+  public List<TypedField> getKeys() {
+    return mKeys;
+  }
+
+  /**
+   * @return the windows over which each input is joined to the inputs
+   * before it. The first element is null.
+   */
+  public List<WindowSpec> getWindows() {
+    return mWindows;
+  }
+
+  public String getOutputName() {
+    return mOutName;
+  }
+
+  public Configuration getConf() {
+    return mConf;
+  }
+
+  public List<List<TypedField>> getInputFields() {
+    return mInputFields;
+  }
+}
@@ -34,6 +34,11 @@ public class NamedSourceNode extends PlanNode {
     mFields = fields;
   }
 
+  @Override
+  public boolean isShareable() {
+    return true;
+  }
+
   @Override 
   public void formatParams(StringBuilder sb) {
     sb.append("NamedSource streamName=");
@@ -46,6 +46,14 @@ public class PlanNode extends DAGNode<PlanNode> {
    */
   public static final String MULTI_INPUT_SCHEMA_ATTR = "input.field.multi.schemas";
 
+  /**
+   * Attribute referencing a String naming the stream output by this node,
+   * for nodes which create new events rather than passing through those of a
+   * named source (e.g., the aggregation layer of an aliased sub-query). A
+   * downstream join uses it to tell which input an event or watermark is from.
+   */
+  public static final String OUTPUT_STREAM_NAME_ATTR = "output.stream.name";
+
 
   /**
    * Attribute referencing a Boolean indicating whether typical FlowElement
@@ -97,6 +105,15 @@ public class PlanNode extends DAGNode<PlanNode> {
     return ret;
   }
 
+  /**
+   * @return true if this node has no side effects and its output depends only
+   * on its parameters and its inputs, so that two identical nodes over the same
+   * inputs may be replaced by one. The default is false.
+   */
+  public boolean isShareable() {
+    return false;
+  }
+
   /** Format all free-form attributes of the node into the specified StringBuilder. */
   public void formatAttributes(StringBuilder sb) {
     for (Map.Entry<String, Object> attr : mAttributes.entrySet()) {
@@ -46,6 +46,11 @@ public class ProjectionNode extends PlanNode {
     return mOutputFields;
   }
 
+  @Override
+  public boolean isShareable() {
+    return true;
+  }
+
   @Override
   public void formatParams(StringBuilder sb) {
     sb.append("ProjectionNode inFields=(");
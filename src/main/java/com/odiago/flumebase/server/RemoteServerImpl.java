@@ -217,6 +217,15 @@ class RemoteServerImpl implements RemoteServer.Iface, CloseHandler<UserSession>
     }
   }
 
+  @Override
+  public void watchFlowRecords(TSessionId sessionId, TFlowId flowId) throws TException {
+    try {
+      mExecEnv.watchFlowRecords(SessionId.fromThrift(sessionId), FlowId.fromThrift(flowId));
+    } catch (Exception e) {
+      throw new TException(e);
+    }
+  }
+
   @Override
   public void unwatchFlow(TSessionId sessionId, TFlowId flowId) throws TException {
     try {
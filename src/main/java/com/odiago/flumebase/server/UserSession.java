@@ -17,6 +17,23 @@
 
 package com.odiago.flumebase.server;
 
+import java.io.ByteArrayOutputStream;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.avro.Schema;
+
 import org.apache.thrift.TException;
 
 import org.apache.thrift.transport.TTransport;
@@ -24,17 +41,45 @@ import org.apache.thrift.transport.TTransport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.odiago.flumebase.exec.FlowId;
+
 import com.odiago.flumebase.thrift.ClientConsole;
+import com.odiago.flumebase.thrift.TRecordBlock;
 
 import com.odiago.flumebase.util.ClosePublisher;
 
 /**
  * State about a user's session, including the callback RPC connection, etc.
+ *
+ * <p>Output for a remote session is not sent on the calling thread. It is
+ * placed in a bounded outbox, and a per-session sender thread delivers it
+ * to the client, coalescing consecutive lines of info into a single
+ * sendInfoBatch() call. If the client does not keep up and the outbox is
+ * full, further lines of info are dropped, and the client is told how many
+ * were lost at the point in the output where they were dropped. Error
+ * messages are never dropped; those still waiting when the session is
+ * closed are delivered before the connection is closed, unless the client
+ * does not take them within CLOSE_FLUSH_MILLIS. A session with no
+ * transport is hosted in-process, and its output is delivered directly.</p>
+ *
+ * <p>A session may ask to receive the output of a flow as Avro records
+ * rather than text. Consecutive records of the same flow are sent together
+ * in a TRecordBlock; the record schema is sent with the first block after
+ * the session starts watching the flow, and again only when it changes.</p>
  */
 public class UserSession extends ClosePublisher implements ClientConsole.Iface {
   private static final Logger LOG = LoggerFactory.getLogger(
       UserSession.class.getName());
 
+  /** Max number of lines of info or records waiting to be sent to a remote client. */
+  public static final int MAX_PENDING_LINES = 4096;
+
+  /** Max number of lines or records delivered in a single RPC. */
+  public static final int MAX_BATCH_LEN = 256;
+
+  /** Max time close() waits for pending error messages to be delivered. */
+  public static final long CLOSE_FLUSH_MILLIS = 1000;
+
   /** unique SessionId associated with this connection. */
   private final SessionId mSessionId;
 
@@ -42,25 +87,90 @@ public class UserSession extends ClosePublisher implements ClientConsole.Iface {
   private TTransport mRpcTransport;
 
   /** Thrift service client for the RPC conn back to the client. */
-  private ClientConsole.Iface mClient;
-  
+  private volatile ClientConsole.Iface mClient;
+
+  /**
+   * Lines waiting to be sent to the client by mSender. Guarded by its own
+   * monitor, never by this session's, so producers are not blocked by an RPC
+   * in progress.
+   */
+  private final LinkedList<OutputLine> mOutbox;
+
+  /** Number of info lines and records in mOutbox. */
+  private int mNumPendingInfo;
+
+  /** Flows whose output this session receives as records rather than text. */
+  private final Set<FlowId> mRecordFlows;
+
+  /**
+   * The schema last sent to the client for each flow. Used only by the thread
+   * delivering output; other threads forget a flow's schema by placing a
+   * schema reset in the outbox.
+   */
+  private final Map<FlowId, Schema> mSentSchemas;
+
+  /** Buffer where record blocks are assembled. */
+  private final ByteArrayOutputStream mBlockBytes;
+
+  /** Set to true when the session is closed. */
+  private boolean mIsClosed;
+
+  /** Thread that delivers output to a remote client. */
+  private final SenderThread mSender;
+
   public UserSession(SessionId id, TTransport transport, ClientConsole.Iface client) {
     mSessionId = id;
     mRpcTransport = transport;
     mClient = client;
+    mOutbox = new LinkedList<OutputLine>();
+    mRecordFlows = Collections.newSetFromMap(new ConcurrentHashMap<FlowId, Boolean>());
+    mSentSchemas = new HashMap<FlowId, Schema>();
+    mBlockBytes = new ByteArrayOutputStream();
 
     assert null != id;
     assert null != mClient;
+
+    if (null != transport) {
+      mSender = new SenderThread();
+      mSender.start();
+    } else {
+      mSender = null;
+    }
   }
 
   /**
    * Close the callback RPC connection and release any resources associated
    * with this client. Remove the client from the server's active sessions
-   * table.
+   * table. Pending lines of info and records are discarded; pending error
+   * messages are delivered first, waiting up to CLOSE_FLUSH_MILLIS.
    */
   public synchronized void close() {
+    synchronized (mOutbox) {
+      if (mIsClosed) {
+        return;
+      }
+      mIsClosed = true;
+      Iterator<OutputLine> it = mOutbox.iterator();
+      while (it.hasNext()) {
+        if (!it.next().mIsErr) {
+          it.remove();
+        }
+      }
+      mNumPendingInfo = 0;
+      mOutbox.notify();
+    }
+
     LOG.info("Closing user session: " + mSessionId);
 
+    if (null != mSender && Thread.currentThread() != mSender) {
+      // Let the sender deliver the remaining error messages.
+      try {
+        mSender.join(CLOSE_FLUSH_MILLIS);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
     if (null != mRpcTransport) {
       mRpcTransport.close();
     }
@@ -92,37 +202,381 @@ public class UserSession extends ClosePublisher implements ClientConsole.Iface {
   }
 
   /**
-   * Sends output to the user's console. If this triggers an error, the session
+   * Sends output to the user's console. For a remote session this does not
+   * block; the output may be dropped if the client is not keeping up. If
+   * delivery triggers an error, the session is closed and removed from the
+   * list of active sessions.
+   */
+  public void sendInfo(String output) {
+    if (null == mSender) {
+      sendDirect(output, false);
+    } else {
+      enqueue(output, false);
+    }
+  }
+
+  /**
+   * Sends several lines of output to the user's console, as per sendInfo().
+   */
+  public void sendInfoBatch(List<String> output) {
+    for (String line : output) {
+      sendInfo(line);
+    }
+  }
+
+  /**
+   * Sets whether the output of the specified flow is sent to this session as
+   * records (via sendRecord()) or as text. When record delivery is (re)started,
+   * the client may have a new decoder for the flow, so the schema is sent
+   * again with the next block.
+   */
+  public void setRecordDelivery(FlowId flowId, boolean asRecords) {
+    if (asRecords) {
+      if (null == mSender) {
+        synchronized (this) {
+          mSentSchemas.remove(flowId);
+        }
+      } else {
+        enqueue(new OutputLine(flowId));
+      }
+      mRecordFlows.add(flowId);
+    } else {
+      mRecordFlows.remove(flowId);
+    }
+  }
+
+  /** @return true if this session receives the output of flowId as records. */
+  public boolean isRecordDelivery(FlowId flowId) {
+    return mRecordFlows.contains(flowId);
+  }
+
+  /**
+   * Sends a binary-encoded Avro output record of a flow to the user. For a
+   * remote session this does not block; the record may be dropped if the
+   * client is not keeping up.
+   */
+  public void sendRecord(FlowId flowId, Schema schema, byte[] record) {
+    OutputLine line = new OutputLine(flowId, schema, record);
+    if (null == mSender) {
+      synchronized (this) {
+        List<OutputLine> block = Collections.singletonList(line);
+        sendDirect(makeRecordBlock(block));
+      }
+    } else {
+      enqueue(line);
+    }
+  }
+
+  /**
+   * Sends a block of records that is already assembled, as per sendRecord().
+   * If the block carries a schema, the schema of the session's own blocks
+   * for that flow is sent again with the next of them.
+   */
+  public void sendRecords(TRecordBlock block) {
+    if (null == mSender) {
+      synchronized (this) {
+        forgetSchema(block);
+        sendDirect(block);
+      }
+    } else {
+      enqueue(new OutputLine(block));
+    }
+  }
+
+  /**
+   * If 'block' sets the client's schema for its flow, forget the schema last
+   * sent for that flow. Must only be called by the thread delivering output.
+   */
+  private void forgetSchema(TRecordBlock block) {
+    if (block.isSetSchema()) {
+      mSentSchemas.remove(FlowId.fromThrift(block.getFlowId()));
+    }
+  }
+
+  /**
+   * Sends err output to the user's console. If this triggers an error, the session
    * is closed and removed from the list of active sessions.
    */
-  public synchronized void sendInfo(String output) {
-    if (null == mClient) {
+  public void sendErr(String output) {
+    if (null == mSender) {
+      sendDirect(output, true);
+    } else {
+      enqueue(output, true);
+    }
+  }
+
+  /** @return the number of lines of info waiting to be sent to the client. */
+  public int getNumPending() {
+    synchronized (mOutbox) {
+      return mNumPendingInfo;
+    }
+  }
+
+  /** Deliver a line to the client on the calling thread. */
+  private synchronized void sendDirect(String output, boolean isErr) {
+    ClientConsole.Iface client = mClient;
+    if (null == client) {
       // We're already closed. Ignore.
       return;
     }
     try {
-      mClient.sendInfo(output);
+      if (isErr) {
+        client.sendErr(output);
+      } else {
+        client.sendInfo(output);
+      }
     } catch (TException te) {
       LOG.error("Could not send data to client: " + te);
       close();
     }
   }
 
-  /**
-   * Sends err output to the user's console. If this triggers an error, the session
-   * is closed and removed from the list of active sessions.
-   */
-  public synchronized void sendErr(String output) {
-    if (null == mClient) {
+  /** Deliver a block of records to the client on the calling thread. */
+  private synchronized void sendDirect(TRecordBlock block) {
+    ClientConsole.Iface client = mClient;
+    if (null == client) {
       // We're already closed. Ignore.
       return;
     }
     try {
-      mClient.sendErr(output);
+      client.sendRecords(block);
     } catch (TException te) {
       LOG.error("Could not send data to client: " + te);
       close();
     }
   }
-}
 
+  /**
+   * Assemble a block of records, all from the same flow, to send to the client.
+   * Must only be called by the thread delivering output.
+   */
+  private TRecordBlock makeRecordBlock(List<OutputLine> records) {
+    OutputLine first = records.get(0);
+    mBlockBytes.reset();
+    for (OutputLine record : records) {
+      mBlockBytes.write(record.mRecord, 0, record.mRecord.length);
+    }
+
+    TRecordBlock block = new TRecordBlock();
+    block.setFlowId(first.mFlowId.toThrift());
+    block.setCount(records.size());
+    block.setRecords(ByteBuffer.wrap(mBlockBytes.toByteArray()));
+    if (first.mSchema != mSentSchemas.get(first.mFlowId)) {
+      block.setSchema(first.mSchema.toString());
+      mSentSchemas.put(first.mFlowId, first.mSchema);
+    }
+    return block;
+  }
+
+  /** Add a line of text to the outbox for the sender thread. */
+  private void enqueue(String output, boolean isErr) {
+    enqueue(new OutputLine(output, isErr));
+  }
+
+  /** Add a line to the outbox for the sender thread. */
+  private void enqueue(OutputLine line) {
+    synchronized (mOutbox) {
+      if (mIsClosed) {
+        // We're already closed. Ignore.
+        return;
+      } else if (line.isInfo() && mNumPendingInfo >= MAX_PENDING_LINES) {
+        // Tell the client about the loss after the lines queued before it.
+        if (!mOutbox.isEmpty() && mOutbox.getLast().isDropNotice()) {
+          mOutbox.getLast().mNumDropped++;
+        } else {
+          mOutbox.add(new OutputLine(1));
+          mOutbox.notify();
+        }
+        return;
+      }
+
+      mOutbox.add(line);
+      if (line.isInfo()) {
+        mNumPendingInfo++;
+      }
+      mOutbox.notify();
+    }
+  }
+
+  /**
+   * A line of text, a record or block of records, a notice of dropped output,
+   * or a request to forget the schema sent for a flow, waiting in the outbox.
+   */
+  private static class OutputLine {
+    private final String mText;
+    private final boolean mIsErr;
+
+    // Set for records and schema resets only.
+    private final FlowId mFlowId;
+
+    // Set for records only.
+    private final Schema mSchema;
+    private final byte[] mRecord;
+
+    // Set for blocks of records assembled by the caller only.
+    private final TRecordBlock mBlock;
+
+    // Set for drop notices only: the number of consecutive lines of info and
+    // records dropped at this point. Guarded by mOutbox.
+    private long mNumDropped;
+
+    public OutputLine(String text, boolean isErr) {
+      mText = text;
+      mIsErr = isErr;
+      mFlowId = null;
+      mSchema = null;
+      mRecord = null;
+      mBlock = null;
+    }
+
+    public OutputLine(FlowId flowId, Schema schema, byte[] record) {
+      mText = null;
+      mIsErr = false;
+      mFlowId = flowId;
+      mSchema = schema;
+      mRecord = record;
+      mBlock = null;
+    }
+
+    public OutputLine(TRecordBlock block) {
+      mText = null;
+      mIsErr = false;
+      mFlowId = null;
+      mSchema = null;
+      mRecord = null;
+      mBlock = block;
+    }
+
+    /** Create a notice that lines of info were dropped. */
+    public OutputLine(long numDropped) {
+      mText = null;
+      mIsErr = true;
+      mFlowId = null;
+      mSchema = null;
+      mRecord = null;
+      mBlock = null;
+      mNumDropped = numDropped;
+    }
+
+    /** Create a schema reset for the specified flow. */
+    public OutputLine(FlowId flowId) {
+      mText = null;
+      mIsErr = false;
+      mFlowId = flowId;
+      mSchema = null;
+      mRecord = null;
+      mBlock = null;
+    }
+
+    public boolean isRecord() {
+      return null != mRecord;
+    }
+
+    public boolean isBlock() {
+      return null != mBlock;
+    }
+
+    public boolean isDropNotice() {
+      return mNumDropped > 0;
+    }
+
+    public boolean isSchemaReset() {
+      return null != mFlowId && null == mRecord;
+    }
+
+    /** @return true for lines of info and records, which may be dropped. */
+    public boolean isInfo() {
+      return !mIsErr && !isSchemaReset();
+    }
+  }
+
+  /**
+   * Thread that delivers the contents of the outbox to a remote client.
+   */
+  private class SenderThread extends Thread {
+    public SenderThread() {
+      super("ConsoleSender-" + mSessionId);
+      setDaemon(true);
+    }
+
+    public void run() {
+      List<String> infoBatch = new ArrayList<String>();
+      List<OutputLine> recordBatch = new ArrayList<OutputLine>();
+      while (true) {
+        String errLine = null;
+        TRecordBlock block = null;
+        infoBatch.clear();
+        recordBatch.clear();
+
+        synchronized (mOutbox) {
+          while (mOutbox.isEmpty() && !mIsClosed) {
+            try {
+              mOutbox.wait();
+            } catch (InterruptedException ie) {
+              // Check the closed flag and continue waiting.
+            }
+          }
+
+          if (mOutbox.isEmpty()) {
+            return; // Closed, and every error message has been delivered.
+          }
+
+          while (!mOutbox.isEmpty() && mOutbox.getFirst().isSchemaReset()) {
+            mSentSchemas.remove(mOutbox.removeFirst().mFlowId);
+          }
+
+          // Take a run of consecutive info lines, a run of records from the
+          // same flow, or a single error line or block of records.
+          if (!mOutbox.isEmpty() && mOutbox.getFirst().isBlock()) {
+            block = mOutbox.removeFirst().mBlock;
+            mNumPendingInfo--;
+          } else if (!mOutbox.isEmpty() && mOutbox.getFirst().isDropNotice()) {
+            errLine = "(" + mOutbox.removeFirst().mNumDropped + " lines of output dropped; "
+                + "the client is not keeping up)";
+          } else if (!mOutbox.isEmpty() && mOutbox.getFirst().mIsErr) {
+            errLine = mOutbox.removeFirst().mText;
+          } else if (!mOutbox.isEmpty() && mOutbox.getFirst().isRecord()) {
+            FlowId flowId = mOutbox.getFirst().mFlowId;
+            while (!mOutbox.isEmpty() && mOutbox.getFirst().isRecord()
+                && mOutbox.getFirst().mFlowId.equals(flowId)
+                && recordBatch.size() < MAX_BATCH_LEN) {
+              recordBatch.add(mOutbox.removeFirst());
+            }
+            mNumPendingInfo -= recordBatch.size();
+          } else {
+            while (!mOutbox.isEmpty() && mOutbox.getFirst().isInfo()
+                && !mOutbox.getFirst().isRecord() && !mOutbox.getFirst().isBlock()
+                && infoBatch.size() < MAX_BATCH_LEN) {
+              infoBatch.add(mOutbox.removeFirst().mText);
+            }
+            mNumPendingInfo -= infoBatch.size();
+          }
+        }
+
+        ClientConsole.Iface client = mClient;
+        if (null == client) {
+          return;
+        }
+
+        try {
+          if (null != errLine) {
+            client.sendErr(errLine);
+          } else if (null != block) {
+            forgetSchema(block);
+            client.sendRecords(block);
+          } else if (recordBatch.size() > 0) {
+            client.sendRecords(makeRecordBlock(recordBatch));
+          } else if (infoBatch.size() == 1) {
+            client.sendInfo(infoBatch.get(0));
+          } else if (infoBatch.size() > 1) {
+            client.sendInfoBatch(infoBatch);
+          }
+        } catch (TException te) {
+          LOG.error("Could not send data to client: " + te);
+          close();
+          return;
+        }
+      }
+    }
+  }
+}
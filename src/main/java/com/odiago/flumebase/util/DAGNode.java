@@ -97,6 +97,26 @@ public class DAGNode<NODETYPE extends DAGNode> {
     parent.mOutputs.add(this);
   }
 
+  /**
+   * Removes this node from the DAG, and connects each of its children to
+   * 'replacement' in its place. The children keep the position of this node
+   * in their list of parents. This node's parents no longer list it as a child.
+   */
+  public void replaceWith(NODETYPE replacement) {
+    DAGNode<NODETYPE> other = replacement;
+    for (NODETYPE child : mOutputs) {
+      List<NODETYPE> childInputs = ((DAGNode<NODETYPE>) child).mInputs;
+      childInputs.set(childInputs.indexOf(this), replacement);
+      other.mOutputs.add(child);
+    }
+    mOutputs.clear();
+
+    for (NODETYPE parent : mInputs) {
+      ((DAGNode<NODETYPE>) parent).mOutputs.remove(this);
+    }
+    mInputs.clear();
+  }
+
   /** @return the node's id within the graph. */
   public int getId() {
     return mId;
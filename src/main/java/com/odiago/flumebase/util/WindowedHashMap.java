@@ -17,16 +17,19 @@
 
 package com.odiago.flumebase.util;
 
+import java.io.IOException;
+
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
 import java.util.Set;
-import java.util.TreeMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,29 +39,496 @@ import com.cloudera.util.Pair;
 /**
  * A hash map implementation suitable for windowed join operations.  Each
  * entry in the HashMap has, in addition to a key and a value, a
- * <i>timestamp</i> field with type T.
+ * <i>timestamp</i> field.
+ *
+ * <p>For each key, the (timestamp, value) pairs are kept in a pair of
+ * parallel ring buffers sorted by timestamp, with timestamps held as
+ * primitive longs. A time-ranged lookup for a key is two binary searches,
+ * and returns a contiguous slice of that key's values.</p>
  *
- * <p>Entries are kept in a (k, List (t, v)) HashMap internally. There is a
- * second TreeMap contained inside which maps (timestamp, List k). This allows
- * for time-ranged iteration over the entries in the map, as well as insertion
- * of timestamped entries out of order (which java.util.LinkedHashMap does not
- * provide).  </p>
+ * <p>Every entry is also recorded in a global log of (timestamp, key)
+ * pairs. Entries which arrive in timestamp order are appended to a ring
+ * buffer; expiring old entries pops them from the head of the ring, and
+ * from the head of the matching key's entries, in constant time per entry.
+ * Timestamped entries may be inserted out of order (which
+ * java.util.LinkedHashMap does not provide). An entry older than the newest
+ * one in the ring goes into a binary heap of late entries instead, in
+ * O(log l) time for l late entries held; expiry pops from whichever of the
+ * ring and the heap holds the older entry. Within its key's entries, a late
+ * entry is moved into place by shifting the key's newer or older entries,
+ * whichever are fewer, so its cost grows only with the number of entries
+ * for the same key that arrived ahead of it.</p>
+ *
+ * <p>Each stored entry costs a long and a reference in its key's arrays,
+ * and the same again in the log: 24 bytes with compressed object pointers.
+ * Every array grows by an eighth when full and is shrunk when more than a
+ * fifth of it is unused, so each is at least 80% full and an entry costs
+ * at most 30 bytes. On top of that, each distinct key holds up to
+ * 2 * MIN_KEY_SLACK unused slots and its own object headers, and the map
+ * holds up to 2 * MIN_LOG_SLACK unused slots in each of the ring and the
+ * heap. Log entries for a key removed with remove() keep their slots until
+ * they expire.</p>
  *
  * <p>Multiple keys may have the same timestamp.</p>
  * <p>This map may not store null values.</p>
+ *
+ * <p>The Map methods which return lists of (timestamp, value) pairs (get(),
+ * values(), entrySet()) return copies of the underlying data.</p>
  */
-public class WindowedHashMap<K, V, T extends Comparable<T>>
-    implements Map<K, List<Pair<T, V>>> {
+public class WindowedHashMap<K, V> implements Map<K, List<Pair<Long, V>>> {
 
   private static final Logger LOG = LoggerFactory.getLogger(
       WindowedHashMap.class.getName());
 
-  private HashMap<K, List<Pair<T, V>>> mHashMap;
-  private TreeMap<T, List<K>> mTimestamps;
+  /**
+   * Receives the entries removed from the map by removeOlderThan(), in
+   * timestamp order.
+   */
+  public interface EvictionListener<K, V> {
+    void evicted(K key, V value, long timestamp) throws IOException;
+  }
+
+  /**
+   * Unused slots left in a key's arrays when they are resized; also their
+   * initial capacity.
+   */
+  private static final int MIN_KEY_SLACK = 4;
+
+  /**
+   * Unused slots left in the log ring and late heap when they are resized;
+   * also their initial capacity.
+   */
+  private static final int MIN_LOG_SLACK = 64;
+
+  /**
+   * @return the capacity to resize an array holding 'size' entries to: an
+   * eighth more than it holds, and at least 'minSlack' more.
+   */
+  private static int capacityFor(int size, int minSlack) {
+    return size + Math.max(size >> 3, minSlack);
+  }
+
+  /**
+   * @return true if an array of 'capacity' slots holding 'size' entries has
+   * more than a fifth of its slots, and more than twice 'minSlack' slots,
+   * unused, and should be shrunk.
+   */
+  private static boolean isSparse(int size, int capacity, int minSlack) {
+    int unused = capacity - size;
+    return unused > capacity / 5 && unused > 2 * minSlack;
+  }
+
+  /**
+   * The (timestamp, value) entries for a single key, sorted by timestamp.
+   * Entries with equal timestamps are kept in insertion order. The entries
+   * are held in ring buffers starting at mHead, so expiring old entries just
+   * advances mHead. Positions passed to and returned by the methods below
+   * are offsets from the oldest entry.
+   */
+  private static final class KeyEntries<V> {
+    /** The key these entries belong to. */
+    private final Object mKey;
+
+    /** Set when the key is removed from the map; the log skips these. */
+    private boolean mDetached;
+
+    private long[] mTimes;
+    private Object[] mValues;
+    private int mHead;
+    private int mSize;
+
+    KeyEntries(Object key) {
+      mKey = key;
+      mTimes = new long[MIN_KEY_SLACK];
+      mValues = new Object[MIN_KEY_SLACK];
+    }
+
+    int size() {
+      return mSize;
+    }
+
+    /** @return the array index holding the i'th oldest entry. */
+    private int pos(int i) {
+      int pos = mHead + i;
+      return pos < mTimes.length ? pos : pos - mTimes.length;
+    }
+
+    long timeAt(int i) {
+      return mTimes[pos(i)];
+    }
+
+    V valueAt(int i) {
+      return (V) mValues[pos(i)];
+    }
+
+    /**
+     * Add a value to the entries for this key. Values arriving in timestamp
+     * order are appended; a value with an older timestamp is inserted at its
+     * sorted position, by shifting the newer or older entries, whichever
+     * are fewer, one slot along.
+     */
+    void add(long timestamp, V value) {
+      if (mSize == mTimes.length) {
+        resize(capacityFor(mSize, MIN_KEY_SLACK));
+      }
+
+      int at = mSize;
+      if (mSize > 0 && timeAt(mSize - 1) > timestamp) {
+        at = upperBound(timestamp);
+        if (at < mSize - at) {
+          // Move the older entries back a slot.
+          mHead = mHead == 0 ? mTimes.length - 1 : mHead - 1;
+          for (int i = 0; i < at; i++) {
+            move(i + 1, i);
+          }
+        } else {
+          for (int i = mSize; i > at; i--) {
+            move(i - 1, i);
+          }
+        }
+      }
+
+      int pos = pos(at);
+      mTimes[pos] = timestamp;
+      mValues[pos] = value;
+      mSize++;
+    }
+
+    /** Copy the entry at position 'from' to position 'to'. */
+    private void move(int from, int to) {
+      int src = pos(from);
+      int dst = pos(to);
+      mTimes[dst] = mTimes[src];
+      mValues[dst] = mValues[src];
+    }
+
+    /** Copy the entries, oldest first, into arrays with the given capacity. */
+    private void resize(int capacity) {
+      long[] times = new long[capacity];
+      Object[] values = new Object[capacity];
+      int firstLen = Math.min(mSize, mTimes.length - mHead);
+      System.arraycopy(mTimes, mHead, times, 0, firstLen);
+      System.arraycopy(mValues, mHead, values, 0, firstLen);
+      System.arraycopy(mTimes, 0, times, firstLen, mSize - firstLen);
+      System.arraycopy(mValues, 0, values, firstLen, mSize - firstLen);
+      mTimes = times;
+      mValues = values;
+      mHead = 0;
+    }
+
+    /** @return the position of the first entry with time &gt;= t. */
+    int lowerBound(long t) {
+      int lo = 0;
+      int hi = mSize;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (timeAt(mid) < t) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+
+      return lo;
+    }
+
+    /** @return the position of the first entry with time &gt; t. */
+    int upperBound(long t) {
+      int lo = 0;
+      int hi = mSize;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (timeAt(mid) <= t) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+
+      return lo;
+    }
+
+    /**
+     * Remove the oldest entry. The arrays are shrunk when they are sparse,
+     * so a key which was briefly hot does not hold on to them.
+     */
+    void removeFirst() {
+      mValues[mHead] = null;
+      mHead = pos(1);
+      mSize--;
+      if (isSparse(mSize, mTimes.length, MIN_KEY_SLACK)) {
+        resize(capacityFor(mSize, MIN_KEY_SLACK));
+      }
+    }
+
+    /**
+     * @return a read-only view of the values in positions [from, to).
+     */
+    List<V> slice(int from, int to) {
+      if (from >= to) {
+        return Collections.emptyList();
+      }
+
+      return new Slice<V>(mValues, pos(from), to - from);
+    }
+
+    /** @return a copy of the entries as a list of (timestamp, value) pairs. */
+    List<Pair<Long, V>> toPairs() {
+      List<Pair<Long, V>> out = new ArrayList<Pair<Long, V>>(mSize);
+      for (int i = 0; i < mSize; i++) {
+        out.add(new Pair<Long, V>(Long.valueOf(timeAt(i)), valueAt(i)));
+      }
+
+      return out;
+    }
+
+    @Override
+    public boolean equals(Object otherObj) {
+      if (this == otherObj) {
+        return true;
+      } else if (!(otherObj instanceof KeyEntries)) {
+        return false;
+      }
+
+      KeyEntries<?> other = (KeyEntries<?>) otherObj;
+      if (mSize != other.mSize) {
+        return false;
+      }
+
+      for (int i = 0; i < mSize; i++) {
+        if (timeAt(i) != other.timeAt(i) || !valueAt(i).equals(other.valueAt(i))) {
+          return false;
+        }
+      }
+
+      return true;
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = 0;
+      for (int i = 0; i < mSize; i++) {
+        long time = timeAt(i);
+        hash = 31 * hash + (int) (time ^ (time >>> 32));
+        hash = 31 * hash + valueAt(i).hashCode();
+      }
+
+      return hash;
+    }
+  }
+
+  /**
+   * Read-only view of a contiguous range of a KeyEntries' value ring, which
+   * may wrap around the end of the array.
+   */
+  private static final class Slice<V> extends AbstractList<V> implements RandomAccess {
+    private final Object[] mValues;
+    private final int mFrom;
+    private final int mSize;
+
+    Slice(Object[] values, int from, int size) {
+      mValues = values;
+      mFrom = from;
+      mSize = size;
+    }
+
+    @Override
+    public V get(int i) {
+      if (i < 0 || i >= mSize) {
+        throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + mSize);
+      }
+
+      int pos = mFrom + i;
+      return (V) mValues[pos < mValues.length ? pos : pos - mValues.length];
+    }
+
+    @Override
+    public int size() {
+      return mSize;
+    }
+  }
+
+  private HashMap<K, KeyEntries<V>> mHashMap;
+
+  /**
+   * The eviction log: a ring buffer of (timestamp, KeyEntries) pairs, one
+   * per entry in the map, sorted by timestamp. Entries whose KeyEntries has
+   * been detached by remove() are stale and are skipped.
+   */
+  private long[] mLogTimes;
+  private KeyEntries<V>[] mLogEntries;
+
+  /** Ring position of the oldest log entry. */
+  private int mLogHead;
+
+  /** Number of entries in the log. */
+  private int mLogSize;
+
+  /**
+   * Log entries which arrived older than the newest entry in the ring: a
+   * binary min-heap of (timestamp, KeyEntries) pairs ordered by timestamp.
+   * Entries whose KeyEntries has been detached are stale, as in the ring.
+   */
+  private long[] mLateTimes;
+  private KeyEntries<V>[] mLateEntries;
+
+  /** Number of entries in the late heap. */
+  private int mLateSize;
 
   public WindowedHashMap() {
-    mHashMap = new HashMap<K, List<Pair<T, V>>>();
-    mTimestamps = new TreeMap<T, List<K>>();
+    mHashMap = new HashMap<K, KeyEntries<V>>();
+    mLogTimes = new long[MIN_LOG_SLACK];
+    mLogEntries = new KeyEntries[MIN_LOG_SLACK];
+    mLateTimes = new long[MIN_LOG_SLACK];
+    mLateEntries = new KeyEntries[MIN_LOG_SLACK];
+  }
+
+  /** @return the ring position of the i'th oldest log entry. */
+  private int logPos(int i) {
+    int pos = mLogHead + i;
+    return pos < mLogTimes.length ? pos : pos - mLogTimes.length;
+  }
+
+  /** Copy the log ring, oldest first, into arrays with the given capacity. */
+  private void logResize(int capacity) {
+    long[] times = new long[capacity];
+    KeyEntries<V>[] logEntries = new KeyEntries[capacity];
+    int firstLen = Math.min(mLogSize, mLogTimes.length - mLogHead);
+    System.arraycopy(mLogTimes, mLogHead, times, 0, firstLen);
+    System.arraycopy(mLogEntries, mLogHead, logEntries, 0, firstLen);
+    System.arraycopy(mLogTimes, 0, times, firstLen, mLogSize - firstLen);
+    System.arraycopy(mLogEntries, 0, logEntries, firstLen, mLogSize - firstLen);
+    mLogTimes = times;
+    mLogEntries = logEntries;
+    mLogHead = 0;
+  }
+
+  /**
+   * Record an entry for 'entries' at 'timestamp' in the log. Entries no
+   * older than the newest one in the ring are appended to it; older entries
+   * go into the late heap.
+   */
+  private void logInsert(long timestamp, KeyEntries<V> entries) {
+    if (mLogSize > 0 && mLogTimes[logPos(mLogSize - 1)] > timestamp) {
+      lateInsert(timestamp, entries);
+      return;
+    }
+
+    if (mLogSize == mLogTimes.length) {
+      logResize(capacityFor(mLogSize, MIN_LOG_SLACK));
+    }
+
+    int pos = logPos(mLogSize);
+    mLogTimes[pos] = timestamp;
+    mLogEntries[pos] = entries;
+    mLogSize++;
+  }
+
+  /** Add an entry to the late heap. */
+  private void lateInsert(long timestamp, KeyEntries<V> entries) {
+    if (mLateSize == mLateTimes.length) {
+      lateResize(capacityFor(mLateSize, MIN_LOG_SLACK));
+    }
+
+    // Sift the new entry up from the bottom of the heap.
+    int i = mLateSize++;
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (mLateTimes[parent] <= timestamp) {
+        break;
+      }
+      mLateTimes[i] = mLateTimes[parent];
+      mLateEntries[i] = mLateEntries[parent];
+      i = parent;
+    }
+
+    mLateTimes[i] = timestamp;
+    mLateEntries[i] = entries;
+  }
+
+  private void lateResize(int capacity) {
+    mLateTimes = Arrays.copyOf(mLateTimes, capacity);
+    mLateEntries = Arrays.copyOf(mLateEntries, capacity);
+  }
+
+  /** Remove the oldest entry of the late heap. */
+  private void lateRemoveFirst() {
+    mLateSize--;
+    long time = mLateTimes[mLateSize];
+    KeyEntries<V> entries = mLateEntries[mLateSize];
+    mLateEntries[mLateSize] = null;
+    if (isSparse(mLateSize, mLateTimes.length, MIN_LOG_SLACK)) {
+      lateResize(capacityFor(mLateSize, MIN_LOG_SLACK));
+    }
+
+    if (mLateSize == 0) {
+      return;
+    }
+
+    // Sift the last entry down from the top of the heap.
+    int i = 0;
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= mLateSize) {
+        break;
+      }
+      if (child + 1 < mLateSize && mLateTimes[child + 1] < mLateTimes[child]) {
+        child++;
+      }
+      if (time <= mLateTimes[child]) {
+        break;
+      }
+      mLateTimes[i] = mLateTimes[child];
+      mLateEntries[i] = mLateEntries[child];
+      i = child;
+    }
+
+    mLateTimes[i] = time;
+    mLateEntries[i] = entries;
+  }
+
+  /**
+   * @return true if the oldest log entry is at the top of the late heap
+   * rather than at the head of the ring. The log must not be empty.
+   */
+  private boolean oldestIsLate() {
+    return mLateSize > 0 && (mLogSize == 0 || mLateTimes[0] < mLogTimes[mLogHead]);
+  }
+
+  /** Remove the oldest log entry. */
+  private void logRemoveFirst() {
+    mLogEntries[mLogHead] = null;
+    mLogHead = logPos(1);
+    mLogSize--;
+    if (isSparse(mLogSize, mLogTimes.length, MIN_LOG_SLACK)) {
+      logResize(capacityFor(mLogSize, MIN_LOG_SLACK));
+    }
+  }
+
+  /** Drop stale entries from the heads of the ring and the late heap. */
+  private void skipDetached() {
+    while (mLogSize > 0 && mLogEntries[mLogHead].mDetached) {
+      logRemoveFirst();
+    }
+    while (mLateSize > 0 && mLateEntries[0].mDetached) {
+      lateRemoveFirst();
+    }
+  }
+
+  /** @return the index (from the head) of the first ring entry with time &gt;= t. */
+  private int logLowerBound(long t) {
+    int lo = 0;
+    int hi = mLogSize;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (mLogTimes[logPos(mid)] < t) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+
+    return lo;
   }
 
   @Override
@@ -78,110 +548,127 @@ public class WindowedHashMap<K, V, T extends Comparable<T>>
 
   @Override
   public boolean containsValue(Object value) {
-    return mHashMap.containsValue(value);
+    for (KeyEntries<V> entries : mHashMap.values()) {
+      if (entries.toPairs().equals(value)) {
+        return true;
+      }
+    }
+
+    return false;
   }
 
+  /**
+   * @return a copy of the (timestamp, value) pairs for the key, in timestamp
+   * order, or null if the key is not present.
+   */
   @Override
-  public List<Pair<T, V>> get(Object key) {
-    return mHashMap.get(key);
+  public List<Pair<Long, V>> get(Object key) {
+    KeyEntries<V> entries = mHashMap.get(key);
+    if (null == entries) {
+      return null;
+    }
+
+    return entries.toPairs();
   }
 
   /**
    * @return all values for the specified timestamp.
    */
-  public List<V> getTimestamp(T timestamp) {
-    List<K> keysForTs = mTimestamps.get(timestamp);
-    if (null == keysForTs) {
-      return Collections.emptyList();
+  public List<V> getTimestamp(long timestamp) {
+    List<V> out = new ArrayList<V>();
+    Map<KeyEntries<V>, Boolean> seen = new IdentityHashMap<KeyEntries<V>, Boolean>();
+    for (int i = logLowerBound(timestamp); i < mLogSize; i++) {
+      int pos = logPos(i);
+      if (mLogTimes[pos] != timestamp) {
+        break;
+      }
+
+      KeyEntries<V> entries = mLogEntries[pos];
+      if (entries.mDetached || null != seen.put(entries, Boolean.TRUE)) {
+        continue; // Removed, or a key with several values at this timestamp.
+      }
+
+      addValuesAt(timestamp, entries, out);
     }
 
-    List<V> out = new ArrayList<V>();
-    for (K k : keysForTs) {
-      List<Pair<T, V>> timesAndValsForKey = mHashMap.get(k);
-      assert(timesAndValsForKey != null);
-      for (Pair<T, V> pr : timesAndValsForKey) {
-        out.add(pr.getRight());
+    for (int i = 0; i < mLateSize; i++) {
+      KeyEntries<V> entries = mLateEntries[i];
+      if (mLateTimes[i] == timestamp && !entries.mDetached
+          && null == seen.put(entries, Boolean.TRUE)) {
+        addValuesAt(timestamp, entries, out);
       }
     }
 
     return out;
   }
 
+  /** Add the values of 'entries' at 'timestamp' to 'out'. */
+  private void addValuesAt(long timestamp, KeyEntries<V> entries, List<V> out) {
+    int to = entries.upperBound(timestamp);
+    for (int j = entries.lowerBound(timestamp); j < to; j++) {
+      out.add(entries.valueAt(j));
+    }
+  }
+
   /**
    * Allows a multi-put of (timestamp, value) pairs with the same key.
    */
   @Override
-  public List<Pair<T, V>> put(K key, List<Pair<T, V>> timesAndVals) {
-    List<Pair<T, V>> old = mHashMap.get(key);
-    for (Pair<T, V> pr : timesAndVals) {
+  public List<Pair<Long, V>> put(K key, List<Pair<Long, V>> timesAndVals) {
+    List<Pair<Long, V>> old = get(key);
+    for (Pair<Long, V> pr : timesAndVals) {
       put(key, pr.getRight(), pr.getLeft());
     }
 
     return old;
   }
 
-  public void put(K key, V value, T timestamp) {
-    Pair<T, V> timeVal = new Pair<T, V>(timestamp, value);
-    List<Pair<T, V>> lstForKey = mHashMap.get(key);
-    if (null == lstForKey) {
-      lstForKey = new ArrayList<Pair<T, V>>();
-      mHashMap.put(key, lstForKey);
+  public void put(K key, V value, long timestamp) {
+    KeyEntries<V> entries = mHashMap.get(key);
+    if (null == entries) {
+      entries = new KeyEntries<V>(key);
+      mHashMap.put(key, entries);
     }
 
-    lstForKey.add(timeVal);
-
-    List<K> lstForT = mTimestamps.get(timestamp);
-    if (null == lstForT) {
-      lstForT = new ArrayList<K>();
-      mTimestamps.put(timestamp, lstForT);
-    }
-    lstForT.add(key);
+    entries.add(timestamp, value);
+    logInsert(timestamp, entries);
   }
 
   /**
    * Removes the specified key from the map.
    */
   @Override
-  public List<Pair<T, V>> remove(Object key) {
-    List<Pair<T, V>> timesAndVals = mHashMap.remove(key);
-    if (null == timesAndVals) {
+  public List<Pair<Long, V>> remove(Object key) {
+    KeyEntries<V> entries = mHashMap.remove(key);
+    if (null == entries) {
       // If we couldn't find this key, break early.
       return null;
     }
 
-    // Remove all elements from the timestamp-driven map.
-    for (Pair<T, V> tv : timesAndVals) {
-      T t = tv.getLeft();
-      List<K> keysForTs = mTimestamps.get(t);
-      Iterator<K> it = keysForTs.iterator();
-      while (it.hasNext()) {
-        K someKey = it.next();
-        if (someKey.equals(key)) {
-          it.remove();
-        }
-      }
+    // Its log entries are dropped as they reach the head of the log.
+    entries.mDetached = true;
+    skipDetached();
 
-      if (keysForTs.size() == 0) {
-        // Only key for the timestamp; remove the timestamp from the
-        // mapping entirely.
-        mTimestamps.remove(t);
-      }
-    }
-
-    return timesAndVals;
+    return entries.toPairs();
   }
 
   @Override
-  public void putAll(Map<? extends K, ? extends List<Pair<T, V>>> m) {
-    for (Map.Entry<? extends K, ? extends List<Pair<T, V>>> entry : m.entrySet()) {
+  public void putAll(Map<? extends K, ? extends List<Pair<Long, V>>> m) {
+    for (Map.Entry<? extends K, ? extends List<Pair<Long, V>>> entry : m.entrySet()) {
       put(entry.getKey(), entry.getValue());
     }
   }
 
   @Override
   public void clear() {
-    mTimestamps.clear();
     mHashMap.clear();
+    mLogTimes = new long[MIN_LOG_SLACK];
+    mLogEntries = new KeyEntries[MIN_LOG_SLACK];
+    mLogHead = 0;
+    mLogSize = 0;
+    mLateTimes = new long[MIN_LOG_SLACK];
+    mLateEntries = new KeyEntries[MIN_LOG_SLACK];
+    mLateSize = 0;
   }
 
   @Override
@@ -190,13 +677,23 @@ public class WindowedHashMap<K, V, T extends Comparable<T>>
   }
 
   @Override
-  public Collection<List<Pair<T, V>>> values() {
-    return mHashMap.values();
+  public Collection<List<Pair<Long, V>>> values() {
+    List<List<Pair<Long, V>>> out = new ArrayList<List<Pair<Long, V>>>(mHashMap.size());
+    for (KeyEntries<V> entries : mHashMap.values()) {
+      out.add(entries.toPairs());
+    }
+
+    return out;
   }
 
   @Override
-  public Set<Map.Entry<K, List<Pair<T, V>>>> entrySet() {
-    return mHashMap.entrySet();
+  public Set<Map.Entry<K, List<Pair<Long, V>>>> entrySet() {
+    Map<K, List<Pair<Long, V>>> out = new HashMap<K, List<Pair<Long, V>>>();
+    for (Map.Entry<K, KeyEntries<V>> entry : mHashMap.entrySet()) {
+      out.put(entry.getKey(), entry.getValue().toPairs());
+    }
+
+    return out.entrySet();
   }
 
   @Override
@@ -207,124 +704,127 @@ public class WindowedHashMap<K, V, T extends Comparable<T>>
       return false;
     }
 
-    WindowedHashMap<K, V, T> other = (WindowedHashMap<K, V, T>) otherObj;
-    return mHashMap.equals(other.mHashMap) && mTimestamps.equals(other.mTimestamps);
+    WindowedHashMap<K, V> other = (WindowedHashMap<K, V>) otherObj;
+    return mHashMap.equals(other.mHashMap);
   }
 
   @Override
   public int hashCode() {
-    return mHashMap.hashCode() ^ mTimestamps.hashCode();
+    return mHashMap.hashCode();
   }
 
   /**
    * Look up all values for a key within a given timestamp range. 
    * @returns a list of values such that m[key, t] = v and t is in the interval
-   * bounded by lo and hi. Arguments specify whether the lower and upper bounds
-   * of the interval are open-ended or closed.
+   * bounded by lo and hi, in timestamp order. Arguments specify whether the
+   * lower and upper bounds of the interval are open-ended or closed.
    * Returns the empty list if no such key can be found within that window.
+   * The returned list is a read-only view of the map's storage, and is only
+   * valid until the next modification of the map.
    */
-  public List<V> getRange(K key, T lo, T hi, boolean openLo, boolean openHi) {
-    List<Pair<T, V>> timesAndVals = mHashMap.get(key);
-    
-    boolean first = true;
-    List<V> out = null;
-
-    if (null == timesAndVals) {
+  public List<V> getRange(K key, long lo, long hi, boolean openLo, boolean openHi) {
+    KeyEntries<V> entries = mHashMap.get(key);
+    if (null == entries) {
       // No times/vals for that key.
       return Collections.emptyList();
     }
 
-    for (Pair<T, V> pr : timesAndVals) {
-      if (timeInRange(lo, pr.getLeft(), hi, openLo, openHi)) {
-        if (null == out) {
-          // Start by using a singleton list to hold this object. 
-          out = Collections.singletonList(pr.getRight());
-        } else if (first) {
-          // Promote to a linked list
-          out = new LinkedList<V>(out);
-          out.add(pr.getRight());
-          first = false;
-        } else {
-          // We're already in a linked list; just add it.
-          out.add(pr.getRight());
-        }
-      }
-    }
-
-    if (null == out) {
-      return Collections.emptyList();
-    }
-
-    return out;
+    int from = openLo ? entries.upperBound(lo) : entries.lowerBound(lo);
+    int to = openHi ? entries.lowerBound(hi) : entries.upperBound(hi);
+    return entries.slice(from, to);
   }
 
   /**
-   * @return true if test is in the interval between lo and hi;
-   * both endpoints can be open or closed.
+   * Remove all (k, v) pairs where the timestamp for the entry is less than
+   * the value specified by 'test'.
    */
-  private boolean timeInRange(T lo, T test, T hi, boolean openLo, boolean openHi) {
-    int loVsTest = lo.compareTo(test);
-    if (!(openLo ? loVsTest < 0 : loVsTest <= 0)) {
-      return false; // 'test' is not above the lo end of the interval.
+  public void removeOlderThan(long test) {
+    try {
+      removeOlderThan(test, null);
+    } catch (IOException ioe) {
+      // Only the listener can throw.
+      throw new RuntimeException(ioe);
     }
-
-    int hiVsTest = test.compareTo(hi);
-    if (!(openHi ? hiVsTest < 0 : hiVsTest <= 0)) {
-      return false; // 'test' is not below the hi end of the interval.
-    }
-
-    return true;
   }
 
   /**
    * Remove all (k, v) pairs where the timestamp for the entry is less than
-   * the value specified by 'test'.
+   * the value specified by 'test', and pass each one to 'listener' (if
+   * non-null) as it is removed.
    */
-  public void removeOlderThan(T test) {
-    // Get a view of all timestamps in the map less than 'test'.
-    Map<T, List<K>> subMap = mTimestamps.headMap(test, false);
-
-    LOG.debug("Remove older than: " + test);
-    Set<Map.Entry<T, List<K>>> entrySet = subMap.entrySet();
-    Iterator<Map.Entry<T, List<K>>> entries = entrySet.iterator();
-    while (entries.hasNext()) {
-      Map.Entry<T, List<K>> entry = entries.next();
-      T removeTime = entry.getKey();
-      List<K> removeKeys = entry.getValue();
-
-      // Remove all (t, v) pairs from mHashMap(k) for all k in removeKeys,
-      // where t = removeTime. If the list at mHashMap(k) is empty, remove
-      // mHashMap(k).
-      for (K removeKey : removeKeys) {
-        List<Pair<T, V>> pairs = mHashMap.get(removeKey);
-        Iterator<Pair<T, V>> pairIter = pairs.iterator();
-        while (pairIter.hasNext()) {
-          Pair<T, V> pr = pairIter.next();
-          if (pr.getLeft().equals(removeTime)) {
-            LOG.debug("Removing: " + removeKey + " (t=" + removeTime + ")");
-            pairIter.remove();
-          }
+  public void removeOlderThan(long test, EvictionListener<K, V> listener)
+      throws IOException {
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Remove older than: " + test);
+    }
+
+    // The older of the ring head and the top of the late heap is the oldest
+    // entry in the map. Since each key's entries are sorted by timestamp, its
+    // key's first entry has the same timestamp.
+    while (mLogSize > 0 || mLateSize > 0) {
+      boolean late = oldestIsLate();
+      KeyEntries<V> entries = late ? mLateEntries[0] : mLogEntries[mLogHead];
+      long time = late ? mLateTimes[0] : mLogTimes[mLogHead];
+      if (!entries.mDetached) {
+        if (time >= test) {
+          break;
         }
 
-        if (pairs.size() == 0) {
-          // Remove the entire key/list from mHashMap.
-          mHashMap.remove(removeKey);
+        if (null != listener) {
+          listener.evicted((K) entries.mKey, entries.valueAt(0), time);
+        }
+
+        entries.removeFirst();
+        if (entries.size() == 0) {
+          // Remove the entire key from mHashMap.
+          mHashMap.remove(entries.mKey);
         }
       }
 
-      // Remove the entry for this timestamp from the underlying map.
-      entries.remove();
+      if (late) {
+        lateRemoveFirst();
+      } else {
+        logRemoveFirst();
+      }
     }
   }
 
   /**
    * @return the oldest timestamp in the map, or null if the map is empty.
    */
-  public T oldestTimestamp() {
-    if (mTimestamps.isEmpty()) {
+  public Long oldestTimestamp() {
+    skipDetached();
+    if (mLogSize == 0 && mLateSize == 0) {
       return null;
+    } else if (oldestIsLate()) {
+      return Long.valueOf(mLateTimes[0]);
+    }
+
+    return Long.valueOf(mLogTimes[mLogHead]);
+  }
+
+  /**
+   * @return the newest timestamp in the map, or null if the map is empty.
+   */
+  public Long newestTimestamp() {
+    Long newest = null;
+    for (int i = mLogSize - 1; i >= 0; i--) {
+      int pos = logPos(i);
+      if (!mLogEntries[pos].mDetached) {
+        newest = Long.valueOf(mLogTimes[pos]);
+        break;
+      }
+    }
+
+    // Late entries are older than the newest ring entry, but it may have
+    // been removed with its key.
+    for (int i = 0; i < mLateSize; i++) {
+      if (!mLateEntries[i].mDetached
+          && (null == newest || mLateTimes[i] > newest.longValue())) {
+        newest = Long.valueOf(mLateTimes[i]);
+      }
     }
 
-    return mTimestamps.firstKey();
+    return newest;
   }
 }
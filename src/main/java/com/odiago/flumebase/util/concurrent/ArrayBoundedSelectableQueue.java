@@ -17,6 +17,8 @@
 
 package com.odiago.flumebase.util.concurrent;
 
+import java.util.List;
+
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -59,7 +61,8 @@ public class ArrayBoundedSelectableQueue<T> extends SelectableQueue<T> {
   private T doDequeue() {
     synchronized (this) {
       mSize.decrementAndGet();
-      T val = (T) mArray[mDequeueOff++];
+      T val = (T) mArray[mDequeueOff];
+      mArray[mDequeueOff++] = null; // Don't retain references to dequeued items.
       if (mDequeueOff >= mMaxLen) {
         mDequeueOff = 0;
       }
@@ -95,6 +98,31 @@ public class ArrayBoundedSelectableQueue<T> extends SelectableQueue<T> {
     }
   }
 
+  /** {@inheritDoc} */
+  @Override
+  public int drainTo(List<? super T> out, int maxElements) {
+    synchronized (this) {
+      int count = Math.min(mSize.get(), maxElements);
+      if (count <= 0) {
+        return 0;
+      }
+
+      for (int i = 0; i < count; i++) {
+        out.add((T) mArray[mDequeueOff]);
+        mArray[mDequeueOff++] = null;
+        if (mDequeueOff >= mMaxLen) {
+          mDequeueOff = 0;
+        }
+      }
+      mSize.addAndGet(-count);
+
+      // Up to 'count' writers may now proceed.
+      this.notifyAll();
+
+      return count;
+    }
+  }
+
   /**
    * Enqueue t in the list, assuming we have already guaranteed available space.
    * Does not perform the requisite reader notification, since that must be
@@ -17,9 +17,11 @@
 
 package com.odiago.flumebase.util.concurrent;
 
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.List;
+import java.util.Set;
 
 /**
  * A Select object can wait on multiple objects, returning when one of them
@@ -30,23 +32,36 @@ import java.util.List;
  * objects with the Select. This will allow the Select to accept notifications
  * from the Selectables.</p>
  *
- * <p>add() and remove() are NOT thread-safe with respect to read() and join(),
- * although they are thread-safe with respect to each other. read() and join()
- * are also thread safe with respect to one another.</p>
+ * <p>Selectables push themselves onto an internal ready queue when they are
+ * written to, so join() takes constant time regardless of the number of
+ * registered targets. A target which is still readable after it is returned
+ * by join() goes to the back of the ready queue; targets are thus serviced
+ * round-robin, and a busy target cannot starve the others.</p>
+ *
+ * <p>add() and remove() are thread-safe with respect to each other, and to
+ * read() and join(). read() and join() are also thread safe with respect to
+ * one another.</p>
  *
  * <p>Basically, this is designed for a multi-producer, single-consumer use
  * case. While you may use a single Select instance for the multi-consumer case,
- * you should not add() or remove() Selectables if another thread may call
- * read() or join() simultaneously.</p>
+ * join() may then return a target which another consumer has already drained.</p>
  *
  */
 public class Select<T> implements Iterable<Selectable<T>> {
 
   /** The objects we are monitoring for readability. */
-  private List<Selectable<T>> mTargets;
+  private final Set<Selectable<T>> mTargets;
+
+  /** Targets which may be readable, in the order they should be serviced. */
+  private final ArrayDeque<Selectable<T>> mReady;
+
+  /** The set of targets currently in mReady (or being checked by nextReady()). */
+  private final Set<Selectable<T>> mQueued;
 
   public Select() {
-    mTargets = new ArrayList<Selectable<T>>();
+    mTargets = Collections.newSetFromMap(new IdentityHashMap<Selectable<T>, Boolean>());
+    mReady = new ArrayDeque<Selectable<T>>();
+    mQueued = Collections.newSetFromMap(new IdentityHashMap<Selectable<T>, Boolean>());
   }
 
   /**
@@ -57,6 +72,8 @@ public class Select<T> implements Iterable<Selectable<T>> {
       synchronized (this) {
         mTargets.add(target);
         target.register(this);
+        // The target may already hold data; check it on the next join().
+        enqueueSelectable(target);
       }
     }
   }
@@ -67,6 +84,7 @@ public class Select<T> implements Iterable<Selectable<T>> {
   public void remove(Selectable<T> target) {
     synchronized (target) {
       synchronized (this) {
+        // Any entry left in mReady is discarded lazily by nextReady().
         mTargets.remove(target);
         target.unregister(this);
       }
@@ -74,7 +92,8 @@ public class Select<T> implements Iterable<Selectable<T>> {
   }
 
   /**
-   * Get the set of objects being watched.
+   * Get the set of objects being watched. Clients should synchronize on
+   * this Select instance while iterating.
    */
   public Iterator<Selectable<T>> iterator() {
     return mTargets.iterator();
@@ -94,21 +113,19 @@ public class Select<T> implements Iterable<Selectable<T>> {
    * Select instance.</p>
    */
   public Selectable<T> join() throws InterruptedException {
-    // Try to pick one immediately.
-    Selectable<T> ret = nextReady();
-    if (null != ret) {
-      return ret;
-    }
-    
-    // Couldn't find a ready target. Wait for one to become available.
-    do {
-      synchronized (this) {
-        this.wait();
+    while (true) {
+      Selectable<T> ret = nextReady();
+      if (null != ret) {
+        return ret;
       }
-      ret = nextReady();
-    } while (ret == null);
 
-    return ret;
+      // Couldn't find a ready target. Wait for one to announce itself.
+      synchronized (this) {
+        while (mReady.isEmpty()) {
+          this.wait();
+        }
+      }
+    }
   }
 
   /**
@@ -130,23 +147,58 @@ public class Select<T> implements Iterable<Selectable<T>> {
 
   /**
    * @return the next ready target Selectable, or null if none is ready.
+   *
+   * <p>Targets are taken from the head of the ready queue. canRead() is
+   * called without holding our own monitor, since Selectables call
+   * enqueueSelectable() while holding theirs.</p>
    */
   private Selectable<T> nextReady() {
-    if (mTargets.size() == 0) {
-      throw new RuntimeException("No targets registered with this Select instance.");
-    }
+    while (true) {
+      Selectable<T> target;
+      synchronized (this) {
+        if (mTargets.size() == 0) {
+          throw new RuntimeException("No targets registered with this Select instance.");
+        }
+
+        target = mReady.poll();
+        if (null == target) {
+          return null;
+        } else if (!mTargets.contains(target)) {
+          // Removed since it was enqueued.
+          mQueued.remove(target);
+          continue;
+        }
+      }
 
-    for (Selectable<T> target : mTargets) {
       if (target.canRead()) {
+        synchronized (this) {
+          // Service it again after everyone else who is waiting. If it is
+          // drained by the caller, we'll discard it when it reaches the head.
+          mReady.add(target);
+        }
         return target;
       }
+
+      synchronized (this) {
+        mQueued.remove(target);
+      }
+
+      // A producer may have written to the target after our canRead() check,
+      // but before we dropped it from mQueued; its notification was a no-op.
+      if (target.canRead()) {
+        synchronized (this) {
+          enqueueSelectable(target);
+        }
+      }
     }
-    return null;
   }
 
   /** Called by Selectable when an object is readable. */
   void enqueueSelectable(Selectable<T> sel) {
     synchronized (this) {
+      if (mTargets.contains(sel) && mQueued.add(sel)) {
+        mReady.add(sel);
+      }
       this.notify();
     }
   }
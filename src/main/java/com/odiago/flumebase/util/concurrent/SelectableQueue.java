@@ -17,6 +17,8 @@
 
 package com.odiago.flumebase.util.concurrent;
 
+import java.util.List;
+
 /**
  * Queue that implements the Selectable interface.
  */
@@ -45,6 +47,29 @@ public abstract class SelectableQueue<T> extends Selectable<T> {
    */
   public abstract boolean offer(T t);
 
+  /**
+   * Removes up to maxElements items from the front of the queue without
+   * waiting, and appends them to 'out' in queue order. Implementations
+   * should override this to transfer the items under a single acquisition
+   * of their lock, and wake blocked writers at most once.
+   * @return the number of items transferred.
+   */
+  public int drainTo(List<? super T> out, int maxElements) {
+    synchronized (this) {
+      int count = 0;
+      while (count < maxElements && size() > 0) {
+        try {
+          out.add(poll());
+        } catch (EmptyException ee) {
+          break;
+        }
+        count++;
+      }
+
+      return count;
+    }
+  }
+
   /** @return true if the queue contains an element x such that x.equals(t). */
   public abstract boolean contains(T t);
 
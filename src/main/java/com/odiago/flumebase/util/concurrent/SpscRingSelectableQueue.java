@@ -0,0 +1,261 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.util.concurrent;
+
+import java.util.List;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded queue for exactly one producer thread and one consumer thread.
+ *
+ * <p>Items are stored in a ring buffer indexed by two ever-increasing sequence
+ * counters: the head (next item to read) is only written by the consumer, and
+ * the tail (next slot to write) is only written by the producer. Neither side
+ * takes a lock. Each counter is padded onto its own cache line so the two
+ * threads do not contend on the same line.</p>
+ *
+ * <p>Attached Select instances are only notified when the queue goes from
+ * empty to non-empty. The Select keeps a readable target on its ready list
+ * until it observes it empty, so no further notifications are needed.
+ * put() and take() block by parking the calling thread, and are woken by
+ * the other side when space or data becomes available.</p>
+ *
+ * <p>At most one thread may call put() or offer() at a time, and at most one
+ * thread may call take(), poll(), read() or drainTo() at a time. Threads may
+ * hand off either role if they synchronize with each other when doing so
+ * (e.g., by Thread.join()).</p>
+ */
+public class SpscRingSelectableQueue<T> extends SelectableQueue<T> {
+
+  /**
+   * A sequence counter, padded so that it does not share a cache line
+   * with any other frequently-written field.
+   */
+  private static final class PaddedSequence {
+    long mPad1, mPad2, mPad3, mPad4, mPad5, mPad6, mPad7;
+    volatile long mValue;
+    long mPad8, mPad9, mPad10, mPad11, mPad12, mPad13, mPad14;
+  }
+
+  /** Ring storage; its length is a power of two. */
+  private final Object[] mRing;
+
+  /** mRing.length - 1; maps a sequence number to a ring offset. */
+  private final int mMask;
+
+  /** Max number of items the queue can hold. */
+  private final int mMaxLen;
+
+  /** Sequence number of the next item to dequeue. Written by the consumer. */
+  private final PaddedSequence mHead;
+
+  /** Sequence number of the next item to enqueue. Written by the producer. */
+  private final PaddedSequence mTail;
+
+  /** The producer's last-known value of mHead. Producer-only. */
+  private long mCachedHead;
+
+  /** The consumer's last-known value of mTail. Consumer-only. */
+  private long mCachedTail;
+
+  /** The producer thread, if it is parked in put(). */
+  private volatile Thread mWaitingProducer;
+
+  /** The consumer thread, if it is parked in take(). */
+  private volatile Thread mWaitingConsumer;
+
+  public SpscRingSelectableQueue(int maxLen) {
+    assert maxLen > 0;
+    int ringLen = 1;
+    while (ringLen < maxLen) {
+      ringLen <<= 1;
+    }
+
+    mRing = new Object[ringLen];
+    mMask = ringLen - 1;
+    mMaxLen = maxLen;
+    mHead = new PaddedSequence();
+    mTail = new PaddedSequence();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int size() {
+    // Read the head first; the tail can only move forward in the meantime.
+    long head = mHead.mValue;
+    return (int) (mTail.mValue - head);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean offer(T t) {
+    long tail = mTail.mValue;
+    if (tail - mCachedHead >= mMaxLen) {
+      mCachedHead = mHead.mValue;
+      if (tail - mCachedHead >= mMaxLen) {
+        return false; // Wouldn't fit.
+      }
+    }
+
+    mRing[(int) tail & mMask] = t;
+    mTail.mValue = tail + 1; // Publish the item.
+
+    // Re-read the head after publishing. If the consumer had caught up to
+    // our item's slot, it may have seen us as empty: wake it up.
+    long head = mHead.mValue;
+    mCachedHead = head;
+    if (head == tail) {
+      notifyReaders();
+    }
+
+    Thread consumer = mWaitingConsumer;
+    if (null != consumer) {
+      LockSupport.unpark(consumer);
+    }
+
+    return true;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void put(T t) throws InterruptedException {
+    if (offer(t)) {
+      return;
+    }
+
+    mWaitingProducer = Thread.currentThread();
+    try {
+      // Re-check after advertising ourselves, so a concurrent dequeue
+      // either sees us waiting or we see its result.
+      while (!offer(t)) {
+        LockSupport.park(this);
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+      }
+    } finally {
+      mWaitingProducer = null;
+    }
+  }
+
+  /**
+   * Advance the head to newHead, and wake the producer if it is waiting
+   * for space.
+   */
+  private void advanceHead(long newHead) {
+    mHead.mValue = newHead;
+
+    Thread producer = mWaitingProducer;
+    if (null != producer) {
+      LockSupport.unpark(producer);
+    }
+  }
+
+  /**
+   * @return the number of items which the consumer can dequeue without
+   * waiting, given that the head is at 'head'.
+   */
+  private long available(long head) {
+    if (head >= mCachedTail) {
+      mCachedTail = mTail.mValue;
+    }
+
+    return mCachedTail - head;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public T poll() throws EmptyException {
+    long head = mHead.mValue;
+    if (available(head) <= 0) {
+      throw new EmptyException();
+    }
+
+    int off = (int) head & mMask;
+    T val = (T) mRing[off];
+    mRing[off] = null; // Don't retain references to dequeued items.
+    advanceHead(head + 1);
+    return val;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public T take() throws InterruptedException {
+    try {
+      return poll();
+    } catch (EmptyException ee) {
+      // Wait for the producer below.
+    }
+
+    mWaitingConsumer = Thread.currentThread();
+    try {
+      while (true) {
+        try {
+          return poll();
+        } catch (EmptyException ee) {
+          LockSupport.park(this);
+          if (Thread.interrupted()) {
+            throw new InterruptedException();
+          }
+        }
+      }
+    } finally {
+      mWaitingConsumer = null;
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int drainTo(List<? super T> out, int maxElements) {
+    long head = mHead.mValue;
+    int count = (int) Math.min(available(head), (long) maxElements);
+    if (count <= 0) {
+      return 0;
+    }
+
+    for (int i = 0; i < count; i++) {
+      int off = (int) (head + i) & mMask;
+      out.add((T) mRing[off]);
+      mRing[off] = null;
+    }
+
+    advanceHead(head + count);
+    return count;
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>The result is only exact when called from the consumer thread, or
+   * while the producer is idle.</p>
+   */
+  @Override
+  public boolean contains(T t) {
+    long tail = mTail.mValue;
+    for (long seq = mHead.mValue; seq < tail; seq++) {
+      Object obj = mRing[(int) seq & mMask];
+      if (obj == null && t == null) {
+        return true;
+      } else if (obj != null && obj.equals(t)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+}
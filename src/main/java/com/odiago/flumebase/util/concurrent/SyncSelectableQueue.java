@@ -17,6 +17,8 @@
 
 package com.odiago.flumebase.util.concurrent;
 
+import java.util.List;
+
 /**
  * SelectableQueue implementation that is internally
  * synchronized. Calling any of its public operations
@@ -104,6 +106,26 @@ public class SyncSelectableQueue<T> extends SelectableQueue<T> {
     }
   }
 
+  /** {@inheritDoc} */
+  @Override
+  public int drainTo(List<? super T> out, int maxElements) {
+    synchronized (this) {
+      int count = 0;
+      while (count < maxElements && null != mHead) {
+        out.add(mHead.val());
+        mHead = mHead.next();
+        count++;
+      }
+
+      if (null == mHead) {
+        mTail = null;
+      }
+      mLength -= count;
+
+      return count;
+    }
+  }
+
   /**
    * Adds an item to the back of the queue. This version does
    * not block.
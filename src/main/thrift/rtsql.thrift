@@ -47,6 +47,23 @@ struct TSessionId {
   1: required i64 id
 }
 
+/**
+ * A block of output records from a flow, sent to a client that watches the
+ * flow's records rather than its text output.
+ */
+struct TRecordBlock {
+  1: required TFlowId flowId,
+  /**
+   * JSON Avro schema of the records. Sent with the first block of a flow,
+   * and again only if the schema changes.
+   */
+  2: optional string schema,
+  /** The number of records in the block. */
+  3: required i32 count,
+  /** 'count' binary-encoded Avro records, concatenated. */
+  4: required binary records
+}
+
 /**
  * Thrown when there is an error connecting to or sending data through
  * the client callback RPC interface.
@@ -104,6 +121,13 @@ service RemoteServer {
    */
   void watchFlow(1: required TSessionId sessionId, 2: required TFlowId flowId),
 
+  /**
+   * Instruct the server to add this user's session to the output of the
+   * specified flow, delivering Avro-encoded record blocks via sendRecords()
+   * instead of text.
+   */
+  void watchFlowRecords(1: required TSessionId sessionId, 2: required TFlowId flowId),
+
   /**
    * Instruct the server to remove this user's session from the set of
    * listeners for the specified flow.
@@ -136,6 +160,15 @@ service ClientConsole {
   /** Send information to the client to display. */
   oneway void sendInfo(1: required string info),
 
+  /**
+   * Send several lines of information to the client to display, in order.
+   * Used to deliver flow output without a round trip per record.
+   */
+  oneway void sendInfoBatch(1: required list<string> info),
+
+  /** Send a block of output records of a flow watched with watchFlowRecords(). */
+  oneway void sendRecords(1: required TRecordBlock block),
+
   /** Send error information to the client to display (e.g., on stderr) */
   oneway void sendErr(1: required string err)
 }
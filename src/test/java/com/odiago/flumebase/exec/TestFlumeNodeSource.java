@@ -240,6 +240,9 @@ public class TestFlumeNodeSource extends RtsqlTestCase {
     }
     LOG.debug("second query SUCCESS");
 
+    // However many queries are running, the stream is read through one connection.
+    assertEquals(1, env.getSharedSources().size());
+
     if (!killFirstQuery) {
       // Double check to ensure that the first query received those additional records.
       synchronized (outRecords1) {
@@ -265,5 +268,8 @@ public class TestFlumeNodeSource extends RtsqlTestCase {
     LOG.debug("Killing 2nd query.");
     env.cancelFlow(queryId2);
     joinFlow(queryId2);
+
+    // The connection closes with the last query that used it.
+    assertEquals(0, env.getSharedSources().size());
   }
 }
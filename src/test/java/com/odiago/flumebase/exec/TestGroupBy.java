@@ -19,13 +19,23 @@ package com.odiago.flumebase.exec;
 
 import java.io.IOException;
 
+import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
 import org.apache.avro.generic.GenericData;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import org.testng.annotations.Test;
 
+import com.cloudera.flume.core.Event;
+
+import com.cloudera.flume.core.Event.Priority;
+import com.cloudera.flume.core.EventImpl;
+
 import com.odiago.flumebase.exec.local.LocalEnvironment;
 import com.odiago.flumebase.exec.local.MemoryOutputElement;
 
@@ -43,6 +53,8 @@ import static org.testng.AssertJUnit.*;
  * Test that SELECT statements with GROUP BY and OVER clauses operate like we expect them to.
  */
 public class TestGroupBy extends RtsqlTestCase {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      TestGroupBy.class.getName());
 
   /**
    * Create a stream with two columns which have configurable names. The first column
@@ -230,6 +242,33 @@ public class TestGroupBy extends RtsqlTestCase {
     }
   }
 
+  @Test
+  public void testWatermarkedLateEvent() throws IOException, InterruptedException {
+    // With watermarks that allow 500 ms of disorder, an event 300 ms behind
+    // the newest one still closes its own window; the slack time alone
+    // would have closed that window already.
+    getConf().set(WatermarkGenerator.POLICY_KEY, "bounded");
+    getConf().setLong(WatermarkGenerator.MAX_DISORDER_KEY, 500);
+    getConf().setLong(WatermarkGenerator.INTERVAL_KEY, 1);
+
+    String [] records = { "0,1", "1,2", "2,4" };
+    long [] times = { 100, 600, 300 };
+
+    StreamSymbol stream = makeStream("s", "a", "b", records, times);
+
+    List<GenericData.Record> results = submitQuery(stream,
+        "SELECT SUM(b) AS c FROM s OVER RANGE INTERVAL 1 SECONDS PRECEDING");
+
+    // We should get the following results: 1, 5, 7
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(3, results.size());
+      assertRecordExists(results, "c", Integer.valueOf(1));
+      assertRecordExists(results, "c", Integer.valueOf(5));
+      assertRecordExists(results, "c", Integer.valueOf(7));
+    }
+  }
+
   @Test
   public void testMax() throws IOException, InterruptedException {
     // Test the MAX function.
@@ -272,6 +311,38 @@ public class TestGroupBy extends RtsqlTestCase {
     }
   }
 
+  @Test
+  public void testSlidingAggregates() throws IOException, InterruptedException {
+    // Test that values leave the window as it slides forward, for both
+    // invertible (SUM, AVG) and non-invertible (MIN, MAX) functions.
+    String [] records = { "0,1", "0,2", "0,9", "0,7" };
+    long [] times = { 100, 200, 1150, 1250 };
+
+    StreamSymbol stream = makeStream("s", "a", "b", records, times);
+
+    List<GenericData.Record> results = submitQuery(stream,
+        "SELECT MIN(b) AS mn, MAX(b) AS mx, SUM(b) AS sm, AVG(b) AS av FROM s "
+        + "OVER RANGE INTERVAL 1 SECONDS PRECEDING");
+
+    // We should have the following results:
+    // t=100: {1}; t=200: {1, 2}; t=1150: {2, 9}; t=1250: {9, 7}.
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(4, results.size());
+      int [] mins = { 1, 1, 2, 7 };
+      int [] maxes = { 1, 2, 9, 9 };
+      int [] sums = { 1, 3, 11, 16 };
+      int [] avgs = { 1, 1, 5, 8 };
+      for (int i = 0; i < 4; i++) {
+        List<GenericData.Record> result = Collections.singletonList(results.get(i));
+        assertRecordFields(result, "sm", Integer.valueOf(sums[i]), "mn", Integer.valueOf(mins[i]));
+        assertRecordFields(result, "sm", Integer.valueOf(sums[i]), "mx", Integer.valueOf(maxes[i]));
+        assertRecordFields(result, "sm", Integer.valueOf(sums[i]), "av", Integer.valueOf(avgs[i]));
+        assertRecordExists(result, "sm", Integer.valueOf(sums[i]));
+      }
+    }
+  }
+
   @Test
   public void testGrouping() throws IOException, InterruptedException {
     // Test that SUM works correctly in the presence of a GROUP BY clause.
@@ -300,6 +371,42 @@ public class TestGroupBy extends RtsqlTestCase {
     }
   }
 
+  @Test
+  public void testPartitionedGrouping() throws IOException, InterruptedException {
+    // Split 20 groups across four partitions, and check that each window's
+    // records are emitted before those of the next window.
+    int numGroups = 20;
+    String [] records = new String[10 * numGroups];
+    long [] times = new long[records.length];
+    for (int i = 0; i < records.length; i++) {
+      records[i] = (i % numGroups) + ",1";
+      times[i] = i < records.length / 2 ? 100 : 300;
+    }
+
+    StreamSymbol stream = makeStream("s", "a", "b", records, times);
+    getConf().setInt(PartitionedAggregationElement.NUM_PARTITIONS_KEY, 4);
+
+    List<GenericData.Record> results = submitQuery(stream,
+        "SELECT a, COUNT(b) AS c FROM s GROUP BY a OVER RANGE INTERVAL 1 SECONDS PRECEDING");
+
+    // Every group has a count of 5 at t=100, and 10 at t=300.
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(2 * numGroups, results.size());
+      int [] timesSeen = new int[numGroups];
+      for (int i = 0; i < results.size(); i++) {
+        GenericData.Record record = results.get(i);
+        int window = i < numGroups ? 0 : 1;
+        assertEquals(Integer.valueOf(5 * (window + 1)), record.get("c"));
+
+        // Each group appears once per window.
+        int group = ((Integer) record.get("a")).intValue();
+        assertEquals(window, timesSeen[group]);
+        timesSeen[group]++;
+      }
+    }
+  }
+
   @Test
   public void testBoundaries1() throws IOException, InterruptedException {
     // COUNT() the values of the 'b' column. Test that this works correctly
@@ -453,4 +560,85 @@ public class TestGroupBy extends RtsqlTestCase {
       assertRecordExists(Collections.singletonList(results.get(2)), "c", Integer.valueOf(2));
     }
   }
+
+  /** @return the number of bytes of heap in use, after a garbage collection. */
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  @Test(groups = { "slow" })
+  public void testSoakHeap() throws IOException, InterruptedException {
+    // Run millions of events through a GROUP BY query, and check that the heap
+    // does not grow as the windows slide forward: expired buckets must be
+    // discarded. Events are generated on demand so the input stream itself
+    // does not occupy the heap.
+    final int numEvents = 2000000;
+    final int numGroups = 10;
+    final int sampleInterval = 200000;
+    final List<Long> heapSamples = Collections.synchronizedList(new ArrayList<Long>());
+
+    List<Event> events = new AbstractList<Event>() {
+      @Override
+      public int size() {
+        return numEvents;
+      }
+
+      @Override
+      public Event get(int i) {
+        if (i > 0 && i % sampleInterval == 0) {
+          // Discard the output records collected so far, and measure the heap.
+          MemoryOutputElement output = getOutput("testGroupBy");
+          if (null != output) {
+            List<GenericData.Record> records = output.getRecords();
+            synchronized (records) {
+              records.clear();
+            }
+          }
+          heapSamples.add(Long.valueOf(usedHeap()));
+        }
+
+        // One event per millisecond, cycling through the groups.
+        String text = (i % numGroups) + "," + i;
+        return new EventImpl(text.getBytes(), i, Priority.INFO, 0, null);
+      }
+    };
+
+    MemStreamBuilder streamBuilder = new MemStreamBuilder("s");
+    streamBuilder.addField(new TypedField("a", Type.getPrimitive(Type.TypeName.INT)));
+    streamBuilder.addField(new TypedField("b", Type.getNullable(Type.TypeName.INT)));
+    streamBuilder.setEventList(events);
+    getSymbolTable().addSymbol(streamBuilder.build());
+
+    getConf().set(SelectStmt.CLIENT_SELECT_TARGET_KEY, "testGroupBy");
+    LocalEnvironment env = getEnvironment();
+    env.connect();
+
+    long startTime = System.currentTimeMillis();
+    QuerySubmitResponse response = env.submitQuery(
+        "SELECT a, COUNT(b) AS c FROM s GROUP BY a OVER RANGE INTERVAL 10 SECONDS PRECEDING",
+        getQueryOpts());
+    FlowId id = response.getFlowId();
+    assertNotNull(response.getMessage(), id);
+    assertTrue("Flow did not complete", env.joinFlow(id, 600000));
+    long runTime = System.currentTimeMillis() - startTime;
+
+    LOG.info("Soak test: " + numEvents + " events in " + runTime + " ms");
+    LOG.info("Heap samples: " + heapSamples);
+    assertEquals(numEvents / sampleInterval - 1, heapSamples.size());
+
+    // Skip the first sample, taken while the JIT and the flow were warming up.
+    // The live aggregation state is 100 buckets x 10 groups, so once the first
+    // window has filled, the heap should stay flat.
+    long baseline = heapSamples.get(1);
+    long maxGrowth = 16 * 1024 * 1024;
+    for (int i = 2; i < heapSamples.size(); i++) {
+      long sample = heapSamples.get(i);
+      assertTrue("Heap grew from " + baseline + " to " + sample + " bytes",
+          sample - baseline < maxGrowth);
+    }
+  }
 }
@@ -0,0 +1,137 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.odiago.flumebase.exec;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.avro.util.Utf8;
+
+import org.testng.annotations.Test;
+
+import com.cloudera.flume.core.Event;
+import com.cloudera.flume.core.EventImpl;
+
+import com.odiago.flumebase.lang.Type;
+
+import com.odiago.flumebase.parser.TypedField;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test that GroupKey identifies groups by the values of their group-by fields.
+ */
+public class TestGroupKey {
+
+  private static final TypedField A = new TypedField("a", Type.getNullable(Type.TypeName.INT));
+  private static final TypedField B = new TypedField("b", Type.getNullable(Type.TypeName.INT));
+  private static final TypedField S =
+      new TypedField("s", Type.getNullable(Type.TypeName.STRING));
+  private static final TypedField D =
+      new TypedField("d", Type.getNullable(Type.TypeName.DOUBLE));
+
+  /** EventWrapper returning fixed field values. */
+  private static class FixedEventWrapper extends EmptyEventWrapper {
+    private final List<TypedField> mFields;
+    private final List<Object> mValues;
+    private final Event mEvent;
+
+    FixedEventWrapper(List<TypedField> fields, Object... values) {
+      mFields = fields;
+      mValues = Arrays.asList(values);
+      mEvent = new EventImpl(new byte[0], 0, Event.Priority.WARN, 42, "somehost");
+    }
+
+    @Override
+    public Object getField(TypedField field) {
+      return mValues.get(mFields.indexOf(field));
+    }
+
+    @Override
+    public Event getEvent() {
+      return mEvent;
+    }
+  }
+
+  private GroupKey makeKey(List<TypedField> groupFields, List<TypedField> propagateFields,
+      List<TypedField> eventFields, Object... values) throws IOException {
+    GroupKey.Factory factory = new GroupKey.Factory(groupFields, propagateFields);
+    return factory.makeKey(new FixedEventWrapper(eventFields, values));
+  }
+
+  @Test
+  public void testFieldOrder() throws IOException {
+    List<TypedField> fields = Arrays.asList(A, B);
+    List<TypedField> none = Collections.emptyList();
+    GroupKey ab = makeKey(fields, none, fields, 1, 2);
+    GroupKey ba = makeKey(fields, none, fields, 2, 1);
+    GroupKey ab2 = makeKey(fields, none, fields, 1, 2);
+
+    assertFalse(ab.equals(ba));
+    assertFalse(ab.getHash() == ba.getHash());
+    assertEquals(ab, ab2);
+    assertEquals(ab.hashCode(), ab2.hashCode());
+  }
+
+  @Test
+  public void testNulls() throws IOException {
+    List<TypedField> fields = Arrays.asList(A, S, D);
+    List<TypedField> none = Collections.emptyList();
+    GroupKey zeros = makeKey(fields, none, fields, 0, "", 0.0);
+    GroupKey nulls = makeKey(fields, none, fields, null, null, null);
+    GroupKey nulls2 = makeKey(fields, none, fields, null, null, null);
+
+    assertFalse(zeros.equals(nulls));
+    assertEquals(nulls, nulls2);
+  }
+
+  @Test
+  public void testStrings() throws IOException {
+    List<TypedField> fields = Arrays.asList(S);
+    List<TypedField> none = Collections.emptyList();
+    Utf8 buf = new Utf8("foo");
+    GroupKey fromUtf8 = makeKey(fields, none, fields, buf);
+    GroupKey fromString = makeKey(fields, none, fields, "foo");
+    assertEquals(fromString, fromUtf8);
+
+    // Reusing the input buffer does not change the key.
+    System.arraycopy("bar".getBytes(), 0, buf.getBytes(), 0, 3);
+    assertEquals(fromString, fromUtf8);
+    assertFalse(fromUtf8.equals(makeKey(fields, none, fields, buf)));
+  }
+
+  @Test
+  public void testPropagateValues() throws IOException {
+    List<TypedField> groupFields = Arrays.asList(A);
+    List<TypedField> propagateFields = Arrays.asList(S, A);
+    List<TypedField> eventFields = new ArrayList<TypedField>(Arrays.asList(A, S));
+    GroupKey k1 = makeKey(groupFields, propagateFields, eventFields, 4, "x");
+    GroupKey k2 = makeKey(groupFields, propagateFields, eventFields, 4, "y");
+
+    // Propagated values do not take part in equality.
+    assertEquals(k1, k2);
+    assertEquals("x", k1.getPropagateValue(0));
+    assertEquals(4, k1.getPropagateValue(1));
+    assertEquals(Event.Priority.WARN, k1.getPriority());
+    assertEquals(42, k1.getNanos());
+    assertEquals("somehost", k1.getHost());
+  }
+}
@@ -25,6 +25,9 @@ import org.apache.avro.generic.GenericData;
 
 import org.testng.annotations.Test;
 
+import com.cloudera.flume.core.Event;
+import com.cloudera.flume.core.EventImpl;
+
 import com.odiago.flumebase.exec.local.LocalEnvironment;
 import com.odiago.flumebase.exec.local.MemoryOutputElement;
 
@@ -49,12 +52,29 @@ public class TestJoin extends RtsqlTestCase {
    */
   private StreamSymbol makeStream(String streamName, String leftColName,
       String rightColName, String [] eventTexts, long [] eventTimestamps) {
+    return makeStream(streamName, leftColName, rightColName, eventTexts, eventTimestamps,
+        null);
+  }
+
+  /**
+   * Create a stream as above, in which each event with a non-null entry in
+   * 'markers' is a watermark marker for the time given by that entry.
+   */
+  private StreamSymbol makeStream(String streamName, String leftColName,
+      String rightColName, String [] eventTexts, long [] eventTimestamps, String [] markers) {
     MemStreamBuilder streamBuilder = new MemStreamBuilder(streamName);
     streamBuilder.addField(new TypedField(leftColName, Type.getPrimitive(Type.TypeName.INT)));
     streamBuilder.addField(new TypedField(rightColName, Type.getNullable(Type.TypeName.INT)));
 
     for (int i = 0; i < eventTexts.length; i++) {
-      streamBuilder.addEvent(eventTexts[i], eventTimestamps[i]);
+      if (null != markers && null != markers[i]) {
+        EventImpl marker = new EventImpl(eventTexts[i].getBytes(), eventTimestamps[i],
+            Event.Priority.INFO, 0, null);
+        marker.set(WatermarkGenerator.MARKER_ATTR, markers[i].getBytes());
+        streamBuilder.addEvent(marker);
+      } else {
+        streamBuilder.addEvent(eventTexts[i], eventTimestamps[i]);
+      }
     }
 
     return streamBuilder.build();
@@ -66,9 +86,19 @@ public class TestJoin extends RtsqlTestCase {
    */
   private List<GenericData.Record> submitQuery(StreamSymbol leftStream,
       StreamSymbol rightStream, String query) throws IOException, InterruptedException {
+    return submitQuery(query, leftStream, rightStream);
+  }
+
+  /**
+   * Run the test over any number of input streams.
+   * @return The set of output record from the query.
+   */
+  private List<GenericData.Record> submitQuery(String query, StreamSymbol... streams)
+      throws IOException, InterruptedException {
 
-    getSymbolTable().addSymbol(leftStream);
-    getSymbolTable().addSymbol(rightStream);
+    for (StreamSymbol stream : streams) {
+      getSymbolTable().addSymbol(stream);
+    }
 
     getConf().set(SelectStmt.CLIENT_SELECT_TARGET_KEY, "testJoin");
 
@@ -119,6 +149,184 @@ public class TestJoin extends RtsqlTestCase {
     }
   }
 
+  @Test
+  public void testSpilledJoin() throws IOException, InterruptedException {
+    // Use a tiny heap budget so that the join's state is spilled to disk
+    // after every event, and check that joins still find their matches.
+    getConf().setLong(HashJoinElement.HEAP_BUDGET_KEY, 1);
+
+    String [] leftRecords = { "0,10", "1,11", "2,12", "0,13" };
+    long [] leftTimes = { 0, 1, 2, 3 };
+    String [] rightRecords = { "0,20", "1,21", "2,22", "3,23" };
+    long [] rightTimes = { 0, 1, 2, 3 };
+
+    StreamSymbol leftStream = makeStream("lt", "a", "b", leftRecords, leftTimes);
+    StreamSymbol rightStream = makeStream("rt", "c", "d", rightRecords, rightTimes);
+
+    List<GenericData.Record> results = submitQuery(leftStream, rightStream,
+        "SELECT * FROM lt JOIN rt ON a=c OVER RANGE INTERVAL 1 MINUTES PRECEDING");
+
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(4, results.size());
+      assertRecordFields(results, "b", Integer.valueOf(10), "d", Integer.valueOf(20));
+      assertRecordFields(results, "b", Integer.valueOf(11), "d", Integer.valueOf(21));
+      assertRecordFields(results, "b", Integer.valueOf(12), "d", Integer.valueOf(22));
+      assertRecordFields(results, "b", Integer.valueOf(13), "d", Integer.valueOf(20));
+    }
+  }
+
+  @Test
+  public void testWatermarkJoin() throws IOException, InterruptedException {
+    // Evict old events as the watermarks of both inputs advance, and check
+    // that joins still find their matches.
+    getConf().set(WatermarkGenerator.POLICY_KEY, "bounded");
+    getConf().setLong(WatermarkGenerator.MAX_DISORDER_KEY, 0);
+    getConf().setLong(WatermarkGenerator.INTERVAL_KEY, 1);
+
+    String [] leftRecords = { "0,10", "1,11", "2,12" };
+    long [] leftTimes = { 0, 1000, 2000 };
+    String [] rightRecords = { "2,22", "0,20", "1,21" };
+    long [] rightTimes = { 2000, 30000, 90000 };
+
+    StreamSymbol leftStream = makeStream("lt", "a", "b", leftRecords, leftTimes);
+    StreamSymbol rightStream = makeStream("rt", "c", "d", rightRecords, rightTimes);
+
+    List<GenericData.Record> results = submitQuery(leftStream, rightStream,
+        "SELECT * FROM lt JOIN rt ON a=c OVER RANGE INTERVAL 1 MINUTES PRECEDING");
+
+    // The (1, 21) event is more than a minute after (1, 11).
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(2, results.size());
+      assertRecordFields(results, "b", Integer.valueOf(10), "d", Integer.valueOf(20));
+      assertRecordFields(results, "b", Integer.valueOf(12), "d", Integer.valueOf(22));
+    }
+  }
+
+  @Test
+  public void testOneSidedWatermarkJoin() throws IOException, InterruptedException {
+    // Only lt carries watermark markers, so the least watermark never
+    // advances; old events must still be evicted after the slack time, and
+    // joins must still find their matches.
+    getConf().set(WatermarkGenerator.POLICY_KEY, "marker");
+
+    String [] leftRecords = { "0,10", "1,11", "9,0", "2,12", "9,0" };
+    long [] leftTimes = { 0, 1000, 1000, 2000, 2000 };
+    String [] leftMarkers = { null, null, "1000", null, "2000" };
+    String [] rightRecords = { "2,22", "0,20", "1,21" };
+    long [] rightTimes = { 2000, 30000, 90000 };
+
+    StreamSymbol leftStream = makeStream("lt", "a", "b", leftRecords, leftTimes, leftMarkers);
+    StreamSymbol rightStream = makeStream("rt", "c", "d", rightRecords, rightTimes);
+
+    List<GenericData.Record> results = submitQuery(leftStream, rightStream,
+        "SELECT * FROM lt JOIN rt ON a=c OVER RANGE INTERVAL 1 MINUTES PRECEDING");
+
+    // The markers are not events, and the (1, 21) event is more than a
+    // minute after (1, 11).
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(2, results.size());
+      assertRecordFields(results, "b", Integer.valueOf(10), "d", Integer.valueOf(20));
+      assertRecordFields(results, "b", Integer.valueOf(12), "d", Integer.valueOf(22));
+    }
+  }
+
+  @Test
+  public void testThreeWayJoin() throws IOException, InterruptedException {
+    // Three streams joined on a shared key are performed by a single
+    // multi-way join.
+    String [] leftRecords = { "0,10", "1,11", "2,12" };
+    long [] leftTimes = { 0, 1, 2 };
+    String [] midRecords = { "0,20", "1,21", "3,23" };
+    long [] midTimes = { 0, 1, 3 };
+    String [] rightRecords = { "0,30", "1,31", "2,32", "0,33" };
+    long [] rightTimes = { 0, 1, 2, 120000 };
+
+    StreamSymbol leftStream = makeStream("lt", "a", "b", leftRecords, leftTimes);
+    StreamSymbol midStream = makeStream("mt", "c", "d", midRecords, midTimes);
+    StreamSymbol rightStream = makeStream("rt", "x", "y", rightRecords, rightTimes);
+
+    List<GenericData.Record> results = submitQuery(
+        "SELECT * FROM lt JOIN mt ON a=c OVER RANGE INTERVAL 1 MINUTES PRECEDING "
+        + "JOIN rt ON c=x OVER RANGE INTERVAL 1 MINUTES PRECEDING",
+        leftStream, midStream, rightStream);
+
+    // Key 2 has no match in mt, and the last rt event is outside the
+    // window of the (0, 20) row.
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(2, results.size());
+      assertRecordFields(results, "b", Integer.valueOf(10), "d", Integer.valueOf(20));
+      assertRecordFields(results, "b", Integer.valueOf(10), "y", Integer.valueOf(30));
+      assertRecordFields(results, "b", Integer.valueOf(11), "d", Integer.valueOf(21));
+      assertRecordFields(results, "b", Integer.valueOf(11), "y", Integer.valueOf(31));
+    }
+  }
+
+  @Test
+  public void testThreeWayJoinDelayedInput() throws IOException, InterruptedException {
+    // The rt stream lags far behind the other two. Events of lt and mt must
+    // be kept until rt's events have caught up with them, however far ahead
+    // lt and mt have run.
+    String [] leftRecords = { "0,10", "1,11", "5,15" };
+    long [] leftTimes = { 0, 1, 600000 };
+    String [] midRecords = { "0,20", "1,21", "5,25" };
+    long [] midTimes = { 0, 1, 600000 };
+    String [] rightRecords = { "0,30", "1,31" };
+    long [] rightTimes = { 2, 3 };
+
+    StreamSymbol leftStream = makeStream("lt", "a", "b", leftRecords, leftTimes);
+    StreamSymbol midStream = makeStream("mt", "c", "d", midRecords, midTimes);
+    StreamSymbol rightStream = makeStream("rt", "x", "y", rightRecords, rightTimes);
+
+    List<GenericData.Record> results = submitQuery(
+        "SELECT * FROM lt JOIN mt ON a=c OVER RANGE INTERVAL 1 MINUTES PRECEDING "
+        + "JOIN rt ON c=x OVER RANGE INTERVAL 1 MINUTES PRECEDING",
+        leftStream, midStream, rightStream);
+
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(2, results.size());
+      assertRecordFields(results, "b", Integer.valueOf(10), "y", Integer.valueOf(30));
+      assertRecordFields(results, "b", Integer.valueOf(11), "y", Integer.valueOf(31));
+    }
+  }
+
+  @Test
+  public void testAggregateJoin() throws IOException, InterruptedException {
+    // Join a stream with the watermarked output of a windowed aggregate.
+    // The aggregate's events and watermarks must carry the sub-query's
+    // alias for the join to accept them.
+    getConf().set(WatermarkGenerator.POLICY_KEY, "bounded");
+    getConf().setLong(WatermarkGenerator.MAX_DISORDER_KEY, 0);
+    getConf().setLong(WatermarkGenerator.INTERVAL_KEY, 1);
+
+    String [] leftRecords = { "0,30", "1,31" };
+    long [] leftTimes = { 30000, 30000 };
+    String [] rightRecords = { "0,10", "1,11", "1,9", "0,12" };
+    long [] rightTimes = { 35, 36, 37, 200 };
+
+    StreamSymbol leftStream = makeStream("rt", "x", "y", leftRecords, leftTimes);
+    StreamSymbol rightStream = makeStream("lt", "a", "b", rightRecords, rightTimes);
+
+    List<GenericData.Record> results = submitQuery(
+        "SELECT * FROM rt JOIN (SELECT a, SUM(b) AS total FROM lt GROUP BY a "
+        + "OVER RANGE INTERVAL 1 SECONDS PRECEDING) AS agg "
+        + "ON x=a OVER RANGE INTERVAL 1 MINUTES PRECEDING",
+        leftStream, rightStream);
+
+    // The aggregate emits (0, 10), (1, 20) and (0, 22).
+    assertNotNull(results);
+    synchronized (results) {
+      assertEquals(3, results.size());
+      assertRecordFields(results, "y", Integer.valueOf(30), "total", Integer.valueOf(10));
+      assertRecordFields(results, "y", Integer.valueOf(31), "total", Integer.valueOf(20));
+      assertRecordFields(results, "y", Integer.valueOf(30), "total", Integer.valueOf(22));
+    }
+  }
+
   @Test
   public void testNullableFieldJoin1() throws IOException, InterruptedException {
     // Run the basic test but use a NULLABLE INT field.
@@ -22,6 +22,9 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.Schema;
 
 import org.apache.avro.generic.GenericData;
 
@@ -38,10 +41,20 @@ import com.odiago.flumebase.io.DelimitedEventParser;
 
 import com.odiago.flumebase.lang.Type;
 
+import com.odiago.flumebase.parser.ConstExpr;
 import com.odiago.flumebase.parser.FormatSpec;
+import com.odiago.flumebase.parser.SQLStatement;
 import com.odiago.flumebase.parser.SelectStmt;
 import com.odiago.flumebase.parser.TypedField;
 
+import com.odiago.flumebase.plan.FilterNode;
+import com.odiago.flumebase.plan.FlowSpecification;
+import com.odiago.flumebase.plan.MemoryOutputNode;
+import com.odiago.flumebase.plan.MergeDuplicateNodes;
+import com.odiago.flumebase.plan.NamedSourceNode;
+import com.odiago.flumebase.plan.PlanNode;
+import com.odiago.flumebase.plan.PropagateSchemas;
+
 import com.odiago.flumebase.testutil.MemStreamBuilder;
 import com.odiago.flumebase.testutil.RtsqlTestCase;
 
@@ -127,6 +140,59 @@ public class TestSelect extends RtsqlTestCase {
     assertEquals(0, outRecords.size());
   }
 
+  @Test
+  public void testMultipleWorkers() throws IOException, InterruptedException {
+    // Run several flows concurrently, spread across multiple worker threads.
+    final int NUM_FLOWS = 4;
+
+    MemStreamBuilder streamBuilder = new MemStreamBuilder("memstream");
+
+    streamBuilder.addField(new TypedField("fieldname", Type.getPrimitive(Type.TypeName.INT)));
+    streamBuilder.addEvent("1");
+    streamBuilder.addEvent("2");
+    streamBuilder.addEvent("3");
+    StreamSymbol stream = streamBuilder.build();
+    getSymbolTable().addSymbol(stream);
+
+    getConf().setInt(LocalEnvironment.NUM_WORKERS_KEY, 2);
+
+    // With all configuration complete, connect to the environment.
+    LocalEnvironment env = getEnvironment();
+    env.connect();
+
+    // Run all the queries before joining any of them.
+    List<FlowId> ids = new ArrayList<FlowId>();
+    for (int i = 0; i < NUM_FLOWS; i++) {
+      Map<String, String> opts = getQueryOpts();
+      opts.put(SelectStmt.CLIENT_SELECT_TARGET_KEY, "testSelect" + i);
+      QuerySubmitResponse response = env.submitQuery("SELECT fieldname FROM memstream",
+          opts);
+      FlowId id = response.getFlowId();
+      assertNotNull(id);
+      ids.add(id);
+    }
+
+    for (FlowId id : ids) {
+      joinFlow(id);
+    }
+
+    // Every flow should have seen every record, in order.
+    for (int i = 0; i < NUM_FLOWS; i++) {
+      MemoryOutputElement output = getOutput("testSelect" + i);
+      assertNotNull(output);
+
+      List<GenericData.Record> outRecords = output.getRecords();
+      synchronized (outRecords) {
+        assertEquals(3, outRecords.size());
+        for (int j = 0; j < 3; j++) {
+          Integer expected = Integer.valueOf(j + 1);
+          GenericData.Record record = outRecords.get(j);
+          assertEquals(expected, record.get("fieldname"));
+        }
+      }
+    }
+  }
+
   /**
    * Run a test where three records of two integer-typed fields are selected.
    * @param streamName the stream to create and populate with three records.
@@ -974,5 +1040,63 @@ public class TestSelect extends RtsqlTestCase {
   //   Test that a DROP STREAM followed by a SELECT on a different stream is ok.
   //
   //
-}
 
+  @Test
+  public void testFanOut() throws Exception {
+    // Plan three consumers of the same stream, two of them behind identical
+    // filters. After merging duplicates, one source feeds a filter and an
+    // output, and the filter feeds two outputs. Each output should see
+    // every event.
+    MemStreamBuilder streamBuilder = new MemStreamBuilder("memstream");
+
+    streamBuilder.addField(new TypedField("fieldname", Type.getPrimitive(Type.TypeName.INT)));
+    streamBuilder.addEvent("1");
+    streamBuilder.addEvent("2");
+    streamBuilder.addEvent("3");
+    StreamSymbol stream = streamBuilder.build();
+    getSymbolTable().addSymbol(stream);
+
+    List<TypedField> fields = Collections.singletonList(
+        new TypedField("fieldname", Type.getPrimitive(Type.TypeName.INT)));
+    Schema schema = SQLStatement.createFieldSchema(fields);
+    FlowSpecification spec = new FlowSpecification("fan-out", getConf());
+    String [] outputNames = { "fanOut1", "fanOut2", "fanOut3" };
+    for (int i = 0; i < outputNames.length; i++) {
+      PlanNode source = new NamedSourceNode("memstream", fields);
+      source.setAttr(PlanNode.OUTPUT_SCHEMA_ATTR, schema);
+      spec.addRoot(source);
+      PlanNode output = new MemoryOutputNode(outputNames[i], fields);
+      if (i < 2) {
+        PlanNode filter = new FilterNode(
+            new ConstExpr(Type.getPrimitive(Type.TypeName.BOOLEAN), Boolean.TRUE));
+        source.addChild(filter);
+        filter.addChild(output);
+      } else {
+        source.addChild(output);
+      }
+    }
+
+    spec.bfs(new PropagateSchemas());
+    new MergeDuplicateNodes().merge(spec);
+    assertEquals(1, spec.getRootSet().size());
+    assertEquals(2, spec.getRootSet().get(0).getChildren().size());
+
+    LocalEnvironment env = getEnvironment();
+    env.connect();
+    FlowId id = env.addFlow(spec);
+    assertNotNull(id);
+    joinFlow(id);
+
+    for (String outputName : outputNames) {
+      MemoryOutputElement output = getOutput(outputName);
+      assertNotNull(output);
+      List<GenericData.Record> outRecords = output.getRecords();
+      synchronized (outRecords) {
+        assertEquals(3, outRecords.size());
+        for (int i = 0; i < 3; i++) {
+          assertEquals(Integer.valueOf(i + 1), outRecords.get(i).get("fieldname"));
+        }
+      }
+    }
+  }
+}
@@ -19,6 +19,7 @@ package com.odiago.flumebase.exec;
 
 import java.io.IOException;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -29,6 +30,9 @@ import org.slf4j.LoggerFactory;
 
 import org.testng.annotations.Test;
 
+import com.cloudera.flume.core.Event;
+import com.cloudera.flume.core.EventImpl;
+
 import com.cloudera.util.Pair;
 
 import com.odiago.flumebase.exec.local.LocalEnvironment;
@@ -133,6 +137,8 @@ public class TestThroughput extends RtsqlTestCase {
     long eventsPerSecond = (NUM_RECORDS * 1000) / runTime;
     long bytesPerSecond = (bytesSent * 1000) / runTime;
     LOG.info("Query: " + query);
+    LOG.info("Batch size: " + getConf().getInt(LocalEnvironment.EVENT_BATCH_SIZE_KEY,
+        LocalEnvironment.DEFAULT_EVENT_BATCH_SIZE));
     LOG.info("Init time: " + initTime);
     LOG.info("Run time: " + runTime);
     LOG.info("Num events: " + NUM_RECORDS);
@@ -156,4 +162,106 @@ public class TestThroughput extends RtsqlTestCase {
     runThroughputTest("SELECT * FROM " + STREAM_NAME + " WHERE a % 10 = 0", 1024,
         NUM_RECORDS / 10);
   }
+
+  @Test(groups = { "slow" })
+  public void testProjectEval() throws IOException, InterruptedException {
+    // Filter, then evaluate an expression and project; exercises record passing
+    // between directly-coupled operators.
+    runThroughputTest("SELECT a, b + 1 AS d, c FROM " + STREAM_NAME + " WHERE a % 10 = 0", 32,
+        NUM_RECORDS / 10);
+  }
+
+  /**
+   * Run the "SELECT *" throughput test with the worker thread delivering
+   * up to 'batchSize' events to each FlowElement per wakeup.
+   */
+  private void runBatchTest(int batchSize) throws IOException, InterruptedException {
+    getConf().setInt(LocalEnvironment.EVENT_BATCH_SIZE_KEY, batchSize);
+    runThroughputTest("SELECT * FROM " + STREAM_NAME, 32, NUM_RECORDS);
+  }
+
+  @Test(groups = { "slow" })
+  public void testBatch1() throws IOException, InterruptedException {
+    runBatchTest(1);
+  }
+
+  @Test(groups = { "slow" })
+  public void testBatch16() throws IOException, InterruptedException {
+    runBatchTest(16);
+  }
+
+  @Test(groups = { "slow" })
+  public void testBatch256() throws IOException, InterruptedException {
+    runBatchTest(256);
+  }
+
+  /**
+   * Run a GROUP BY over a large number of distinct groups, with the groups
+   * split across 1, 2, 4, ... partitions, up to the number of processors.
+   * Each run must produce the same number of records; the throughput of each
+   * is noted on the output.
+   */
+  @Test(groups = { "slow" })
+  public void testPartitionedGroupBy() throws IOException, InterruptedException {
+    final int numEvents = 1000000;
+    final int numGroups = 200000;
+
+    // Events are generated on demand, 100 per millisecond, visiting the
+    // groups in a scattered order.
+    List<Event> events = new AbstractList<Event>() {
+      @Override
+      public int size() {
+        return numEvents;
+      }
+
+      @Override
+      public Event get(int i) {
+        String text = ((i * 7919L) % numGroups) + "," + i;
+        return new EventImpl(text.getBytes(), i / 100, Event.Priority.INFO, 0, null);
+      }
+    };
+
+    MemStreamBuilder streamBuilder = new MemStreamBuilder(STREAM_NAME);
+    streamBuilder.addField(new TypedField("a", Type.getPrimitive(Type.TypeName.INT)));
+    streamBuilder.addField(new TypedField("b", Type.getNullable(Type.TypeName.INT)));
+    streamBuilder.setEventList(events);
+    getSymbolTable().addSymbol(streamBuilder.build());
+
+    getConf().set(SelectStmt.CLIENT_SELECT_TARGET_KEY, "testThroughput");
+    LocalEnvironment env = getEnvironment();
+    env.connect();
+
+    String query = "SELECT a, COUNT(b) AS c FROM " + STREAM_NAME
+        + " GROUP BY a OVER RANGE INTERVAL 1 SECONDS PRECEDING";
+    int numProcessors = Runtime.getRuntime().availableProcessors();
+    int expectedRecordCount = -1;
+    for (int numPartitions = 1; numPartitions <= numProcessors; numPartitions *= 2) {
+      getConf().setInt(PartitionedAggregationElement.NUM_PARTITIONS_KEY, numPartitions);
+
+      long startTimestamp = System.currentTimeMillis();
+      QuerySubmitResponse response = env.submitQuery(query, getQueryOpts());
+      FlowId id = response.getFlowId();
+      assertNotNull(response.getMessage(), id);
+      assertTrue("Flow did not complete", env.joinFlow(id, 600000));
+      long runTime = Math.max(1, System.currentTimeMillis() - startTimestamp);
+
+      MemoryOutputElement output = getOutput("testThroughput");
+      assertNotNull(output);
+      List<GenericData.Record> outRecords = output.getRecords();
+      int recordCount;
+      synchronized (outRecords) {
+        recordCount = outRecords.size();
+        outRecords.clear();
+      }
+
+      if (expectedRecordCount < 0) {
+        expectedRecordCount = recordCount;
+      } else {
+        assertEquals("Improper number of records!", expectedRecordCount, recordCount);
+      }
+
+      LOG.info("Partitions: " + numPartitions + "; run time: " + runTime
+          + "; events per second: " + ((numEvents * 1000L) / runTime));
+    }
+  }
 }
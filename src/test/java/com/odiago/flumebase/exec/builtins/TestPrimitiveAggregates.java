@@ -0,0 +1,272 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.exec.builtins;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.testng.annotations.Test;
+
+import com.odiago.flumebase.exec.Bucket;
+
+import com.odiago.flumebase.lang.AggregateState;
+import com.odiago.flumebase.lang.EvalException;
+import com.odiago.flumebase.lang.PrimitiveAggregate;
+import com.odiago.flumebase.lang.PrimitiveAggregateFunc;
+import com.odiago.flumebase.lang.Type;
+import com.odiago.flumebase.lang.WindowAccumulator;
+
+import static org.testng.AssertJUnit.*;
+
+public class TestPrimitiveAggregates {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      TestPrimitiveAggregates.class.getName());
+
+  private static final Type INT_TYPE = Type.getPrimitive(Type.TypeName.INT);
+  private static final Type DOUBLE_TYPE = Type.getPrimitive(Type.TypeName.DOUBLE);
+  private static final Type STRING_TYPE = Type.getPrimitive(Type.TypeName.STRING);
+
+  /** Bind 'fn' to 'type', with its slots at the start of its state. */
+  private PrimitiveAggregate bind(PrimitiveAggregateFunc fn, Type type) throws Exception {
+    PrimitiveAggregate aggregate = fn.bind(type, type);
+    aggregate.setOffsets(0, 0, 0);
+    return aggregate;
+  }
+
+  /** @return the value of the aggregate over the specified arguments. */
+  private Object eval(PrimitiveAggregate aggregate, Object... args) {
+    AggregateState state = aggregate.newState();
+    for (Object arg : args) {
+      if (null != arg) {
+        aggregate.insert(arg, state);
+      }
+    }
+    return aggregate.finish(state);
+  }
+
+  @Test
+  public void testBuiltins() throws Exception {
+    assertEquals(Integer.valueOf(3), eval(bind(new count(), STRING_TYPE), "a", null, "b", "c"));
+    assertEquals(Integer.valueOf(0), eval(bind(new count(), INT_TYPE)));
+
+    assertEquals(Integer.valueOf(6), eval(bind(new sum(), INT_TYPE), 1, 2, null, 3));
+    assertNull(eval(bind(new sum(), INT_TYPE), (Object) null));
+    assertEquals(Double.valueOf(4.5), eval(bind(new sum(), DOUBLE_TYPE), 1.5, 3.0));
+
+    assertEquals(Integer.valueOf(2), eval(bind(new avg(), INT_TYPE), 1, 2, 4));
+    assertEquals(Double.valueOf(2.25), eval(bind(new avg(), DOUBLE_TYPE), 1.5, 3.0));
+    assertNull(eval(bind(new avg(), DOUBLE_TYPE)));
+
+    assertEquals(Integer.valueOf(-4), eval(bind(new min(), INT_TYPE), 3, -4, null, 10));
+    assertEquals(Integer.valueOf(10), eval(bind(new max(), INT_TYPE), 3, -4, null, 10));
+    assertEquals(Double.valueOf(-0.5), eval(bind(new min(), DOUBLE_TYPE), 2.0, -0.5));
+    assertEquals(Double.valueOf(2.0), eval(bind(new max(), DOUBLE_TYPE), 2.0, -0.5));
+    assertEquals("apple", eval(bind(new min(), STRING_TYPE), "pear", "apple", "zoo"));
+    assertEquals("zoo", eval(bind(new max(), STRING_TYPE), "pear", "apple", "zoo"));
+    assertNull(eval(bind(new max(), STRING_TYPE)));
+  }
+
+  @Test
+  public void testSharedState() throws Exception {
+    // Lay out several aggregates in one state, as the aggregation operator does.
+    List<PrimitiveAggregate> aggregates = new ArrayList<PrimitiveAggregate>();
+    aggregates.add(new count().bind(INT_TYPE, INT_TYPE));
+    aggregates.add(new sum().bind(DOUBLE_TYPE, DOUBLE_TYPE));
+    aggregates.add(new max().bind(INT_TYPE, INT_TYPE));
+    aggregates.add(new min().bind(STRING_TYPE, STRING_TYPE));
+
+    int numLongs = 0;
+    int numDoubles = 0;
+    int numObjects = 0;
+    for (PrimitiveAggregate aggregate : aggregates) {
+      aggregate.setOffsets(numLongs, numDoubles, numObjects);
+      numLongs += aggregate.getNumLongSlots();
+      numDoubles += aggregate.getNumDoubleSlots();
+      numObjects += aggregate.getNumObjectSlots();
+    }
+
+    AggregateState state = new AggregateState(numLongs, numDoubles, numObjects);
+    for (int i = 0; i < 5; i++) {
+      aggregates.get(0).insert(Integer.valueOf(i), state);
+      aggregates.get(1).insert(Double.valueOf(i * 0.5), state);
+      aggregates.get(2).insert(Integer.valueOf(i * 10), state);
+      aggregates.get(3).insert("s" + (5 - i), state);
+    }
+
+    assertEquals(Integer.valueOf(5), aggregates.get(0).finish(state));
+    assertEquals(Double.valueOf(5.0), aggregates.get(1).finish(state));
+    assertEquals(Integer.valueOf(40), aggregates.get(2).finish(state));
+    assertEquals("s1", aggregates.get(3).finish(state));
+  }
+
+  /** Slide a window of 'width' buckets over buckets holding 0, 1, 2, ... */
+  private void checkSlidingWindow(PrimitiveAggregate aggregate, int width, boolean isMax)
+      throws Exception {
+    WindowAccumulator<AggregateState> accumulator = aggregate.newWindowAccumulator();
+    List<Bucket<AggregateState>> buckets = new ArrayList<Bucket<AggregateState>>();
+    for (int i = 0; i < 20; i++) {
+      Bucket<AggregateState> bucket = new Bucket<AggregateState>();
+      bucket.setState(aggregate.newState());
+      aggregate.insert(Integer.valueOf(i), bucket.getState());
+      buckets.add(bucket);
+
+      accumulator.insert(bucket);
+      if (i >= width) {
+        accumulator.remove(buckets.get(i - width));
+      }
+
+      int lo = Math.max(0, i - width + 1);
+      assertEquals(Integer.valueOf(isMax ? i : lo), accumulator.finish());
+    }
+  }
+
+  @Test
+  public void testWindowAccumulators() throws Exception {
+    checkSlidingWindow(bind(new max(), INT_TYPE), 4, true);
+    checkSlidingWindow(bind(new min(), INT_TYPE), 4, false);
+
+    // Sum over a window of 3 buckets.
+    PrimitiveAggregate sumAggregate = bind(new sum(), INT_TYPE);
+    WindowAccumulator<AggregateState> accumulator = sumAggregate.newWindowAccumulator();
+    assertTrue(accumulator.isInvertible());
+    List<Bucket<AggregateState>> buckets = new ArrayList<Bucket<AggregateState>>();
+    for (int i = 0; i < 10; i++) {
+      Bucket<AggregateState> bucket = new Bucket<AggregateState>();
+      bucket.setState(sumAggregate.newState());
+      sumAggregate.insert(Integer.valueOf(i), bucket.getState());
+      buckets.add(bucket);
+      accumulator.insert(bucket);
+      if (i >= 3) {
+        accumulator.remove(buckets.get(i - 3));
+        assertEquals(Integer.valueOf(3 * i - 3), accumulator.finish());
+      }
+    }
+  }
+
+  @Test
+  public void testDoubleWindowRecovers() throws Exception {
+    // A NaN or infinity leaving a window of doubles must not leave the total NaN.
+    PrimitiveAggregate sumAggregate = bind(new sum(), DOUBLE_TYPE);
+    WindowAccumulator<AggregateState> accumulator = sumAggregate.newWindowAccumulator();
+    assertFalse(accumulator.isInvertible());
+    double[] values = { Double.POSITIVE_INFINITY, Double.NaN, 0.1, 0.2, 0.3 };
+    List<Bucket<AggregateState>> buckets = new ArrayList<Bucket<AggregateState>>();
+    for (int i = 0; i < values.length; i++) {
+      Bucket<AggregateState> bucket = new Bucket<AggregateState>();
+      bucket.setState(sumAggregate.newState());
+      sumAggregate.insert(Double.valueOf(values[i]), bucket.getState());
+      buckets.add(bucket);
+      accumulator.insert(bucket);
+      if (i >= 2) {
+        accumulator.remove(buckets.get(i - 2));
+      }
+    }
+
+    assertEquals(Double.valueOf(0.2 + 0.3), accumulator.finish());
+  }
+
+  @Test
+  public void testCheckBinding() throws Exception {
+    bind(new sum(), DOUBLE_TYPE).checkBinding(INT_TYPE);
+    bind(new max(), STRING_TYPE).checkBinding(STRING_TYPE);
+    try {
+      // An integer sum cannot take floating-point values.
+      bind(new sum(), INT_TYPE).checkBinding(DOUBLE_TYPE);
+      fail("Expected EvalException");
+    } catch (EvalException ee) {
+      // Expected.
+    }
+  }
+
+  /**
+   * @return the number of bytes allocated so far by the current thread, or
+   * -1 if the JVM cannot report it.
+   */
+  private static long getAllocatedBytes() {
+    java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+      return -1;
+    }
+
+    com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) threadBean;
+    if (!sunBean.isThreadAllocatedMemorySupported()) {
+      return -1;
+    }
+    return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /**
+   * Insert many values into a single bucket, as the aggregation operator does
+   * for each event, and check that this does not allocate.
+   */
+  private void benchmarkInserts(String name, PrimitiveAggregate aggregate, Object[] args) {
+    final int numRounds = 200;
+    AggregateState state = aggregate.newState();
+    getAllocatedBytes(); // Load whatever the measurement needs up front.
+
+    for (int round = 0; round < 3; round++) {
+      // The first rounds warm up the JIT compiler.
+      long startBytes = getAllocatedBytes();
+      long startTime = System.currentTimeMillis();
+      for (int i = 0; i < numRounds; i++) {
+        for (Object arg : args) {
+          aggregate.insert(arg, state);
+        }
+      }
+      long elapsed = System.currentTimeMillis() - startTime;
+      long allocated = getAllocatedBytes() - startBytes;
+
+      long numInserts = (long) numRounds * args.length;
+      LOG.info(name + " round " + round + ": " + numInserts + " inserts in " + elapsed
+          + " ms; " + allocated + " bytes allocated");
+      if (startBytes >= 0 && round > 0) {
+        assertEquals(name + " allocates per insert", 0, allocated / numInserts);
+      }
+    }
+
+    assertNotNull(aggregate.finish(state));
+  }
+
+  @Test(groups = { "slow" })
+  public void testInsertAllocation() throws Exception {
+    // Arguments are boxed up front; the events they come from hold boxed values.
+    final int numArgs = 10000;
+    Object[] ints = new Object[numArgs];
+    Object[] doubles = new Object[numArgs];
+    Object[] strings = new Object[numArgs];
+    for (int i = 0; i < numArgs; i++) {
+      ints[i] = Integer.valueOf(i * 31);
+      doubles[i] = Double.valueOf(i * 0.25);
+      strings[i] = "value" + (i % 100);
+    }
+
+    benchmarkInserts("count", bind(new count(), INT_TYPE), ints);
+    benchmarkInserts("sum(int)", bind(new sum(), INT_TYPE), ints);
+    benchmarkInserts("sum(double)", bind(new sum(), DOUBLE_TYPE), doubles);
+    benchmarkInserts("avg(int)", bind(new avg(), INT_TYPE), ints);
+    benchmarkInserts("avg(double)", bind(new avg(), DOUBLE_TYPE), doubles);
+    benchmarkInserts("min(int)", bind(new min(), INT_TYPE), ints);
+    benchmarkInserts("max(double)", bind(new max(), DOUBLE_TYPE), doubles);
+    benchmarkInserts("max(string)", bind(new max(), STRING_TYPE), strings);
+  }
+}
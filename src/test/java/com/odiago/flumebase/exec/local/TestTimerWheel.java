@@ -0,0 +1,158 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.odiago.flumebase.exec.local;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test that the TimerWheel runs callbacks when they are due.
+ */
+public class TestTimerWheel {
+
+  /** A short wheel, so that timeouts wrap around it several times. */
+  private TimerWheel mWheel;
+
+  @BeforeMethod
+  public void setUp() {
+    mWheel = new TimerWheel(5, 8);
+  }
+
+  @AfterMethod
+  public void tearDown() throws InterruptedException {
+    mWheel.shutdown();
+  }
+
+  /** Records the time at which it ran, and its own id. */
+  private static class RecordingCallback implements TimerWheel.Callback {
+    private final int mId;
+    private final List<Integer> mFired;
+    private final CountDownLatch mLatch;
+    private volatile long mFireTime;
+
+    RecordingCallback(int id, List<Integer> fired, CountDownLatch latch) {
+      mId = id;
+      mFired = fired;
+      mLatch = latch;
+    }
+
+    public boolean expire() {
+      mFireTime = System.currentTimeMillis();
+      mFired.add(mId);
+      mLatch.countDown();
+      return true;
+    }
+  }
+
+  @Test
+  public void testOrdering() throws InterruptedException {
+    // Schedule callbacks out of order, some more than a full turn of the wheel away.
+    long [] delays = { 150, 20, 90, 45, 0 };
+    List<Integer> fired = Collections.synchronizedList(new ArrayList<Integer>());
+    CountDownLatch latch = new CountDownLatch(delays.length);
+    RecordingCallback [] callbacks = new RecordingCallback[delays.length];
+    long [] deadlines = new long[delays.length];
+
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < delays.length; i++) {
+      callbacks[i] = new RecordingCallback(i, fired, latch);
+      deadlines[i] = now + delays[i];
+      mWheel.schedule(deadlines[i], callbacks[i]);
+    }
+
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+    assertEquals(4, fired.get(0).intValue());
+    assertEquals(1, fired.get(1).intValue());
+    assertEquals(3, fired.get(2).intValue());
+    assertEquals(2, fired.get(3).intValue());
+    assertEquals(0, fired.get(4).intValue());
+    for (int i = 0; i < delays.length; i++) {
+      assertTrue("Callback " + i + " ran early", callbacks[i].mFireTime >= deadlines[i]);
+    }
+
+    // The wheel updates its count after the last callback returns.
+    long pendingDeadline = System.currentTimeMillis() + 5000;
+    while (mWheel.getNumPending() > 0 && System.currentTimeMillis() < pendingDeadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, mWheel.getNumPending());
+  }
+
+  @Test
+  public void testCancel() throws InterruptedException {
+    List<Integer> fired = Collections.synchronizedList(new ArrayList<Integer>());
+    CountDownLatch latch = new CountDownLatch(1);
+    long now = System.currentTimeMillis();
+    TimerWheel.Timeout canceled = mWheel.schedule(now + 20,
+        new RecordingCallback(0, fired, latch));
+    mWheel.schedule(now + 60, new RecordingCallback(1, fired, latch));
+    canceled.cancel();
+
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+    assertEquals(Collections.singletonList(Integer.valueOf(1)), fired);
+    assertTrue(canceled.isCanceled());
+  }
+
+  @Test
+  public void testRetry() throws InterruptedException {
+    // A callback which declines to complete is retried on later ticks.
+    final AtomicInteger attempts = new AtomicInteger(0);
+    final CountDownLatch latch = new CountDownLatch(1);
+    mWheel.schedule(System.currentTimeMillis(), new TimerWheel.Callback() {
+      public boolean expire() {
+        if (attempts.incrementAndGet() < 3) {
+          return false;
+        }
+        latch.countDown();
+        return true;
+      }
+    });
+
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+    assertEquals(3, attempts.get());
+  }
+
+  @Test
+  public void testIdle() throws InterruptedException {
+    // The wheel keeps working after sitting idle for several turns.
+    List<Integer> fired = Collections.synchronizedList(new ArrayList<Integer>());
+    CountDownLatch first = new CountDownLatch(1);
+    mWheel.schedule(System.currentTimeMillis() + 10, new RecordingCallback(0, fired, first));
+    assertTrue(first.await(5, TimeUnit.SECONDS));
+
+    Thread.sleep(100);
+    CountDownLatch second = new CountDownLatch(1);
+    long deadline = System.currentTimeMillis() + 30;
+    RecordingCallback callback = new RecordingCallback(1, fired, second);
+    mWheel.schedule(deadline, callback);
+    assertTrue(second.await(5, TimeUnit.SECONDS));
+    assertTrue(callback.mFireTime >= deadline);
+    assertEquals(2, fired.size());
+  }
+}
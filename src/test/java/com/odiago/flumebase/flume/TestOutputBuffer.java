@@ -0,0 +1,149 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.flume;
+
+import java.io.File;
+
+import org.testng.annotations.Test;
+
+import com.cloudera.flume.core.Event;
+import com.cloudera.flume.core.EventImpl;
+
+import static org.testng.AssertJUnit.*;
+
+public class TestOutputBuffer {
+
+  /** Records calls to pause() and resume(). */
+  private static class CountingFlowControl implements OutputBuffer.FlowControl {
+    private int mNumPauses;
+    private int mNumResumes;
+
+    public void pause() {
+      mNumPauses++;
+    }
+
+    public void resume() {
+      mNumResumes++;
+    }
+  }
+
+  private static Event makeEvent(int i) {
+    return new EventImpl(Integer.toString(i).getBytes(), i, Event.Priority.INFO, 0, "");
+  }
+
+  private static int eventVal(Event e) {
+    return Integer.parseInt(new String(e.getBody()));
+  }
+
+  @Test
+  public void testDropOldest() throws Exception {
+    OutputBuffer buf = new OutputBuffer(4, OutputBuffer.OverflowPolicy.DropOldest,
+        null, null, 0);
+    for (int i = 0; i < 10; i++) {
+      buf.put(makeEvent(i));
+    }
+
+    assertEquals(4, buf.size());
+    assertEquals(6, buf.getNumDropped());
+    for (int i = 6; i < 10; i++) {
+      assertEquals(i, eventVal(buf.take()));
+    }
+    assertEquals(0, buf.size());
+  }
+
+  @Test
+  public void testBlock() throws Exception {
+    CountingFlowControl flowControl = new CountingFlowControl();
+    OutputBuffer buf = new OutputBuffer(4, OutputBuffer.OverflowPolicy.Block,
+        flowControl, null, 0);
+    for (int i = 0; i < 6; i++) {
+      buf.put(makeEvent(i));
+    }
+
+    // Nothing is dropped; the flow is paused once.
+    assertEquals(6, buf.size());
+    assertEquals(0, buf.getNumDropped());
+    assertTrue(buf.isPaused());
+    assertEquals(1, flowControl.mNumPauses);
+
+    // The flow resumes when the buffer is drained to half its capacity.
+    for (int i = 0; i < 3; i++) {
+      assertEquals(i, eventVal(buf.take()));
+      assertEquals(0, flowControl.mNumResumes);
+    }
+    assertEquals(3, eventVal(buf.take()));
+    assertEquals(1, flowControl.mNumResumes);
+    assertFalse(buf.isPaused());
+
+    assertEquals(4, eventVal(buf.take()));
+    assertEquals(5, eventVal(buf.take()));
+    assertEquals(0, buf.size());
+  }
+
+  @Test
+  public void testSpill() throws Exception {
+    File spillFile = File.createTempFile("test-output-", ".spill");
+    spillFile.delete();
+    OutputBuffer buf = new OutputBuffer(4, OutputBuffer.OverflowPolicy.Spill,
+        null, spillFile, 1024 * 1024);
+    try {
+      for (int i = 0; i < 20; i++) {
+        buf.put(makeEvent(i));
+      }
+      assertEquals(20, buf.size());
+      assertTrue(spillFile.exists());
+
+      // Events are delivered in order, interleaved with new puts.
+      for (int i = 0; i < 10; i++) {
+        assertEquals(i, eventVal(buf.take()));
+      }
+      buf.put(makeEvent(20));
+      for (int i = 10; i <= 20; i++) {
+        assertEquals(i, eventVal(buf.take()));
+      }
+
+      assertEquals(0, buf.size());
+      assertEquals(0, buf.getNumDropped());
+      assertFalse(spillFile.exists());
+    } finally {
+      buf.close();
+    }
+  }
+
+  @Test
+  public void testSpillLimit() throws Exception {
+    File spillFile = File.createTempFile("test-output-", ".spill");
+    spillFile.delete();
+    // Room for about two spilled records.
+    OutputBuffer buf = new OutputBuffer(2, OutputBuffer.OverflowPolicy.Spill,
+        null, spillFile, 64);
+    try {
+      for (int i = 0; i < 10; i++) {
+        buf.put(makeEvent(i));
+      }
+      assertEquals(4, buf.size());
+      assertEquals(6, buf.getNumDropped());
+      for (int i = 0; i < 4; i++) {
+        assertEquals(i, eventVal(buf.take()));
+      }
+    } finally {
+      buf.close();
+    }
+    assertFalse(spillFile.exists());
+  }
+}
@@ -0,0 +1,108 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.io;
+
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+
+public class TestByteArrayUtils {
+  private byte[] makeBytes(String text) {
+    return text.getBytes(ByteArrayUtils.UTF8);
+  }
+
+  @Test
+  public void testBooleans() throws Exception {
+    byte[] bytes = makeBytes("true");
+    assertEquals(true, ByteArrayUtils.parseBool(bytes, 0, bytes.length));
+
+    bytes = makeBytes("x,false");
+    assertEquals(false, ByteArrayUtils.parseBool(bytes, 2, bytes.length));
+
+    try {
+      // Only the two strings above are recognized; this one should fail
+      bytes = makeBytes("True");
+      ByteArrayUtils.parseBool(bytes, 0, bytes.length);
+      fail("Expected ColumnParseException");
+    } catch (ColumnParseException e) {
+      // expected; ok.
+    }
+  }
+
+  @Test
+  public void testInts() throws Exception {
+    byte[] bytes = makeBytes("42");
+    assertEquals(42, ByteArrayUtils.parseInt(bytes, 0, bytes.length));
+
+    bytes = makeBytes("-42");
+    assertEquals(-42, ByteArrayUtils.parseInt(bytes, 0, bytes.length));
+
+    // Parse a range that starts at an offset into an array.
+    bytes = makeBytes("0,2,35");
+    assertEquals(2, ByteArrayUtils.parseInt(bytes, 2, 3));
+    assertEquals(35, ByteArrayUtils.parseInt(bytes, 4, 6));
+
+    bytes = makeBytes("-9223372036854775808");
+    assertEquals(Long.MIN_VALUE, ByteArrayUtils.parseLong(bytes, 0, bytes.length));
+
+    try {
+      ByteArrayUtils.parseInt(bytes, 0, 0);
+      fail("Expected ColumnParseException");
+    } catch (ColumnParseException e) {
+      // expected; ok.
+    }
+
+    try {
+      ByteArrayUtils.parseInt(bytes, 0, 1);
+      fail("Expected ColumnParseException");
+    } catch (ColumnParseException e) {
+      // expected; ok.
+    }
+
+    try {
+      bytes = makeBytes("4x");
+      ByteArrayUtils.parseInt(bytes, 0, bytes.length);
+      fail("Expected ColumnParseException");
+    } catch (ColumnParseException e) {
+      // expected; ok.
+    }
+  }
+
+  @Test
+  public void testFloats() throws Exception {
+    byte[] bytes = makeBytes("1.5,-2.25");
+    assertEquals(1.5f, ByteArrayUtils.parseFloat(bytes, 0, 3), 0.0f);
+    assertEquals(-2.25, ByteArrayUtils.parseDouble(bytes, 4, bytes.length), 0.0);
+
+    try {
+      ByteArrayUtils.parseDouble(bytes, 0, bytes.length);
+      fail("Expected ColumnParseException");
+    } catch (ColumnParseException e) {
+      // expected; ok.
+    }
+  }
+
+  @Test
+  public void testStrings() throws Exception {
+    byte[] bytes = makeBytes("a,\u00e9t\u00e9");
+    assertEquals("a", ByteArrayUtils.parseString(bytes, 0, 1));
+    assertEquals("\u00e9t\u00e9", ByteArrayUtils.parseString(bytes, 2, bytes.length));
+    assertTrue(ByteArrayUtils.rangeEquals(bytes, 0, 1, makeBytes("a")));
+    assertFalse(ByteArrayUtils.rangeEquals(bytes, 0, 2, makeBytes("a")));
+  }
+}
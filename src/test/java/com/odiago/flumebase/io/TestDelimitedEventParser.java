@@ -130,4 +130,67 @@ public class TestDelimitedEventParser {
     int i = (Integer) ep.getColumn(1, Type.getPrimitive(Type.TypeName.INT));
     assertEquals(2, i);
   }
+
+  @Test
+  public void testMixedTypes() throws Exception {
+    DelimitedEventParser ep = new DelimitedEventParser();
+    ep.reset(makeEvent("1.5,true,abc,-7,2.25"));
+
+    // Read out of order, and re-read columns already parsed.
+    assertEquals(Double.valueOf(2.25), ep.getColumn(4, Type.getPrimitive(Type.TypeName.DOUBLE)));
+    assertEquals(Float.valueOf(1.5f), ep.getColumn(0, Type.getPrimitive(Type.TypeName.FLOAT)));
+    assertEquals(Long.valueOf(-7), ep.getColumn(3, Type.getPrimitive(Type.TypeName.BIGINT)));
+    assertEquals("abc", ep.getColumn(2, Type.getPrimitive(Type.TypeName.STRING)));
+    assertEquals(Boolean.TRUE, ep.getColumn(1, Type.getPrimitive(Type.TypeName.BOOLEAN)));
+    assertEquals(Double.valueOf(2.25), ep.getColumn(4, Type.getPrimitive(Type.TypeName.DOUBLE)));
+
+    // Cached values must not leak into the next event.
+    ep.reset(makeEvent("2.5,false"));
+    assertEquals(Boolean.FALSE, ep.getColumn(1, Type.getPrimitive(Type.TypeName.BOOLEAN)));
+    assertEquals(Float.valueOf(2.5f), ep.getColumn(0, Type.getPrimitive(Type.TypeName.FLOAT)));
+  }
+
+  @Test
+  public void testEmptyAndNullStrings() throws Exception {
+    DelimitedEventParser ep = new DelimitedEventParser();
+    ep.reset(makeEvent("a,,\\N,"));
+    assertEquals("a", ep.getColumn(0, Type.getPrimitive(Type.TypeName.STRING)));
+    assertEquals("", ep.getColumn(1, Type.getPrimitive(Type.TypeName.STRING)));
+    assertNull(ep.getColumn(2, Type.getNullable(Type.TypeName.STRING)));
+    assertEquals("", ep.getColumn(3, Type.getPrimitive(Type.TypeName.STRING)));
+
+    try {
+      ep.getColumn(4, Type.getPrimitive(Type.TypeName.STRING));
+      fail("Expected error retrieving missing column");
+    } catch (ColumnParseException cpe) {
+      // expected; ok
+    }
+  }
+
+  @Test
+  public void testNonAsciiDelimiter() throws Exception {
+    DelimitedEventParser ep = new DelimitedEventParser('\u00a7');
+    ep.reset(new EventImpl("\u00e9t\u00e9\u00a712".getBytes("UTF-8")));
+    assertEquals(Integer.valueOf(12), ep.getColumn(1, Type.getPrimitive(Type.TypeName.INT)));
+    assertEquals("\u00e9t\u00e9", ep.getColumn(0, Type.getPrimitive(Type.TypeName.STRING)));
+  }
+
+  @Test
+  public void testManyColumns() throws Exception {
+    // More columns than the parser's initial capacity.
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 40; i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append(i);
+    }
+
+    DelimitedEventParser ep = new DelimitedEventParser();
+    ep.reset(makeEvent(sb.toString()));
+    assertEquals(Integer.valueOf(39), ep.getColumn(39, Type.getPrimitive(Type.TypeName.INT)));
+    for (int i = 0; i < 40; i++) {
+      assertEquals(Integer.valueOf(i), ep.getColumn(i, Type.getPrimitive(Type.TypeName.INT)));
+    }
+  }
 }
@@ -0,0 +1,281 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.odiago.flumebase.parser;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+
+import com.cloudera.flume.core.Event;
+
+import com.odiago.flumebase.exec.AssignedSymbol;
+import com.odiago.flumebase.exec.BuiltInSymbolTable;
+import com.odiago.flumebase.exec.EventWrapper;
+import com.odiago.flumebase.exec.HashSymbolTable;
+import com.odiago.flumebase.exec.SymbolTable;
+
+import com.odiago.flumebase.lang.Type;
+import com.odiago.flumebase.lang.TypeChecker;
+
+/**
+ * Check that compiled expressions return the same values as Expr.eval(),
+ * and measure how much faster they are.
+ */
+public class TestCompiledExpr extends ExprTestCase {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      TestCompiledExpr.class.getName());
+
+  /** An EventWrapper that returns field values from a map. */
+  private static class MapEventWrapper extends EventWrapper {
+    private Map<String, Object> mValues = new HashMap<String, Object>();
+
+    public void put(String fieldName, Object value) {
+      mValues.put(fieldName, value);
+    }
+
+    @Override
+    public void reset(Event e) {
+    }
+
+    @Override
+    public Object getField(TypedField field) {
+      return mValues.get(field.getAvroName());
+    }
+
+    @Override
+    public Event getEvent() {
+      return null;
+    }
+
+    @Override
+    public String getEventText() {
+      return mValues.toString();
+    }
+
+    @Override
+    public String getAttr(String attrName) {
+      return null;
+    }
+  }
+
+  private static Expr intConst(int val) {
+    return new ConstExpr(Type.getPrimitive(Type.TypeName.INT), Integer.valueOf(val));
+  }
+
+  private static Expr nullInt() {
+    return new ConstExpr(Type.getNullable(Type.TypeName.INT), null);
+  }
+
+  private static Expr bool(boolean val) {
+    return new ConstExpr(Type.getPrimitive(Type.TypeName.BOOLEAN), Boolean.valueOf(val));
+  }
+
+  private static Expr str(String val) {
+    return new ConstExpr(Type.getPrimitive(Type.TypeName.STRING), val);
+  }
+
+  private static Expr id(String name) {
+    return new IdentifierExpr(name);
+  }
+
+  private static Expr bin(Expr lhs, BinOp op, Expr rhs) {
+    return new BinExpr(lhs, op, rhs);
+  }
+
+  private SymbolTable getSymbols() {
+    SymbolTable symbols = new HashSymbolTable(new BuiltInSymbolTable());
+    symbols.addSymbol(new AssignedSymbol("i", Type.getPrimitive(Type.TypeName.INT), "i"));
+    symbols.addSymbol(new AssignedSymbol("n", Type.getNullable(Type.TypeName.INT), "n"));
+    symbols.addSymbol(new AssignedSymbol("l", Type.getPrimitive(Type.TypeName.BIGINT), "l"));
+    symbols.addSymbol(new AssignedSymbol("f", Type.getPrimitive(Type.TypeName.FLOAT), "f"));
+    symbols.addSymbol(new AssignedSymbol("d", Type.getPrimitive(Type.TypeName.DOUBLE), "d"));
+    symbols.addSymbol(new AssignedSymbol("s", Type.getPrimitive(Type.TypeName.STRING), "s"));
+    symbols.addSymbol(new AssignedSymbol("b", Type.getPrimitive(Type.TypeName.BOOLEAN), "b"));
+    return symbols;
+  }
+
+  private MapEventWrapper getEventWrapper() {
+    MapEventWrapper wrapper = new MapEventWrapper();
+    wrapper.put("i", Integer.valueOf(7));
+    wrapper.put("n", null);
+    wrapper.put("l", Long.valueOf(5000000000L));
+    wrapper.put("f", Float.valueOf(2.5f));
+    wrapper.put("d", Double.valueOf(-0.25));
+    wrapper.put("s", "abc");
+    wrapper.put("b", Boolean.TRUE);
+    return wrapper;
+  }
+
+  /**
+   * @return the expressions exercised by TestBinExpr, with some of
+   * their constant operands replaced by fields of the event.
+   */
+  private List<Expr> getExprs() {
+    List<Expr> exprs = new ArrayList<Expr>();
+    BinOp[] arithmetic = { BinOp.Times, BinOp.Div, BinOp.Mod, BinOp.Add, BinOp.Subtract };
+    BinOp[] comparisons = { BinOp.Greater, BinOp.GreaterEq, BinOp.Less, BinOp.LessEq,
+        BinOp.Eq, BinOp.NotEq };
+
+    for (BinOp op : arithmetic) {
+      exprs.add(bin(id("i"), op, intConst(2)));
+      exprs.add(bin(intConst(4), op, id("i")));
+      exprs.add(bin(id("i"), op, id("l")));
+      exprs.add(bin(id("l"), op, intConst(3)));
+      exprs.add(bin(id("f"), op, id("i")));
+      exprs.add(bin(id("d"), op, id("f")));
+      exprs.add(bin(id("n"), op, intConst(2)));
+      exprs.add(bin(nullInt(), op, id("i")));
+    }
+
+    for (BinOp op : comparisons) {
+      exprs.add(bin(id("i"), op, intConst(7)));
+      exprs.add(bin(id("i"), op, intConst(2)));
+      exprs.add(bin(id("l"), op, id("i")));
+      exprs.add(bin(id("f"), op, id("d")));
+      exprs.add(bin(id("d"), op, id("d")));
+      exprs.add(bin(id("s"), op, str("abc")));
+      exprs.add(bin(id("s"), op, str("ABC")));
+      exprs.add(bin(id("i"), op, str("7")));
+      exprs.add(bin(id("b"), op, bool(false)));
+      exprs.add(bin(id("n"), op, intConst(4)));
+    }
+
+    exprs.add(bin(id("s"), BinOp.Add, str("def")));
+    exprs.add(bin(id("s"), BinOp.Add, id("i")));
+    exprs.add(bin(id("i"), BinOp.Add, id("s")));
+
+    for (BinOp op : new BinOp[] { BinOp.And, BinOp.Or }) {
+      exprs.add(bin(id("b"), op, bool(true)));
+      exprs.add(bin(id("b"), op, bool(false)));
+      exprs.add(bin(bool(false), op, id("b")));
+      exprs.add(bin(bin(id("i"), BinOp.Greater, id("n")), op, id("b")));
+    }
+
+    exprs.add(new UnaryExpr(UnaryOp.Minus, id("i")));
+    exprs.add(new UnaryExpr(UnaryOp.Minus, id("l")));
+    exprs.add(new UnaryExpr(UnaryOp.Minus, id("f")));
+    exprs.add(new UnaryExpr(UnaryOp.Minus, id("d")));
+    exprs.add(new UnaryExpr(UnaryOp.Minus, id("n")));
+    exprs.add(new UnaryExpr(UnaryOp.Plus, id("i")));
+    exprs.add(new UnaryExpr(UnaryOp.Not, id("b")));
+    exprs.add(new UnaryExpr(UnaryOp.IsNull, id("n")));
+    exprs.add(new UnaryExpr(UnaryOp.IsNotNull, id("n")));
+    exprs.add(new UnaryExpr(UnaryOp.IsNull, id("i")));
+
+    FnCallExpr fnCall = new FnCallExpr("length");
+    fnCall.addArg(id("s"));
+    exprs.add(fnCall);
+
+    // Entirely constant expressions are folded.
+    exprs.add(bin(intConst(4), BinOp.Times, intConst(2)));
+    exprs.add(bin(str("abc"), BinOp.Add, intConst(3)));
+    return exprs;
+  }
+
+  /** Evaluate a compiled expression as a boolean, as FilterElement does. */
+  private Object evalAsBool(CompiledExpr compiled, EventWrapper e) throws IOException {
+    boolean result = compiled.evalBool(e);
+    return compiled.wasNull() ? null : Boolean.valueOf(result);
+  }
+
+  @Test
+  public void testCompiledMatchesEval() throws Exception {
+    SymbolTable symbols = getSymbols();
+    EventWrapper wrapper = getEventWrapper();
+    for (Expr expr : getExprs()) {
+      expr.accept(new TypeChecker(symbols));
+      Object expected = expr.eval(wrapper);
+      CompiledExpr compiled = expr.compile();
+      String msg = expr.toStringOneLine();
+      assertEquals(msg, expected, compiled.eval(wrapper));
+      // Evaluate twice, to check that no state leaks between evaluations.
+      assertEquals(msg, expected, compiled.eval(wrapper));
+
+      if (expected instanceof Boolean || null == expected) {
+        Type type = expr.getType(symbols);
+        if (type.getPrimitiveTypeName().equals(Type.TypeName.BOOLEAN)) {
+          assertEquals(msg, expected, evalAsBool(compiled, wrapper));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testFolding() throws Exception {
+    Expr expr = bin(intConst(4), BinOp.Times, intConst(2));
+    expr.accept(new TypeChecker(new HashSymbolTable()));
+    assertTrue(expr.compile() instanceof CompiledExpr.Constant);
+
+    // Division by zero is not folded; it fails when evaluated.
+    expr = bin(intConst(4), BinOp.Div, intConst(0));
+    expr.accept(new TypeChecker(new HashSymbolTable()));
+    CompiledExpr compiled = expr.compile();
+    try {
+      compiled.eval(getEmptyEventWrapper());
+      fail("Expected ArithmeticException");
+    } catch (ArithmeticException ae) {
+      // Expected.
+    }
+  }
+
+  @Test(groups = { "slow" })
+  public void testSpeed() throws Exception {
+    final int numIterations = 200000;
+    SymbolTable symbols = getSymbols();
+    EventWrapper wrapper = getEventWrapper();
+    List<Expr> exprs = getExprs();
+    List<CompiledExpr> compiledExprs = new ArrayList<CompiledExpr>();
+    for (Expr expr : exprs) {
+      expr.accept(new TypeChecker(symbols));
+      compiledExprs.add(expr.compile());
+    }
+
+    for (int round = 0; round < 3; round++) {
+      // The first rounds warm up the JIT compiler.
+      long startTime = System.currentTimeMillis();
+      for (int i = 0; i < numIterations; i++) {
+        for (Expr expr : exprs) {
+          expr.eval(wrapper);
+        }
+      }
+      long evalTime = System.currentTimeMillis() - startTime;
+
+      startTime = System.currentTimeMillis();
+      for (int i = 0; i < numIterations; i++) {
+        for (CompiledExpr compiled : compiledExprs) {
+          compiled.eval(wrapper);
+        }
+      }
+      long compiledTime = System.currentTimeMillis() - startTime;
+
+      LOG.info("Round " + round + ": " + numIterations + " x " + exprs.size()
+          + " expressions; eval(): " + evalTime + " ms; compiled: " + compiledTime + " ms");
+    }
+  }
+}
@@ -76,4 +76,45 @@ public class TestIdentifierExpr extends ExprTestCase {
       // expected; ok.
     }
   }
+
+  @Test
+  public void testFieldIndexPerLayout() throws Exception {
+    // The same TypedField must resolve correctly against streams whose
+    // columns are laid out differently.
+    TypedField field = new TypedField("x", Type.getPrimitive(Type.TypeName.INT));
+
+    ArrayList<String> firstNames = new ArrayList<String>();
+    firstNames.add("x");
+    firstNames.add("y");
+    ArrayList<String> secondNames = new ArrayList<String>();
+    secondNames.add("y");
+    secondNames.add("x");
+
+    for (int i = 0; i < 3; i++) {
+      EventWrapper first = new ParsingEventWrapper(new DelimitedEventParser(), firstNames);
+      first.reset(new EventImpl("1,2".getBytes()));
+      assertEquals(Integer.valueOf(1), first.getField(field));
+
+      EventWrapper second = new ParsingEventWrapper(new DelimitedEventParser(), secondNames);
+      second.reset(new EventImpl("1,2".getBytes()));
+      assertEquals(Integer.valueOf(2), second.getField(field));
+    }
+  }
+
+  @Test
+  public void testFieldIndexManyLayouts() throws Exception {
+    // A field read in turn through several layouts, as in a cascaded join,
+    // keeps its position in each of them rather than re-resolving.
+    TypedField field = new TypedField("x", Type.getPrimitive(Type.TypeName.INT));
+    Object [] layouts = new Object[4];
+    for (int i = 0; i < layouts.length; i++) {
+      layouts[i] = new Object();
+      field.setIndex(layouts[i], i);
+    }
+
+    for (int i = 0; i < layouts.length; i++) {
+      assertEquals(i, field.getIndex(layouts[i]));
+    }
+    assertEquals(-1, field.getIndex(new Object()));
+  }
 }
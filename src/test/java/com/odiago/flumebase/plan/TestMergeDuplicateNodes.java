@@ -0,0 +1,123 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.odiago.flumebase.plan;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+
+import org.testng.annotations.Test;
+
+import com.odiago.flumebase.lang.Type;
+
+import com.odiago.flumebase.parser.ConstExpr;
+import com.odiago.flumebase.parser.TypedField;
+
+import static org.testng.AssertJUnit.*;
+
+/** Test that the MergeDuplicateNodes pass shares identical plan prefixes. */
+public class TestMergeDuplicateNodes {
+
+  private List<TypedField> getFields() {
+    return Collections.singletonList(
+        new TypedField("x", Type.getPrimitive(Type.TypeName.INT)));
+  }
+
+  private FilterNode makeFilter(boolean val) {
+    return new FilterNode(new ConstExpr(Type.getPrimitive(Type.TypeName.BOOLEAN),
+        Boolean.valueOf(val)));
+  }
+
+  @Test
+  public void testSharedPrefix() throws Exception {
+    // Given two identical source -> filter chains feeding two outputs,
+    // test that one source and one filter feed both outputs.
+    FlowSpecification spec = new FlowSpecification(new Configuration());
+    PlanNode out1 = new MemoryOutputNode("out1", getFields());
+    PlanNode out2 = new MemoryOutputNode("out2", getFields());
+    for (PlanNode out : new PlanNode[] { out1, out2 }) {
+      PlanNode source = new NamedSourceNode("s", getFields());
+      PlanNode filter = makeFilter(true);
+      source.addChild(filter);
+      filter.addChild(out);
+      spec.addRoot(source);
+    }
+
+    new MergeDuplicateNodes().merge(spec);
+
+    assertEquals(1, spec.getRootSet().size());
+    PlanNode source = spec.getRootSet().get(0);
+    assertEquals(1, source.getChildren().size());
+    PlanNode filter = source.getChildren().get(0);
+    assertEquals(2, filter.getChildren().size());
+    assertTrue(filter.getChildren().contains(out1));
+    assertTrue(filter.getChildren().contains(out2));
+    assertEquals(1, out1.getParents().size());
+    assertEquals(filter, out1.getParents().get(0));
+    assertEquals(filter, out2.getParents().get(0));
+  }
+
+  @Test
+  public void testDivergentSuffix() throws Exception {
+    // Given the same source with two different filters, test that the
+    // source is shared but both filters remain.
+    FlowSpecification spec = new FlowSpecification(new Configuration());
+    PlanNode source1 = new NamedSourceNode("s", getFields());
+    PlanNode source2 = new NamedSourceNode("s", getFields());
+    PlanNode filter1 = makeFilter(true);
+    PlanNode filter2 = makeFilter(false);
+    source1.addChild(filter1);
+    source2.addChild(filter2);
+    spec.addRoot(source1);
+    spec.addRoot(source2);
+
+    new MergeDuplicateNodes().merge(spec);
+
+    assertEquals(1, spec.getRootSet().size());
+    PlanNode source = spec.getRootSet().get(0);
+    assertEquals(2, source.getChildren().size());
+    assertEquals(source, filter1.getParents().get(0));
+    assertEquals(source, filter2.getParents().get(0));
+  }
+
+  @Test
+  public void testDistinctSourcesKept() throws Exception {
+    // Sources over different streams are not merged.
+    FlowSpecification spec = new FlowSpecification(new Configuration());
+    spec.addRoot(new NamedSourceNode("s", getFields()));
+    spec.addRoot(new NamedSourceNode("t", getFields()));
+
+    new MergeDuplicateNodes().merge(spec);
+
+    assertEquals(2, spec.getRootSet().size());
+  }
+
+  @Test
+  public void testSinksKept() throws Exception {
+    // Outputs have side effects; identical outputs are not merged.
+    FlowSpecification spec = new FlowSpecification(new Configuration());
+    PlanNode source = new NamedSourceNode("s", getFields());
+    source.addChild(new MemoryOutputNode("out", getFields()));
+    source.addChild(new MemoryOutputNode("out", getFields()));
+    spec.addRoot(source);
+
+    new MergeDuplicateNodes().merge(spec);
+
+    assertEquals(2, source.getChildren().size());
+  }
+}
@@ -0,0 +1,306 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.avro.Schema;
+
+import org.apache.thrift.transport.TMemoryBuffer;
+
+import org.testng.annotations.Test;
+
+import com.odiago.flumebase.exec.FlowId;
+
+import com.odiago.flumebase.thrift.ClientConsole;
+import com.odiago.flumebase.thrift.TRecordBlock;
+
+import static org.testng.AssertJUnit.*;
+
+public class TestUserSession {
+
+  /**
+   * Client console that records what it receives, and can be held up to
+   * simulate a slow client.
+   */
+  private static class RecordingConsole implements ClientConsole.Iface {
+    private final List<String> mInfo = new ArrayList<String>();
+    private final List<String> mErr = new ArrayList<String>();
+    private final List<TRecordBlock> mBlocks = new ArrayList<TRecordBlock>();
+    private int mNumRecords;
+    private int mNumCalls;
+    private boolean mIsBlocked;
+
+    public synchronized void sendInfo(String info) {
+      waitUntilUnblocked();
+      mInfo.add(info);
+      mNumCalls++;
+      notifyAll();
+    }
+
+    public synchronized void sendInfoBatch(List<String> info) {
+      waitUntilUnblocked();
+      mInfo.addAll(info);
+      mNumCalls++;
+      notifyAll();
+    }
+
+    public synchronized void sendRecords(TRecordBlock block) {
+      waitUntilUnblocked();
+      mBlocks.add(block);
+      mNumRecords += block.getCount();
+      mNumCalls++;
+      notifyAll();
+    }
+
+    public synchronized void sendErr(String err) {
+      waitUntilUnblocked();
+      mErr.add(err);
+      mNumCalls++;
+      notifyAll();
+    }
+
+    private void waitUntilUnblocked() {
+      while (mIsBlocked) {
+        try {
+          wait();
+        } catch (InterruptedException ie) {
+          // Keep waiting.
+        }
+      }
+    }
+
+    public synchronized void setBlocked(boolean blocked) {
+      mIsBlocked = blocked;
+      notifyAll();
+    }
+
+    /** Wait until at least numLines lines of info have been received. */
+    public synchronized void waitForInfo(int numLines) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 10000;
+      while (mInfo.size() < numLines && System.currentTimeMillis() < deadline) {
+        wait(100);
+      }
+    }
+
+    /** Wait until at least numLines error messages have been received. */
+    public synchronized void waitForErr(int numLines) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 10000;
+      while (mErr.size() < numLines && System.currentTimeMillis() < deadline) {
+        wait(100);
+      }
+    }
+  }
+
+  @Test
+  public void testBatchedDelivery() throws Exception {
+    RecordingConsole console = new RecordingConsole();
+    UserSession session = new UserSession(new SessionId(1), new TMemoryBuffer(16), console);
+    try {
+      // Hold the client up while lines accumulate, so they are delivered together.
+      console.setBlocked(true);
+      session.sendInfo("first");
+      Thread.sleep(100);
+      for (int i = 0; i < 100; i++) {
+        session.sendInfo(Integer.toString(i));
+      }
+      console.setBlocked(false);
+
+      console.waitForInfo(101);
+      synchronized (console) {
+        assertEquals(101, console.mInfo.size());
+        assertEquals("first", console.mInfo.get(0));
+        for (int i = 0; i < 100; i++) {
+          assertEquals(Integer.toString(i), console.mInfo.get(i + 1));
+        }
+        assertTrue("Expected batched delivery; got " + console.mNumCalls + " calls",
+            console.mNumCalls < 101);
+        assertEquals(0, console.mErr.size());
+      }
+    } finally {
+      console.setBlocked(false);
+      session.close();
+    }
+  }
+
+  @Test
+  public void testRecordBlocks() throws Exception {
+    RecordingConsole console = new RecordingConsole();
+    UserSession session = new UserSession(new SessionId(3), new TMemoryBuffer(16), console);
+    FlowId flowId = new FlowId(42);
+    Schema schema = Schema.create(Schema.Type.INT);
+    try {
+      session.setRecordDelivery(flowId, true);
+      assertTrue(session.isRecordDelivery(flowId));
+
+      console.setBlocked(true);
+      session.sendInfo("first");
+      Thread.sleep(100);
+      for (int i = 0; i < 10; i++) {
+        session.sendRecord(flowId, schema, new byte[] { (byte) (2 * i) });
+      }
+      console.setBlocked(false);
+
+      long deadline = System.currentTimeMillis() + 10000;
+      synchronized (console) {
+        while (console.mNumRecords < 10 && System.currentTimeMillis() < deadline) {
+          console.wait(100);
+        }
+
+        // The records arrive together, with the schema, after the text.
+        assertEquals(1, console.mInfo.size());
+        assertEquals(1, console.mBlocks.size());
+        TRecordBlock block = console.mBlocks.get(0);
+        assertEquals(10, block.getCount());
+        assertEquals(42, block.getFlowId().getId());
+        assertEquals(schema, Schema.parse(block.getSchema()));
+        byte[] records = block.getRecords();
+        assertEquals(10, records.length);
+        for (int i = 0; i < 10; i++) {
+          assertEquals(2 * i, records[i]);
+        }
+      }
+
+      // The schema is not sent again.
+      session.sendRecord(flowId, schema, new byte[] { 0 });
+      deadline = System.currentTimeMillis() + 10000;
+      synchronized (console) {
+        while (console.mNumRecords < 11 && System.currentTimeMillis() < deadline) {
+          console.wait(100);
+        }
+        assertEquals(2, console.mBlocks.size());
+        assertFalse(console.mBlocks.get(1).isSetSchema());
+      }
+    } finally {
+      session.close();
+    }
+  }
+
+  @Test
+  public void testSchemaResentOnRewatch() throws Exception {
+    RecordingConsole console = new RecordingConsole();
+    UserSession session = new UserSession(new SessionId(4), new TMemoryBuffer(16), console);
+    FlowId flowId = new FlowId(42);
+    Schema schema = Schema.create(Schema.Type.INT);
+    try {
+      session.setRecordDelivery(flowId, true);
+      session.sendRecord(flowId, schema, new byte[] { 0 });
+      waitForRecords(console, 1);
+
+      // Unwatch and watch again; the client's new decoder needs the schema.
+      session.setRecordDelivery(flowId, false);
+      session.setRecordDelivery(flowId, true);
+      session.sendRecord(flowId, schema, new byte[] { 1 });
+      waitForRecords(console, 2);
+
+      // Watching again without unwatching also starts a new decoder.
+      session.setRecordDelivery(flowId, true);
+      session.sendRecord(flowId, schema, new byte[] { 2 });
+      waitForRecords(console, 3);
+
+      synchronized (console) {
+        assertEquals(3, console.mBlocks.size());
+        for (TRecordBlock block : console.mBlocks) {
+          assertEquals(schema, Schema.parse(block.getSchema()));
+        }
+      }
+    } finally {
+      session.close();
+    }
+  }
+
+  /** Wait until at least numRecords records have been received. */
+  private void waitForRecords(RecordingConsole console, int numRecords)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    synchronized (console) {
+      while (console.mNumRecords < numRecords && System.currentTimeMillis() < deadline) {
+        console.wait(100);
+      }
+      assertEquals(numRecords, console.mNumRecords);
+    }
+  }
+
+  @Test
+  public void testDropWhenFull() throws Exception {
+    RecordingConsole console = new RecordingConsole();
+    UserSession session = new UserSession(new SessionId(2), new TMemoryBuffer(16), console);
+    try {
+      console.setBlocked(true);
+      session.sendInfo("first");
+      Thread.sleep(100);
+
+      // The sender thread is stuck delivering "first"; fill the outbox and then some.
+      int numLines = UserSession.MAX_PENDING_LINES + 10;
+      for (int i = 0; i < numLines; i++) {
+        session.sendInfo(Integer.toString(i));
+      }
+      assertEquals(UserSession.MAX_PENDING_LINES, session.getNumPending());
+      console.setBlocked(false);
+
+      // The notice follows the lines that were queued before the drops.
+      console.waitForErr(1);
+      synchronized (console) {
+        assertEquals(UserSession.MAX_PENDING_LINES + 1, console.mInfo.size());
+        assertEquals(1, console.mErr.size());
+        assertTrue(console.mErr.get(0).startsWith("(10 lines of output dropped"));
+      }
+    } finally {
+      console.setBlocked(false);
+      session.close();
+    }
+  }
+
+  @Test
+  public void testCloseDeliversErrors() throws Exception {
+    final RecordingConsole console = new RecordingConsole();
+    UserSession session = new UserSession(new SessionId(5), new TMemoryBuffer(16), console);
+    try {
+      console.setBlocked(true);
+      session.sendInfo("first");
+      Thread.sleep(100);
+      session.sendErr("last words");
+      session.sendInfo("discarded");
+
+      // Let the client catch up while close() waits for the error.
+      Thread unblocker = new Thread() {
+        public void run() {
+          try {
+            Thread.sleep(100);
+          } catch (InterruptedException ie) {
+            // Unblock now.
+          }
+          console.setBlocked(false);
+        }
+      };
+      unblocker.start();
+      session.close();
+      unblocker.join();
+
+      synchronized (console) {
+        assertEquals(Collections.singletonList("last words"), console.mErr);
+        assertEquals(Collections.singletonList("first"), console.mInfo);
+      }
+    } finally {
+      console.setBlocked(false);
+      session.close();
+    }
+  }
+}
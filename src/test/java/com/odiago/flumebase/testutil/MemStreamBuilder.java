@@ -35,6 +35,7 @@ import com.odiago.flumebase.parser.TypedField;
  */
 public class MemStreamBuilder extends StreamBuilder {
   private List<Event> mEvents;
+  private List<Event> mEventList;
   private InMemStreamSymbol.LatencyPolicy mLatencyPolicy;
 
   public MemStreamBuilder() {
@@ -63,6 +64,15 @@ public class MemStreamBuilder extends StreamBuilder {
     mEvents.add(new EventImpl(eventBodyText.getBytes(), eventTime, Priority.INFO, 0, null));
   }
 
+  /**
+   * Use 'events' as the stream's events, instead of any events added with addEvent().
+   * The list is not copied; this allows a test to generate events on demand
+   * rather than materializing them all up front.
+   */
+  public void setEventList(List<Event> events) {
+    mEventList = events;
+  }
+
   public void setLatencyPolicy(InMemStreamSymbol.LatencyPolicy policy) {
     mLatencyPolicy = policy;
   }
@@ -81,7 +91,7 @@ public class MemStreamBuilder extends StreamBuilder {
     }
 
     return new InMemStreamSymbol(getName(), makeStreamType(),
-        new ArrayList<Event>(mEvents),
+        null != mEventList ? mEventList : new ArrayList<Event>(mEvents),
         new ArrayList<TypedField>(getFields()), getFormat(),
         mLatencyPolicy);
   }
@@ -17,7 +17,12 @@
 
 package com.odiago.flumebase.util;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import org.testng.annotations.Test;
 
@@ -29,6 +34,9 @@ import com.cloudera.util.Pair;
  * Test that the WindowedHashMap provides the operations we expect.
  */
 public class TestWindowedHashMap {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      TestWindowedHashMap.class.getName());
+
   private <T> void assertContains(T obj, Iterable<T> things) {
     for (T thing : things) {
       if (obj.equals(thing)) {
@@ -42,7 +50,7 @@ public class TestWindowedHashMap {
   @Test
   public void testMap() {
     // Map with string keys, integer values, and long timestamps.
-    WindowedHashMap<String, Integer, Long> map = new WindowedHashMap<String, Integer, Long>();
+    WindowedHashMap<String, Integer> map = new WindowedHashMap<String, Integer>();
 
     // Put an entry in the map.
     map.put("foo", Integer.valueOf(42), Long.valueOf(312));
@@ -132,8 +140,8 @@ public class TestWindowedHashMap {
     assertEquals(0, refined.size());
 
     // Now remove "bar" and assert that everything is empty.
-    WindowedHashMap<String, Integer, Long> emptyMap =
-        new WindowedHashMap<String, Integer, Long>();
+    WindowedHashMap<String, Integer> emptyMap =
+        new WindowedHashMap<String, Integer>();
     map.remove("bar");
     assertEquals(emptyMap, map);
 
@@ -159,5 +167,290 @@ public class TestWindowedHashMap {
     assertEquals(1, refined.size());
     assertContains(Integer.valueOf(3), refined);
   }
-}
 
+  @Test
+  public void testOutOfOrder() {
+    // Insert values with timestamps that arrive out of order, interleaved
+    // with expiry, and check every range lookup against a brute-force scan.
+    WindowedHashMap<String, Integer> map = new WindowedHashMap<String, Integer>();
+    List<Long> times = new ArrayList<Long>();
+    List<Integer> vals = new ArrayList<Integer>();
+    Random r = new Random(1234);
+    long expiredBefore = Long.MIN_VALUE;
+
+    for (int i = 0; i < 2000; i++) {
+      long t = i + r.nextInt(50);
+      if (t < expiredBefore) {
+        continue;
+      }
+
+      map.put("k", Integer.valueOf(i), t);
+      times.add(Long.valueOf(t));
+      vals.add(Integer.valueOf(i));
+
+      if (i % 100 == 99) {
+        expiredBefore = i - 200;
+        map.removeOlderThan(expiredBefore);
+      }
+
+      long lo = t - r.nextInt(100);
+      long hi = t + r.nextInt(20) - 10;
+      boolean openLo = r.nextBoolean();
+      boolean openHi = r.nextBoolean();
+      List<Integer> expected = new ArrayList<Integer>();
+      for (int j = 0; j < times.size(); j++) {
+        long jt = times.get(j).longValue();
+        if (jt >= expiredBefore && (openLo ? jt > lo : jt >= lo)
+            && (openHi ? jt < hi : jt <= hi)) {
+          expected.add(vals.get(j));
+        }
+      }
+
+      List<Integer> actual = map.getRange("k", lo, hi, openLo, openHi);
+      assertEquals(expected.size(), actual.size());
+      for (Integer val : expected) {
+        assertContains(val, actual);
+      }
+    }
+
+    // Results must come back in timestamp order.
+    List<Integer> all = map.getRange("k", Long.MIN_VALUE, Long.MAX_VALUE, false, false);
+    long prevTime = Long.MIN_VALUE;
+    for (Integer val : all) {
+      long t = times.get(vals.indexOf(val)).longValue();
+      assertTrue(t >= prevTime);
+      prevTime = t;
+    }
+  }
+
+  @Test
+  public void testGetTimestamp() {
+    WindowedHashMap<String, Integer> map = new WindowedHashMap<String, Integer>();
+    map.put("foo", Integer.valueOf(1), 100);
+    map.put("foo", Integer.valueOf(2), 200);
+    map.put("foo", Integer.valueOf(3), 200);
+    map.put("bar", Integer.valueOf(4), 200);
+
+    // Only the values at t=200 are returned, each exactly once.
+    List<Integer> valsForT = map.getTimestamp(200);
+    assertEquals(3, valsForT.size());
+    assertContains(Integer.valueOf(2), valsForT);
+    assertContains(Integer.valueOf(3), valsForT);
+    assertContains(Integer.valueOf(4), valsForT);
+  }
+
+  /**
+   * Run a join-like workload against the map: each event probes the window
+   * of the previous 'windowLen' time units for its key, is inserted, and
+   * then expired entries are removed. Key i is drawn with probability
+   * proportional to 1 / (i + 1)^skew.
+   */
+  private void runSkewedProbes(int numKeys, double skew, long windowLen, int numEvents) {
+    double[] cumulative = new double[numKeys];
+    double total = 0.0;
+    for (int i = 0; i < numKeys; i++) {
+      total += 1.0 / Math.pow(i + 1, skew);
+      cumulative[i] = total;
+    }
+
+    Random r = new Random(42);
+    Integer[] keys = new Integer[numEvents];
+    for (int i = 0; i < numEvents; i++) {
+      double x = r.nextDouble() * total;
+      int lo = 0;
+      int hi = numKeys - 1;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (cumulative[mid] < x) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      keys[i] = Integer.valueOf(lo);
+    }
+
+    WindowedHashMap<Integer, Integer> map = new WindowedHashMap<Integer, Integer>();
+    long matches = 0;
+    long startTime = System.currentTimeMillis();
+    for (int i = 0; i < numEvents; i++) {
+      long t = i;
+      List<Integer> joined = map.getRange(keys[i], t - windowLen, t, true, false);
+      matches += joined.size();
+      map.put(keys[i], keys[i], t);
+      map.removeOlderThan(t - windowLen);
+    }
+    long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+
+    LOG.info("Skewed probes: keys=" + numKeys + ", skew=" + skew + ", window="
+        + windowLen + ", events=" + numEvents + ": " + elapsed + " ms ("
+        + (numEvents * 1000L / elapsed) + " events/sec); " + matches + " matches");
+    assertTrue(matches > 0);
+  }
+
+  @Test(groups = { "slow" })
+  public void testSkewedProbes() {
+    // Uniform keys, mild skew, and heavy skew where the hottest key holds
+    // a large fraction of the window.
+    runSkewedProbes(10000, 0.0, 50000, 1000000);
+    runSkewedProbes(10000, 1.0, 50000, 1000000);
+    runSkewedProbes(10000, 1.5, 50000, 1000000);
+
+    // A single hot key with every event in the window. Probes return a
+    // narrow slice of a long per-key list.
+    WindowedHashMap<String, Integer> map = new WindowedHashMap<String, Integer>();
+    for (int i = 0; i < 50000; i++) {
+      map.put("hot", Integer.valueOf(i), i);
+    }
+
+    int numProbes = 1000000;
+    long found = 0;
+    long startTime = System.currentTimeMillis();
+    for (int i = 0; i < numProbes; i++) {
+      long t = i % 50000;
+      found += map.getRange("hot", t - 10, t, true, false).size();
+    }
+    long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+    LOG.info("Hot key probes: " + numProbes + " probes of a 50000-entry key in "
+        + elapsed + " ms (" + (numProbes * 1000L / elapsed) + " probes/sec)");
+    assertTrue(found > 0);
+  }
+
+  /**
+   * Insert 'numEvents' entries spread over 'numKeys' keys into a sliding
+   * window, with each timestamp up to 'disorder' time units earlier than its
+   * position in the stream, expiring entries as the window slides.
+   * @return the time taken per event, in nanoseconds.
+   */
+  private long runOutOfOrder(int numKeys, int disorder, long windowLen, int numEvents) {
+    Random r = new Random(42);
+    Integer[] keys = new Integer[numKeys];
+    for (int i = 0; i < numKeys; i++) {
+      keys[i] = Integer.valueOf(i);
+    }
+
+    WindowedHashMap<Integer, Integer> map = new WindowedHashMap<Integer, Integer>();
+    Integer val = Integer.valueOf(0);
+    long startTime = System.nanoTime();
+    for (int i = 0; i < numEvents; i++) {
+      long t = disorder == 0 ? i : i - r.nextInt(disorder);
+      map.put(keys[r.nextInt(numKeys)], val, t);
+      map.removeOlderThan(i - windowLen);
+    }
+    long nsPerEvent = (System.nanoTime() - startTime) / numEvents;
+
+    LOG.info("Out of order inserts: keys=" + numKeys + ", disorder=" + disorder
+        + ", window=" + windowLen + ", events=" + numEvents + ": " + nsPerEvent + " ns/event");
+
+    // Everything left must still come back in timestamp order.
+    map.removeOlderThan(numEvents - windowLen);
+    long prev = Long.MIN_VALUE;
+    for (int i = 0; i < numKeys; i++) {
+      List<Pair<Long, Integer>> pairs = map.get(keys[i]);
+      if (null == pairs) {
+        continue;
+      }
+      prev = Long.MIN_VALUE;
+      for (Pair<Long, Integer> pair : pairs) {
+        assertTrue(pair.getLeft().longValue() >= prev);
+        assertTrue(pair.getLeft().longValue() >= numEvents - windowLen);
+        prev = pair.getLeft().longValue();
+      }
+    }
+
+    return nsPerEvent;
+  }
+
+  @Test(groups = { "slow" })
+  public void testOutOfOrderCost() {
+    // A late entry is filed in the log in logarithmic time, and within its
+    // key moves only that key's newer entries. With many keys, inserts whose
+    // timestamps lag by a large fraction of the window should cost about as
+    // much as in-order inserts.
+    runOutOfOrder(10000, 0, 50000, 1000000); // Warm up.
+    long inOrder = runOutOfOrder(10000, 0, 50000, 1000000);
+    long disordered = runOutOfOrder(10000, 20000, 50000, 1000000);
+    assertTrue("In order: " + inOrder + " ns/event; disordered: " + disordered + " ns/event",
+        disordered < 10 * Math.max(inOrder, 100));
+
+    // A single key pays to move its newer entries, which is proportional to
+    // the disorder rather than to the size of the map.
+    runOutOfOrder(1, 100, 50000, 1000000);
+  }
+
+  /**
+   * Fill a map with 'numEvents' entries spread over 'numKeys' keys, and then
+   * expire them a slice at a time, as a join does when its window slides.
+   */
+  private void runEviction(int numKeys, int numEvents) {
+    WindowedHashMap<Integer, Integer> map = new WindowedHashMap<Integer, Integer>();
+    Integer[] keys = new Integer[numKeys];
+    for (int i = 0; i < numKeys; i++) {
+      keys[i] = Integer.valueOf(i);
+    }
+
+    Integer val = Integer.valueOf(0);
+    for (int i = 0; i < numEvents; i++) {
+      map.put(keys[i % numKeys], val, i);
+    }
+
+    long startTime = System.nanoTime();
+    for (int t = 0; t <= numEvents; t += 100) {
+      map.removeOlderThan(t);
+    }
+    long elapsed = System.nanoTime() - startTime;
+
+    LOG.info("Eviction: keys=" + numKeys + ", events=" + numEvents + ": "
+        + (elapsed / 1000000) + " ms (" + (elapsed / numEvents) + " ns/event)");
+    assertTrue(map.isEmpty());
+    assertNull(map.oldestTimestamp());
+  }
+
+  /** @return the heap in use after a garbage collection. */
+  private long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  @Test(groups = { "slow" })
+  public void testEvictionCost() {
+    // The cost per evicted entry should not depend on how many entries
+    // each key holds.
+    runEviction(1, 1000000);
+    runEviction(100, 1000000);
+    runEviction(10000, 1000000);
+    runEviction(1000000, 1000000);
+
+    // The heap used per stored entry should stay under 32 bytes, both just
+    // after the arrays have grown and once entries have been expired.
+    measureHeapPerEvent(1000000, 0);
+    measureHeapPerEvent(1000000, 190000);
+    measureHeapPerEvent(300000, 0);
+    measureHeapPerEvent(300000, 50000);
+  }
+
+  /**
+   * Measure the heap used per stored entry when 'numEvents' entries share a
+   * few keys and a value object, and the oldest 'numExpired' are then
+   * expired.
+   */
+  private void measureHeapPerEvent(int numEvents, int numExpired) {
+    Integer val = Integer.valueOf(0);
+    Integer[] keys = { Integer.valueOf(0), Integer.valueOf(1), Integer.valueOf(2) };
+    long heapBefore = usedHeap();
+    WindowedHashMap<Integer, Integer> map = new WindowedHashMap<Integer, Integer>();
+    for (int i = 0; i < numEvents; i++) {
+      map.put(keys[i % keys.length], val, i);
+    }
+    map.removeOlderThan(numExpired);
+    long bytesPerEvent = (usedHeap() - heapBefore) / (numEvents - numExpired);
+    LOG.info("Heap used per stored entry with " + numEvents + " added and " + numExpired
+        + " expired: " + bytesPerEvent + " bytes");
+    assertTrue(bytesPerEvent < 32);
+    assertEquals(3, map.size());
+    assertEquals(Long.valueOf(numExpired), map.oldestTimestamp());
+  }
+}
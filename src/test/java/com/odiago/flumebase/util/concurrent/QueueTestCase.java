@@ -78,26 +78,55 @@ public class QueueTestCase {
     /** Sum of all values received thus far. */
     private long mTotal;
 
+    /**
+     * If greater than 1, values are read with drainTo() in batches of up to
+     * this size. A batch consumer must be the only consumer of its queue, since
+     * it may drain more than one '0'.
+     */
+    private int mBatchSize;
+
+    /**
+     * Size of the largest batch drainTo() returned, which must not exceed
+     * mBatchSize. Checked by the test thread after join(), since assertion
+     * failures in this thread would not be reported.
+     */
+    private int mMaxDrained;
+
     public ConsumerThread(SelectableQueue<Long> queue) {
+      this(queue, 1);
+    }
+
+    public ConsumerThread(SelectableQueue<Long> queue, int batchSize) {
       mQueue = queue;
+      mBatchSize = batchSize;
     }
 
     public void run() {
+      List<Long> batch = new ArrayList<Long>();
       while (true) {
-        Long val = null;
-        try {
-          val = mQueue.take();
-        } catch (InterruptedException ie) {
-          LOG.info("Interrupted in consumer");
+        batch.clear();
+        if (mBatchSize > 1) {
+          mQueue.drainTo(batch, mBatchSize);
+          mMaxDrained = Math.max(mMaxDrained, batch.size());
+        }
+
+        if (batch.size() == 0) {
+          try {
+            batch.add(mQueue.take());
+          } catch (InterruptedException ie) {
+            LOG.info("Interrupted in consumer");
+          }
         }
 
-        if (null == val) {
-          continue;
-        } else if (val.longValue() == 0) {
-          // We're done.
-          return;
-        } else {
-          mTotal += val.longValue();
+        for (Long val : batch) {
+          if (null == val) {
+            continue;
+          } else if (val.longValue() == 0) {
+            // We're done.
+            return;
+          } else {
+            mTotal += val.longValue();
+          }
         }
       }
     }
@@ -105,6 +134,14 @@ public class QueueTestCase {
     public long getTotal() {
       return mTotal;
     }
+
+    public int getMaxDrained() {
+      return mMaxDrained;
+    }
+
+    public int getBatchSize() {
+      return mBatchSize;
+    }
   }
 
   /**
@@ -116,16 +153,33 @@ public class QueueTestCase {
    */
   public void runTest(SelectableQueue<Long> queue, int numProducers, int numConsumers,
       int numValsPerProducer) {
-    List<ProducerThread> producers = new ArrayList<ProducerThread>();
-    for (int i = 0; i < numProducers; i++) {
-      producers.add(new ProducerThread(queue, numValsPerProducer));
-    }
-
     List<ConsumerThread> consumers = new ArrayList<ConsumerThread>();
     for (int i = 0; i < numConsumers; i++) {
       consumers.add(new ConsumerThread(queue));
     }
 
+    runTest(queue, numProducers, consumers, numValsPerProducer);
+  }
+
+  /**
+   * Like runTest(), but with a single consumer that reads from the queue in
+   * batches of up to batchSize values with drainTo().
+   */
+  public void runBatchTest(SelectableQueue<Long> queue, int numProducers,
+      int numValsPerProducer, int batchSize) {
+    List<ConsumerThread> consumers = new ArrayList<ConsumerThread>();
+    consumers.add(new ConsumerThread(queue, batchSize));
+    runTest(queue, numProducers, consumers, numValsPerProducer);
+  }
+
+  private void runTest(SelectableQueue<Long> queue, int numProducers,
+      List<ConsumerThread> consumers, int numValsPerProducer) {
+    int numConsumers = consumers.size();
+    List<ProducerThread> producers = new ArrayList<ProducerThread>();
+    for (int i = 0; i < numProducers; i++) {
+      producers.add(new ProducerThread(queue, numValsPerProducer));
+    }
+
     for (ProducerThread prod : producers) {
       prod.start();
     }
@@ -161,6 +215,7 @@ public class QueueTestCase {
       try {
         con.join();
         finalTotal += con.getTotal();
+        assertTrue("drained too many values", con.getMaxDrained() <= con.getBatchSize());
       } catch (InterruptedException ie) {
         LOG.info("Interrupted during join()");
       }
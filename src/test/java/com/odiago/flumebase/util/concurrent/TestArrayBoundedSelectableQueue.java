@@ -55,4 +55,14 @@ public class TestArrayBoundedSelectableQueue extends QueueTestCase {
     // 3 producers, 3 consumers
     runTest(new ArrayBoundedSelectableQueue<Long>(1500), 3, 3, 25000);
   }
+
+  @Test
+  public void testDrain() {
+    // 1 producer, 1 batch consumer; batches both smaller and larger than the buffer.
+    runBatchTest(new ArrayBoundedSelectableQueue<Long>(100), 1, 10000, 16);
+    runBatchTest(new ArrayBoundedSelectableQueue<Long>(100), 1, 10000, 256);
+
+    // 4 producers, 1 batch consumer
+    runBatchTest(new ArrayBoundedSelectableQueue<Long>(100), 4, 10000, 16);
+  }
 }
@@ -189,4 +189,88 @@ public class TestSelectable {
     queues.add(new SyncSelectableQueue<Long>());
     runTest(queues, 500);
   }
+
+  @Test
+  public void testSpscQueues() {
+    // Single-producer queues only notify on the empty -> non-empty transition.
+    List<SelectableQueue<Long>> queues = new ArrayList<SelectableQueue<Long>>();
+    queues.add(new SpscRingSelectableQueue<Long>(50));
+    queues.add(new SpscRingSelectableQueue<Long>(50));
+    queues.add(new SpscRingSelectableQueue<Long>(4));
+    runTest(queues, 5000);
+  }
+
+  @Test
+  public void testRoundRobin() throws InterruptedException {
+    // Every nonempty queue should be serviced once before any queue is
+    // serviced twice, regardless of registration order.
+    Select<Long> select = new Select<Long>();
+    for (int i = 0; i < 3; i++) {
+      SelectableQueue<Long> queue = new SyncSelectableQueue<Long>();
+      for (int j = 0; j < 4; j++) {
+        queue.put(Long.valueOf(i));
+      }
+      select.add(queue);
+    }
+
+    for (int round = 0; round < 4; round++) {
+      for (int i = 0; i < 3; i++) {
+        assertEquals(Long.valueOf(i), select.read());
+      }
+    }
+  }
+
+  @Test
+  public void testRemove() throws InterruptedException {
+    // A removed queue should not be returned by join(), even if it has data.
+    Select<Long> select = new Select<Long>();
+    SelectableQueue<Long> removed = new SyncSelectableQueue<Long>();
+    SelectableQueue<Long> kept = new SyncSelectableQueue<Long>();
+    select.add(removed);
+    select.add(kept);
+    removed.put(Long.valueOf(1));
+    kept.put(Long.valueOf(2));
+    select.remove(removed);
+
+    assertEquals(Long.valueOf(2), select.read());
+    assertEquals(1, removed.size());
+  }
+
+  /**
+   * Measure the per-event cost of reading a fixed number of events through a
+   * Select spread over a varying number of pre-filled queues. The cost should
+   * not grow with the number of targets.
+   */
+  private long timeSelect(int numTargets, int numEvents) throws InterruptedException {
+    Select<Long> select = new Select<Long>();
+    int eventsPerTarget = numEvents / numTargets;
+    for (int i = 0; i < numTargets; i++) {
+      SelectableQueue<Long> queue = new SyncSelectableQueue<Long>();
+      for (int j = 0; j < eventsPerTarget; j++) {
+        queue.put(Long.valueOf(j));
+      }
+      select.add(queue);
+    }
+
+    int totalEvents = eventsPerTarget * numTargets;
+    long startTime = System.nanoTime();
+    for (int i = 0; i < totalEvents; i++) {
+      select.read();
+    }
+    long elapsed = System.nanoTime() - startTime;
+    return elapsed / totalEvents;
+  }
+
+  @Test(groups = { "slow" })
+  public void testSelectScaling() throws InterruptedException {
+    final int NUM_EVENTS = 1000000;
+    int [] targetCounts = { 2, 10, 100, 1000 };
+
+    timeSelect(10, NUM_EVENTS); // Warm up the JIT.
+
+    for (int numTargets : targetCounts) {
+      long nanosPerEvent = timeSelect(numTargets, NUM_EVENTS);
+      LOG.info("Select over " + numTargets + " targets: " + nanosPerEvent + " ns/event");
+    }
+  }
 }
@@ -0,0 +1,103 @@
+/**
+ * Licensed to Odiago, Inc. under one or more contributor license
+ * agreements.  See the NOTICE.txt file distributed with this work for
+ * additional information regarding copyright ownership.  Odiago, Inc.
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.odiago.flumebase.util.concurrent;
+
+import org.testng.annotations.Test;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test the single-producer/single-consumer queue. Only the 1:1 cases
+ * of QueueTestCase apply to it.
+ */
+public class TestSpscRingSelectableQueue extends QueueTestCase {
+  private static final Logger LOG = LoggerFactory.getLogger(
+      TestSpscRingSelectableQueue.class.getName());
+
+  @Test
+  public void TestSimple() {
+    // 1 producer, 1 consumer, bigger buffer than we need.
+    runTest(new SpscRingSelectableQueue<Long>(500), 1, 1, 100);
+
+    // 1 producer, 1 consumer, smaller buffer than we need.
+    runTest(new SpscRingSelectableQueue<Long>(20), 1, 1, 100);
+
+    // Capacity that is not a power of two; lots of wraparound.
+    runTest(new SpscRingSelectableQueue<Long>(3), 1, 1, 100000);
+  }
+
+  @Test
+  public void testDrain() {
+    runBatchTest(new SpscRingSelectableQueue<Long>(100), 1, 100000, 16);
+    runBatchTest(new SpscRingSelectableQueue<Long>(100), 1, 100000, 256);
+  }
+
+  @Test
+  public void testBounds() throws EmptyException {
+    SelectableQueue<Long> queue = new SpscRingSelectableQueue<Long>(3);
+    assertFalse(queue.canRead());
+    assertTrue(queue.offer(Long.valueOf(1)));
+    assertTrue(queue.offer(Long.valueOf(2)));
+    assertTrue(queue.offer(Long.valueOf(3)));
+    assertFalse("queue should be full", queue.offer(Long.valueOf(4)));
+    assertEquals(3, queue.size());
+    assertTrue(queue.contains(Long.valueOf(2)));
+
+    assertEquals(Long.valueOf(1), queue.poll());
+    assertTrue(queue.offer(Long.valueOf(4)));
+    assertFalse(queue.contains(Long.valueOf(1)));
+    assertEquals(Long.valueOf(2), queue.poll());
+    assertEquals(Long.valueOf(3), queue.poll());
+    assertEquals(Long.valueOf(4), queue.poll());
+    assertFalse(queue.canRead());
+
+    try {
+      queue.poll();
+      fail("Expected EmptyException");
+    } catch (EmptyException ee) {
+      // Expected.
+    }
+  }
+
+  /**
+   * Time the transfer of numVals values through a queue from one producer
+   * to one consumer, and return the elapsed time in ms.
+   */
+  private long timeQueue(SelectableQueue<Long> queue, int numVals) {
+    long start = System.currentTimeMillis();
+    runTest(queue, 1, 1, numVals);
+    return System.currentTimeMillis() - start;
+  }
+
+  @Test(groups = { "slow" })
+  public void testThroughput() {
+    int numVals = 5000000;
+    // Warm up both implementations.
+    timeQueue(new ArrayBoundedSelectableQueue<Long>(1000), numVals / 10);
+    timeQueue(new SpscRingSelectableQueue<Long>(1000), numVals / 10);
+
+    long lockedTime = timeQueue(new ArrayBoundedSelectableQueue<Long>(1000), numVals);
+    long spscTime = timeQueue(new SpscRingSelectableQueue<Long>(1000), numVals);
+    LOG.info("Values transferred: " + numVals);
+    LOG.info("ArrayBoundedSelectableQueue time (ms): " + lockedTime);
+    LOG.info("SpscRingSelectableQueue time (ms): " + spscTime);
+  }
+}
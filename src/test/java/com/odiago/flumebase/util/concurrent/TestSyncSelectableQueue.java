@@ -52,4 +52,13 @@ public class TestSyncSelectableQueue extends QueueTestCase {
     // 3 producers, 3 consumers
     runTest(new SyncSelectableQueue<Long>(), 3, 3, 25000);
   }
+
+  @Test
+  public void testDrain() {
+    // 1 producer, 1 batch consumer
+    runBatchTest(new SyncSelectableQueue<Long>(), 1, 10000, 16);
+
+    // 4 producers, 1 batch consumer
+    runBatchTest(new SyncSelectableQueue<Long>(), 4, 10000, 256);
+  }
 }